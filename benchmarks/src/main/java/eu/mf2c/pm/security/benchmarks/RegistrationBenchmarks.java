@@ -0,0 +1,498 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.mf2c.pm.security.AgentIdentity;
+import eu.mf2c.pm.security.BasicSocketServer;
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.IdentityRegistry;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.KeyStorePersister;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * JMH benchmarks for the registration hot paths&#58; key generation, CSR creation,
+ * certificate parsing, key store updates and persistence, identity lookups and
+ * registrations, message handling and TLS handshakes.  Each benchmark and parameter
+ * combination runs in a forked JVM with a {@link StoreManagerSingleton
+ * <em>StoreManagerSingleton</em>} of its own.
+ * <p>
+ * Build and run, from a scratch directory as the key stores are written to the working
+ * directory&#58;
+ * <pre>
+ *   mvn -f &lt;cau-client&gt;/benchmarks/pom.xml package
+ *   java -jar &lt;cau-client&gt;/benchmarks/target/benchmarks.jar -rf json [name regex]
+ * </pre>
+ * The usual JMH options apply, e.g. <code>-wi</code>, <code>-i</code> and <code>-f</code>
+ * for the warm&#45;up and measurement iterations and the forks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmarks {
+
+	/**
+	 * The StoreManagerSingleton generating keypairs and CSRs with a key algorithm.  An
+	 * algorithm the runtime does not support fails its setup and is reported as such.
+	 */
+	@State(Scope.Benchmark)
+	public static class Keys {
+		/** the key algorithm */
+		@Param
+		public KeyAlgorithm algorithm;
+		/** the store manager */
+		StoreManagerSingleton sms;
+
+		/**
+		 * Set the key algorithm.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.algorithm.generateKeyPair(TestPki.RANDOM);
+			this.sms = StoreManagerSingleton.getInstance();
+			this.sms.setKeyAlgorithm(this.algorithm);
+			this.sms.generateKeyPair();
+		}
+	}
+
+	/**
+	 * An agent certificate in PEM.
+	 */
+	@State(Scope.Benchmark)
+	public static class Certificates {
+		/** the store manager */
+		StoreManagerSingleton sms;
+		/** the PEM encoding */
+		byte[] pem;
+
+		/**
+		 * Issue the certificate.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.sms = StoreManagerSingleton.getInstance();
+			this.pem = pem(agentCertificates(this.sms)[0]);
+		}
+	}
+
+	/**
+	 * A key store filled to a number of entries, and two certificates for one entry
+	 * alternated so that every update changes it.
+	 */
+	@State(Scope.Benchmark)
+	public static class KeyStores {
+		/** the number of key store entries */
+		@Param({"10", "100", "1000"})
+		public int entries;
+		/** the store manager */
+		StoreManagerSingleton sms;
+		/** the certificates alternated */
+		X509Certificate[] agentCerts;
+		/** the updates made */
+		int flip;
+
+		/**
+		 * Fill the key store.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.sms = StoreManagerSingleton.getInstance();
+			this.agentCerts = agentCertificates(this.sms);
+			for(int filled = this.sms.getKeyStore().size(); filled < this.entries; filled++) {
+				this.sms.storeKeyEntry("bench-fill-" + filled, "bench-fog", this.agentCerts[0]);
+			}
+		}
+
+		/**
+		 * Get the certificate for the next update.
+		 * @return the certificate
+		 */
+		X509Certificate next() {
+			return this.agentCerts[this.flip++ & 1];
+		}
+	}
+
+	/**
+	 * An identity registry holding a number of identities.
+	 */
+	@State(Scope.Benchmark)
+	public static class Identities {
+		/** the number of hosted identities */
+		@Param({"100", "1000", "10000"})
+		public int identities;
+		/** the registry directory */
+		Path dir;
+		/** writes the registry shards */
+		KeyStorePersister persister;
+		/** the registry */
+		IdentityRegistry registry;
+		/** the identity chain */
+		Certificate[] chain;
+		/** the identity key */
+		Credential agent;
+		/** the id keys */
+		String[] idKeys;
+		/** the device IDs */
+		String[] devices;
+		/** the next identity used */
+		int next;
+
+		/**
+		 * Register the identities.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			Credential ca = TestPki.createCA("bench-identity-ca", KeyAlgorithm.EC_P256);
+			this.agent = TestPki.createEntity("bench-identity", KeyAlgorithm.EC_P256, ca);
+			this.chain = new Certificate[] {this.agent.cert, ca.cert};
+			this.dir = Files.createTempDirectory("bench-identities");
+			this.persister = new KeyStorePersister(60000, 60000);
+			this.registry = new IdentityRegistry(this.dir, IdentityRegistry.DEFAULT_SHARDS, TestPki.PASS, this.persister);
+			this.idKeys = new String[this.identities];
+			this.devices = new String[this.identities];
+			for(int i = 0; i < this.identities; i++) {
+				this.idKeys[i] = "bench-agent-" + i;
+				this.devices[i] = "bench-device-" + i;
+				register(i);
+			}
+			this.registry.flush();
+		}
+
+		/**
+		 * Remove the registry.
+		 * @throws Exception on errors
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.persister.close();
+			for(File f : this.dir.toFile().listFiles()) {
+				f.delete();
+			}
+			this.dir.toFile().delete();
+		}
+
+		/**
+		 * Get the next identity used.
+		 * @return the index
+		 */
+		int next() {
+			return this.next++ % this.identities;
+		}
+
+		/**
+		 * Register an identity again.
+		 * @param i	the index
+		 * @return the identity
+		 * @throws Exception on errors
+		 */
+		AgentIdentity register(int i) throws Exception {
+			return this.registry.register(this.idKeys[i], this.devices[i], "bench-fog-" + i % 10, this.agent.keypair.getPrivate(), this.chain);
+		}
+	}
+
+	/**
+	 * A registration message and CSR.
+	 */
+	@State(Scope.Benchmark)
+	public static class Messages {
+		/** the CAU addresses */
+		HashMap<String, String> addresses = new HashMap<String, String>();
+		/** the registration message */
+		String message = "detectedLeaderID=56789,deviceID=123456789,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45";
+		/** the CSR */
+		String csr;
+
+		/**
+		 * Create the CSR.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.addresses.put("cauIP", "127.0.0.1:46400");
+			this.addresses.put("leaderCauIP", "127.0.0.1:46410");
+			this.csr = StoreManagerSingleton.getInstance().createCSRString("someIDKey");
+		}
+	}
+
+	/**
+	 * An in&#45;process TLS server using a key algorithm, connected to with full or
+	 * resumed handshakes.
+	 */
+	@State(Scope.Benchmark)
+	public static class Handshakes {
+		/** the server key algorithm */
+		@Param({"RSA_2048", "EC_P256"})
+		public KeyAlgorithm algorithm;
+		/** full or resumed */
+		@Param({"full", "resumed"})
+		public String session;
+		/** the server socket */
+		SSLServerSocket server;
+		/** the client context */
+		SSLContext clientCtx;
+
+		/**
+		 * Start the server.
+		 * @throws Exception on errors
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			Credential ca = TestPki.createCA("bench-tls-ca", this.algorithm);
+			SSLContext serverCtx = TestPki.context(TestPki.createEntity("localhost", this.algorithm, ca), null, ca.cert);
+			this.clientCtx = SSLContextRegistry.createContext(TestPki.trustStore(ca.cert), null, null);
+			this.server = (SSLServerSocket) serverCtx.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			SSLServerSocket ss = this.server;
+			Thread acceptor = new Thread(() -> {
+				while(!ss.isClosed()) {
+					try (SSLSocket s = (SSLSocket) ss.accept()) {
+						s.startHandshake();
+						s.getOutputStream().write(1);
+						s.getOutputStream().flush();
+						s.getInputStream().read();
+					} catch (Exception e) {
+						//closed at the end of the trial
+					}
+				}
+			}, "bench-tls-server");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		/**
+		 * Stop the server.
+		 * @throws Exception on errors
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.server.close();
+		}
+	}
+
+	/**
+	 * Generate the agent keypair.
+	 * @param keys	the state
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public void generateKeyPair(Keys keys) throws Exception {
+		keys.sms.generateKeyPair();
+	}
+
+	/**
+	 * Create a CSR for the agent keypair.
+	 * @param keys	the state
+	 * @return the CSR
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public String createCSRString(Keys keys) throws Exception {
+		return keys.sms.createCSRString("bench-agent");
+	}
+
+	/**
+	 * Parse a PEM certificate from bytes.
+	 * @param certs	the state
+	 * @return the certificate
+	 */
+	@Benchmark
+	public X509Certificate generateCertFromBytes(Certificates certs) {
+		return certs.sms.generateCertFromBytes(certs.pem);
+	}
+
+	/**
+	 * Parse a PEM certificate from a stream.
+	 * @param certs	the state
+	 * @return the certificate
+	 */
+	@Benchmark
+	public X509Certificate generateCertfromPEM(Certificates certs) {
+		return certs.sms.generateCertfromPEM(new ByteArrayInputStream(certs.pem));
+	}
+
+	/**
+	 * Update a key store entry.
+	 * @param stores	the state
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public void storeKeyEntry(KeyStores stores) throws Exception {
+		stores.sms.storeKeyEntry("bench-agent", "bench-fog", stores.next());
+	}
+
+	/**
+	 * Update a key store entry and write the key stores, as only changed stores are written.
+	 * @param stores	the state
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public void persistKeyStores(KeyStores stores) throws Exception {
+		stores.sms.storeKeyEntry("bench-agent", "bench-fog", stores.next());
+		stores.sms.persistKeyStores();
+	}
+
+	/**
+	 * Look an identity up by id key.
+	 * @param ids	the state
+	 * @return the identity
+	 */
+	@Benchmark
+	public AgentIdentity getByIdKey(Identities ids) {
+		return ids.registry.getByIdKey(ids.idKeys[ids.next()]);
+	}
+
+	/**
+	 * Look an identity up by device ID.
+	 * @param ids	the state
+	 * @return the identity
+	 */
+	@Benchmark
+	public AgentIdentity getByDeviceID(Identities ids) {
+		return ids.registry.getByDeviceID(ids.devices[ids.next()]);
+	}
+
+	/**
+	 * Register an identity again.
+	 * @param ids	the state
+	 * @return the identity
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public AgentIdentity register(Identities ids) throws Exception {
+		return ids.register(ids.next());
+	}
+
+	/**
+	 * Register an identity again and write its shard.
+	 * @param ids	the state
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public void persistIdentities(Identities ids) throws Exception {
+		ids.register(ids.next());
+		ids.registry.flush();
+	}
+
+	/**
+	 * Parse a registration message.
+	 * @param msgs	the state
+	 * @return the values
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public Object getValues(Messages msgs) throws Exception {
+		return BasicSocketServer.getValues(msgs.message, msgs.addresses);
+	}
+
+	/**
+	 * Build the CAU request message.
+	 * @param msgs	the state
+	 * @return the message
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public byte[] getMsgBytes(Messages msgs) throws Exception {
+		return CauClient.getMsgBytes(msgs.csr, "56789", "ab:cd:ef:01:23:45", "someIDKey", "123456789");
+	}
+
+	/**
+	 * Connect to the server and exchange a byte.
+	 * @param hs	the state
+	 * @return the byte read
+	 * @throws Exception on errors
+	 */
+	@Benchmark
+	public int connect(Handshakes hs) throws Exception {
+		try (SSLSocket s = SSLContextRegistry.getInstance().connect(SSLContextRegistry.Role.CAU, hs.clientCtx,
+				InetAddress.getLoopbackAddress(), hs.server.getLocalPort(), null)) {
+			int read = s.getInputStream().read();
+			if("full".equals(hs.session)) {
+				s.getSession().invalidate();
+			}
+			s.getOutputStream().write(1);
+			return read;
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Issue two certificates for the agent keypair of the store manager by a CA it trusts.
+	 * @param sms	the store manager
+	 * @return the certificates
+	 * @throws Exception on errors
+	 */
+	private static X509Certificate[] agentCertificates(StoreManagerSingleton sms) throws Exception {
+		Credential ca = TestPki.createCA("bench-ca", KeyAlgorithm.RSA_2048);
+		sms.storeCertificate("bench-ca", ca.cert);
+		PublicKey agentKey = new JcaPEMKeyConverter().getPublicKey(sms.createCSR("bench-agent").getSubjectPublicKeyInfo());
+		return new X509Certificate[] {TestPki.issue("bench-agent", agentKey, ca, 365), TestPki.issue("bench-agent", agentKey, ca, 366)};
+	}
+
+	/**
+	 * PEM encode a certificate.
+	 * @param c	the certificate
+	 * @return	the encoding
+	 * @throws Exception on errors
+	 */
+	private static byte[] pem(X509Certificate c) throws Exception {
+		StringWriter sw = new StringWriter();
+		try (JcaPEMWriter pw = new JcaPEMWriter(sw)) {
+			pw.writeObject(c);
+		}
+		return sw.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
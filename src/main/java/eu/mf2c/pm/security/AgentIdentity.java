@@ -0,0 +1,104 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.cert.X509Certificate;
+
+/**
+ * An agent identity held by the {@link IdentityRegistry <em>IdentityRegistry</em>}: the
+ * agent&#39;s id key, device ID and fog ID, with its private key and certificate chain.
+ * Instances are immutable.
+ */
+public class AgentIdentity {
+	/** agent id key, the certificate common name */
+	private final String idKey;
+	/** agent device ID, may be null */
+	private final String deviceID;
+	/** ID of the fog the agent registered with, may be null */
+	private final String fogID;
+	/** the private key and certificate chain */
+	private final PrivateKeyEntry keyEntry;
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param deviceID	the agent device ID, or null
+	 * @param fogID		the fog ID, or null
+	 * @param keyEntry	the private key and certificate chain
+	 */
+	public AgentIdentity(String idKey, String deviceID, String fogID, PrivateKeyEntry keyEntry) {
+		if(idKey == null || keyEntry == null) {
+			throw new IllegalArgumentException("An identity needs an id key and a key entry!");
+		}
+		this.idKey = idKey;
+		this.deviceID = deviceID;
+		this.fogID = fogID;
+		this.keyEntry = keyEntry;
+	}
+
+	/**
+	 * Get the agent id key.
+	 * <p>
+	 * @return the id key
+	 */
+	public String getIdKey() {
+		return this.idKey;
+	}
+
+	/**
+	 * Get the agent device ID.
+	 * <p>
+	 * @return the device ID, or null
+	 */
+	public String getDeviceID() {
+		return this.deviceID;
+	}
+
+	/**
+	 * Get the ID of the fog the agent registered with.
+	 * <p>
+	 * @return the fog ID, or null
+	 */
+	public String getFogID() {
+		return this.fogID;
+	}
+
+	/**
+	 * Get the private key and certificate chain.
+	 * <p>
+	 * @return the key entry
+	 */
+	public PrivateKeyEntry getKeyEntry() {
+		return this.keyEntry;
+	}
+
+	/**
+	 * Get the agent certificate.
+	 * <p>
+	 * @return the first certificate of the chain
+	 */
+	public X509Certificate getCertificate() {
+		return (X509Certificate) this.keyEntry.getCertificate();
+	}
+
+	@Override
+	public String toString() {
+		return "idKey=" + this.idKey + ", deviceID=" + this.deviceID + ", fogID=" + this.fogID
+			+ ", subject=" + getCertificate().getSubjectX500Principal().getName();
+	}
+}
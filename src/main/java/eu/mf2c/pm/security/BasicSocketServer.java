@@ -11,33 +11,53 @@
    distributed under the License is distributed on an "AS IS" BASIS,
    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
    See the License for the specific language governing permissions and
-   limitations under the License 
+   limitations under the License
  */
 package eu.mf2c.pm.security;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import eu.mf2c.pm.security.Exception.BasicSocketServerException;
 import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+import eu.mf2c.pm.security.util.Utils;
 
 /**
- * A basic socket server to listen to incoming messages.
- * For IT1, we listen to the the Policy block triggering the process 
- * flow to contact the CAU server to obtain an agent 
+ * A socket server to listen to incoming registration messages.
+ * We listen to the Policy block triggering the process
+ * flow to contact the CAU server to obtain an agent
  * certificate.
- * The trigger is handled synchronously and the server returns
- * either an error message or an OK message.
+ * <p>
+ * The server keeps running until {@link #stop()} is called.  Connections are
+ * accepted and read by a single non&#45;blocking selector thread.  Once a
+ * complete message has been read, the request is handed to a bounded pool of
+ * worker threads which run the registration and return either an error
+ * message or an OK message.  Each connection carries its own request values.
+ * A reply the socket cannot take at once is finished by the selector thread when the
+ * connection becomes writable; a Policy block which does not take its reply within
+ * <code>-Dmf2c.server.writeTimeout</code> (10000ms) is disconnected.
  * <p>
  * @author Shirley Crompton, shirley.crompton@stfc.ac.uk
  * org Data Science and Technology Group,
@@ -47,130 +67,498 @@ import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
 public class BasicSocketServer {
 	/** Message logger attribute */
 	protected Logger LOGGER = Logger.getLogger(BasicSocketServer.class.getName());
-	/** server socket object */
-	public ServerSocket s = null;
-	/** socket object */
-    public Socket conn = null;
-    /** Buffered reader object for reading client input */
-    public BufferedReader inReader = null;
-    /** socket server output stream object */
-    OutputStream os = null;
-    /** Collection of input values from the Policy block */
-    private HashMap<String, String> cache = new HashMap<String,String>();
+	/** IT1 fixed port number */
+	public static final int DEFAULT_PORT = 46065;
+	/** default length of the pending connection queue */
+	public static final int DEFAULT_BACKLOG = 50;
+	/** default number of registrations queued for a free worker */
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+	/** maximum length of a Policy block message in bytes */
+	public static final int MAX_MESSAGE_LENGTH = 8192;
+	/** default time a Policy block has to take its reply, in milliseconds */
+	public static final int DEFAULT_WRITE_TIMEOUT = 10000;
+	/** server socket channel object */
+	private ServerSocketChannel serverChannel = null;
+	/** selector multiplexing the accept and read events */
+	private Selector selector = null;
+	/** bounded pool running the registrations */
+	private ThreadPoolExecutor workers = null;
+    /** The CAU and leader CAU connection values, copied into each request */
+    private final HashMap<String, String> addresses = new HashMap<String,String>();
+    /** processes the registration requests */
+    private final RegistrationHandler handler;
+    /** port number to listen on, 0 for an ephemeral port */
+    private final int port;
+    /** number of worker threads */
+    private final int poolSize;
+    /** number of requests which may wait for a worker */
+    private final int queueSize;
+    /** time a Policy block has to take its reply, in milliseconds */
+    private final int writeTimeout;
+    /** replies left for the selector thread to finish */
+    private final ConcurrentLinkedQueue<Connection> replies = new ConcurrentLinkedQueue<Connection>();
+    /** connections finishing their reply, only used by the selector thread */
+    private final Set<Connection> writing = new HashSet<Connection>();
     /** flag to control state of socket */
-    private boolean isRunning = true;
-    
-    /*
-     * Construct an instance.
+    private volatile boolean isRunning = true;
+    /** released once the server socket is bound */
+    private final CountDownLatch started = new CountDownLatch(1);
+    /** released once the server has shut down */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * Construct an instance listening on the IT1 port with a worker per processor.
+     * Requests are processed by a {@link RegistrationPipeline <em>RegistrationPipeline</em>}
+     * running the {@link CauClient <em>CauClient</em>} stages.
      * <p>
      * @param hm 	A {@link java.util.HashMap <em>HashMap</em>} representations of the CAU IP addresses.
      */
     public BasicSocketServer(HashMap<String, String> hm) {
-    	this.cache.putAll(hm);; //store the leaderCAU and regionalCAU connection params
+    	this(hm, DEFAULT_PORT, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE,
+    			new RegistrationPipeline());
     }
-    
-    
+
     /**
-     * Runs a basic TCP&#47;IP socket server to listen for
-     * trigger from the Discovery block and receive the required
-     * identity and leader information.
-     * <p> 
-     * @throws Exception on processing errors
+     * Construct an instance.
+     * <p>
+     * @param hm 			A {@link java.util.HashMap <em>HashMap</em>} representations of the CAU IP addresses.
+     * @param port			the port to listen on, 0 for an ephemeral port
+     * @param poolSize		the number of registrations processed concurrently
+     * @param queueSize		the number of registrations which may wait for a worker
+     * @param handler		the {@link RegistrationHandler <em>RegistrationHandler</em>} processing the requests
+     */
+    public BasicSocketServer(HashMap<String, String> hm, int port, int poolSize, int queueSize, RegistrationHandler handler) {
+    	this.addresses.putAll(hm); //store the leaderCAU and regionalCAU connection params
+    	this.port = port;
+    	this.poolSize = Math.max(1, poolSize);
+    	this.queueSize = Math.max(1, queueSize);
+    	this.writeTimeout = Math.max(1, Utils.getIntProperty("mf2c.server.writeTimeout", DEFAULT_WRITE_TIMEOUT));
+    	this.handler = handler;
+    }
+
+    /**
+     * Runs a TCP&#47;IP socket server to listen for
+     * triggers from the Policy block and receive the required
+     * identity and leader information.  The method blocks until
+     * the server is stopped.
+     * <p>
+     * @throws Exception on errors binding or running the server socket
      */
     public void runSocket() throws Exception {
-    	//no thread here, as we only needs to listen to discovery block
-        //s = new ServerSocket(0 , 2, InetAddress.getByName("127.0.0.1")); //auto port n#, max 2 connections, local host
-    	s = new ServerSocket(46065 , 2, InetAddress.getByName("0.0.0.0")); //IT1 fixed port n#, max 2 connections, use ip 0 for container service 8/5/18
-        /*add a shutdown hook for when user terminates JVM
-        Runtime.getRuntime().addShutdownHook(new Thread(){public void run(){
-            try {
-            	shutdown(); //JVM will always close socket and streams anyway
-                LOGGER.info("The basic socket server is shutting down!");
-                //System.out.print("The basic socket server is shutting down.....");
-                StoreManagerSingleton.getInstance().persistKeyStores();
-                //
-            } catch (IOException | StoreManagerSingletonException e) { // failed 
-            	LOGGER.error("Error shutting down socket: " + e.getMessage());
-			}
-        }});*/
-        //       
-        LOGGER.info("Socket running on port : " + s.getLocalPort() + ", waiting for connection");
-        try {
-        	while(isRunning) { 
-		        //get the connection socket
-		        conn = s.accept(); //connection blocks
-		        os = conn.getOutputStream();
-		        LOGGER.debug("Connection received from " + conn.getInetAddress().getHostName() + " : " + conn.getPort());
-		        //set up input read
-		        inReader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-		        String message = inReader.readLine(); //9May18 removed base64 encoding
-		        LOGGER.debug("Incoming message: " + message);
-		        //
-		        this.getValues(message);
-		        //now we got all the values, spawn a thread to do the CAU interaction
-		        CauClient client = new CauClient(this.cache); //may throw exceptions on instantiation		        
-		        //9May18 change to a method call		        
-		        //client.start();
-		        client.run();
-		        LOGGER.debug("CauClient returned, about to write OK to policy block ....");		        
-		        //if we get to here, the process ran OK otherwise we would be in the exception block
-		        os.write("OK".getBytes()); //send OK to policy block
-		        //add the shut down for IT1 until we know what's the lifecycle of the Agent
-		        this.isRunning = false;
-		        //end 9May18
+    	try {
+	    	this.workers = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+	    			new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory());
+	    	this.selector = Selector.open();
+	    	this.serverChannel = ServerSocketChannel.open();
+	    	this.serverChannel.socket().setReuseAddress(true);
+	    	//use ip 0 for container service 8/5/18
+	    	this.serverChannel.bind(new InetSocketAddress("0.0.0.0", this.port), DEFAULT_BACKLOG);
+	    	this.serverChannel.configureBlocking(false);
+	    	this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	        LOGGER.info("Socket running on port : " + getLocalPort() + " with " + poolSize + " workers, waiting for connection");
+	        this.started.countDown();
+        	while(isRunning) {
+        		//wake up to drop the connections which do not take their reply
+        		this.selector.select(this.writing.isEmpty() ? 0L : Math.min(1000L, this.writeTimeout));
+        		registerReplies();
+        		Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        		while(keys.hasNext()) {
+        			SelectionKey key = keys.next();
+        			keys.remove();
+        			try {
+	        			if(!key.isValid()) {
+	        				continue;
+	        			}
+	        			if(key.isAcceptable()) {
+	        				accept();
+	        			}else if(key.isReadable()) {
+	        				read(key);
+	        			}else if(key.isWritable()) {
+	        				write(key);
+	        			}
+        			}catch(IOException e) {
+        				//only this connection is affected, keep serving the others
+        				LOGGER.error("Error handling connection: " + e.getMessage());
+        				closeQuietly((Connection) key.attachment());
+        			}
+        		}
+        		dropStalledReplies();
         	}
-        }catch(Exception e){
+        }finally {
         	this.isRunning = false;
-        	String errMsg = "ERROR:" + (e.getMessage() == null ? " unknown error " : e.getMessage());
-        	LOGGER.error(errMsg);
-        	if(os != null) {
-        		os.write(errMsg.getBytes());
-        	}
-        }finally {        	
+        	this.started.countDown();
         	this.shutdown();
+        	this.terminated.countDown();
         }
     }
-    /** 
+
+    /**
+     * Signal the server to stop accepting connections and shut down.
+     * Registrations already being processed are allowed to complete.
+     */
+    public void stop() {
+    	this.isRunning = false;
+    	if(this.selector != null) {
+    		this.selector.wakeup();
+    	}
+    }
+
+    /**
+     * Wait for the server socket to be bound.
+     * <p>
+     * @param timeout	the maximum time to wait
+     * @param unit		the unit of the timeout argument
+     * @return	true if the server is listening, else false
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitStartup(long timeout, TimeUnit unit) throws InterruptedException {
+    	return this.started.await(timeout, unit) && this.isRunning;
+    }
+
+    /**
+     * Wait for the server to complete its shutdown.
+     * <p>
+     * @param timeout	the maximum time to wait
+     * @param unit		the unit of the timeout argument
+     * @return	true if the server has shut down, else false
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    	return this.terminated.await(timeout, unit);
+    }
+
+    /**
+     * Get the port the server is listening on.
+     * <p>
+     * @return	the local port number or &#45;1 if the server is not bound.
+     */
+    public int getLocalPort() {
+    	if(this.serverChannel == null || !this.serverChannel.isOpen()) {
+    		return -1;
+    	}
+    	return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
      * Shut down socket server and release resources.
-     * <p> 
+     * <p>
      * @throws IOException on error
      */
-    public void shutdown() throws IOException {    	
-    	if(inReader != null) {
-    		inReader.close();
+    public void shutdown() throws IOException {
+    	if(this.selector != null) {
+    		for(SelectionKey key : this.selector.keys()) {
+    			if(key.attachment() instanceof Connection) {
+    				closeQuietly((Connection) key.attachment());
+    			}
+    		}
+    		this.selector.close();
     	}
-    	if(os != null) {
-    		os.close();
+    	if(this.serverChannel != null) {
+    		this.serverChannel.close();
     	}
-        s.close();
+    	if(this.workers != null) {
+    		this.workers.shutdown();
+    		try {
+    			if(!this.workers.awaitTermination(30, TimeUnit.SECONDS)) {
+    				LOGGER.error("Registrations still running after 30 seconds, abandoning them.");
+    				this.workers.shutdownNow();
+    			}
+    		} catch (InterruptedException e) {
+    			this.workers.shutdownNow();
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	//replies the selector can no longer finish
+    	Connection conn;
+    	while((conn = this.replies.poll()) != null) {
+    		closeQuietly(conn);
+    	}
+    	this.handler.shutdown();
         //9May2018 no longer running an infinite loop, moved this from the shutdown hook
-        try {
-			StoreManagerSingleton.getInstance().persistKeyStores();
-		} catch (StoreManagerSingletonException e) {
-			// just log the error
-			LOGGER.error("Error persisting keystores: " + e.getMessage());			
-		}
+    	if(StoreManagerSingleton.isInstantiated()) {
+	        try {
+				StoreManagerSingleton.getInstance().persistKeyStores();
+			} catch (StoreManagerSingletonException e) {
+				// just log the error
+				LOGGER.error("Error persisting keystores: " + e.getMessage());
+			}
+    	}
         LOGGER.debug("completed shutdown process....");
     }
+
     /**
      * Parse the incoming message String and get the attribute
-     * values.  The message contains values which are represented 
-     * as key&#45;value pairs, with each pair separated by a &#34;,&#34; 
+     * values.  The message contains values which are represented
+     * as key&#45;value pairs, with each pair separated by a &#34;,&#34;
      * <p>
-     * @param message  incoming message
+     * @param message  		incoming message
+     * @param addresses		the CAU and leader CAU connection values
+     * @return	a new {@link java.util.HashMap <em>HashMap</em>} holding the connection
+     * 			and the message values
      * @throws BasicSocketServerException on errors
      */
-    private void getValues(String message) throws BasicSocketServerException {
+    public static HashMap<String, String> getValues(String message, Map<String, String> addresses) throws BasicSocketServerException {
     	//tokenise message
     	//E.g.: "detectedLeaderID=56789,deviceID=123456789,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45"
+    	if(message == null || message.isEmpty()) {
+    		throw new BasicSocketServerException("No message received! Cannot continue.");
+    	}
+    	HashMap<String, String> values = new HashMap<String, String>(addresses);
     	String[] msgList = message.split(",");
     	for (String entry : msgList) {
-    		  String[] keyValue = entry.split("=");
-    		  this.cache.put(keyValue[0],keyValue[1]);
-    		  LOGGER.debug("cached " + keyValue[0] + ": " + keyValue[1]);
+    		String[] keyValue = entry.split("=", 2);
+    		if(keyValue.length != 2) {
+    			throw new BasicSocketServerException("Malformed value(" + entry + ") received! Cannot continue.");
+    		}
+    		values.put(keyValue[0].trim(), keyValue[1].trim());
     	}
-    	if(cache.size() != 6) {//2 ip addresses + 4 here
+    	if(values.size() != addresses.size() + 4) {//2 ip addresses + 4 here
     		throw new BasicSocketServerException("Incorrect number of values received! Cannot continue.");
     	}
+    	return values;
+    }
+
+    /**
+     * Accept a pending connection and register it for reading.
+     * <p>
+     * @throws IOException on error
+     */
+    private void accept() throws IOException {
+    	SocketChannel channel = this.serverChannel.accept();
+    	if(channel == null) {
+    		return;
+    	}
+    	channel.configureBlocking(false);
+    	LOGGER.debug("Connection received from " + channel.getRemoteAddress());
+    	channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    /**
+     * Read the available bytes from a connection.  Once a complete line is
+     * received, the connection is handed over to a worker.
+     * <p>
+     * @param key	the selection key of the connection
+     * @throws IOException on error
+     */
+    private void read(SelectionKey key) throws IOException {
+    	Connection conn = (Connection) key.attachment();
+    	int n = conn.channel.read(conn.buffer);
+    	String message = conn.getLine(n == -1);
+    	if(message != null) {
+    		//no more reads needed, the worker owns the connection from now on
+    		key.cancel();
+    		dispatch(conn, message);
+    	}else if(n == -1) {
+    		key.cancel();
+    		dispatch(conn, null);
+    	}else if(!conn.buffer.hasRemaining()) {
+    		if(conn.buffer.capacity() >= MAX_MESSAGE_LENGTH) {
+    			key.cancel();
+    			respond(conn, "ERROR:message exceeds " + MAX_MESSAGE_LENGTH + " bytes");
+    		}else {
+    			conn.grow();
+    		}
+    	}
+    }
+
+    /**
+     * Hand over a received message to the worker pool.
+     * <p>
+     * @param conn		the connection the message was received on
+     * @param message	the received message
+     */
+    private void dispatch(Connection conn, String message) {
+    	LOGGER.debug("Incoming message: " + message);
+    	try {
+    		this.workers.execute(() -> process(conn, message));
+    	}catch(RejectedExecutionException e) {
+    		LOGGER.error("Registration queue full, rejecting request.");
+    		respond(conn, "ERROR:server busy, try again later");
+    	}
+    }
+
+    /**
+     * Process a registration on a worker thread and return the outcome
+     * to the Policy block.
+     * <p>
+     * @param conn		the connection the message was received on
+     * @param message	the received message
+     */
+    private void process(Connection conn, String message) {
+    	String reply = null;
+    	try {
+    		HashMap<String, String> request = getValues(message, this.addresses);
+    		this.handler.register(request);
+    		LOGGER.debug("Registration returned, about to write OK to policy block ....");
+    		reply = "OK";
+    	}catch(Exception e) {
+        	reply = "ERROR:" + (e.getMessage() == null ? " unknown error " : e.getMessage());
+        	LOGGER.error(reply);
+    	}
+    	respond(conn, reply);
+    }
+
+    /**
+     * Write a reply to the connection and close it.  If the socket buffer does not
+     * take the whole reply, the rest is left to the selector thread.
+     * <p>
+     * @param conn	the connection to reply to
+     * @param reply	the reply message
+     */
+    private void respond(Connection conn, String reply) {
+    	conn.reply = ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8));
+    	try {
+    		//replies are tiny, the socket buffer takes them in one go in practice
+    		conn.channel.write(conn.reply);
+    	}catch(IOException e) {
+    		LOGGER.error("Error writing reply to policy block: " + e.getMessage());
+    		closeQuietly(conn);
+    		return;
+    	}
+    	if(!conn.reply.hasRemaining()) {
+    		closeQuietly(conn);
+    		return;
+    	}
+    	conn.writeDeadline = System.nanoTime() + this.writeTimeout * 1000000L;
+    	this.replies.add(conn);
+    	this.selector.wakeup();
+    }
+
+    /**
+     * Register the replies left by {@link #respond(Connection, String) respond} for
+     * writing.  Called on the selector thread after a select, so the read keys the
+     * connections were cancelled from are deregistered.
+     */
+    private void registerReplies() {
+    	Connection conn;
+    	while((conn = this.replies.poll()) != null) {
+    		try {
+    			conn.channel.register(this.selector, SelectionKey.OP_WRITE, conn);
+    			this.writing.add(conn);
+    		}catch(IOException | CancelledKeyException e) {
+    			LOGGER.error("Error registering reply to policy block: " + e.getMessage());
+    			closeQuietly(conn);
+    		}
+    	}
+    }
+
+    /**
+     * Write more of a reply, closing the connection once it is written.
+     * <p>
+     * @param key	the selection key of the connection
+     * @throws IOException on error
+     */
+    private void write(SelectionKey key) throws IOException {
+    	Connection conn = (Connection) key.attachment();
+    	conn.channel.write(conn.reply);
+    	if(!conn.reply.hasRemaining()) {
+    		this.writing.remove(conn);
+    		closeQuietly(conn);
+    	}
+    }
+
+    /**
+     * Close the connections which have not taken their reply within the write
+     * timeout, and forget the closed ones.
+     */
+    private void dropStalledReplies() {
+    	if(this.writing.isEmpty()) {
+    		return;
+    	}
+    	long now = System.nanoTime();
+    	for(Iterator<Connection> it = this.writing.iterator(); it.hasNext();) {
+    		Connection conn = it.next();
+    		if(!conn.channel.isOpen()) {
+    			it.remove();
+    		}else if(now - conn.writeDeadline > 0) {
+    			LOGGER.error("Policy block did not take its reply within " + this.writeTimeout + "ms, dropping the connection");
+    			it.remove();
+    			closeQuietly(conn);
+    		}
+    	}
+    }
+
+    /**
+     * Close a connection, logging any error.
+     * <p>
+     * @param conn the connection, may be null
+     */
+    private void closeQuietly(Connection conn) {
+    	if(conn == null) {
+    		return;
+    	}
+    	try {
+    		conn.channel.close();
+    	}catch(IOException e) {
+    		LOGGER.error("Error closing connection: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * State of a single Policy block connection.
+     */
+    private static class Connection {
+    	/** the connection channel */
+    	final SocketChannel channel;
+    	/** bytes read so far */
+    	ByteBuffer buffer = ByteBuffer.allocate(512);
+    	/** the reply being written */
+    	ByteBuffer reply = null;
+    	/** the time the reply must be written by, on the {@link System#nanoTime()} scale */
+    	long writeDeadline;
+
+    	/**
+    	 * Constructor
+    	 * <p>
+    	 * @param channel the accepted channel
+    	 */
+    	Connection(SocketChannel channel) {
+    		this.channel = channel;
+    	}
+
+    	/**
+    	 * Get the first line read so far.
+    	 * <p>
+    	 * @param eof	true if the peer has closed its output
+    	 * @return	the line without the terminator, or null if no complete line is available
+    	 */
+    	String getLine(boolean eof) {
+    		int len = this.buffer.position();
+    		byte[] bytes = this.buffer.array();
+    		for(int i = 0; i < len; i++) {
+    			if(bytes[i] == '\n' || bytes[i] == '\r') {
+    				return new String(bytes, 0, i, StandardCharsets.UTF_8);
+    			}
+    		}
+    		if(eof && len > 0) {
+    			return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    		}
+    		return null;
+    	}
+
+    	/**
+    	 * Double the read buffer.
+    	 */
+    	void grow() {
+    		ByteBuffer bigger = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, MAX_MESSAGE_LENGTH));
+    		this.buffer.flip();
+    		bigger.put(this.buffer);
+    		this.buffer = bigger;
+    	}
+    }
+
+    /**
+     * Names the worker threads.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+    	/** thread counter */
+    	private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "registration-worker-" + count.incrementAndGet());
+			t.setDaemon(false);
+			return t;
+		}
     }
 }
@@ -0,0 +1,348 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.BatchEnrolmentClientException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Enrols many agents with the regional CAU over a single TLS connection.  Each
+ * request is sent as an {@link EnrolmentFrame <em>EnrolmentFrame</em>} with its own
+ * correlation id and a future is returned straight away.  A reader thread completes
+ * the futures as the signed certificates arrive, in whatever order the CAU returns them.
+ * <p>
+ * Usage:
+ * <pre>
+ *   try (BatchEnrolmentClient client = new BatchEnrolmentClient(context, cauIP, cauPort)) {
+ *       client.open();
+ *       CompletableFuture&lt;X509Certificate&gt; f = client.enrol(message);
+ *       ...
+ *   }
+ * </pre>
+ * A registration enrols through the blocking {@link #enrol(byte[], Deadline)} instead,
+ * as {@link BatchEnrolmentPool <em>BatchEnrolmentPool</em>} does during a burst.
+ */
+public class BatchEnrolmentClient implements Closeable {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(BatchEnrolmentClient.class);
+	/** default time to wait for outstanding requests on close, in milliseconds */
+	public static final long DEFAULT_CLOSE_TIMEOUT = 30000L;
+	/** ssl context attribute */
+	private final SSLContext sslContext;
+	/** CAU IP attribute */
+	private final InetAddress cauIP;
+	/** CAU port attribute */
+	private final int cauPort;
+	/** the requests awaiting a response, by correlation id */
+	private final Map<Long, CompletableFuture<X509Certificate>> pending = new ConcurrentHashMap<Long, CompletableFuture<X509Certificate>>();
+	/** correlation id generator */
+	private final AtomicLong nextId = new AtomicLong();
+	/** ssl socket object */
+	private SSLSocket socket = null;
+	/** framed output, guarded by itself */
+	private DataOutputStream out = null;
+	/** thread reading the responses */
+	private Thread reader = null;
+	/** set once the connection can no longer take requests */
+	private volatile boolean closed = false;
+	/** the reason the connection failed, if it did */
+	private volatile Throwable failure = null;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param context	the context for the CAU role
+	 * @param ip		the CAU address
+	 * @param port		the CAU port
+	 */
+	public BatchEnrolmentClient(SSLContext context, InetAddress ip, int port) {
+		this.sslContext = context;
+		this.cauIP = ip;
+		this.cauPort = port;
+	}
+
+	/**
+	 * Connect to the CAU, send the batch preamble and start reading responses.
+	 * <p>
+	 * @throws BatchEnrolmentClientException on error
+	 */
+	public void open() throws BatchEnrolmentClientException {
+		open(Deadline.NONE);
+	}
+
+	/**
+	 * Connect to the CAU within the connect and handshake timeouts cut down to a
+	 * deadline, send the batch preamble and start reading responses.
+	 * <p>
+	 * @param deadline	the deadline of the registration opening the connection
+	 * @throws BatchEnrolmentClientException on error, caused by the
+	 * 			{@link IOException <em>IOException</em>} if the connection failed
+	 */
+	public synchronized void open(Deadline deadline) throws BatchEnrolmentClientException {
+		if(this.socket != null) {
+			throw new BatchEnrolmentClientException("batch enrolment connection already open");
+		}
+		try {
+			this.socket = SSLContextRegistry.getInstance().connect(SSLContextRegistry.Role.CAU, this.sslContext,
+					this.cauIP, this.cauPort, null, deadline);
+			//a long lived connection, the reader waits for the CAU as long as it takes
+			this.socket.setSoTimeout(0);
+			this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			this.out.write(EnrolmentFrame.MAGIC);
+			this.out.flush();
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+			this.reader = new Thread(() -> read(in), "batch-enrolment-reader");
+			this.reader.setDaemon(true);
+			this.reader.start();
+			LOGGER.debug("Opened batch enrolment connection to CAU(" + this.cauIP + ":" + this.cauPort + ")");
+		} catch (IOException e) {
+			this.closed = true;
+			closeSocket();
+			throw new BatchEnrolmentClientException("failed to open batch enrolment connection: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Send an enrolment request.
+	 * <p>
+	 * @param message	the request message, as created by
+	 * 					{@link CauClient#getMsgBytes(String, String, String, String, String) CauClient.getMsgBytes}
+	 * @return	a future completed with the signed certificate, or exceptionally with a
+	 * 			{@link BatchEnrolmentClientException <em>BatchEnrolmentClientException</em>}
+	 */
+	public CompletableFuture<X509Certificate> enrol(byte[] message) {
+		CompletableFuture<X509Certificate> future = new CompletableFuture<X509Certificate>();
+		if(this.closed || this.out == null) {
+			future.completeExceptionally(new BatchEnrolmentClientException("batch enrolment connection is not open"));
+			return future;
+		}
+		long id = this.nextId.incrementAndGet();
+		this.pending.put(id, future);
+		try {
+			synchronized(this.out) {
+				new EnrolmentFrame(id, EnrolmentFrame.REQUEST, message).write(this.out);
+				this.out.flush();
+			}
+		} catch (IOException e) {
+			fail(id, "failed to send request " + id + ": " + e.getMessage());
+		}
+		//the reader may have failed the pending requests before ours was added
+		if(this.closed) {
+			fail(id, "batch enrolment connection closed");
+		}
+		return future;
+	}
+
+	/**
+	 * Send an enrolment request and wait for the signed certificate, for the read
+	 * timeout <code>mf2c.tls.readTimeout</code> cut down to the deadline at most.  The
+	 * failures are those of a connection of its own, so that a
+	 * {@link RetryPolicy <em>RetryPolicy</em>} retries a failed connection but not a
+	 * rejected request.
+	 * <p>
+	 * @param message	the request message
+	 * @param deadline	the deadline of the registration
+	 * @return	the signed certificate
+	 * @throws IOException if the connection failed or is not open, a
+	 * 			{@link SocketTimeoutException <em>SocketTimeoutException</em>} on timeout
+	 * @throws CertificateException if the CAU rejected the request or returned an invalid certificate
+	 */
+	public X509Certificate enrol(byte[] message, Deadline deadline) throws IOException, CertificateException {
+		int timeout = deadline.timeout(Utils.getIntProperty("mf2c.tls.readTimeout", SSLContextRegistry.DEFAULT_READ_TIMEOUT));
+		CompletableFuture<X509Certificate> future = enrol(message);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			this.pending.values().remove(future);
+			throw new SocketTimeoutException("no batch enrolment response from CAU(" + this.cauIP + ":" + this.cauPort + ") in " + timeout + "ms");
+		} catch (InterruptedException e) {
+			this.pending.values().remove(future);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the batch enrolment response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause.getCause() instanceof CertificateException) {
+				throw new CertificateException(cause.getMessage(), cause);
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Check if the connection can take requests.
+	 * <p>
+	 * @return	true if opened and neither closed nor failed
+	 */
+	public boolean isOpen() {
+		return this.socket != null && !this.closed;
+	}
+
+	/**
+	 * Get the number of requests awaiting a response.
+	 * <p>
+	 * @return the number of outstanding requests
+	 */
+	public int getPending() {
+		return this.pending.size();
+	}
+
+	/**
+	 * End the batch, waiting up to the {@link #DEFAULT_CLOSE_TIMEOUT default timeout}
+	 * for the outstanding requests.
+	 */
+	@Override
+	public void close() {
+		close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * End the batch and close the connection.  Requests still outstanding when the
+	 * timeout expires are failed.
+	 * <p>
+	 * @param timeout	maximum time to wait for outstanding requests
+	 * @param unit		the time unit
+	 */
+	public void close(long timeout, TimeUnit unit) {
+		if(this.out != null && !this.closed) {
+			try {
+				synchronized(this.out) {
+					new EnrolmentFrame(0L, EnrolmentFrame.END, null).write(this.out);
+					this.out.flush();
+				}
+			} catch (IOException e) {
+				LOGGER.error("failed to end batch: " + e.getMessage());
+			}
+		}
+		if(this.reader != null) {
+			try {
+				this.reader.join(unit.toMillis(timeout));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.closed = true;
+		closeSocket();
+		failAll("batch enrolment connection closed with the request outstanding");
+	}
+
+	/**
+	 * Read responses until the CAU ends the batch or the connection fails.
+	 * <p>
+	 * @param in	the framed input
+	 */
+	private void read(DataInputStream in) {
+		try {
+			CertificateFactory cf = CertificateFactory.getInstance("X.509");
+			EnrolmentFrame frame;
+			while((frame = EnrolmentFrame.read(in)) != null) {
+				if(frame.getType() == EnrolmentFrame.END) {
+					break;
+				}
+				CompletableFuture<X509Certificate> future = this.pending.remove(frame.getCorrelationId());
+				if(future == null) {
+					LOGGER.error("ignoring response for unknown request " + frame.getCorrelationId());
+					continue;
+				}
+				if(frame.getType() == EnrolmentFrame.CERTIFICATE) {
+					try {
+						future.complete((X509Certificate) cf.generateCertificate(new ByteArrayInputStream(frame.getPayload())));
+					} catch (CertificateException e) {
+						future.completeExceptionally(new BatchEnrolmentClientException(
+								"invalid certificate for request " + frame.getCorrelationId() + ": " + e.getMessage(), e));
+					}
+				} else {
+					String reason = new String(frame.getPayload(), StandardCharsets.UTF_8);
+					future.completeExceptionally(new BatchEnrolmentClientException("CAU rejected request "
+							+ frame.getCorrelationId() + ": " + reason, new CertificateException(reason)));
+				}
+			}
+		} catch (IOException | CertificateException e) {
+			if(!this.closed) {
+				this.failure = e;
+				LOGGER.error("batch enrolment connection failed: " + e.getMessage());
+			}
+		} finally {
+			this.closed = true;
+			failAll(this.failure == null ? "CAU ended the batch with the request outstanding"
+					: "batch enrolment connection failed: " + this.failure.getMessage());
+		}
+	}
+
+	/**
+	 * Fail an outstanding request.
+	 * <p>
+	 * @param id	the correlation id
+	 * @param msg	the error message
+	 */
+	private void fail(long id, String msg) {
+		CompletableFuture<X509Certificate> future = this.pending.remove(id);
+		if(future != null) {
+			future.completeExceptionally(new BatchEnrolmentClientException(msg, this.failure));
+		}
+	}
+
+	/**
+	 * Fail all outstanding requests.
+	 * <p>
+	 * @param msg	the error message
+	 */
+	private void failAll(String msg) {
+		for(Long id : this.pending.keySet()) {
+			fail(id, msg);
+		}
+	}
+
+	/**
+	 * Close the socket quietly.
+	 */
+	private void closeSocket() {
+		if(this.socket != null) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// Too bad
+				LOGGER.error("failed to release resources : " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.BatchEnrolmentClientException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Shares a {@link BatchEnrolmentClient <em>BatchEnrolmentClient</em>} connection per
+ * CAU replica between the registrations of a burst.  While fewer enrolments than the
+ * threshold are in flight, each registration opens a connection of its own; from the
+ * threshold on, {@link CauClient <em>CauClient</em>} sends its request over the shared
+ * connection of the replica instead, within the same deadline, retry policy and circuit
+ * breaker.  A connection which fails is replaced by the next enrolment, and the
+ * connections are closed once no enrolment is in flight.
+ * <p>
+ * The threshold is set with <code>-Dmf2c.cau.batchThreshold</code>.  The default, 0,
+ * turns batching off, as the CAU must support the batch protocol of
+ * {@link EnrolmentFrame <em>EnrolmentFrame</em>}.
+ */
+public class BatchEnrolmentPool {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(BatchEnrolmentPool.class);
+	/** time to wait for the CAU to end an idle batch on close, in milliseconds */
+	private static final long CLOSE_TIMEOUT = 1000L;
+	/** the shared instance */
+	private static volatile BatchEnrolmentPool instance;
+	/** the shared connections, by CAU host&#58;port */
+	private final ConcurrentHashMap<String, BatchEnrolmentClient> clients = new ConcurrentHashMap<String, BatchEnrolmentClient>();
+	/** number of enrolments in flight */
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/** number of enrolments sent over a shared connection */
+	private final LongAdder batched = new LongAdder();
+	/** number of shared connections opened */
+	private final LongAdder opened = new LongAdder();
+	/** the number of enrolments in flight from which they are batched, 0 if off */
+	private volatile int threshold;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param threshold	the number of enrolments in flight from which they are batched, 0 to turn batching off
+	 */
+	public BatchEnrolmentPool(int threshold) {
+		this.threshold = Math.max(0, threshold);
+	}
+
+	/**
+	 * Get the shared instance, creating it with the configured threshold.
+	 * <p>
+	 * @return	the instance
+	 */
+	public static BatchEnrolmentPool getInstance() {
+		BatchEnrolmentPool pool = instance;
+		if(pool == null) {
+			synchronized(BatchEnrolmentPool.class) {
+				pool = instance;
+				if(pool == null) {
+					pool = new BatchEnrolmentPool(Utils.getIntProperty("mf2c.cau.batchThreshold", 0));
+					instance = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Set the number of enrolments in flight from which they are batched.
+	 * <p>
+	 * @param threshold	the threshold, 0 to turn batching off
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = Math.max(0, threshold);
+	}
+
+	/**
+	 * Count an enrolment starting.  Each call is paired with {@link #ended()}.
+	 */
+	public void started() {
+		this.inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Count an enrolment ending, closing the shared connections if it was the last one
+	 * in flight.
+	 */
+	public void ended() {
+		if(this.inFlight.decrementAndGet() == 0 && !this.clients.isEmpty()) {
+			for(String key : this.clients.keySet()) {
+				BatchEnrolmentClient client = this.clients.remove(key);
+				if(client != null) {
+					client.close(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+			}
+			LOGGER.debug("closed the batch enrolment connections at the end of the burst");
+		}
+	}
+
+	/**
+	 * Check if enough enrolments are in flight to batch them.
+	 * <p>
+	 * @return	true if batching is on and the threshold is reached
+	 */
+	public boolean isBurst() {
+		int t = this.threshold;
+		return t > 0 && this.inFlight.get() >= t;
+	}
+
+	/**
+	 * Enrol over the shared connection to a CAU replica, opening it if there is none or
+	 * the previous one failed.
+	 * <p>
+	 * @param context	the context for the CAU role
+	 * @param ip		the CAU address
+	 * @param port		the CAU port
+	 * @param message	the request message
+	 * @param deadline	the deadline of the registration
+	 * @return	the signed certificate
+	 * @throws IOException if the connection failed, a
+	 * 			{@link java.net.SocketTimeoutException <em>SocketTimeoutException</em>} on timeout
+	 * @throws CertificateException if the CAU rejected the request or returned an invalid certificate
+	 */
+	public X509Certificate enrol(SSLContext context, InetAddress ip, int port, byte[] message, Deadline deadline)
+			throws IOException, CertificateException {
+		String key = ip.getHostAddress() + ":" + port;
+		BatchEnrolmentClient client = this.clients.get(key);
+		if(client == null || !client.isOpen()) {
+			client = open(key, context, ip, port, deadline);
+		}
+		try {
+			X509Certificate cert = client.enrol(message, deadline);
+			this.batched.increment();
+			return cert;
+		} catch (IOException e) {
+			if(!client.isOpen()) {
+				this.clients.remove(key, client);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the number of enrolments in flight.
+	 * <p>
+	 * @return	the count
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * Get the number of enrolments sent over a shared connection.
+	 * <p>
+	 * @return	the count
+	 */
+	public long getBatched() {
+		return this.batched.sum();
+	}
+
+	/**
+	 * Get the number of shared connections opened.
+	 * <p>
+	 * @return	the count
+	 */
+	public long getOpened() {
+		return this.opened.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BatchEnrolmentPool [threshold=%d, in flight=%d, connections=%d, opened=%d, batched=%d]",
+				this.threshold, getInFlight(), this.clients.size(), getOpened(), getBatched());
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Open the shared connection to a CAU replica, unless another enrolment has just
+	 * opened it.
+	 * @param key		the CAU host&#58;port
+	 * @param context	the context for the CAU role
+	 * @param ip		the CAU address
+	 * @param port		the CAU port
+	 * @param deadline	the deadline of the registration
+	 * @return	the open connection
+	 * @throws IOException if the connection failed
+	 */
+	private synchronized BatchEnrolmentClient open(String key, SSLContext context, InetAddress ip, int port, Deadline deadline) throws IOException {
+		BatchEnrolmentClient client = this.clients.get(key);
+		if(client != null && client.isOpen()) {
+			return client;
+		}
+		client = new BatchEnrolmentClient(context, ip, port);
+		try {
+			client.open(deadline);
+		} catch (BatchEnrolmentClientException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getMessage(), e);
+		}
+		this.opened.increment();
+		this.clients.put(key, client);
+		LOGGER.info("opened batch enrolment connection to CAU(" + key + "); " + this);
+		return client;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * A bounded pool of fixed size byte arrays used as receive buffers.  Buffers
+ * returned when the pool is full are left to the garbage collector.
+ */
+public class BufferPool {
+	/** default buffer size, enough for a certificate chain */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	/** default number of buffers kept */
+	public static final int DEFAULT_CAPACITY = 16;
+	/** the process&#45;wide pool, sized by <code>mf2c.bufferPool.capacity</code> */
+	private static final BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE,
+			Utils.getIntProperty("mf2c.bufferPool.capacity", DEFAULT_CAPACITY));
+	/** the free buffers */
+	private final ArrayBlockingQueue<byte[]> free;
+	/** size of the pooled buffers */
+	private final int bufferSize;
+	/** number of buffers served from the pool */
+	private final LongAdder hits = new LongAdder();
+	/** number of buffers allocated */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param bufferSize	size of the pooled buffers
+	 * @param capacity		maximum number of free buffers kept
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<byte[]>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Get the process&#45;wide pool.
+	 * <p>
+	 * @return the shared pool
+	 */
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Take a buffer, allocating one if the pool is empty.
+	 * <p>
+	 * @return a buffer of {@link #getBufferSize() the pool size}
+	 */
+	public byte[] acquire() {
+		byte[] buffer = this.free.poll();
+		if(buffer == null) {
+			this.misses.increment();
+			return new byte[this.bufferSize];
+		}
+		this.hits.increment();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer.  Buffers of another size are dropped.
+	 * <p>
+	 * @param buffer	the buffer, may be null
+	 */
+	public void release(byte[] buffer) {
+		if(buffer != null && buffer.length == this.bufferSize) {
+			this.free.offer(buffer);
+		}
+	}
+
+	/**
+	 * Get the size of the pooled buffers.
+	 * <p>
+	 * @return the buffer size
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Get the number of buffers served from the pool.
+	 * <p>
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Get the number of buffers allocated because the pool was empty.
+	 * <p>
+	 * @return the miss count
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+}
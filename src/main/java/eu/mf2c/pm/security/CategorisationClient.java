@@ -0,0 +1,390 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.CategorisationClientException;
+import eu.mf2c.pm.security.Exception.CircuitOpenException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * A shared client triggering the local Categorisation block for the registered
+ * agents.  Each trigger returns a future straight away; the requests are sent by a
+ * small pool of threads, so at most <code>concurrency</code> are in flight, over
+ * HTTP keep&#45;alive connections which are reused from one request to the next.
+ * <p>
+ * A request which fails with an I/O error, a 5xx status or 429 is retried with
+ * exponential backoff and jitter; other statuses fail the future at once.  Triggers
+ * for the same device ID received within the coalescing window, or while its request
+ * is still queued, share one request and one future.  No retry starts after the
+ * {@link Deadline <em>Deadline</em>} of the registration, and the requests fail at once
+ * while the {@link CircuitBreaker <em>CircuitBreaker</em>} of the endpoint is open.
+ * <p>
+ * The shared instance is configured with the system properties
+ * <code>mf2c.categorisation.url</code> (default
+ * <code>http://localhost/api/categorisation</code>),
+ * <code>mf2c.categorisation.concurrency</code> (4),
+ * <code>mf2c.categorisation.retries</code> (3),
+ * <code>mf2c.categorisation.backoffMillis</code> (200) and
+ * <code>mf2c.categorisation.windowMillis</code> (0, no coalescing window).
+ */
+public class CategorisationClient {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(CategorisationClient.class);
+	/** the default categorisation block ReST endpoint */
+	public static final String DEFAULT_ENDPOINT = "http://localhost/api/categorisation";
+	/** connect and read timeout in milliseconds */
+	private static final int TIMEOUT = 10000;
+	/** the shared instance, created on first use */
+	private static volatile CategorisationClient instance;
+	/** the endpoint */
+	private final URL endpoint;
+	/** maximum number of attempts of a request */
+	private final int attempts;
+	/** the backoff between attempts */
+	private final RetryPolicy backoff;
+	/** the circuit breaker of the endpoint */
+	private final CircuitBreaker breaker;
+	/** coalescing window in milliseconds */
+	private final long windowMillis;
+	/** sends the requests */
+	private final ExecutorService senders;
+	/** fires the coalescing windows and the retries */
+	private final ScheduledExecutorService timer;
+	/** the triggers not yet sent, by device ID */
+	private final ConcurrentHashMap<String, CompletableFuture<Integer>> queued = new ConcurrentHashMap<String, CompletableFuture<Integer>>();
+	/** the triggers not yet completed, failed on shut down */
+	private final Set<CompletableFuture<Integer>> outstanding = ConcurrentHashMap.newKeySet();
+	/** number of requests sent, including retries */
+	private final LongAdder requests = new LongAdder();
+	/** number of triggers which joined a queued request */
+	private final LongAdder coalesced = new LongAdder();
+	/** number of retries */
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param endpoint		the categorisation ReST endpoint
+	 * @param concurrency	the maximum number of requests in flight
+	 * @param retries		the maximum number of retries of a failed request
+	 * @param backoffMillis	the backoff before the first retry in milliseconds
+	 * @param windowMillis	the coalescing window in milliseconds, 0 for none
+	 * @throws MalformedURLException if the endpoint is invalid
+	 */
+	public CategorisationClient(String endpoint, int concurrency, int retries, long backoffMillis, long windowMillis) throws MalformedURLException {
+		this.endpoint = new URL(endpoint);
+		this.attempts = Math.max(0, retries) + 1;
+		this.backoff = new RetryPolicy(retries, backoffMillis, Math.max(backoffMillis, 1L) << 6);
+		this.breaker = CircuitBreaker.forEndpoint(this.endpoint.getHost() + ":" + this.endpoint.getPort());
+		this.windowMillis = Math.max(0L, windowMillis);
+		this.senders = Executors.newFixedThreadPool(Math.max(1, concurrency), daemonFactory("categorisation"));
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemonFactory("categorisation-timer"));
+	}
+
+	/**
+	 * Get the shared instance, configured with the system properties.
+	 * <p>
+	 * @return the instance
+	 * @throws MalformedURLException if the configured endpoint is invalid
+	 */
+	public static CategorisationClient getInstance() throws MalformedURLException {
+		CategorisationClient client = instance;
+		if(client == null) {
+			synchronized(CategorisationClient.class) {
+				client = instance;
+				if(client == null) {
+					client = new CategorisationClient(System.getProperty("mf2c.categorisation.url", DEFAULT_ENDPOINT),
+							Utils.getIntProperty("mf2c.categorisation.concurrency", 4),
+							Utils.getIntProperty("mf2c.categorisation.retries", 3),
+							Utils.getIntProperty("mf2c.categorisation.backoffMillis", 200),
+							Utils.getIntProperty("mf2c.categorisation.windowMillis", 0));
+					instance = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Trigger the categorisation of an agent.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @param idKey		the agent id key, sent in the User&#45;Agent header
+	 * @return	a future completed with the HTTP status, 200, or with a
+	 * 			{@link CategorisationClientException <em>CategorisationClientException</em>}
+	 */
+	public CompletableFuture<Integer> trigger(String deviceID, String idKey) {
+		return trigger(deviceID, idKey, Deadline.NONE);
+	}
+
+	/**
+	 * Trigger the categorisation of an agent as part of a registration.  A trigger which
+	 * joins a queued request shares the deadline of that request.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @param idKey		the agent id key, sent in the User&#45;Agent header
+	 * @param deadline	the deadline of the registration, which bounds the timeouts and retries
+	 * @return	a future completed with the HTTP status, 200, or with a
+	 * 			{@link CategorisationClientException <em>CategorisationClientException</em>}
+	 */
+	public CompletableFuture<Integer> trigger(String deviceID, String idKey, Deadline deadline) {
+		CompletableFuture<Integer> created = new CompletableFuture<Integer>();
+		CompletableFuture<Integer> future = this.queued.putIfAbsent(deviceID, created);
+		if(future != null) {
+			this.coalesced.increment();
+			return future;
+		}
+		this.outstanding.add(created);
+		created.whenComplete((s, e) -> this.outstanding.remove(created));
+		Runnable send = () -> {
+			//later triggers start a new request, the agent may have changed since this one
+			this.queued.remove(deviceID, created);
+			attempt(deviceID, idKey, deadline, created, 1);
+		};
+		try {
+			if(this.windowMillis > 0) {
+				this.timer.schedule(() -> submit(send, created), this.windowMillis, TimeUnit.MILLISECONDS);
+			} else {
+				this.senders.execute(send);
+			}
+		} catch (RejectedExecutionException e) {
+			this.queued.remove(deviceID, created);
+			created.completeExceptionally(new CategorisationClientException("categorisation client shut down", e));
+		}
+		return created;
+	}
+
+	/**
+	 * Get the number of requests sent, including retries.
+	 * <p>
+	 * @return the request count
+	 */
+	public long getRequests() {
+		return this.requests.sum();
+	}
+
+	/**
+	 * Get the number of triggers which joined a request already queued.
+	 * <p>
+	 * @return the coalesced count
+	 */
+	public long getCoalesced() {
+		return this.coalesced.sum();
+	}
+
+	/**
+	 * Get the number of retries.
+	 * <p>
+	 * @return the retry count
+	 */
+	public long getRetries() {
+		return this.retries.sum();
+	}
+
+	/**
+	 * Stop sending requests.  The triggers not yet completed are failed.
+	 */
+	public void shutdown() {
+		this.timer.shutdownNow();
+		this.senders.shutdownNow();
+		for(CompletableFuture<Integer> f : this.outstanding) {
+			f.completeExceptionally(new CategorisationClientException("categorisation client shut down"));
+		}
+		this.queued.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "CategorisationClient " + this.endpoint + ": requests=" + getRequests() + ", coalesced=" + getCoalesced() + ", retries=" + getRetries();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Send a request and complete the future, or schedule a retry.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @param idKey		the agent id key
+	 * @param deadline	the deadline of the trigger
+	 * @param future	the future of the trigger
+	 * @param attempt	the attempt number, from 1
+	 */
+	private void attempt(String deviceID, String idKey, Deadline deadline, CompletableFuture<Integer> future, int attempt) {
+		if(!this.breaker.allowRequest()) {
+			fail(future, new CategorisationClientException("Categorisation ReST service not called, " + this.breaker,
+					new CircuitOpenException(this.breaker.toString())));
+			return;
+		}
+		int status;
+		try {
+			status = send(deviceID, idKey, deadline);
+		} catch (IOException e) {
+			this.breaker.recordFailure();
+			retryOrFail(deviceID, idKey, deadline, future, attempt, new CategorisationClientException("Categorisation ReST service unavailable: " + e.getMessage(), e));
+			return;
+		}
+		if(status == HttpURLConnection.HTTP_OK) {
+			this.breaker.recordSuccess();
+			LOGGER.debug("Triggered Categorisation block for " + deviceID);
+			future.complete(Integer.valueOf(status));
+		} else if(status >= 500 || status == 429) {
+			this.breaker.recordFailure();
+			retryOrFail(deviceID, idKey, deadline, future, attempt, new CategorisationClientException("Categorisation ReST service returned " + status + "!"));
+		} else {
+			//the service is up, the request is wrong
+			this.breaker.recordSuccess();
+			fail(future, new CategorisationClientException("Categorisation ReST service returned " + status + "!"));
+		}
+	}
+
+	/**
+	 * Schedule a retry with exponential backoff and full jitter, or fail the future
+	 * if the attempts are used up or the deadline does not allow it.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @param idKey		the agent id key
+	 * @param deadline	the deadline of the trigger
+	 * @param future	the future of the trigger
+	 * @param attempt	the attempt which failed
+	 * @param error		the error
+	 */
+	private void retryOrFail(String deviceID, String idKey, Deadline deadline, CompletableFuture<Integer> future, int attempt, CategorisationClientException error) {
+		long delay = this.backoff.backoff(attempt - 1);
+		if(attempt >= this.attempts || delay >= deadline.remainingMillis()) {
+			fail(future, error);
+			return;
+		}
+		LOGGER.warn(error.getMessage() + " for " + deviceID + ", retrying in " + delay + "ms");
+		this.retries.increment();
+		try {
+			this.timer.schedule(() -> submit(() -> attempt(deviceID, idKey, deadline, future, attempt + 1), future), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			fail(future, error);
+		}
+	}
+
+	/**
+	 * Hand a task to the senders, failing the future if they are shut down.
+	 * <p>
+	 * @param task		the task
+	 * @param future	the future of the trigger
+	 */
+	private void submit(Runnable task, CompletableFuture<Integer> future) {
+		try {
+			this.senders.execute(task);
+		} catch (RejectedExecutionException e) {
+			fail(future, new CategorisationClientException("categorisation client shut down", e));
+		}
+	}
+
+	/**
+	 * Fail a trigger.
+	 * <p>
+	 * @param future	the future of the trigger
+	 * @param error		the error
+	 */
+	private static void fail(CompletableFuture<Integer> future, CategorisationClientException error) {
+		LOGGER.error(error.getMessage());
+		Metrics.getInstance().recordError(error);
+		future.completeExceptionally(error);
+	}
+
+	/**
+	 * Send one GET request.  The response body is read to the end and closed so the
+	 * connection goes back to the keep&#45;alive cache.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @param idKey		the agent id key
+	 * @param deadline	the deadline, which cuts down the timeouts
+	 * @return	the HTTP status
+	 * @throws IOException on error
+	 */
+	private int send(String deviceID, String idKey, Deadline deadline) throws IOException {
+		URL url = new URL(this.endpoint, this.endpoint.getPath() + "?deviceID=" + URLEncoder.encode(deviceID, "UTF-8"));
+		long start = System.nanoTime();
+		this.requests.increment();
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(deadline.timeout(TIMEOUT));
+		con.setReadTimeout(deadline.timeout(TIMEOUT));
+		con.setRequestProperty("User-Agent", "mF2C/IT1 CauClient-" + idKey + "/IT1");
+		try {
+			int status = con.getResponseCode();
+			drain(status < 400 ? con.getInputStream() : con.getErrorStream());
+			return status;
+		} catch (IOException e) {
+			//drop the broken connection rather than return it to the cache
+			con.disconnect();
+			throw e;
+		} finally {
+			Metrics.getInstance().record(Metrics.Operation.CATEGORISATION, start);
+		}
+	}
+
+	/**
+	 * Read a response body to the end and close it.
+	 * <p>
+	 * @param in	the body, may be null
+	 * @throws IOException on error
+	 */
+	private static void drain(InputStream in) throws IOException {
+		if(in == null) {
+			return;
+		}
+		try {
+			byte[] buf = new byte[512];
+			while(in.read(buf) >= 0) {
+				//discard
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Create a factory for named daemon threads.
+	 * <p>
+	 * @param name	the thread name prefix
+	 * @return	the factory
+	 */
+	private static ThreadFactory daemonFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -15,16 +15,16 @@
  */
 package eu.mf2c.pm.security;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
@@ -32,8 +32,6 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.log4j.Logger;
 
@@ -46,27 +44,33 @@ import eu.mf2c.pm.security.util.Utils;
  * In IT&#45;1&#58; after obtaining the certificate from the fog CA via the regional CAU, 
  * it will perform a SSL handshake with the leader CAU to verify the certificate.
  * <p>
+ * The registration must complete within a {@link Deadline <em>Deadline</em>} from the
+ * construction of the client, which bounds the socket timeouts and retries of the CAU,
+ * leader CAU and categorisation calls.
+ * <p>
+ * The regional CAU may be given as a comma separated list of replicas, which the
+ * shared {@link CauEndpointSelector <em>CauEndpointSelector</em>} chooses between by
+ * latency and health.
+ * <p>
  * @author Shirley Crompton, shirley.crompton@stfc.ac.uk
  * org Data Science and Technology Group,
  *     UKRI Science and Technology Council
  * Date 5 Apr 2018
  *
  */
-public class CauClient/* extends Thread*/ {
+public class CauClient/* extends Thread*/ implements RegistrationPipeline.Steps {
 	//9May2019 changed to a synchronous call
 	
 	protected Logger LOGGER = Logger.getLogger(CauClient.class);
 	/** ssl context attribute */
 	private SSLContext sslContext = null;
-	/** ssl socket factory attribute */
-	private SSLSocketFactory sslFactory = null;
 	/** ssl socket object */
 	private SSLSocket socket = null;
 	/** The next four attributes are passed in as main arguments */
-	/** CAU IP attribute*/
-	private InetAddress cauIP = null;
-	/** CAU port attribute */
-	private int cauPort = 46400; //default for IT1
+	/** default CAU port */
+	private static final int DEFAULT_CAU_PORT = 46400; //default for IT1
+	/** the CAU replicas */
+	private CauEndpointSelector cauEndpoints = null;
 	/** leader CAU IP attribute*/
 	private InetAddress leaderCauIP = null;
 	/** leader CAU port attribute */
@@ -80,6 +84,10 @@ public class CauClient/* extends Thread*/ {
 	private String idKey = null;
 	/** agent device ID */
 	private String deviceID = null;
+	/** the keypair certified by this registration */
+	private KeyPair keypair = null;
+	/** the deadline of the registration, from construction */
+	private final Deadline deadline;
 	/** StoreManagerSingle instance */
 	protected StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
 	
@@ -87,26 +95,17 @@ public class CauClient/* extends Thread*/ {
 	//private HashMap<String, String> cache = null;
 	
 	/**
-	 * Create an SSLContext object with a truststore.
+	 * Get the shared SSLContext object with a truststore.
 	 * The regional CAU should not require client authentication.
 	 * <p>
-	 * @return	the created SSLContext object
+	 * @return	the SSLContext object from the {@link SSLContextRegistry <em>SSLContextRegistry</em>}
 	 * @throws Exception	on error
 	 */
 	private SSLContext createSSLContext() throws Exception 
 	    {
-			//Security.addProvider(new BouncyCastleProvider());		
-			// set up a key manager for our local credentials
-			 TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
-	                    TrustManagerFactory.getDefaultAlgorithm());
-	         trustManagerFactory.init(sms.getTrustStore());
 	         //we are doing one way authentication - authenticating server certificate
-	         //			
-			// create a context and set up a socket factory
-			SSLContext sslContext = SSLContext.getInstance("TLS"); //1.2 default
-			sslContext.init(null, trustManagerFactory.getTrustManagers(), null); //just 1 way 			
-
-			return sslContext;
+			 //the context is only rebuilt when the truststore changes
+			return SSLContextRegistry.getInstance().getContext(SSLContextRegistry.Role.CAU, sms);
 	    }
 	
 	/**
@@ -119,10 +118,8 @@ public class CauClient/* extends Thread*/ {
 	public CauClient(HashMap<String, String> cache) throws Exception  {
 		//we need to escalate exceptions to the parent, do these now before starting the thread
 		//extract the connection params now
-		this.cauIP = Utils.getInetAddress(cache.get("cauIP"));
-		if(cache.get("cauIP").contains(":")) {
-			this.cauPort = Utils.getPortNum(cache.get("cauIP"));
-		}
+		//one or more CAU replicas, ip[:port] comma separated
+		this.cauEndpoints = CauEndpointSelector.forEndpoints(cache.get("cauIP"), DEFAULT_CAU_PORT);
 		this.leaderCauIP = Utils.getInetAddress(cache.get("leaderCauIP"));
 		if(cache.get("leaderCauIP").contains(":")) {
 			this.leaderCauPort = Utils.getPortNum(cache.get("leaderCauIP"));
@@ -131,6 +128,7 @@ public class CauClient/* extends Thread*/ {
 		this.leaderMacAddr = cache.get("MACaddr");
 		this.deviceID = cache.get("deviceID");
 		this.leaderID = cache.get("detectedLeaderID");
+		this.deadline = Deadline.forRegistration();
 		//this.createSSLContext();
 		LOGGER.debug("Got IDkey: " + this.idKey + ", leaderMacAddr: " + this.leaderMacAddr 
 				+ ", deviceID: " + this.deviceID + ", leaderID: " + this.leaderID + ", leaderCAU: " 
@@ -140,75 +138,164 @@ public class CauClient/* extends Thread*/ {
 	/**
 	 * Run the process to establish a secure TLS connection with the regional CAU.
 	 * Then send a request message for an agent certificate and trigger
-	 * an TLS handshake with the leader agent&#39;CAU.
+	 * an TLS handshake with the leader agent&#39;CAU.  The stages run one after the
+	 * other on the calling thread; the {@link RegistrationPipeline <em>RegistrationPipeline</em>}
+	 * runs the same stages asynchronously.
 	 * @throws CauClientException on error
 	 */
 	//@Override
 	public void run() throws CauClientException {
-		OutputStream out = null;
-		BufferedInputStream in = null;
-		//
+		X509Certificate agentCert = enrol(createRequest());
+		persist(agentCert);
+		//		
+		LOGGER.debug("Completed interaction with CAU.  About to call the leader cau....");
+		verifyWithLeader();
+	}
+	/**
+	 * Find a valid certificate already held for the agent, with its own keypair, for
+	 * the same device and fog.  The certificate is added to the key store and the
+	 * identity registry if it was only in server.crt, and is renewed in the background
+	 * when it nears expiry.
+	 * <p>
+	 * @return	the certificate, or null if the agent has to enrol
+	 * @throws CauClientException on error
+	 */
+	@Override
+	public X509Certificate findHeldCertificate() throws CauClientException {
+		X509Certificate cert = sms.findHeldCertificate(this.idKey, this.deviceID, this.leaderID);
+		if(cert == null) {
+			return null;
+		}
+		try {
+			this.keypair = sms.getHeldKeyPair(this.idKey, cert);
+			//both are unchanged if the certificate came from them
+			sms.storeKeyEntry(this.idKey, this.leaderID, cert, this.keypair);
+			if(sms.getIdentityRegistry().getByIdKey(this.idKey) == null) {
+				sms.storeIdentity(this.idKey, this.deviceID, this.leaderID, cert, this.keypair);
+			}
+			RenewalScheduler.getInstance().track(this.idKey, cert, this::renew);
+		} catch (Exception e) {
+			throw new CauClientException("cau socket client exception: " + e.getMessage(), e);
+		}
+		return cert;
+	}
+	/**
+	 * Take a fresh keypair from the pool and create the request message with its CSR.
+	 * The keypair belongs to this registration only&#58; it is the one stored with the
+	 * certificate in the key entry and the identity.
+	 * <p>
+	 * @return	the request message
+	 * @throws CauClientException on error
+	 */
+	@Override
+	public byte[] createRequest() throws CauClientException {
+		try {
+			//each registration certifies its own keypair, never the shared agent keypair
+			this.keypair = sms.takeKeyPair();
+			String csrString = sms.createCSRString(this.idKey, this.keypair); //CN = idKey
+			//csr=csrContentAsString,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45,detectedLeaderID=56789,deviceID=123456789
+			return getMsgBytes(csrString);
+		} catch (Exception e) {
+			throw new CauClientException("cau socket client exception: " + e.getMessage(), e);
+		}
+	}
+	/**
+	 * Send the request to the regional CAU over a TLS connection and add the signed
+	 * certificate to the key store.
+	 * <p>
+	 * @param msgBytes	the request message
+	 * @return	the agent certificate
+	 * @throws CauClientException on error
+	 */
+	@Override
+	public X509Certificate enrol(byte[] msgBytes) throws CauClientException {
+		return enrol(msgBytes, this.deadline);
+	}
+	/**
+	 * Send the request to the regional CAU and add the signed certificate to the key
+	 * store.  A connection which fails, is dropped or times out is retried with backoff
+	 * until the deadline, on another replica if there is one, unless the circuit of
+	 * every replica is open.  During a burst the request is sent over the connection the
+	 * {@link BatchEnrolmentPool <em>BatchEnrolmentPool</em>} shares with the other
+	 * registrations.
+	 * <p>
+	 * @param msgBytes	the request message
+	 * @param deadline	the deadline of the enrolment
+	 * @return	the agent certificate
+	 * @throws CauClientException on error
+	 */
+	private X509Certificate enrol(byte[] msgBytes, Deadline deadline) throws CauClientException {
+		BatchEnrolmentPool batches = BatchEnrolmentPool.getInstance();
+		batches.started();
 		try {
 			//create the socket now
 			this.sslContext = createSSLContext();
-			this.sslFactory = this.sslContext.getSocketFactory();
-			//we block for comm with cau, so no time out
-			this.socket = (SSLSocket) this.sslFactory.createSocket(this.cauIP, this.cauPort);
-			LOGGER.debug("Created cau client socket for CAU(" + this.cauIP + ":" + this.cauPort + ")");
+			X509Certificate agentCert = RetryPolicy.forCau().execute("CAU enrolment", deadline,
+					() -> this.cauEndpoints.execute(endpoint -> batches.isBurst()
+							? batches.enrol(this.sslContext, endpoint.getAddress(), endpoint.getPort(), msgBytes, deadline)
+							: requestCertificate(msgBytes, endpoint, deadline)));
+			//validate certificate, just a simple check for the moment
+			LOGGER.info("agent certificate dn: " + agentCert.getSubjectX500Principal().getName());
+			LOGGER.info("agent cert issuer dn: " + agentCert.getIssuerDN().getName());	
+			//store to keystore, the leader CAU handshake presents this entry
+			sms.storeKeyEntry(this.idKey, this.leaderID, agentCert, this.keypair);//using leaderId as the fogId for IT1 demo
+			//and to the identity registry, which holds every agent hosted by the process
+			sms.storeIdentity(this.idKey, this.deviceID, this.leaderID, agentCert, this.keypair);
+			//re-enrol before the certificate expires
+			RenewalScheduler.getInstance().track(this.idKey, agentCert, this::renew);
+			return agentCert;
+			//		
+		} catch (Exception e) {
+			 String msg = "cau socket client exception: " + e.getMessage();
+			 //LOGGER.error(msg);
+			 throw new CauClientException(msg, e);
+			 //Thread thread = Thread.currentThread();
+             //thread.getUncaughtExceptionHandler().uncaughtException(thread, new CauClientException(msg));
+		} finally {
+			batches.ended();
+		}
+	}
+	/**
+	 * Make one request to a regional CAU replica over a new TLS connection.  A hedged
+	 * request may run at the same time on another thread.
+	 * <p>
+	 * @param msgBytes	the request message
+	 * @param endpoint	the CAU replica
+	 * @param deadline	the deadline of the enrolment, which cuts down the socket timeouts
+	 * @return	the signed certificate
+	 * @throws IOException on connection, timeout or read errors
+	 * @throws CertificateException if the response is not a certificate
+	 */
+	private X509Certificate requestCertificate(byte[] msgBytes, CauEndpointSelector.Endpoint endpoint, Deadline deadline) throws IOException, CertificateException {
+		OutputStream out = null;
+		CertificateResponseReader in = null;
+		SSLSocket socket = null;
+		try {
+			//the connect, handshake and read timeouts are cut down to the deadline
+			//the listener captures the server certificate, a cached session is resumed if possible
+			socket = SSLContextRegistry.getInstance().connect(SSLContextRegistry.Role.CAU, this.sslContext,
+					endpoint.getAddress(), endpoint.getPort(), new SimpleHandShakeCompletedListener("cau"), deadline);
+			this.socket = socket;
+			LOGGER.debug("Created cau client socket for CAU(" + endpoint.getAddress() + ":" + endpoint.getPort() + ")");
 			//for debugging, can be disabled
 			//this.logSocketInfo();
-			//add listener to capture server certificate
-			this.socket.addHandshakeCompletedListener(new SimpleHandShakeCompletedListener("cau"));
-			this.socket.startHandshake(); 
 			//should be OK to message now
-			String csrString = sms.createCSRString(this.idKey); //CN = idKey
-			//csr=csrContentAsString,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45,detectedLeaderID=56789,deviceID=123456789
-			byte[] msgBytes = getMsgBytes(csrString);
-			out = this.socket.getOutputStream();
+			out = socket.getOutputStream();
 			//
 			LOGGER.debug("about to stream CSR to CAU....");
+			long roundTripStart = System.nanoTime();
 			out.write(msgBytes);			
 			//wait for response, should be the signed certificate object
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			in = new BufferedInputStream(this.socket.getInputStream());
-			// Create buffer: typical cert is about 2KB, not sure about underlying capability, use a small buffer
-			byte[] buffer = new byte[1024]; //
-			int bytesRead = 0;
-			LOGGER.debug("waiting for CAU response....");
-			while ((bytesRead = in.read(buffer, 0, 1024)) != -1) {
-				//
-				baos.write(buffer, 0, bytesRead); //keep adding to the buffer
-				LOGGER.debug("written " + bytesRead + " bytes");
-			}
-			baos.flush();
 			/********************
 			 Finally found out on 14May18 that the CA returns just a signed cert			
 			*********************/
-			LOGGER.debug("about to generate certificate from CAU response....");
-			//String certStr = new String(Base64.getDecoder().decode(baos.toByteArray()), StandardCharsets.UTF_8);
-			//9May18 removed base64 encoding, 27/2/2019 need to UTF-8 decode cloud CAU encodes stream to utf-8
-			//X509Certificate agentCert = sms.generateCertFromBytes(baos.toByteArray());
-			String certStr = new String(baos.toByteArray(), StandardCharsets.UTF_8);
-			//generate the certificate
-			X509Certificate agentCert = sms.generateCertFromBytes(certStr.getBytes());
-			//end 27/2/2019
-			//validate certificate, just a simple check for the moment
-			LOGGER.info("agent certificate dn: " + agentCert.getSubjectX500Principal().getName());
-			LOGGER.info("agent cert issuer dn: " + agentCert.getIssuerDN().getName());	
-			//store to keystore
-			sms.storeKeyEntry(this.idKey, this.leaderID, agentCert);//using leaderId as the fogId for IT1 demo
-			//28Feb2019 store certificate to /pkiData/server.crt
-			sms.writeCertFile(agentCert);			
-			//
-			sms.writeDeviceID(this.deviceID); //added 30 April 2019
-			this.socket.close();
-			//		
-		} catch (Exception e) {
-			 String msg = "cau socket client exception: " + e.getMessage();
-			 //LOGGER.error(msg);
-			 throw new CauClientException(msg);
-			 //Thread thread = Thread.currentThread();
-             //thread.getUncaughtExceptionHandler().uncaughtException(thread, new CauClientException(msg));
+			//the reader stops at the end of the PEM or DER certificate, so the CAU
+			//no longer has to close the connection, and parses it from a pooled buffer
+			LOGGER.debug("waiting for CAU response....");
+			in = new CertificateResponseReader(socket.getInputStream(), BufferPool.getShared());
+			X509Certificate agentCert = in.readCertificate();
+			Metrics.getInstance().record(Metrics.Operation.CAU_ROUND_TRIP, roundTripStart);
+			return agentCert;
 		} finally{	
 			try {
 				if(in != null) {
@@ -217,25 +304,99 @@ public class CauClient/* extends Thread*/ {
 				if(out != null) {
 					out.close();
 				}
+				if(socket != null) {
+					socket.close();
+				}
 			} catch (IOException e) {
 				// Too bad
 				LOGGER.error("failed to release resources : " + e.getMessage());
 			}
 		}
-		//		
-		LOGGER.debug("Completed interaction with CAU.  About to call the leader cau....");
+	}
+	/**
+	 * Enrol a new keypair for the agent to replace a certificate close to expiry.  The
+	 * new key entry replaces the old one in the key store and, if the certificate is the
+	 * agent credential, the agent keypair and the server.key and server.crt files are
+	 * replaced too.
+	 * <p>
+	 * @param current	the certificate being replaced
+	 * @param keypair	the new keypair
+	 * @return	the new certificate
+	 * @throws CauClientException on error
+	 */
+	public X509Certificate renew(X509Certificate current, KeyPair keypair) throws CauClientException {
+		String csrString;
+		try {
+			csrString = sms.createCSRString(this.idKey, keypair);
+		} catch (StoreManagerSingletonException e) {
+			throw new CauClientException("cau socket client exception: " + e.getMessage(), e);
+		}
+		this.keypair = keypair;
+		//a renewal has the time of a new registration
+		X509Certificate agentCert = enrol(getMsgBytes(csrString), Deadline.forRegistration());
+		try {
+			sms.replaceAgentCredential(current.getPublicKey(), keypair, agentCert);
+		} catch (StoreManagerSingletonException e) {
+			throw new CauClientException("cau socket client exception: " + e.getMessage(), e);
+		}
+		return agentCert;
+	}
+	/**
+	 * Write the agent certificate and device ID to the pkidata directory.  The certificate
+	 * of the first registration is written with the keypair of the registration, which
+	 * becomes the agent credential.
+	 * <p>
+	 * @param agentCert	the agent certificate
+	 * @throws CauClientException on error
+	 */
+	@Override
+	public void persist(X509Certificate agentCert) throws CauClientException {
+		try {
+			//28Feb2019 store certificate to /pkiData/server.crt
+			if(this.keypair != null && this.keypair.getPublic().equals(agentCert.getPublicKey())) {
+				sms.writeAgentCredential(this.keypair, agentCert);
+			} else {
+				sms.writeCertFile(agentCert);
+			}
+			//
+			sms.writeDeviceID(this.deviceID); //added 30 April 2019
+		} catch (Exception e) {
+			throw new CauClientException("cau socket client exception: " + e.getMessage(), e);
+		}
+	}
+	/**
+	 * Verify the agent certificate with a TLS handshake with the leader CAU.
+	 * <p>
+	 * @throws CauClientException on error
+	 */
+	@Override
+	public void verifyWithLeader() throws CauClientException {
 		try {
 			//now verify certificate with leader agent's cau (basically an TLS handshake)
-			LeadAgentCauClient leaderClient = new LeadAgentCauClient(sms, this.idKey, this.leaderCauIP, this.leaderCauPort, this.deviceID); //may throw exceptions on instantiation
+			LeadAgentCauClient leaderClient = new LeadAgentCauClient(sms, this.idKey, this.leaderCauIP, this.leaderCauPort, this.deviceID, this.deadline); //may throw exceptions on instantiation
 			//9May2018 changed from a thread to a synchronous method call
 		    //leaderClient.start();
 			leaderClient.run();
 		}catch(Exception e) {
 			String msg = "cau leader client exception " + e.getMessage();
 			 //LOGGER.error(msg);
-			 throw new CauClientException(msg);
+			 throw new CauClientException(msg, e);
 		}
-	} 	
+	}
+	/**
+	 * Ask the local Categorisation block to categorise the agent through the shared
+	 * {@link CategorisationClient <em>CategorisationClient</em>}.
+	 * <p>
+	 * @throws Exception on error
+	 */
+	@Override
+	public void categorise() throws Exception {
+		try {
+			CategorisationClient.getInstance().trigger(this.deviceID, this.idKey, this.deadline).get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
 	/**
 	 * Create the request message 
 	 * <p>
@@ -243,12 +404,26 @@ public class CauClient/* extends Thread*/ {
 	 * @return	A byte array representation of the message.
 	 */
 	private byte[] getMsgBytes(String csrString) {
+		return getMsgBytes(csrString, this.leaderID, this.leaderMacAddr, this.idKey, this.deviceID);
+	}
+	/**
+	 * Create a request message for an agent.  The same message is sent on its own
+	 * connection or as a {@link BatchEnrolmentClient <em>BatchEnrolmentClient</em>} request.
+	 * <p>
+	 * @param csrString		A {@link java.lang.String <em>String</em>} representation of the CSR.
+	 * @param leaderID		the detected leader ID
+	 * @param leaderMacAddr	the leader MAC address
+	 * @param idKey			the agent ID key
+	 * @param deviceID		the agent device ID
+	 * @return	A byte array representation of the message.
+	 */
+	public static byte[] getMsgBytes(String csrString, String leaderID, String leaderMacAddr, String idKey, String deviceID) {
 		//csr=csrContentAsString,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45,detectedLeaderID=56789,deviceID=123456789
 		//
-		String l_deviceId = "deviceID=" + this.deviceID;
-		String l_leaderId = "detectedLeaderID=" + this.leaderID;
-		String l_leaderMacAddr = "MACaddr=" + this.leaderMacAddr;
-		String l_idKey = "IDkey=" + this.idKey;
+		String l_deviceId = "deviceID=" + deviceID;
+		String l_leaderId = "detectedLeaderID=" + leaderID;
+		String l_leaderMacAddr = "MACaddr=" + leaderMacAddr;
+		String l_idKey = "IDkey=" + idKey;
 		//
 		//9May2018 removed base64 encoding
 		//return Base64.getEncoder().encode(("csr=" + csrString + "," + l_leaderId + "," + l_leaderMacAddr + "," + l_idKey + "," + l_deviceId).getBytes());		
@@ -318,6 +493,11 @@ public class CauClient/* extends Thread*/ {
 				X509Certificate cert= (X509Certificate) event.getPeerCertificates()[0]; 
 				String peer = cert.getSubjectDN().getName(); 
 				LOGGER.debug("\n DN from " + server + " : " + peer);
+				if(RevocationIndex.getInstance().isRevoked(cert)) {
+					//the handshake is failed by the trust manager, just do not keep it
+					LOGGER.error(server + " certificate " + peer + " is revoked, not stored");
+					return;
+				}
 				sms.storeCertificate(server, cert);
 			} catch (SSLPeerUnverifiedException pue) { 
 				LOGGER.error(server + " certificate unverified: " + pue.getMessage());
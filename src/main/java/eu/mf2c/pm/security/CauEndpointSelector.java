@@ -0,0 +1,550 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.CircuitOpenException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Spreads the requests to the regional CAU over its replicas.  Each request goes to
+ * the healthy replica with the lowest exponentially weighted moving average (EWMA)
+ * latency; a replica not measured yet counts as the fastest, so that each is tried.
+ * A replica whose last request failed ranks behind the others for
+ * <code>-Dmf2c.cau.ejectMillis</code> (30000), so a retry fails over to another replica.
+ * <p>
+ * A replica is ejected for that period after <code>-Dmf2c.cau.ejectFailures</code> (3)
+ * consecutive failures, and for as many times the period, up to 10, if it fails again
+ * once back.  If every replica is ejected the one due back first is used.
+ * <p>
+ * Each replica also has its own {@link CircuitBreaker <em>CircuitBreaker</em>}, and
+ * ranks with the ejected replicas while its circuit is open.  A
+ * call fails at once with a {@link CircuitOpenException <em>CircuitOpenException</em>}
+ * only if the circuit of the best replica left is open, i.e. no replica is healthy.
+ * <p>
+ * With <code>-Dmf2c.cau.hedge=1</code> a request not answered within the 95th percentile
+ * of the CAU latency, and at least <code>-Dmf2c.cau.hedgeMinMillis</code> (10), is sent
+ * again to the next best replica and the first certificate returned is taken.  The
+ * other request is left to complete, so the CAU signs a second certificate for about
+ * 1 in 20 requests.  Hedging starts once 20 latencies have been measured.
+ * <p>
+ * The selectors are shared per endpoint list, see {@link #forEndpoints(String, int)}.
+ */
+public class CauEndpointSelector {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(CauEndpointSelector.class);
+	/** the weight of a new latency in the moving average */
+	public static final double EWMA_WEIGHT = 0.3;
+	/** the number of latencies measured before hedging starts */
+	public static final int MIN_HEDGE_SAMPLES = 20;
+	/** the rank of a replica whose last request failed recently, plus its EWMA */
+	private static final double FAILED_RANK = 1e15;
+	/** the rank of an ejected replica, plus the nanoseconds until it is back */
+	private static final double EJECTED_RANK = 2e15;
+	/** the longest ejection, as a multiple of the ejection period */
+	private static final int MAX_EJECTION_MULTIPLE = 10;
+	/** the selectors by endpoint list */
+	private static final ConcurrentHashMap<String, CauEndpointSelector> SELECTORS = new ConcurrentHashMap<String, CauEndpointSelector>();
+	/** runs the requests of a hedged call */
+	private static final ExecutorService HEDGED = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "cau-hedged-request");
+		t.setDaemon(true);
+		return t;
+	});
+	/** the replicas */
+	private final List<Endpoint> endpoints;
+	/** the replicas as host&#58;port, comma separated */
+	private final String name;
+	/** consecutive failures which eject a replica */
+	private final int ejectFailures;
+	/** the ejection period in milliseconds */
+	private final long ejectMillis;
+	/** true to hedge slow requests */
+	private final boolean hedging;
+	/** the shortest hedging delay in milliseconds */
+	private final long hedgeMinMillis;
+	/** the latencies of the successful requests to all the replicas */
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	/** number of hedged requests sent */
+	private final LongAdder hedges = new LongAdder();
+	/** number of calls answered by the hedged request */
+	private final LongAdder hedgeWins = new LongAdder();
+	/** number of ejections */
+	private final LongAdder ejections = new LongAdder();
+
+	/**
+	 * A call to one replica.
+	 * @param <T> the result type
+	 */
+	public interface Call<T> {
+		/**
+		 * Make the call.
+		 * @param endpoint	the replica
+		 * @return	the result
+		 * @throws Exception on error
+		 */
+		T call(Endpoint endpoint) throws Exception;
+	}
+
+	/**
+	 * A CAU replica and its health.
+	 */
+	public static final class Endpoint {
+		/** the address */
+		private final InetAddress address;
+		/** the port */
+		private final int port;
+		/** the circuit breaker of the replica */
+		private final CircuitBreaker breaker;
+		/** the latency EWMA in milliseconds, guarded by this */
+		private double ewmaMillis;
+		/** number of latencies measured, guarded by this */
+		private long samples;
+		/** consecutive failures, guarded by this */
+		private int failures;
+		/** consecutive ejections, guarded by this */
+		private int ejections;
+		/** the end of the ejection or demotion on the {@link System#nanoTime()} scale, guarded by this */
+		private long ejectedUntilNanos;
+		/** true while ejected, guarded by this */
+		private boolean ejected;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param address	the address
+		 * @param port		the port
+		 */
+		private Endpoint(InetAddress address, int port) {
+			this.address = address;
+			this.port = port;
+			this.breaker = CircuitBreaker.create("CAU " + address.getHostAddress() + ":" + port);
+		}
+
+		/**
+		 * Get the address.
+		 * <p>
+		 * @return the address
+		 */
+		public InetAddress getAddress() {
+			return this.address;
+		}
+
+		/**
+		 * Get the port.
+		 * <p>
+		 * @return the port
+		 */
+		public int getPort() {
+			return this.port;
+		}
+
+		/**
+		 * Get the circuit breaker.
+		 * <p>
+		 * @return the breaker of the replica
+		 */
+		public CircuitBreaker getCircuitBreaker() {
+			return this.breaker;
+		}
+
+		/**
+		 * Get the latency EWMA.
+		 * <p>
+		 * @return	the EWMA in milliseconds, 0 before the first latency is measured
+		 */
+		public synchronized double getEwmaMillis() {
+			return this.ewmaMillis;
+		}
+
+		/**
+		 * Get the number of latencies measured.
+		 * <p>
+		 * @return the sample count
+		 */
+		public synchronized long getSamples() {
+			return this.samples;
+		}
+
+		/**
+		 * Check if the replica is ejected.
+		 * <p>
+		 * @return true if it is ejected now
+		 */
+		public synchronized boolean isEjected() {
+			return isEjected(System.nanoTime());
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s:%d ewma=%.1fms%s", this.address.getHostAddress(), this.port, this.ewmaMillis,
+					isEjected(System.nanoTime()) ? " ejected" : this.failures > 0 ? " failures=" + this.failures : "");
+		}
+
+		/**
+		 * Check if the replica is ejected.
+		 * <p>
+		 * @param now	the time on the {@link System#nanoTime()} scale
+		 * @return true if it is ejected at that time
+		 */
+		private synchronized boolean isEjected(long now) {
+			return this.ejected && now - this.ejectedUntilNanos < 0;
+		}
+
+		/**
+		 * Record a successful request.
+		 * <p>
+		 * @param nanos	the latency in nanoseconds
+		 */
+		private synchronized void recordSuccess(long nanos) {
+			double millis = nanos / 1e6;
+			this.ewmaMillis = this.samples++ == 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * this.ewmaMillis;
+			this.failures = 0;
+			this.ejections = 0;
+			this.ejected = false;
+		}
+
+		/**
+		 * Record a failed request, ejecting the replica after the threshold.
+		 * <p>
+		 * @param threshold		consecutive failures which eject the replica
+		 * @param ejectMillis	the ejection period in milliseconds
+		 * @return true if the replica was ejected
+		 */
+		private synchronized boolean recordFailure(int threshold, long ejectMillis) {
+			if(++this.failures < threshold) {
+				//demoted for one period
+				this.ejectedUntilNanos = System.nanoTime() + ejectMillis * 1000000L;
+				return false;
+			}
+			this.ejections = Math.min(this.ejections + 1, MAX_EJECTION_MULTIPLE);
+			this.ejectedUntilNanos = System.nanoTime() + ejectMillis * this.ejections * 1000000L;
+			this.ejected = true;
+			return true;
+		}
+
+		/**
+		 * Get the rank of the replica, the lowest is chosen.
+		 * <p>
+		 * @param now	the time on the {@link System#nanoTime()} scale
+		 * @return	the rank
+		 */
+		private synchronized double rank(long now) {
+			if(isEjected(now) || this.breaker.isOpen()) {
+				//the one due back first
+				return EJECTED_RANK + (this.ejectedUntilNanos - now);
+			}
+			return this.failures > 0 && now - this.ejectedUntilNanos < 0 ? FAILED_RANK + this.ewmaMillis : this.ewmaMillis;
+		}
+	}
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param endpoints			the replicas as host&#91;&#58;port&#93;, comma separated
+	 * @param defaultPort		the port of a replica without one
+	 * @param ejectFailures		consecutive failures which eject a replica
+	 * @param ejectMillis		the ejection period in milliseconds
+	 * @param hedging			true to hedge slow requests
+	 * @param hedgeMinMillis	the shortest hedging delay in milliseconds
+	 * @throws UnknownHostException if a host is not found
+	 */
+	public CauEndpointSelector(String endpoints, int defaultPort, int ejectFailures, long ejectMillis, boolean hedging,
+			long hedgeMinMillis) throws UnknownHostException {
+		List<Endpoint> list = new ArrayList<Endpoint>();
+		StringBuilder sb = new StringBuilder();
+		for(String endpoint : endpoints.split(",")) {
+			endpoint = endpoint.trim();
+			if(endpoint.isEmpty()) {
+				continue;
+			}
+			Endpoint e = new Endpoint(Utils.getInetAddress(endpoint), endpoint.contains(":") ? Utils.getPortNum(endpoint) : defaultPort);
+			list.add(e);
+			sb.append(sb.length() == 0 ? "" : ",").append(e.address.getHostAddress()).append(':').append(e.port);
+		}
+		if(list.isEmpty()) {
+			throw new IllegalArgumentException("no CAU endpoint in '" + endpoints + "'");
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+		this.name = sb.toString();
+		this.ejectFailures = Math.max(1, ejectFailures);
+		this.ejectMillis = Math.max(0L, ejectMillis);
+		this.hedging = hedging;
+		this.hedgeMinMillis = Math.max(1L, hedgeMinMillis);
+	}
+
+	/**
+	 * Get the shared selector of an endpoint list, creating it with the configured
+	 * ejection and hedging settings.
+	 * <p>
+	 * @param endpoints		the replicas as host&#91;&#58;port&#93;, comma separated
+	 * @param defaultPort	the port of a replica without one
+	 * @return	the selector
+	 * @throws UnknownHostException if a host is not found
+	 */
+	public static CauEndpointSelector forEndpoints(String endpoints, int defaultPort) throws UnknownHostException {
+		String key = endpoints.trim() + "/" + defaultPort;
+		CauEndpointSelector selector = SELECTORS.get(key);
+		if(selector == null) {
+			CauEndpointSelector created = new CauEndpointSelector(endpoints, defaultPort, Utils.getIntProperty("mf2c.cau.ejectFailures", 3),
+					Utils.getIntProperty("mf2c.cau.ejectMillis", 30000), Utils.getIntProperty("mf2c.cau.hedge", 0) > 0,
+					Utils.getIntProperty("mf2c.cau.hedgeMinMillis", 10));
+			selector = SELECTORS.putIfAbsent(key, created);
+			if(selector == null) {
+				selector = created;
+				LOGGER.info("CAU replicas: " + selector.getName());
+			}
+		}
+		return selector;
+	}
+
+	/**
+	 * Get the replicas.
+	 * <p>
+	 * @return the replicas, in the configured order
+	 */
+	public List<Endpoint> getEndpoints() {
+		return this.endpoints;
+	}
+
+	/**
+	 * Get the replicas as host&#58;port, comma separated.
+	 * <p>
+	 * @return the name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Choose the replica for a request.
+	 * <p>
+	 * @param exclude	a replica not to choose, or null
+	 * @return	the replica, or null if there is no other
+	 */
+	public Endpoint select(Endpoint exclude) {
+		long now = System.nanoTime();
+		Endpoint best = null;
+		double bestRank = 0;
+		for(Endpoint e : this.endpoints) {
+			if(e == exclude) {
+				continue;
+			}
+			double rank = e.rank(now);
+			if(best == null || rank < bestRank) {
+				best = e;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Make a call to the best replica, hedged with a call to the next best if enabled
+	 * and the first is slow.  A failure is not retried here; a retry, e.g. by a
+	 * {@link RetryPolicy <em>RetryPolicy</em>}, goes to another replica.
+	 * <p>
+	 * @param call	the call
+	 * @return	the result of the first successful call
+	 * @throws Exception	the error of the last call to fail if none succeeded, a
+	 * 			{@link CircuitOpenException <em>CircuitOpenException</em>} if no replica
+	 * 			is healthy and the circuit of the best is open, or an
+	 * 			{@link InterruptedIOException <em>InterruptedIOException</em>} if interrupted
+	 */
+	public <T> T execute(Call<T> call) throws Exception {
+		Endpoint primary = select(null);
+		long delay = getHedgeDelayMillis();
+		if(delay < 0 || this.endpoints.size() < 2) {
+			return invoke(primary, call);
+		}
+		Race<T> race = new Race<T>();
+		race.start(primary, call, false);
+		try {
+			try {
+				return race.result.get(delay, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Endpoint secondary = select(primary);
+				if(race.start(secondary, call, true)) {
+					this.hedges.increment();
+					LOGGER.debug("CAU " + primary + " slower than " + delay + "ms, hedging with " + secondary);
+				}
+				return race.result.get();
+			}
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the CAU");
+		}
+	}
+
+	/**
+	 * Get the delay before a slow request is hedged.
+	 * <p>
+	 * @return	the delay in milliseconds, or &#45;1 if not hedging
+	 */
+	public long getHedgeDelayMillis() {
+		if(!this.hedging || this.latencies.getCount() < MIN_HEDGE_SAMPLES) {
+			return -1;
+		}
+		return Math.max(this.hedgeMinMillis, (long) Math.ceil(this.latencies.getPercentileMillis(95)));
+	}
+
+	/**
+	 * Get the number of hedged requests sent.
+	 * <p>
+	 * @return the hedge count
+	 */
+	public long getHedges() {
+		return this.hedges.sum();
+	}
+
+	/**
+	 * Get the number of calls answered by the hedged request.
+	 * <p>
+	 * @return the count
+	 */
+	public long getHedgeWins() {
+		return this.hedgeWins.sum();
+	}
+
+	/**
+	 * Get the number of replica ejections.
+	 * <p>
+	 * @return the ejection count
+	 */
+	public long getEjections() {
+		return this.ejections.sum();
+	}
+
+	/**
+	 * Get the latencies of the successful requests to all the replicas.
+	 * <p>
+	 * @return the histogram
+	 */
+	public LatencyHistogram getLatencies() {
+		return this.latencies;
+	}
+
+	@Override
+	public String toString() {
+		return "CauEndpointSelector " + Arrays.toString(this.endpoints.toArray()) + ": hedges=" + getHedges()
+				+ ", hedgeWins=" + getHedgeWins() + ", ejections=" + getEjections();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Make a call to a replica through its circuit breaker and record its latency or
+	 * failure.
+	 * <p>
+	 * @param endpoint	the replica
+	 * @param call		the call
+	 * @return	the result
+	 * @throws Exception on error, a {@link CircuitOpenException <em>CircuitOpenException</em>}
+	 * 			if the circuit of the replica is open
+	 */
+	private <T> T invoke(Endpoint endpoint, Call<T> call) throws Exception {
+		CircuitBreaker breaker = endpoint.getCircuitBreaker();
+		if(!breaker.allowRequest()) {
+			//open replicas rank last, so none is healthy
+			throw new CircuitOpenException("CAU request not attempted, " + breaker);
+		}
+		long start = System.nanoTime();
+		try {
+			T result = call.call(endpoint);
+			long nanos = System.nanoTime() - start;
+			breaker.recordSuccess();
+			endpoint.recordSuccess(nanos);
+			this.latencies.record(nanos);
+			return result;
+		} catch (Exception e) {
+			breaker.recordFailure();
+			if(endpoint.recordFailure(this.ejectFailures, this.ejectMillis)) {
+				this.ejections.increment();
+				LOGGER.warn("CAU " + endpoint + " ejected after " + this.ejectFailures + " consecutive failures: " + e.getMessage());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * The calls of a hedged request, completed by the first to succeed or the last to fail.
+	 * @param <T> the result type
+	 */
+	private final class Race<T> {
+		/** the outcome */
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+		/** calls started and not finished, guarded by this */
+		private int pending;
+
+		/**
+		 * Start a call unless the outcome is known.
+		 * <p>
+		 * @param endpoint	the replica, or null
+		 * @param call		the call
+		 * @param hedge		true for the hedged call
+		 * @return true if started
+		 */
+		private boolean start(Endpoint endpoint, Call<T> call, boolean hedge) {
+			synchronized(this) {
+				if(endpoint == null || this.result.isDone()) {
+					return false;
+				}
+				this.pending++;
+			}
+			HEDGED.execute(() -> {
+				try {
+					T value = invoke(endpoint, call);
+					if(this.result.complete(value) && hedge) {
+						hedgeWins.increment();
+					}
+					finish(null);
+				} catch (Exception e) {
+					finish(e);
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Record the end of a call, failing the outcome if it was the last and all failed.
+		 * <p>
+		 * @param error	the error of the call, or null
+		 */
+		private synchronized void finish(Exception error) {
+			if(--this.pending == 0 && error != null) {
+				this.result.completeExceptionally(error);
+			}
+		}
+	}
+}
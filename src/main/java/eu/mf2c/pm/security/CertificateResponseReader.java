@@ -0,0 +1,258 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * Reads certificates sent by the CAU into a pooled buffer and parses each one
+ * straight from the buffer.  A response is recognised by its first byte:
+ * <ul>
+ * <li>0x00 &#45; a 4 byte big endian length followed by a PEM or DER certificate</li>
+ * <li>0x30 &#45; a DER certificate, its length taken from the ASN.1 header</li>
+ * <li>otherwise &#45; a PEM certificate ending at the <code>END CERTIFICATE</code> line</li>
+ * </ul>
+ * <p>
+ * The reader stops at the end of the frame rather than at the end of the stream, so
+ * it can be used on a connection that stays open.  Bytes read past the frame are kept
+ * for the next call.  If the stream ends before a frame is complete, whatever was
+ * received is parsed, as the CAU used to close the connection to end the response.
+ */
+public class CertificateResponseReader implements Closeable {
+	/** largest accepted response */
+	public static final int MAX_FRAME = 64 * 1024;
+	/** the PEM end marker */
+	private static final byte[] PEM_END = "-----END CERTIFICATE-----".getBytes(StandardCharsets.US_ASCII);
+	/** the factories, one per thread */
+	private static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+		try {
+			return CertificateFactory.getInstance("X.509");
+		} catch (CertificateException e) {
+			throw new IllegalStateException("X.509 certificate factory not available", e);
+		}
+	});
+	/** the stream to read from */
+	private final InputStream in;
+	/** the pool the buffer came from */
+	private final BufferPool pool;
+	/** the receive buffer */
+	private byte[] buffer;
+	/** start of the unconsumed bytes */
+	private int pos = 0;
+	/** end of the received bytes */
+	private int limit = 0;
+	/** set at the end of the stream */
+	private boolean eof = false;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param in	the stream to read from, not closed by this reader
+	 * @param pool	the pool to take the receive buffer from
+	 */
+	public CertificateResponseReader(InputStream in, BufferPool pool) {
+		this.in = in;
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+
+	/**
+	 * Read the next certificate.
+	 * <p>
+	 * @return the certificate
+	 * @throws EOFException if the stream ended before a response started
+	 * @throws IOException on read error or if the response is too large
+	 * @throws CertificateException if the response is not a valid certificate
+	 */
+	public X509Certificate readCertificate() throws IOException, CertificateException {
+		//skip whitespace left after a previous PEM response
+		while(true) {
+			if(this.pos == this.limit && !fill()) {
+				throw new EOFException("no response from the CAU");
+			}
+			byte b = this.buffer[this.pos];
+			if(b != '\r' && b != '\n' && b != ' ' && b != '\t') {
+				break;
+			}
+			this.pos++;
+		}
+		int length;
+		byte first = this.buffer[this.pos];
+		if(first == 0) {
+			if(!require(4)) {
+				throw new EOFException("truncated response length");
+			}
+			int frame = ((this.buffer[this.pos] & 0xff) << 24) | ((this.buffer[this.pos + 1] & 0xff) << 16)
+					| ((this.buffer[this.pos + 2] & 0xff) << 8) | (this.buffer[this.pos + 3] & 0xff);
+			if(frame <= 0 || frame > MAX_FRAME) {
+				throw new IOException("invalid response length: " + frame);
+			}
+			this.pos += 4;
+			length = require(frame) ? frame : this.limit - this.pos;
+		} else if(first == 0x30) {
+			int der = derLength();
+			length = require(der) ? der : this.limit - this.pos;
+		} else {
+			length = pemLength();
+		}
+		//taken after reading as filling the buffer may move the bytes
+		int start = this.pos;
+		this.pos = start + length;
+		return (X509Certificate) FACTORY.get().generateCertificate(new ByteArrayInputStream(this.buffer, start, length));
+	}
+
+	/**
+	 * Return the receive buffer to the pool.  The stream is left open.
+	 */
+	@Override
+	public void close() {
+		if(this.buffer != null) {
+			this.pool.release(this.buffer);
+			this.buffer = null;
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the total length of the DER element at the current position.
+	 * <p>
+	 * @return	the length including the header
+	 * @throws IOException on read error or invalid encoding
+	 */
+	private int derLength() throws IOException {
+		if(!require(2)) {
+			throw new EOFException("truncated DER header");
+		}
+		int b = this.buffer[this.pos + 1] & 0xff;
+		if(b < 0x80) {
+			return 2 + b;
+		}
+		int n = b & 0x7f;
+		if(n == 0 || n > 3) {
+			throw new IOException("unsupported DER length encoding");
+		}
+		if(!require(2 + n)) {
+			throw new EOFException("truncated DER header");
+		}
+		int len = 0;
+		for(int i = 0; i < n; i++) {
+			len = (len << 8) | (this.buffer[this.pos + 2 + i] & 0xff);
+		}
+		return 2 + n + len;
+	}
+
+	/**
+	 * Get the length of the PEM certificate at the current position, reading until
+	 * the end marker or the end of the stream.
+	 * <p>
+	 * @return	the length up to and including the end marker
+	 * @throws IOException on read error
+	 */
+	private int pemLength() throws IOException {
+		int scan = this.pos;
+		while(true) {
+			int last = this.limit - PEM_END.length;
+			for(; scan <= last; scan++) {
+				if(matches(scan)) {
+					return scan + PEM_END.length - this.pos;
+				}
+			}
+			int offset = scan - this.pos;
+			if(!fill()) {
+				return this.limit - this.pos;
+			}
+			//fill may have moved the unconsumed bytes
+			scan = this.pos + offset;
+		}
+	}
+
+	/**
+	 * Check for the PEM end marker.
+	 * <p>
+	 * @param at	the buffer index to check
+	 * @return true if the marker starts at the index
+	 */
+	private boolean matches(int at) {
+		for(int i = 0; i < PEM_END.length; i++) {
+			if(this.buffer[at + i] != PEM_END[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Make sure a number of bytes from the current position are buffered.
+	 * <p>
+	 * @param n	the number of bytes
+	 * @return	true if they are, false if the stream ended first
+	 * @throws IOException on read error or if n is too large
+	 */
+	private boolean require(int n) throws IOException {
+		if(n > MAX_FRAME) {
+			throw new IOException("response too large: " + n + " bytes");
+		}
+		while(this.limit - this.pos < n) {
+			if(!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read more bytes, compacting or growing the buffer if it is full.
+	 * <p>
+	 * @return false at the end of the stream
+	 * @throws IOException on read error or if the buffer cannot grow further
+	 */
+	private boolean fill() throws IOException {
+		if(this.eof) {
+			return false;
+		}
+		if(this.limit == this.buffer.length) {
+			int pending = this.limit - this.pos;
+			if(this.pos > 0) {
+				System.arraycopy(this.buffer, this.pos, this.buffer, 0, pending);
+			} else {
+				if(this.buffer.length >= MAX_FRAME) {
+					throw new IOException("response larger than " + MAX_FRAME + " bytes");
+				}
+				byte[] larger = new byte[Math.min(MAX_FRAME, this.buffer.length * 2)];
+				System.arraycopy(this.buffer, 0, larger, 0, pending);
+				this.pool.release(this.buffer);
+				this.buffer = larger;
+			}
+			this.pos = 0;
+			this.limit = pending;
+		}
+		int r = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if(r < 0) {
+			this.eof = true;
+			return false;
+		}
+		this.limit += r;
+		return true;
+	}
+}
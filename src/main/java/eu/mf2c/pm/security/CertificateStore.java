@@ -0,0 +1,396 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A compact in&#45;memory certificate store.  Certificates are held as their DER encoding,
+ * deduplicated by SHA&#45;256 fingerprint, and parsed into an {@link X509Certificate} only
+ * when first asked for, and then only once.  A leader tracking thousands of follower
+ * and CA certificates keeps a few hundred bytes per certificate rather than a fully
+ * parsed object, and the same certificate presented under several aliases or by
+ * several connections is held once.
+ * <p>
+ * The store is safe for use by concurrent threads.
+ */
+public class CertificateStore {
+	/** PEM header */
+	private static final String PEM_BEGIN = "-----BEGIN CERTIFICATE-----";
+	/** PEM footer */
+	private static final String PEM_END = "-----END CERTIFICATE-----";
+	/** a certificate factory per thread, getInstance is too costly to call per certificate */
+	private static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+		try {
+			return CertificateFactory.getInstance("X.509");
+		} catch (CertificateException e) {
+			throw new IllegalStateException("X.509 certificate factory not available", e);
+		}
+	});
+	/** a SHA-256 digest per thread */
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+	/** the certificates by fingerprint */
+	private final ConcurrentHashMap<Fingerprint, Handle> certificates = new ConcurrentHashMap<Fingerprint, Handle>();
+	/** the certificates by alias */
+	private final ConcurrentHashMap<String, Handle> aliases = new ConcurrentHashMap<String, Handle>();
+	/** number of certificates parsed */
+	private final LongAdder parses = new LongAdder();
+	/** number of additions which found the certificate already held */
+	private final LongAdder duplicates = new LongAdder();
+
+	/**
+	 * A SHA&#45;256 fingerprint used as the map key.
+	 */
+	private static final class Fingerprint {
+		/** the digest */
+		final byte[] digest;
+		/** hash code, taken from the digest which is already uniformly distributed */
+		final int hash;
+
+		/**
+		 * Constructor
+		 * @param digest	the digest
+		 */
+		Fingerprint(byte[] digest) {
+			this.digest = digest;
+			this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Fingerprint && Arrays.equals(this.digest, ((Fingerprint) o).digest);
+		}
+	}
+
+	/**
+	 * A certificate held by the store.
+	 */
+	public final class Handle {
+		/** the fingerprint */
+		private final Fingerprint fingerprint;
+		/** the DER encoding, never exposed */
+		private final byte[] der;
+		/** the parsed certificate, null until first asked for */
+		private volatile X509Certificate certificate;
+
+		/**
+		 * Constructor
+		 * @param fingerprint	the fingerprint
+		 * @param der			the DER encoding, owned by the handle
+		 * @param certificate	the parsed certificate, or null
+		 */
+		private Handle(Fingerprint fingerprint, byte[] der, X509Certificate certificate) {
+			this.fingerprint = fingerprint;
+			this.der = der;
+			this.certificate = certificate;
+		}
+
+		/**
+		 * Get the certificate, parsing it on first use.
+		 * <p>
+		 * @return	the certificate
+		 * @throws CertificateException if the encoding is not a valid certificate
+		 */
+		public X509Certificate getCertificate() throws CertificateException {
+			X509Certificate c = this.certificate;
+			if(c == null) {
+				synchronized(this) {
+					c = this.certificate;
+					if(c == null) {
+						c = parse(this.der, 0, this.der.length);
+						CertificateStore.this.parses.increment();
+						this.certificate = c;
+					}
+				}
+			}
+			return c;
+		}
+
+		/**
+		 * Check if the certificate has been parsed.
+		 * <p>
+		 * @return	true if parsed
+		 */
+		public boolean isParsed() {
+			return this.certificate != null;
+		}
+
+		/**
+		 * Get a copy of the DER encoding.
+		 * <p>
+		 * @return	the encoding
+		 */
+		public byte[] getEncoded() {
+			return this.der.clone();
+		}
+
+		/**
+		 * Get the length of the DER encoding.
+		 * <p>
+		 * @return	the length in bytes
+		 */
+		public int getEncodedLength() {
+			return this.der.length;
+		}
+
+		/**
+		 * Get a copy of the SHA&#45;256 fingerprint of the DER encoding.
+		 * <p>
+		 * @return	the fingerprint
+		 */
+		public byte[] getFingerprint() {
+			return this.fingerprint.digest.clone();
+		}
+	}
+
+	/**
+	 * Add a certificate, or find it if it is already held.  It is not parsed.
+	 * <p>
+	 * @param encoded	the DER or PEM encoding
+	 * @return	the handle of the certificate
+	 * @throws CertificateException if the encoding is neither DER nor PEM
+	 */
+	public Handle add(byte[] encoded) throws CertificateException {
+		byte[] der = toDer(encoded);
+		Fingerprint fp = new Fingerprint(SHA256.get().digest(der));
+		Handle h = this.certificates.get(fp);
+		if(h != null) {
+			this.duplicates.increment();
+			return h;
+		}
+		//copy so that a caller reusing its buffer cannot change the store
+		Handle created = new Handle(fp, der == encoded ? der.clone() : der, null);
+		h = this.certificates.putIfAbsent(fp, created);
+		if(h != null) {
+			this.duplicates.increment();
+			return h;
+		}
+		return created;
+	}
+
+	/**
+	 * Add a parsed certificate, or find it if it is already held.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the handle of the certificate
+	 * @throws CertificateEncodingException on error encoding the certificate
+	 */
+	public Handle add(X509Certificate cert) throws CertificateEncodingException {
+		byte[] der = cert.getEncoded();
+		Fingerprint fp = new Fingerprint(SHA256.get().digest(der));
+		Handle h = this.certificates.get(fp);
+		if(h == null) {
+			Handle created = new Handle(fp, der, cert);
+			h = this.certificates.putIfAbsent(fp, created);
+			if(h == null) {
+				return created;
+			}
+		}
+		this.duplicates.increment();
+		return h;
+	}
+
+	/**
+	 * Get the single instance of a certificate held by the store, adding it if it is
+	 * not held yet, so that equal certificates share one object.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the shared instance
+	 * @throws CertificateException on error encoding or parsing the certificate
+	 */
+	public X509Certificate intern(X509Certificate cert) throws CertificateException {
+		return add(cert).getCertificate();
+	}
+
+	/**
+	 * Find a certificate without adding it.
+	 * <p>
+	 * @param encoded	the DER or PEM encoding
+	 * @return	the handle, or null if the certificate is not held
+	 * @throws CertificateException if the encoding is neither DER nor PEM
+	 */
+	public Handle find(byte[] encoded) throws CertificateException {
+		return this.certificates.get(new Fingerprint(SHA256.get().digest(toDer(encoded))));
+	}
+
+	/**
+	 * Associate an alias with a certificate held by the store.
+	 * <p>
+	 * @param alias		the alias
+	 * @param handle	the certificate
+	 * @return	the handle previously associated with the alias, or null
+	 */
+	public Handle put(String alias, Handle handle) {
+		return this.aliases.put(alias, handle);
+	}
+
+	/**
+	 * Get the certificate associated with an alias.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the handle, or null
+	 */
+	public Handle getHandle(String alias) {
+		return this.aliases.get(alias);
+	}
+
+	/**
+	 * Get the certificate associated with an alias, parsing it on first use.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the certificate, or null
+	 * @throws CertificateException if the encoding is not a valid certificate
+	 */
+	public X509Certificate get(String alias) throws CertificateException {
+		Handle h = this.aliases.get(alias);
+		return h == null ? null : h.getCertificate();
+	}
+
+	/**
+	 * Remove an alias.  The certificate stays held while other aliases or callers may
+	 * refer to it; use {@link #purge()} to drop unreferenced certificates.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the handle previously associated with the alias, or null
+	 */
+	public Handle remove(String alias) {
+		return this.aliases.remove(alias);
+	}
+
+	/**
+	 * Drop the certificates no alias refers to.
+	 * <p>
+	 * @return	the number of certificates dropped
+	 */
+	public int purge() {
+		Set<Handle> used = Collections.newSetFromMap(new IdentityHashMap<Handle, Boolean>());
+		used.addAll(this.aliases.values());
+		int before = this.certificates.size();
+		this.certificates.values().removeIf(h -> !used.contains(h));
+		return before - this.certificates.size();
+	}
+
+	/**
+	 * Get the number of aliases.
+	 * <p>
+	 * @return	the alias count
+	 */
+	public int size() {
+		return this.aliases.size();
+	}
+
+	/**
+	 * Get the number of distinct certificates held.
+	 * <p>
+	 * @return	the certificate count
+	 */
+	public int getUniqueCount() {
+		return this.certificates.size();
+	}
+
+	/**
+	 * Get the number of certificates parsed.
+	 * <p>
+	 * @return	the parse count
+	 */
+	public long getParseCount() {
+		return this.parses.sum();
+	}
+
+	/**
+	 * Get the number of additions which found the certificate already held.
+	 * <p>
+	 * @return	the duplicate count
+	 */
+	public long getDuplicateCount() {
+		return this.duplicates.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "aliases=" + size() + ", certificates=" + getUniqueCount() + ", parsed=" + getParseCount()
+				+ ", duplicates=" + getDuplicateCount();
+	}
+
+	/**
+	 * Parse a certificate with the certificate factory of the calling thread.
+	 * <p>
+	 * @param encoded	the buffer holding the DER or PEM encoding
+	 * @param offset	the start of the encoding
+	 * @param length	the length of the encoding
+	 * @return	the certificate
+	 * @throws CertificateException if the encoding is not a valid certificate
+	 */
+	public static X509Certificate parse(byte[] encoded, int offset, int length) throws CertificateException {
+		return (X509Certificate) FACTORY.get().generateCertificate(new ByteArrayInputStream(encoded, offset, length));
+	}
+
+	/**
+	 * Get the DER encoding of a DER or PEM encoded certificate.
+	 * <p>
+	 * @param encoded	the encoding
+	 * @return	the DER encoding, the argument itself if it is DER
+	 * @throws CertificateException if the encoding is neither DER nor PEM
+	 */
+	public static byte[] toDer(byte[] encoded) throws CertificateException {
+		int i = 0;
+		while(i < encoded.length && Character.isWhitespace(encoded[i])) {
+			i++;
+		}
+		if(i < encoded.length && encoded[i] == 0x30) {
+			return i == 0 ? encoded : Arrays.copyOfRange(encoded, i, encoded.length);
+		}
+		String s = new String(encoded, i, encoded.length - i, StandardCharsets.US_ASCII);
+		int begin = s.indexOf(PEM_BEGIN);
+		int end = s.indexOf(PEM_END);
+		if(begin < 0 || end < begin) {
+			throw new CertificateException("Not a DER or PEM encoded certificate");
+		}
+		try {
+			return Base64.getMimeDecoder().decode(s.substring(begin + PEM_BEGIN.length(), end));
+		} catch (IllegalArgumentException e) {
+			throw new CertificateException("Invalid PEM certificate: " + e.getMessage(), e);
+		}
+	}
+}
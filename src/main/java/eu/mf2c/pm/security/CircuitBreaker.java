@@ -0,0 +1,207 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * A circuit breaker for one outbound endpoint.  After a run of consecutive failures
+ * the circuit opens and calls fail at once, without waiting for the endpoint to time
+ * out, until the open period has passed.  A single trial call is then let through:
+ * its success closes the circuit and its failure opens it again.
+ * <p>
+ * The breakers are shared per endpoint, see {@link #forEndpoint(String)}.  The failure
+ * threshold and the open period are set with <code>-Dmf2c.breaker.failures</code>
+ * (5) and <code>-Dmf2c.breaker.openMillis</code> (30000).
+ */
+public class CircuitBreaker {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+	/** the breakers by endpoint */
+	private static final ConcurrentHashMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+	/** the endpoint */
+	private final String endpoint;
+	/** consecutive failures which open the circuit */
+	private final int failureThreshold;
+	/** the open period in milliseconds */
+	private final long openMillis;
+	/** the state, guarded by this */
+	private State state = State.CLOSED;
+	/** consecutive failures, guarded by this */
+	private int failures;
+	/** when the circuit opened, on the {@link System#nanoTime()} scale, guarded by this */
+	private long openedNanos;
+	/** true while the trial call of a half open circuit is in flight, guarded by this */
+	private boolean trialInFlight;
+	/** number of calls rejected while open, guarded by this */
+	private long rejected;
+
+	/**
+	 * The state of the circuit.
+	 */
+	public enum State {
+		/** calls go through */
+		CLOSED,
+		/** calls are rejected */
+		OPEN,
+		/** one trial call goes through */
+		HALF_OPEN
+	}
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param endpoint			the endpoint, for the log
+	 * @param failureThreshold	consecutive failures which open the circuit
+	 * @param openMillis		the open period in milliseconds
+	 */
+	public CircuitBreaker(String endpoint, int failureThreshold, long openMillis) {
+		this.endpoint = endpoint;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = Math.max(0L, openMillis);
+	}
+
+	/**
+	 * Get the shared breaker of an endpoint, creating it with the configured
+	 * threshold and open period.
+	 * <p>
+	 * @param endpoint	the endpoint, e.g. host&#58;port
+	 * @return	the breaker
+	 */
+	public static CircuitBreaker forEndpoint(String endpoint) {
+		CircuitBreaker breaker = BREAKERS.get(endpoint);
+		if(breaker == null) {
+			breaker = BREAKERS.computeIfAbsent(endpoint, CircuitBreaker::create);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Create a breaker of its own for an endpoint, with the configured threshold and
+	 * open period.
+	 * <p>
+	 * @param endpoint	the endpoint, for the log
+	 * @return	the breaker
+	 */
+	public static CircuitBreaker create(String endpoint) {
+		return new CircuitBreaker(endpoint, Utils.getIntProperty("mf2c.breaker.failures", 5),
+				Utils.getIntProperty("mf2c.breaker.openMillis", 30000));
+	}
+
+	/**
+	 * Check if a call may go through.  A caller allowed through must report the
+	 * outcome with {@link #recordSuccess()} or {@link #recordFailure()}.
+	 * <p>
+	 * @return true if it may
+	 */
+	public synchronized boolean allowRequest() {
+		switch(this.state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(System.nanoTime() - this.openedNanos < this.openMillis * 1000000L) {
+					this.rejected++;
+					return false;
+				}
+				this.state = State.HALF_OPEN;
+				LOGGER.info("circuit to " + this.endpoint + " half open, trying one call");
+				return tryTrial();
+			case HALF_OPEN:
+				return tryTrial();
+			default:
+				throw new IllegalStateException("unknown circuit state " + this.state);
+		}
+	}
+
+	/**
+	 * Record a successful call, closing the circuit.
+	 */
+	public synchronized void recordSuccess() {
+		if(this.state != State.CLOSED) {
+			LOGGER.info("circuit to " + this.endpoint + " closed");
+		}
+		this.state = State.CLOSED;
+		this.failures = 0;
+		this.trialInFlight = false;
+	}
+
+	/**
+	 * Record a failed call, opening the circuit after the threshold or if it was the
+	 * trial call.
+	 */
+	public synchronized void recordFailure() {
+		this.failures++;
+		if(this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+			if(this.state != State.OPEN) {
+				LOGGER.warn("circuit to " + this.endpoint + " open for " + this.openMillis + "ms after " + this.failures + " consecutive failures");
+			}
+			this.state = State.OPEN;
+			this.openedNanos = System.nanoTime();
+		}
+		this.trialInFlight = false;
+	}
+
+	/**
+	 * Check if calls are rejected, without letting a trial call through.
+	 * <p>
+	 * @return true if the circuit is open and its open period has not passed
+	 */
+	public synchronized boolean isOpen() {
+		return this.state == State.OPEN && System.nanoTime() - this.openedNanos < this.openMillis * 1000000L;
+	}
+
+	/**
+	 * Get the state.
+	 * <p>
+	 * @return the state; an open circuit whose open period has passed is reported as
+	 * 			open until the next call
+	 */
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	/**
+	 * Get the number of calls rejected while the circuit was open.
+	 * <p>
+	 * @return the rejected count
+	 */
+	public synchronized long getRejected() {
+		return this.rejected;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "circuit to " + this.endpoint + " " + this.state + ", failures=" + this.failures + ", rejected=" + this.rejected;
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Let the trial call of a half open circuit through, unless it is in flight.
+	 * @return true if the caller makes the trial call
+	 */
+	private boolean tryTrial() {
+		if(this.trialInFlight) {
+			this.rejected++;
+			return false;
+		}
+		this.trialInFlight = true;
+		return true;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.net.SocketTimeoutException;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * The point in time by which a registration must complete.  It is created when the
+ * registration starts and passed down the outbound calls, the regional CAU, the
+ * leader CAU and the categorisation service, so that each connect, handshake and
+ * read timeout is cut down to the time left and no retry starts after it has passed.
+ * <p>
+ * The default registration deadline is 120 seconds, set with
+ * <code>-Dmf2c.registration.deadlineMillis</code>.
+ */
+public final class Deadline {
+	/** the default registration deadline in milliseconds */
+	public static final int DEFAULT_REGISTRATION_MILLIS = 120000;
+	/** a deadline which never passes */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+	/** the deadline on the {@link System#nanoTime()} scale */
+	private final long deadlineNanos;
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param deadlineNanos	the deadline on the {@link System#nanoTime()} scale
+	 */
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Create a deadline some time from now.
+	 * <p>
+	 * @param millis	the time allowed in milliseconds
+	 * @return	the deadline
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + Math.max(0L, millis) * 1000000L);
+	}
+
+	/**
+	 * Create the deadline of a registration starting now.
+	 * <p>
+	 * @return	the deadline
+	 */
+	public static Deadline forRegistration() {
+		return after(Utils.getIntProperty("mf2c.registration.deadlineMillis", DEFAULT_REGISTRATION_MILLIS));
+	}
+
+	/**
+	 * Get the time left.
+	 * <p>
+	 * @return	the time left in milliseconds, 0 once passed, {@link Long#MAX_VALUE} if none
+	 */
+	public long remainingMillis() {
+		if(this == NONE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0L, (this.deadlineNanos - System.nanoTime()) / 1000000L);
+	}
+
+	/**
+	 * Check if the deadline has passed.
+	 * <p>
+	 * @return true if it has
+	 */
+	public boolean isExpired() {
+		return this != NONE && this.deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Get a socket timeout, cut down to the time left.
+	 * <p>
+	 * @param timeoutMillis	the configured timeout in milliseconds, 0 for none
+	 * @return	the timeout to use, never 0 unless both the timeout and the deadline are unlimited
+	 * @throws SocketTimeoutException if the deadline has passed
+	 */
+	public int timeout(int timeoutMillis) throws SocketTimeoutException {
+		if(isExpired()) {
+			throw new SocketTimeoutException("registration deadline exceeded");
+		}
+		long remaining = remainingMillis();
+		if(timeoutMillis <= 0) {
+			return remaining >= Integer.MAX_VALUE ? 0 : (int) Math.max(1L, remaining);
+		}
+		return (int) Math.max(1L, Math.min(timeoutMillis, remaining));
+	}
+
+	@Override
+	public String toString() {
+		return this == NONE ? "no deadline" : remainingMillis() + "ms left";
+	}
+}
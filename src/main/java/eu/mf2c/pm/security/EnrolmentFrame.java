@@ -0,0 +1,141 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message of the batch enrolment protocol.  After the TLS handshake the client
+ * sends the {@link #MAGIC <em>MAGIC</em>} preamble, then both sides exchange frames
+ * of the form:
+ * <p>
+ * <pre>
+ *   int    length of the rest of the frame (big endian)
+ *   long   correlation id
+ *   byte   type
+ *   byte[] payload
+ * </pre>
+ * <p>
+ * A {@link #REQUEST <em>REQUEST</em>} carries the usual
+ * <code>csr=...,detectedLeaderID=...,MACaddr=...,IDkey=...,deviceID=...</code> message.
+ * The CAU answers each with a {@link #CERTIFICATE <em>CERTIFICATE</em>} or an
+ * {@link #ERROR <em>ERROR</em>} frame carrying the same correlation id, in the order the
+ * certificates are signed.  The client sends {@link #END <em>END</em>} when it has no
+ * more requests; the CAU echoes it once all outstanding requests are answered.
+ */
+public class EnrolmentFrame {
+	/** preamble identifying a batch enrolment connection */
+	public static final byte[] MAGIC = "MF2B".getBytes(StandardCharsets.US_ASCII);
+	/** a certificate request */
+	public static final byte REQUEST = 1;
+	/** a signed certificate, PEM or DER encoded */
+	public static final byte CERTIFICATE = 2;
+	/** a failed request, the payload is a UTF&#45;8 error message */
+	public static final byte ERROR = 3;
+	/** end of the batch */
+	public static final byte END = 4;
+	/** maximum accepted frame length */
+	public static final int MAX_LENGTH = 1 << 20;
+	/** empty payload */
+	private static final byte[] EMPTY = new byte[0];
+	/** correlation id attribute */
+	private final long correlationId;
+	/** frame type attribute */
+	private final byte type;
+	/** payload attribute */
+	private final byte[] payload;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param correlationId	the correlation id
+	 * @param type			the frame type
+	 * @param payload		the payload, may be null
+	 */
+	public EnrolmentFrame(long correlationId, byte type, byte[] payload) {
+		this.correlationId = correlationId;
+		this.type = type;
+		this.payload = payload == null ? EMPTY : payload;
+	}
+
+	/**
+	 * Get the correlation id.
+	 * <p>
+	 * @return the correlation id
+	 */
+	public long getCorrelationId() {
+		return this.correlationId;
+	}
+
+	/**
+	 * Get the frame type.
+	 * <p>
+	 * @return the type
+	 */
+	public byte getType() {
+		return this.type;
+	}
+
+	/**
+	 * Get the payload.
+	 * <p>
+	 * @return the payload, empty if there is none
+	 */
+	public byte[] getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * Write the frame.  The caller flushes the stream.
+	 * <p>
+	 * @param out	the stream to write to
+	 * @throws IOException on error
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(9 + this.payload.length);
+		out.writeLong(this.correlationId);
+		out.writeByte(this.type);
+		out.write(this.payload);
+	}
+
+	/**
+	 * Read a frame.
+	 * <p>
+	 * @param in	the stream to read from
+	 * @return the frame, or null at the end of the stream
+	 * @throws IOException on error or if the frame is malformed
+	 */
+	public static EnrolmentFrame read(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if(length < 9 || length > MAX_LENGTH) {
+			throw new IOException("invalid frame length: " + length);
+		}
+		long id = in.readLong();
+		byte type = in.readByte();
+		byte[] payload = new byte[length - 9];
+		in.readFully(payload);
+		return new EnrolmentFrame(id, type, payload);
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the full and resumed TLS handshakes of a connection role and
+ * the time spent on each kind.
+ */
+public class HandshakeStats {
+	/** number of full handshakes */
+	private final LongAdder full = new LongAdder();
+	/** number of resumed handshakes */
+	private final LongAdder resumed = new LongAdder();
+	/** time spent on full handshakes in nanoseconds */
+	private final LongAdder fullNanos = new LongAdder();
+	/** time spent on resumed handshakes in nanoseconds */
+	private final LongAdder resumedNanos = new LongAdder();
+
+	/**
+	 * Record a completed handshake.
+	 * <p>
+	 * @param wasResumed	true if an existing session was resumed
+	 * @param nanos			the handshake duration in nanoseconds
+	 */
+	public void record(boolean wasResumed, long nanos) {
+		if(wasResumed) {
+			this.resumed.increment();
+			this.resumedNanos.add(nanos);
+		}else {
+			this.full.increment();
+			this.fullNanos.add(nanos);
+		}
+	}
+
+	/**
+	 * Get the number of full handshakes.
+	 * <p>
+	 * @return the full handshake count
+	 */
+	public long getFullCount() {
+		return this.full.sum();
+	}
+
+	/**
+	 * Get the number of resumed handshakes.
+	 * <p>
+	 * @return the resumed handshake count
+	 */
+	public long getResumedCount() {
+		return this.resumed.sum();
+	}
+
+	/**
+	 * Get the average duration of a full handshake.
+	 * <p>
+	 * @return the average in milliseconds, 0 if there were none
+	 */
+	public double getFullAverageMillis() {
+		long n = this.full.sum();
+		return n == 0 ? 0 : this.fullNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * Get the average duration of a resumed handshake.
+	 * <p>
+	 * @return the average in milliseconds, 0 if there were none
+	 */
+	public double getResumedAverageMillis() {
+		long n = this.resumed.sum();
+		return n == 0 ? 0 : this.resumedNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return String.format("full=%d (avg %.2fms), resumed=%d (avg %.2fms)",
+				getFullCount(), getFullAverageMillis(), getResumedCount(), getResumedAverageMillis());
+	}
+}
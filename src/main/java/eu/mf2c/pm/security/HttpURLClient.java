@@ -15,8 +15,7 @@
  */
 package eu.mf2c.pm.security;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.log4j.Logger;
 
@@ -26,6 +25,9 @@ import org.apache.log4j.Logger;
  * The Categorisation block is assumed to reside on the
  * localhost.
  * <p>
+ * The request is sent by the shared {@link CategorisationClient <em>CategorisationClient</em>},
+ * which reuses its connections and retries failed requests.
+ * <p>
  * @author Shirley Crompton, shirley.crompton@stfc.ac.uk
  * org Data Science and Technology Group,
  *     UKRI Science and Technology Council
@@ -41,6 +43,8 @@ public class HttpURLClient extends Thread {
 	public String deviceID = null;
 	/** agent id key */
 	public String idKey = null;
+	/** the deadline of the registration */
+	private Deadline deadline = Deadline.NONE;
 	
 	/**
 	 * Constructor
@@ -52,6 +56,18 @@ public class HttpURLClient extends Thread {
 		this.deviceID = agentDeviceID;
 		this.idKey = key;
 	}
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param agentDeviceID		the agent&#39;s device id
+	 * @param key				the agent&#39;s id key
+	 * @param deadline			the deadline of the registration
+	 */
+	public HttpURLClient(String agentDeviceID, String key, Deadline deadline) {
+		this(agentDeviceID, key);
+		this.deadline = deadline;
+	}
 	
 	/**
 	 * {@inheritDoc}
@@ -59,22 +75,9 @@ public class HttpURLClient extends Thread {
 	@Override
 	public void run() {
 		try {
-			String url = this.ENDPOINT + "?deviceID=" + this.deviceID;
-			LOGGER.debug("The categorisation ReST endpoint: " + url);
-			URL obj = new URL(url);
-			HttpURLConnection con = (HttpURLConnection) obj.openConnection();	
-			// optional default is GET
-			con.setRequestMethod("GET");	
-			//add request header
-			con.setRequestProperty("User-Agent", "mF2C/IT1 CauClient-" + this.idKey + "/IT1");
-			LOGGER.debug("\nSending 'GET' request to URL : " + url);
-			int responseCode = con.getResponseCode();
-			LOGGER.debug("Response Code : " + responseCode);
-			if(responseCode != 200) {
-				throw new Exception("Categorisation ReST service returned " + responseCode + "!");
-			}
-			LOGGER.debug("Triggered Categorisation block to start categorisation.\n");
-			LOGGER.info("Completed IT1 CAU client trigger dependencies responsibilities.......");			
+			trigger();
+		}catch(InterruptedException e) {
+			LOGGER.warn("Interrupted waiting for the categorisation trigger");
 		}catch(Exception e) {
 			String msg = "Error running HttpURLClient: " + e.getMessage();
 			LOGGER.error(msg);
@@ -83,5 +86,21 @@ public class HttpURLClient extends Thread {
 		}
 
 	}
+
+	/**
+	 * Send the categorisation request and wait for the outcome.
+	 * <p>
+	 * @throws Exception if the request fails or the service does not return 200
+	 */
+	public void trigger() throws Exception {
+		LOGGER.debug("Triggering categorisation of " + this.deviceID);
+		try {
+			CategorisationClient.getInstance().trigger(this.deviceID, this.idKey, this.deadline).get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		LOGGER.debug("Triggered Categorisation block to start categorisation.\n");
+		LOGGER.info("Completed IT1 CAU client trigger dependencies responsibilities.......");			
+	}
 	//no further action required for IT1
 }
@@ -0,0 +1,490 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.IdentityRegistryException;
+import eu.mf2c.pm.security.Exception.KeyStorePersisterException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Holds the identities of the agents hosted by a process, e.g. a gateway node running
+ * thousands of agents.  Identities are looked up by id key, device ID or fog ID in
+ * constant time.
+ * <p>
+ * The identities are spread over a fixed number of shards by id key.  Each shard is
+ * a {@link StoreSnapshot <em>StoreSnapshot</em>}, replaced on every change, and is
+ * persisted to its own JKS file by the {@link KeyStorePersister <em>KeyStorePersister</em>},
+ * so a registration rewrites one shard rather than every identity.  The id key,
+ * device ID and fog ID of an identity are encoded in its alias as lower case hex,
+ * since JKS does not preserve the case of aliases.
+ */
+public class IdentityRegistry {
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(IdentityRegistry.class);
+	/** default number of shards */
+	public static final int DEFAULT_SHARDS = 16;
+	/** shard file and store name prefix */
+	private static final String SHARD_PREFIX = "identities-";
+	/** shard file suffix */
+	private static final String SHARD_SUFFIX = ".jks";
+	/** the shards */
+	private final Shard[] shards;
+	/** the directory holding the shard files */
+	private final Path dir;
+	/** the store and key entry password */
+	private final char[] password;
+	/** writes the shards behind */
+	private final KeyStorePersister persister;
+	/** the identities by id key */
+	private final ConcurrentHashMap<String, AgentIdentity> byIdKey = new ConcurrentHashMap<String, AgentIdentity>();
+	/** the identities by device ID */
+	private final ConcurrentHashMap<String, AgentIdentity> byDeviceID = new ConcurrentHashMap<String, AgentIdentity>();
+	/** the identities by fog ID, then id key */
+	private final ConcurrentHashMap<String, Map<String, AgentIdentity>> byFogID = new ConcurrentHashMap<String, Map<String, AgentIdentity>>();
+
+	/**
+	 * A part of the registry persisted to one file.  Changes are made holding the
+	 * shard&#39;s monitor.
+	 */
+	private static final class Shard {
+		/** the persister store name */
+		final String name;
+		/** the file */
+		final Path path;
+		/** the current content */
+		volatile StoreSnapshot snapshot;
+
+		/**
+		 * Constructor
+		 * @param name		the store name
+		 * @param path		the file
+		 * @param snapshot	the initial content
+		 */
+		Shard(String name, Path path, StoreSnapshot snapshot) {
+			this.name = name;
+			this.path = path;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Construct an instance, loading the shard files found in the directory.
+	 * <p>
+	 * @param dir		the directory holding the shard files, created if it does not exist
+	 * @param shards	the number of shards
+	 * @param password	the store and key entry password
+	 * @param persister	writes the shards behind
+	 * @throws IdentityRegistryException on error reading the shard files
+	 */
+	public IdentityRegistry(Path dir, int shards, char[] password, KeyStorePersister persister) throws IdentityRegistryException {
+		if(shards < 1) {
+			throw new IllegalArgumentException("At least one shard is needed!");
+		}
+		this.dir = dir;
+		this.password = password.clone();
+		this.persister = persister;
+		this.shards = new Shard[shards];
+		long start = System.nanoTime();
+		try {
+			Files.createDirectories(dir);
+			load();
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IdentityRegistryException("Error loading the identities from " + dir + ": " + e.getMessage(), e);
+		}
+		LOGGER.info("Loaded " + this.byIdKey.size() + " identities from " + shards + " shards in "
+				+ (System.nanoTime() - start) / 1000000L + "ms");
+	}
+
+	/**
+	 * Add or replace an identity.
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param deviceID	the agent device ID, or null
+	 * @param fogID		the fog ID, or null
+	 * @param key		the private key
+	 * @param chain		the certificate chain, the agent certificate first
+	 * @return	the identity
+	 * @throws IdentityRegistryException if the key or chain is invalid
+	 */
+	public AgentIdentity register(String idKey, String deviceID, String fogID, PrivateKey key, Certificate[] chain) throws IdentityRegistryException {
+		PrivateKeyEntry entry;
+		try {
+			entry = new PrivateKeyEntry(key, chain);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw new IdentityRegistryException("Invalid key entry for " + idKey + ": " + e.getMessage(), e);
+		}
+		AgentIdentity identity = new AgentIdentity(idKey, deviceID, fogID, entry);
+		Shard shard = shardFor(idKey);
+		synchronized(shard) {
+			AgentIdentity previous = this.byIdKey.get(idKey);
+			StoreSnapshot current = shard.snapshot;
+			if(previous != null) {
+				current = current.without(alias(previous));
+			}
+			shard.snapshot = current.with(alias(identity), entry);
+			this.byIdKey.put(idKey, identity);
+			unindex(previous);
+			index(identity);
+		}
+		this.persister.markDirty(shard.name);
+		return identity;
+	}
+
+	/**
+	 * Remove an identity.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	the identity removed, or null if there was none
+	 */
+	public AgentIdentity remove(String idKey) {
+		Shard shard = shardFor(idKey);
+		AgentIdentity previous;
+		synchronized(shard) {
+			previous = this.byIdKey.remove(idKey);
+			if(previous == null) {
+				return null;
+			}
+			shard.snapshot = shard.snapshot.without(alias(previous));
+			unindex(previous);
+		}
+		this.persister.markDirty(shard.name);
+		return previous;
+	}
+
+	/**
+	 * Get an identity by id key.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	the identity, or null
+	 */
+	public AgentIdentity getByIdKey(String idKey) {
+		return this.byIdKey.get(idKey);
+	}
+
+	/**
+	 * Get an identity by device ID.
+	 * <p>
+	 * @param deviceID	the agent device ID
+	 * @return	the identity, or null
+	 */
+	public AgentIdentity getByDeviceID(String deviceID) {
+		return this.byDeviceID.get(deviceID);
+	}
+
+	/**
+	 * Get the identities registered with a fog.
+	 * <p>
+	 * @param fogID	the fog ID
+	 * @return	an unmodifiable live view of the identities, empty if there are none
+	 */
+	public Collection<AgentIdentity> getByFogID(String fogID) {
+		Map<String, AgentIdentity> m = this.byFogID.get(fogID);
+		return m == null ? Collections.<AgentIdentity>emptyList() : Collections.unmodifiableCollection(m.values());
+	}
+
+	/**
+	 * Get all the identities.
+	 * <p>
+	 * @return	an unmodifiable live view of the identities
+	 */
+	public Collection<AgentIdentity> getIdentities() {
+		return Collections.unmodifiableCollection(this.byIdKey.values());
+	}
+
+	/**
+	 * Get the number of identities.
+	 * <p>
+	 * @return	the identity count
+	 */
+	public int size() {
+		return this.byIdKey.size();
+	}
+
+	/**
+	 * Get the number of shards.
+	 * <p>
+	 * @return	the shard count
+	 */
+	public int getShardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Get the number of identities in a shard.
+	 * <p>
+	 * @param shard	the shard index
+	 * @return	the identity count
+	 */
+	public int getShardSize(int shard) {
+		return this.shards[shard].snapshot.size();
+	}
+
+	/**
+	 * Get the file a shard is persisted to.
+	 * <p>
+	 * @param shard	the shard index
+	 * @return	the file
+	 */
+	public Path getShardPath(int shard) {
+		return this.shards[shard].path;
+	}
+
+	/**
+	 * Write every shard with unwritten changes now.
+	 * <p>
+	 * @throws IdentityRegistryException on error writing a shard
+	 */
+	public void flush() throws IdentityRegistryException {
+		try {
+			this.persister.flush();
+		} catch (KeyStorePersisterException e) {
+			throw new IdentityRegistryException("Error writing the identities: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		int max = 0;
+		for(Shard s : this.shards) {
+			max = Math.max(max, s.snapshot.size());
+		}
+		return "identities=" + this.byIdKey.size() + ", shards=" + this.shards.length + ", largest shard=" + max
+			+ ", dir=" + this.dir;
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Load the shard files, moving any identity held in the wrong shard, e.g. after
+	 * the number of shards has changed, and register the shards with the persister.
+	 * <p>
+	 * @throws IOException on error reading a file
+	 * @throws GeneralSecurityException on error reading an entry
+	 */
+	private void load() throws IOException, GeneralSecurityException {
+		List<StoreSnapshot> loaded = new ArrayList<StoreSnapshot>();
+		List<Path> stale = new ArrayList<Path>();
+		StoreSnapshot[] original = new StoreSnapshot[this.shards.length];
+		boolean[] moved = new boolean[this.shards.length];
+		for(int i = 0; i < this.shards.length; i++) {
+			this.shards[i] = new Shard(SHARD_PREFIX + i, this.dir.resolve(SHARD_PREFIX + i + SHARD_SUFFIX), StoreSnapshot.empty(this.password));
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir, SHARD_PREFIX + "*" + SHARD_SUFFIX)) {
+			for(Path file : files) {
+				KeyStore ks = KeyStore.getInstance("JKS");
+				try (InputStream in = Files.newInputStream(file)) {
+					ks.load(in, this.password);
+				}
+				StoreSnapshot snapshot = StoreSnapshot.of(1L, ks, this.password);
+				int index = shardIndex(file);
+				if(index >= 0 && index < this.shards.length) {
+					this.shards[index].snapshot = snapshot;
+					original[index] = snapshot;
+				} else {
+					stale.add(file);
+				}
+				loaded.add(snapshot);
+			}
+		}
+		for(StoreSnapshot snapshot : loaded) {
+			for(String alias : snapshot.aliases()) {
+				AgentIdentity identity = fromAlias(alias, snapshot.getEntry(alias));
+				if(identity == null) {
+					LOGGER.warn("Ignoring the unrecognised identity entry " + alias);
+					continue;
+				}
+				int target = Math.floorMod(identity.getIdKey().hashCode(), this.shards.length);
+				Shard shard = this.shards[target];
+				if(original[target] != snapshot) {
+					shard.snapshot = shard.snapshot.with(alias, identity.getKeyEntry());
+					moved[target] = true;
+				}
+				this.byIdKey.put(identity.getIdKey(), identity);
+				index(identity);
+			}
+		}
+		for(int i = 0; i < this.shards.length; i++) {
+			Shard shard = this.shards[i];
+			//drop the entries moved to another shard
+			for(String alias : shard.snapshot.aliases().toArray(new String[0])) {
+				AgentIdentity identity = fromAlias(alias, shard.snapshot.getEntry(alias));
+				if(identity != null && Math.floorMod(identity.getIdKey().hashCode(), this.shards.length) != i) {
+					shard.snapshot = shard.snapshot.without(alias);
+					moved[i] = true;
+				}
+			}
+			this.persister.register(shard.name, () -> shard.snapshot.getKeyStore(), shard.path, this.password);
+			if(moved[i]) {
+				this.persister.markDirty(shard.name);
+			}
+		}
+		if(!stale.isEmpty()) {
+			//the identities are in the current shards once these are written
+			try {
+				this.persister.flush();
+			} catch (KeyStorePersisterException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			for(Path file : stale) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Get the shard of an id key.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	the shard
+	 */
+	private Shard shardFor(String idKey) {
+		return this.shards[Math.floorMod(idKey.hashCode(), this.shards.length)];
+	}
+
+	/**
+	 * Add an identity to the device and fog indexes.
+	 * <p>
+	 * @param identity	the identity
+	 */
+	private void index(AgentIdentity identity) {
+		if(identity.getDeviceID() != null) {
+			this.byDeviceID.put(identity.getDeviceID(), identity);
+		}
+		if(identity.getFogID() != null) {
+			this.byFogID.computeIfAbsent(identity.getFogID(), k -> new ConcurrentHashMap<String, AgentIdentity>())
+				.put(identity.getIdKey(), identity);
+		}
+	}
+
+	/**
+	 * Remove an identity from the device and fog indexes.
+	 * <p>
+	 * @param identity	the identity, or null
+	 */
+	private void unindex(AgentIdentity identity) {
+		if(identity == null) {
+			return;
+		}
+		if(identity.getDeviceID() != null) {
+			this.byDeviceID.remove(identity.getDeviceID(), identity);
+		}
+		if(identity.getFogID() != null) {
+			Map<String, AgentIdentity> m = this.byFogID.get(identity.getFogID());
+			if(m != null) {
+				m.remove(identity.getIdKey(), identity);
+			}
+		}
+	}
+
+	/**
+	 * Get the shard index from a shard file name.
+	 * <p>
+	 * @param file	the file
+	 * @return	the index, or -1 if the name is not a shard file name
+	 */
+	private static int shardIndex(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(SHARD_PREFIX.length(), name.length() - SHARD_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the alias of an identity: the hex encoded id key, device ID and fog ID.
+	 * <p>
+	 * @param identity	the identity
+	 * @return	the alias
+	 */
+	private static String alias(AgentIdentity identity) {
+		return hex(identity.getIdKey()) + "." + hex(identity.getDeviceID()) + "." + hex(identity.getFogID());
+	}
+
+	/**
+	 * Rebuild an identity from its alias and key entry.
+	 * <p>
+	 * @param alias	the alias
+	 * @param entry	the key entry
+	 * @return	the identity, or null if the alias or entry is not an identity
+	 */
+	private static AgentIdentity fromAlias(String alias, KeyStore.Entry entry) {
+		String[] parts = alias.split("\\.", -1);
+		if(parts.length != 3 || parts[0].isEmpty() || !(entry instanceof PrivateKeyEntry)) {
+			return null;
+		}
+		try {
+			return new AgentIdentity(unhex(parts[0]), unhex(parts[1]), unhex(parts[2]), (PrivateKeyEntry) entry);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Hex encode a string.
+	 * <p>
+	 * @param s	the string, or null
+	 * @return	the lower case hex of its UTF-8 encoding, empty for null
+	 */
+	private static String hex(String s) {
+		return s == null ? "" : Utils.toHex(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decode a hex encoded string.
+	 * <p>
+	 * @param hex	the hex
+	 * @return	the string, null if the hex is empty
+	 * @throws IllegalArgumentException if the hex is malformed
+	 */
+	private static String unhex(String hex) {
+		if(hex.isEmpty()) {
+			return null;
+		}
+		if((hex.length() & 1) != 0) {
+			throw new IllegalArgumentException("odd hex length");
+		}
+		byte[] b = new byte[hex.length() / 2];
+		for(int i = 0; i < b.length; i++) {
+			int hi = Character.digit(hex.charAt(2 * i), 16);
+			int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+			if(hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("not hex");
+			}
+			b[i] = (byte) (hi << 4 | lo);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
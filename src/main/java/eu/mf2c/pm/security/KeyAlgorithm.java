@@ -0,0 +1,417 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.RSAPrivateKey;
+import org.bouncycastle.asn1.sec.ECPrivateKey;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.io.pem.PemObject;
+
+/**
+ * The key algorithms supported for the agent identity.  Each algorithm knows how to
+ * generate a keypair, sign a CSR and encode its private key as PEM.
+ * <p>
+ * Ed25519 requires a Java runtime which provides the algorithm (Java 15 onwards).
+ */
+public enum KeyAlgorithm {
+	/** RSA with a 2048 bit modulus, the IT1 default */
+	RSA_2048("RSA", "SHA256withRSA", "RSA PRIVATE KEY"),
+	/** ECDSA on the NIST P&#45;256 curve */
+	EC_P256("EC", "SHA256withECDSA", "EC PRIVATE KEY"),
+	/** EdDSA on Curve25519 */
+	ED25519("Ed25519", "Ed25519", "PRIVATE KEY");
+
+	/** OID of the Ed25519 signature algorithm, RFC 8410 */
+	private static final ASN1ObjectIdentifier ED25519_OID = new ASN1ObjectIdentifier("1.3.101.112");
+	/** JCA key algorithm name */
+	private final String keyAlgorithm;
+	/** JCA signature algorithm name */
+	private final String signatureAlgorithm;
+	/** PEM type of the private key file */
+	private final String pemType;
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param keyAlgorithm			the JCA key algorithm name
+	 * @param signatureAlgorithm	the JCA signature algorithm name
+	 * @param pemType				the PEM type of the private key file
+	 */
+	private KeyAlgorithm(String keyAlgorithm, String signatureAlgorithm, String pemType) {
+		this.keyAlgorithm = keyAlgorithm;
+		this.signatureAlgorithm = signatureAlgorithm;
+		this.pemType = pemType;
+	}
+
+	/**
+	 * Getter for the JCA signature algorithm name.
+	 * <p>
+	 * @return the signature algorithm name, e.g. SHA256withRSA
+	 */
+	public String getSignatureAlgorithm() {
+		return this.signatureAlgorithm;
+	}
+
+	/**
+	 * Getter for the PEM type of the private key file.
+	 * <p>
+	 * @return the PEM type, e.g. RSA PRIVATE KEY
+	 */
+	public String getPemType() {
+		return this.pemType;
+	}
+
+	/**
+	 * Generate a keypair.
+	 * <p>
+	 * @param random	the source of randomness
+	 * @return	the generated keypair
+	 * @throws GeneralSecurityException if the algorithm is not supported by the runtime
+	 */
+	public KeyPair generateKeyPair(SecureRandom random) throws GeneralSecurityException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance(this.keyAlgorithm);
+		switch(this) {
+			case RSA_2048:
+				keyGen.initialize(2048, random);
+				break;
+			case EC_P256:
+				keyGen.initialize(new ECGenParameterSpec("secp256r1"), random);
+				break;
+			default:
+				//Ed25519 has a fixed key size
+				break;
+		}
+		return keyGen.generateKeyPair();
+	}
+
+	/**
+	 * Create a signer for CSRs and certificates.
+	 * <p>
+	 * @param key	the private key to sign with
+	 * @return	the content signer
+	 * @throws OperatorCreationException on error
+	 */
+	public ContentSigner createSigner(PrivateKey key) throws OperatorCreationException {
+		if(this == ED25519) {
+			//not known to the bundled bouncy castle release, use the JCA provider directly
+			return new Ed25519ContentSigner(key);
+		}
+		return new JcaContentSignerBuilder(this.signatureAlgorithm).build(key);
+	}
+
+	/**
+	 * Encode the private key of a keypair as PEM.  RSA keys are written in PKCS&#35;1
+	 * format, EC keys in SEC1 format including the curve and the public key, and
+	 * Ed25519 keys in PKCS&#35;8 format.
+	 * <p>
+	 * @param kp	the keypair
+	 * @return	the PEM object
+	 * @throws IOException on encoding errors
+	 */
+	public PemObject toPem(KeyPair kp) throws IOException {
+		PrivateKeyInfo pki = PrivateKeyInfo.getInstance(kp.getPrivate().getEncoded());
+		switch(this) {
+			case RSA_2048:
+				return new PemObject(this.pemType, RSAPrivateKey.getInstance(pki.parsePrivateKey()).getEncoded());
+			case EC_P256:
+				ECPrivateKey ecKey = ECPrivateKey.getInstance(pki.parsePrivateKey());
+				DERBitString pub = SubjectPublicKeyInfo.getInstance(kp.getPublic().getEncoded()).getPublicKeyData();
+				return new PemObject(this.pemType, new ECPrivateKey(256, ecKey.getKey(), pub,
+						pki.getPrivateKeyAlgorithm().getParameters()).getEncoded());
+			default:
+				return new PemObject(this.pemType, kp.getPrivate().getEncoded());
+		}
+	}
+
+	/**
+	 * Decode a private key PEM, the reverse of {@link #toPem(KeyPair)}.  PKCS&#35;1 RSA,
+	 * SEC1 EC and PKCS&#35;8 RSA, EC or Ed25519 keys are accepted, as is a PKCS&#35;8 key
+	 * under the RSA PRIVATE KEY label, which is how earlier releases wrote server.key.  The public key is
+	 * derived from the private key encoding where possible, i.e. for RSA keys and EC keys
+	 * which include it, else the public key provided is used.
+	 * <p>
+	 * @param pem		the PEM object
+	 * @param publicKey	the public key to use if the encoding does not include it, e.g.
+	 * 					from the matching certificate, or null
+	 * @return	the keypair
+	 * @throws GeneralSecurityException if the key is malformed or not supported, or there
+	 * 					is no public key
+	 */
+	public static KeyPair fromPem(PemObject pem, PublicKey publicKey) throws GeneralSecurityException {
+		try {
+			switch(pem.getType()) {
+				case "RSA PRIVATE KEY":
+					RSAPrivateKey rsaKey;
+					try {
+						rsaKey = RSAPrivateKey.getInstance(pem.getContent());
+					} catch (RuntimeException e) {
+						//earlier releases wrote the PKCS#8 encoding under this label
+						return pkcs8KeyPair(pem.getContent(), publicKey);
+					}
+					return rsaKeyPair(rsaKey);
+				case "EC PRIVATE KEY":
+					return ecKeyPair(ECPrivateKey.getInstance(pem.getContent()), null, publicKey);
+				case "PRIVATE KEY":
+					return pkcs8KeyPair(pem.getContent(), publicKey);
+				default:
+					throw new InvalidKeyException("Not a private key PEM: " + pem.getType());
+			}
+		} catch (IOException | RuntimeException e) {
+			//the bouncy castle ASN.1 classes report malformed input with runtime exceptions
+			throw new InvalidKeyException("Malformed " + pem.getType() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Check the public and private keys of a keypair belong together by signing and
+	 * verifying a probe message.
+	 * <p>
+	 * @param kp	the keypair
+	 * @return	true if the keys match
+	 * @throws GeneralSecurityException if the keys are not usable with this algorithm
+	 */
+	public boolean matches(KeyPair kp) throws GeneralSecurityException {
+		byte[] probe = "mF2C agent key check".getBytes(StandardCharsets.US_ASCII);
+		Signature signer = Signature.getInstance(this.signatureAlgorithm);
+		signer.initSign(kp.getPrivate());
+		signer.update(probe);
+		byte[] sig = signer.sign();
+		Signature verifier = Signature.getInstance(this.signatureAlgorithm);
+		verifier.initVerify(kp.getPublic());
+		verifier.update(probe);
+		return verifier.verify(sig);
+	}
+
+	/**
+	 * Get the algorithm of a key.
+	 * <p>
+	 * @param key	a public or private key
+	 * @return	the matching algorithm
+	 * @throws NoSuchAlgorithmException if the key algorithm is not supported
+	 */
+	public static KeyAlgorithm forKey(Key key) throws NoSuchAlgorithmException {
+		String alg = key.getAlgorithm();
+		if("RSA".equalsIgnoreCase(alg)) {
+			return RSA_2048;
+		}
+		if("EC".equalsIgnoreCase(alg) || "ECDSA".equalsIgnoreCase(alg)) {
+			return EC_P256;
+		}
+		if("Ed25519".equalsIgnoreCase(alg) || "EdDSA".equalsIgnoreCase(alg)) {
+			return ED25519;
+		}
+		throw new NoSuchAlgorithmException("Unsupported key algorithm: " + alg);
+	}
+
+	/**
+	 * Get the algorithm from its name.  Accepts the constant names and the
+	 * common aliases, e.g. RSA, EC, P&#45;256, ECDSA, Ed25519.
+	 * <p>
+	 * @param name	the algorithm name
+	 * @return	the matching algorithm
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static KeyAlgorithm fromName(String name) {
+		String n = name.trim().toUpperCase().replace('-', '_');
+		switch(n) {
+			case "RSA":
+			case "RSA_2048":
+			case "RSA2048":
+				return RSA_2048;
+			case "EC":
+			case "ECDSA":
+			case "P_256":
+			case "P256":
+			case "SECP256R1":
+			case "EC_P256":
+				return EC_P256;
+			case "ED25519":
+			case "EDDSA":
+				return ED25519;
+			default:
+				throw new IllegalArgumentException("Unknown key algorithm: " + name);
+		}
+	}
+
+	/**
+	 * Build a keypair from a PKCS&#35;8 RSA, EC or Ed25519 private key.
+	 * <p>
+	 * @param encoded	the PKCS&#35;8 encoding
+	 * @param publicKey	the public key to use if the key does not include it, or null
+	 * @return	the keypair
+	 * @throws GeneralSecurityException if the key is not supported or there is no public key
+	 * @throws IOException on encoding errors
+	 */
+	private static KeyPair pkcs8KeyPair(byte[] encoded, PublicKey publicKey) throws GeneralSecurityException, IOException {
+		PrivateKeyInfo pki = PrivateKeyInfo.getInstance(encoded);
+		ASN1ObjectIdentifier oid = pki.getPrivateKeyAlgorithm().getAlgorithm();
+		if(PKCSObjectIdentifiers.rsaEncryption.equals(oid)) {
+			return rsaKeyPair(RSAPrivateKey.getInstance(pki.parsePrivateKey()));
+		}
+		if(X9ObjectIdentifiers.id_ecPublicKey.equals(oid)) {
+			return ecKeyPair(ECPrivateKey.getInstance(pki.parsePrivateKey()), pki.getPrivateKeyAlgorithm().getParameters(), publicKey);
+		}
+		if(ED25519_OID.equals(oid)) {
+			PrivateKey key = KeyFactory.getInstance("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+			return keyPair(publicKey, key);
+		}
+		throw new NoSuchAlgorithmException("Unsupported private key algorithm: " + oid);
+	}
+
+	/**
+	 * Build an RSA keypair from a PKCS&#35;1 private key, which includes the public
+	 * exponent.
+	 * <p>
+	 * @param key	the private key
+	 * @return	the keypair
+	 * @throws GeneralSecurityException on error
+	 */
+	private static KeyPair rsaKeyPair(RSAPrivateKey key) throws GeneralSecurityException {
+		KeyFactory kf = KeyFactory.getInstance("RSA");
+		PublicKey pub = kf.generatePublic(new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+		PrivateKey priv = kf.generatePrivate(new RSAPrivateCrtKeySpec(key.getModulus(), key.getPublicExponent(),
+				key.getPrivateExponent(), key.getPrime1(), key.getPrime2(), key.getExponent1(), key.getExponent2(),
+				key.getCoefficient()));
+		return new KeyPair(pub, priv);
+	}
+
+	/**
+	 * Build an EC keypair from a SEC1 private key.
+	 * <p>
+	 * @param key		the private key
+	 * @param params	the curve from the PKCS&#35;8 algorithm identifier, or null to use the
+	 * 					curve in the key
+	 * @param publicKey	the public key to use if the key does not include it, or null
+	 * @return	the keypair
+	 * @throws GeneralSecurityException on error
+	 * @throws IOException on encoding errors
+	 */
+	private static KeyPair ecKeyPair(ECPrivateKey key, ASN1Encodable params, PublicKey publicKey) throws GeneralSecurityException, IOException {
+		if(params == null) {
+			params = key.getParameters();
+			if(params == null) {
+				throw new InvalidKeyException("EC private key without a curve");
+			}
+		}
+		AlgorithmIdentifier algId = new AlgorithmIdentifier(X9ObjectIdentifiers.id_ecPublicKey, params);
+		KeyFactory kf = KeyFactory.getInstance("EC");
+		PrivateKey priv = kf.generatePrivate(new PKCS8EncodedKeySpec(new PrivateKeyInfo(algId, key).getEncoded()));
+		byte[] point = null;
+		if(key.getPublicKey() != null) {
+			point = key.getPublicKey().getBytes();
+		} else if(params instanceof ASN1ObjectIdentifier && ECNamedCurveTable.getByOID((ASN1ObjectIdentifier) params) != null) {
+			//not included, e.g. in a PKCS#8 key written by the JCA provider: derive it from the private value
+			point = ECNamedCurveTable.getByOID((ASN1ObjectIdentifier) params).getG().multiply(key.getKey()).normalize().getEncoded(false);
+		}
+		if(point != null) {
+			publicKey = kf.generatePublic(new X509EncodedKeySpec(new SubjectPublicKeyInfo(algId, point).getEncoded()));
+		}
+		return keyPair(publicKey, priv);
+	}
+
+	/**
+	 * Pair a private key with a public key obtained elsewhere.
+	 * <p>
+	 * @param publicKey		the public key, or null
+	 * @param privateKey	the private key
+	 * @return	the keypair
+	 * @throws InvalidKeyException if there is no public key
+	 */
+	private static KeyPair keyPair(PublicKey publicKey, PrivateKey privateKey) throws InvalidKeyException {
+		if(publicKey == null) {
+			throw new InvalidKeyException("The " + privateKey.getAlgorithm() + " private key does not include the public key");
+		}
+		return new KeyPair(publicKey, privateKey);
+	}
+
+	/**
+	 * Content signer using the JCA Ed25519 signature.
+	 */
+	private static class Ed25519ContentSigner implements ContentSigner {
+		/** the signature object */
+		private final Signature signature;
+		/** buffered content to sign */
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param key the Ed25519 private key
+		 * @throws OperatorCreationException if the runtime does not support Ed25519
+		 */
+		Ed25519ContentSigner(PrivateKey key) throws OperatorCreationException {
+			try {
+				this.signature = Signature.getInstance("Ed25519");
+				this.signature.initSign(key);
+			} catch (GeneralSecurityException e) {
+				throw new OperatorCreationException("Ed25519 not available: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public AlgorithmIdentifier getAlgorithmIdentifier() {
+			return new AlgorithmIdentifier(ED25519_OID);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.content;
+		}
+
+		@Override
+		public byte[] getSignature() {
+			try {
+				this.signature.update(this.content.toByteArray());
+				return this.signature.sign();
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeOperatorException("Error signing with Ed25519: " + e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of pre&#45;generated keypairs.  Background threads keep the pool
+ * topped up to its depth whenever the number of ready keypairs drops to the
+ * refill watermark, so that taking a keypair is normally just a queue poll.
+ * A keypair is only generated on the calling thread if the pool is empty
+ * and no background generation is in progress.
+ */
+public class KeyPairPool {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(KeyPairPool.class);
+	/** default number of keypairs held */
+	public static final int DEFAULT_DEPTH = 2;
+	/** default number of ready keypairs which triggers a refill */
+	public static final int DEFAULT_LOW_WATERMARK = 1;
+	/** default number of refill threads */
+	public static final int DEFAULT_THREADS = 1;
+	/** the keypairs ready for use */
+	private final ArrayBlockingQueue<KeyPair> ready;
+	/** generates the keypairs */
+	private final KeyPairSource source;
+	/** maximum number of keypairs held */
+	private final int depth;
+	/** number of ready keypairs which triggers a refill */
+	private final int lowWatermark;
+	/** background refill threads */
+	private final ThreadPoolExecutor refillers;
+	/** number of keypairs being generated in the background */
+	private final AtomicInteger pending = new AtomicInteger();
+	/** number of keypairs taken from the pool */
+	private final LongAdder hits = new LongAdder();
+	/** number of keypairs generated inline because the pool was empty */
+	private final LongAdder misses = new LongAdder();
+	/** number of keypairs generated in the background */
+	private final AtomicLong refills = new AtomicLong();
+	/** total time spent on background generation in nanoseconds */
+	private final AtomicLong refillNanos = new AtomicLong();
+	/** time taken by the last background generation in nanoseconds */
+	private volatile long lastRefillNanos = 0L;
+
+	/**
+	 * Generates a single keypair.
+	 */
+	public interface KeyPairSource {
+		/**
+		 * Generate a keypair.
+		 * <p>
+		 * @return the generated keypair
+		 * @throws GeneralSecurityException on error
+		 */
+		public KeyPair generate() throws GeneralSecurityException;
+	}
+
+	/**
+	 * Construct an instance.  The pool is empty until {@link #start()} is called.
+	 * <p>
+	 * @param source		the keypair generator
+	 * @param depth			the maximum number of keypairs held
+	 * @param lowWatermark	the number of ready keypairs which triggers a refill
+	 * @param threads		the number of background generation threads
+	 */
+	public KeyPairPool(KeyPairSource source, int depth, int lowWatermark, int threads) {
+		this.source = source;
+		this.depth = Math.max(1, depth);
+		this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.depth - 1));
+		this.ready = new ArrayBlockingQueue<KeyPair>(this.depth);
+		this.refillers = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 30L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "keypair-refill");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				});
+		this.refillers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Start filling the pool in the background.
+	 */
+	public void start() {
+		LOGGER.debug("Starting keypair pool, depth " + depth + ", refill watermark " + lowWatermark);
+		refill(true);
+	}
+
+	/**
+	 * Take a keypair.  A ready keypair is returned if available.  If a keypair
+	 * is already being generated in the background we wait for it, as it is
+	 * never further from completion than a new one.  Otherwise a keypair is
+	 * generated on the calling thread.
+	 * <p>
+	 * @return a keypair which has not been handed out before
+	 * @throws GeneralSecurityException on error generating a keypair
+	 */
+	public KeyPair take() throws GeneralSecurityException {
+		KeyPair kp = this.ready.poll();
+		try {
+			while(kp == null && this.pending.get() > 0) {
+				kp = this.ready.poll(20, TimeUnit.MILLISECONDS);
+			}
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(kp != null) {
+			this.hits.increment();
+		}else {
+			this.misses.increment();
+			LOGGER.debug("Keypair pool empty, generating keypair inline....");
+			kp = this.source.generate();
+		}
+		refill(false);
+		return kp;
+	}
+
+	/**
+	 * Discard the ready keypairs, e.g. after the generator settings have changed.
+	 * Keypairs being generated in the background are still added to the pool.
+	 */
+	public void clear() {
+		this.ready.clear();
+	}
+
+	/**
+	 * Stop the background generation.
+	 */
+	public void shutdown() {
+		this.refillers.shutdownNow();
+	}
+
+	/**
+	 * Schedule background generation if the pool is at or below the refill
+	 * watermark, or always if forced.
+	 * <p>
+	 * @param force	fill the pool up to its depth regardless of the watermark
+	 */
+	private void refill(boolean force) {
+		if(!force && this.ready.size() > this.lowWatermark) {
+			return;
+		}
+		while(true) {
+			int inFlight = this.pending.get();
+			if(this.ready.size() + inFlight >= this.depth) {
+				return;
+			}
+			if(!this.pending.compareAndSet(inFlight, inFlight + 1)) {
+				continue;
+			}
+			try {
+				this.refillers.execute(this::generateOne);
+			}catch(RejectedExecutionException e) {
+				//pool has been shut down
+				this.pending.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Generate one keypair in the background and add it to the pool.
+	 */
+	private void generateOne() {
+		long start = System.nanoTime();
+		try {
+			KeyPair kp = this.source.generate();
+			long elapsed = System.nanoTime() - start;
+			this.lastRefillNanos = elapsed;
+			this.refillNanos.addAndGet(elapsed);
+			this.refills.incrementAndGet();
+			this.ready.offer(kp);
+		}catch(GeneralSecurityException e) {
+			LOGGER.error("Error generating keypair in the background: " + e.getMessage());
+		}finally {
+			this.pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of keypairs ready for use.
+	 * <p>
+	 * @return the number of ready keypairs
+	 */
+	public int getSize() {
+		return this.ready.size();
+	}
+
+	/**
+	 * Get the number of requests served from the pool.
+	 * <p>
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Get the number of requests which found the pool empty.
+	 * <p>
+	 * @return the miss count
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Get the number of keypairs generated in the background.
+	 * <p>
+	 * @return the refill count
+	 */
+	public long getRefills() {
+		return this.refills.get();
+	}
+
+	/**
+	 * Get the time taken by the last background generation.
+	 * <p>
+	 * @return the latency in milliseconds
+	 */
+	public double getLastRefillMillis() {
+		return this.lastRefillNanos / 1e6;
+	}
+
+	/**
+	 * Get the average time taken by a background generation.
+	 * <p>
+	 * @return the average latency in milliseconds, 0 if nothing has been generated
+	 */
+	public double getAverageRefillMillis() {
+		long n = this.refills.get();
+		return n == 0 ? 0 : this.refillNanos.get() / 1e6 / n;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return String.format("KeyPairPool[size=%d, hits=%d, misses=%d, refills=%d, lastRefill=%.1fms, avgRefill=%.1fms]",
+				getSize(), getHits(), getMisses(), getRefills(), getLastRefillMillis(), getAverageRefillMillis());
+	}
+}
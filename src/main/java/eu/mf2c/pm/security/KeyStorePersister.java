@@ -0,0 +1,425 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.KeyStorePersisterException;
+
+/**
+ * Write&#45;behind persistence for the JKS key and trust stores.  Changes are
+ * marked with {@link #markDirty(String) <em>markDirty</em>} and coalesced: a store is
+ * written once no further change has been made for the debounce interval, but never
+ * later than the maximum staleness after its first unwritten change, however often it
+ * keeps changing.
+ * <p>
+ * A store is serialised in memory, written to a temporary file in the same directory,
+ * forced to disk and then renamed over the target, so a crash leaves either the old or
+ * the new file and never a partial one.  Write counts, latencies and bytes written are
+ * kept for monitoring.
+ */
+public class KeyStorePersister {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(KeyStorePersister.class);
+	/** default debounce interval in milliseconds */
+	public static final int DEFAULT_DEBOUNCE = 500;
+	/** default maximum staleness in milliseconds */
+	public static final int DEFAULT_MAX_STALENESS = 5000;
+	/** suffix of the temporary files */
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** runs the delayed writes */
+	private final ScheduledExecutorService timer;
+	/** the stores by name, guarded by this */
+	private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+	/** debounce interval in nanoseconds */
+	private final long debounceNanos;
+	/** maximum staleness in nanoseconds */
+	private final long maxStalenessNanos;
+	/** serialises the writes */
+	private final Object writeLock = new Object();
+	/** the scheduled write, null if none, guarded by this */
+	private ScheduledFuture<?> pending;
+	/** time of the first unwritten change, guarded by this */
+	private long firstDirty;
+	/** time of the last unwritten change, guarded by this */
+	private long lastDirty;
+	/** number of store files written */
+	private final LongAdder writes = new LongAdder();
+	/** number of changes absorbed by a later write */
+	private final LongAdder coalesced = new LongAdder();
+	/** number of failed writes */
+	private final LongAdder failures = new LongAdder();
+	/** bytes written */
+	private final LongAdder bytes = new LongAdder();
+	/** time spent writing in nanoseconds */
+	private final LongAdder writeNanos = new LongAdder();
+	/** longest write in nanoseconds */
+	private final AtomicLong maxWriteNanos = new AtomicLong();
+
+	/**
+	 * Supplies the current content of a store when it is written.
+	 */
+	public interface Source {
+		/**
+		 * Get the store to write.
+		 * @return	the store
+		 * @throws GeneralSecurityException on error
+		 */
+		KeyStore get() throws GeneralSecurityException;
+	}
+
+	/**
+	 * A persisted store.
+	 */
+	private static class Target {
+		/** supplies the store */
+		final Source store;
+		/** the file */
+		final Path path;
+		/** the store password */
+		final char[] password;
+		/** true if the store has unwritten changes, guarded by the persister */
+		boolean dirty;
+
+		/**
+		 * Constructor
+		 * @param store		the store
+		 * @param path		the file
+		 * @param password	the store password
+		 */
+		Target(Source store, Path path, char[] password) {
+			this.store = store;
+			this.path = path;
+			this.password = password;
+		}
+	}
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param debounceMillis		quiet period after a change before the stores are written
+	 * @param maxStalenessMillis	longest time a change may remain unwritten while further
+	 * 								changes keep arriving
+	 */
+	public KeyStorePersister(long debounceMillis, long maxStalenessMillis) {
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+		this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxStalenessMillis));
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "keystore-persister");
+			t.setDaemon(true);
+			return t;
+		});
+		stpe.setRemoveOnCancelPolicy(true);
+		this.timer = stpe;
+	}
+
+	/**
+	 * Register a store, replacing any store registered with the same name.
+	 * <p>
+	 * @param name		the store name
+	 * @param store		the store
+	 * @param path		the file the store is written to
+	 * @param password	the store password
+	 */
+	public void register(String name, KeyStore store, Path path, char[] password) {
+		register(name, () -> store, path, password);
+	}
+
+	/**
+	 * Register a store whose content is obtained when it is written, replacing any
+	 * store registered with the same name.
+	 * <p>
+	 * @param name		the store name
+	 * @param source	supplies the current content of the store
+	 * @param path		the file the store is written to
+	 * @param password	the store password
+	 */
+	public synchronized void register(String name, Source source, Path path, char[] password) {
+		this.targets.put(name, new Target(source, path, password.clone()));
+	}
+
+	/**
+	 * Record that a store has changed and schedule a write.
+	 * <p>
+	 * @param name	the store name
+	 */
+	public synchronized void markDirty(String name) {
+		Target target = this.targets.get(name);
+		if(target == null) {
+			LOGGER.warn("No store registered as " + name + ", change not persisted.");
+			return;
+		}
+		long now = System.nanoTime();
+		if(target.dirty || this.pending != null) {
+			this.coalesced.increment();
+		}
+		target.dirty = true;
+		this.lastDirty = now;
+		if(this.pending == null) {
+			this.firstDirty = now;
+			schedule(this.debounceNanos);
+		}
+	}
+
+	/**
+	 * Write every store with unwritten changes now.
+	 * <p>
+	 * @throws KeyStorePersisterException on error writing a store; the store stays dirty
+	 * 					and is retried on the next write
+	 */
+	public void flush() throws KeyStorePersisterException {
+		synchronized(this.writeLock) {
+			Map<String, Target> dirty = new LinkedHashMap<String, Target>();
+			synchronized(this) {
+				for(Map.Entry<String, Target> e : this.targets.entrySet()) {
+					if(e.getValue().dirty) {
+						//cleared before writing so a change made during the write marks it again
+						e.getValue().dirty = false;
+						dirty.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			KeyStorePersisterException error = null;
+			for(Map.Entry<String, Target> e : dirty.entrySet()) {
+				try {
+					write(e.getValue());
+				} catch (IOException | GeneralSecurityException ex) {
+					this.failures.increment();
+					LOGGER.error("Error writing store " + e.getKey() + " to " + e.getValue().path + ": " + ex.getMessage());
+					synchronized(this) {
+						e.getValue().dirty = true;
+					}
+					if(error == null) {
+						error = new KeyStorePersisterException("Error writing store " + e.getKey() + " to " + e.getValue().path + ": " + ex.getMessage(), ex);
+					}
+				}
+			}
+			if(error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Write any unwritten changes and stop the background writes.
+	 * <p>
+	 * @throws KeyStorePersisterException on error writing a store
+	 */
+	public void close() throws KeyStorePersisterException {
+		synchronized(this) {
+			if(this.pending != null) {
+				this.pending.cancel(false);
+				this.pending = null;
+			}
+		}
+		this.timer.shutdown();
+		flush();
+	}
+
+	/**
+	 * Check if any store has unwritten changes.
+	 * <p>
+	 * @return true if a write is outstanding
+	 */
+	public synchronized boolean isDirty() {
+		for(Target t : this.targets.values()) {
+			if(t.dirty) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of store files written.
+	 * <p>
+	 * @return the write count
+	 */
+	public long getWriteCount() {
+		return this.writes.sum();
+	}
+
+	/**
+	 * Get the number of changes absorbed by a later write.
+	 * <p>
+	 * @return the coalesced change count
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.sum();
+	}
+
+	/**
+	 * Get the number of failed writes.
+	 * <p>
+	 * @return the failure count
+	 */
+	public long getFailureCount() {
+		return this.failures.sum();
+	}
+
+	/**
+	 * Get the number of bytes written.
+	 * <p>
+	 * @return the byte count
+	 */
+	public long getBytesWritten() {
+		return this.bytes.sum();
+	}
+
+	/**
+	 * Get the average time to write a store, including the fsync and rename.
+	 * <p>
+	 * @return the average in milliseconds, 0 if there were no writes
+	 */
+	public double getAverageMillis() {
+		long n = this.writes.sum();
+		return n == 0 ? 0 : this.writeNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * Get the longest time to write a store.
+	 * <p>
+	 * @return the maximum in milliseconds
+	 */
+	public double getMaxMillis() {
+		return this.maxWriteNanos.get() / 1e6;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return String.format("writes=%d, coalesced=%d, failures=%d, bytes=%d, avg %.2fms, max %.2fms",
+				getWriteCount(), getCoalescedCount(), getFailureCount(), getBytesWritten(), getAverageMillis(), getMaxMillis());
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Schedule the background write.  Caller must hold the monitor.
+	 * <p>
+	 * @param delayNanos	the delay in nanoseconds
+	 */
+	private void schedule(long delayNanos) {
+		try {
+			this.pending = this.timer.schedule(this::onTimer, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RuntimeException e) {
+			//closed, the stores are written by close()
+			this.pending = null;
+		}
+	}
+
+	/**
+	 * Write the stores, or wait longer if changes are still arriving and the
+	 * oldest unwritten change is within the maximum staleness.
+	 */
+	private void onTimer() {
+		synchronized(this) {
+			long now = System.nanoTime();
+			long quietAt = this.lastDirty + this.debounceNanos;
+			long deadline = this.firstDirty + this.maxStalenessNanos;
+			if(now < quietAt && now < deadline) {
+				schedule(Math.min(quietAt, deadline) - now);
+				return;
+			}
+			this.pending = null;
+		}
+		try {
+			flush();
+		} catch (KeyStorePersisterException e) {
+			//logged by flush, retry after the debounce interval
+			synchronized(this) {
+				if(this.pending == null) {
+					this.firstDirty = this.lastDirty = System.nanoTime();
+					schedule(this.debounceNanos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a store to a temporary file, force it to disk and rename it over the target.
+	 * <p>
+	 * @param target	the store
+	 * @throws IOException on error writing the file
+	 * @throws GeneralSecurityException on error serialising the store
+	 */
+	private void write(Target target) throws IOException, GeneralSecurityException {
+		long start = System.nanoTime();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+		target.store.get().store(baos, target.password);
+		Path path = target.path.toAbsolutePath();
+		Path dir = path.getParent();
+		Path temp = Files.createTempFile(dir, path.getFileName().toString(), TEMP_SUFFIX);
+		try {
+			try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
+				while(bb.hasRemaining()) {
+					fc.write(bb);
+				}
+				fc.force(true);
+			}
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		syncDirectory(dir);
+		long nanos = System.nanoTime() - start;
+		this.writes.increment();
+		this.bytes.add(baos.size());
+		this.writeNanos.add(nanos);
+		this.maxWriteNanos.accumulateAndGet(nanos, Math::max);
+		Metrics.getInstance().getHistogram(Metrics.Operation.KEYSTORE_PERSIST).record(nanos);
+		LOGGER.debug("Wrote " + baos.size() + " bytes to " + path + " in " + nanos / 1000000L + "ms");
+	}
+
+	/**
+	 * Force the directory entry of the rename to disk where the platform supports it.
+	 * <p>
+	 * @param dir	the directory
+	 */
+	private static void syncDirectory(Path dir) {
+		try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+			//not supported on some platforms, e.g. Windows
+		}
+	}
+}
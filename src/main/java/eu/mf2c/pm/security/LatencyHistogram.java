@@ -0,0 +1,191 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log&#45;linear buckets: each power of two microseconds is
+ * split into 8 buckets, so a percentile is reported within 12.5% of the recorded value
+ * from a fixed array of 305 buckets covering up to 2<sup>40</sup> microseconds.
+ * <p>
+ * Recording takes no lock and allocates nothing once the counters have adapted to
+ * the number of recording threads: a bucket index calculation and two
+ * {@link LongAdder <em>LongAdder</em>} increments.  Reads sum the counters, so they
+ * may miss samples recorded while they run.
+ */
+public class LatencyHistogram {
+	/** sub&#45;buckets per power of two, as a shift */
+	private static final int SUB_BITS = 3;
+	/** sub&#45;buckets per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** the longest latency distinguished, in microseconds, as a power of two */
+	private static final int MAX_EXPONENT = 40;
+	/** number of buckets: the linear ones below 8us, 8 per power of two, then one for longer latencies */
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS + 1;
+	/** the sample counts by bucket */
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	/** total of the samples in nanoseconds */
+	private final LongAdder totalNanos = new LongAdder();
+	/** the longest sample in nanoseconds */
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Construct an empty histogram.
+	 */
+	public LatencyHistogram() {
+		for(int i = 0; i < BUCKETS; i++) {
+			this.counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a sample.
+	 * <p>
+	 * @param nanos	the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		this.counts[bucket(nanos / 1000L)].increment();
+		this.totalNanos.add(nanos);
+		long max = this.maxNanos.get();
+		while(nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+			max = this.maxNanos.get();
+		}
+	}
+
+	/**
+	 * Record the time since a start time.
+	 * <p>
+	 * @param startNanos	the start, from {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Get the number of samples.
+	 * <p>
+	 * @return	the sample count
+	 */
+	public long getCount() {
+		long n = 0;
+		for(LongAdder c : this.counts) {
+			n += c.sum();
+		}
+		return n;
+	}
+
+	/**
+	 * Get the total of the samples.
+	 * <p>
+	 * @return	the total in seconds
+	 */
+	public double getSumSeconds() {
+		return this.totalNanos.sum() / 1e9;
+	}
+
+	/**
+	 * Get the mean sample.
+	 * <p>
+	 * @return	the mean in milliseconds, 0 if there are no samples
+	 */
+	public double getMeanMillis() {
+		long n = getCount();
+		return n == 0 ? 0 : this.totalNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * Get the longest sample.
+	 * <p>
+	 * @return	the maximum in milliseconds
+	 */
+	public double getMaxMillis() {
+		return this.maxNanos.get() / 1e6;
+	}
+
+	/**
+	 * Get a percentile, the upper bound of the bucket holding it.
+	 * <p>
+	 * @param percentile	the percentile, e.g. 99.0
+	 * @return	the percentile in milliseconds, 0 if there are no samples
+	 */
+	public double getPercentileMillis(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts[i].sum();
+			n += snapshot[i];
+		}
+		if(n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= rank) {
+				//never report more than the longest sample
+				return Math.min(upperBound(i) / 1000.0, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms", getCount(), getMeanMillis(),
+				getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the bucket of a latency.
+	 * <p>
+	 * @param micros	the latency in microseconds
+	 * @return	the bucket index
+	 */
+	private static int bucket(long micros) {
+		if(micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		if(exponent == MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Get the largest latency held by a bucket.
+	 * <p>
+	 * @param bucket	the bucket index
+	 * @return	the latency in microseconds
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -16,23 +16,26 @@
 package eu.mf2c.pm.security;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 
 import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.log4j.Logger;
 
 import eu.mf2c.pm.security.Exception.LeadAgentCauClientException;
 import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+import eu.mf2c.pm.security.util.Utils;
 
 /**
  * A socket client to communicate with the Lead Agent CAU. In IT&#45;1 demo, we
@@ -47,14 +50,14 @@ import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
  */
 public class LeadAgentCauClient /*extends Thread*/ {
 	//9May2018 changed to a synchronous call in IT1
+	/** default time to wait for the leader CAU to reject a TLS 1.3 client certificate, in milliseconds */
+	public static final int DEFAULT_CONFIRM_TIMEOUT = 250;
 	/** Message logger attribute */
 	protected Logger LOGGER = Logger.getLogger(LeadAgentCauClient.class);	 
 	/** StoreManagerSingle instance */
 	protected StoreManagerSingleton sms;
 	/** ssl context attribute */
 	private SSLContext sslContext = null;
-	/** ssl socket factory attribute */
-	private SSLSocketFactory sslFactory = null;
 	/** ssl socket object */
 	private SSLSocket socket = null;
 	/** The next four attributes are passed in as main arguments */
@@ -76,6 +79,10 @@ public class LeadAgentCauClient /*extends Thread*/ {
 	private String idKey = null;
 	/** agent device ID */
 	private String deviceID = null;
+	/** the deadline of the registration */
+	private Deadline deadline = Deadline.NONE;
+	/** the agent certificate being verified */
+	private X509Certificate agentCert = null;
 
 	/**
 	 * Instantiate an instance.
@@ -102,66 +109,133 @@ public class LeadAgentCauClient /*extends Thread*/ {
 	}
 
 	/**
-	 * Create an SSLContext object with a truststore and a keystore. The leader CAU
-	 * expects client authentication/
+	 * Instantiate an instance for a registration with a deadline.
+	 * <p>
+	 * @param storeManager	an instance of the StoreManagerSingleton
+	 * @param alias			the keystore entry alias for the agent certificate
+	 * @param ip			the leader CAU InetAddress
+	 * @param port			the leader CAU port number
+	 * @param deviceID		the agent&#39;s device id
+	 * @param deadline		the deadline of the registration, which bounds the socket
+	 * 						timeouts and the retries
+	 */
+	public LeadAgentCauClient(StoreManagerSingleton storeManager, String alias, InetAddress ip, int port, String deviceID, Deadline deadline) {
+		this(storeManager, alias, ip, port, deviceID);
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Get the shared SSLContext object with a truststore and a keystore. The leader CAU
+	 * expects client authentication.
 	 * <p>
 	 * 
-	 * @return the created SSLContext object
+	 * @return the SSLContext object from the {@link SSLContextRegistry <em>SSLContextRegistry</em>}
 	 * @throws Exception
 	 *             on error
 	 */
 	private SSLContext createSSLContext() throws Exception {
-		LOGGER.debug("About to create an SSL context for the leaderCauClient....");
-		// Security.addProvider(new BouncyCastleProvider());
-		// set up a key manager for our local credentials
-		TrustManagerFactory trustManagerFactory = TrustManagerFactory
-				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-		trustManagerFactory.init(sms.getTrustStore());
-		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-		LOGGER.debug("About to set up sslcontext keystore for the leaderCauClient....");
-		keyManagerFactory.init(sms.getKeyStore(), sms.getStorePass().toCharArray());
-		// create a context and set up a socket factory
-		SSLContext sslContext = SSLContext.getInstance("TLS"); // 1.2 default
-		sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null); // 2 ways
-		LOGGER.debug("Finished createing an SSL context for the leaderCauClient....");																									// authentication
-
-		return sslContext;
+		// 2 ways authentication, the context is only rebuilt when the key or truststore changes
+		return SSLContextRegistry.getInstance().getContext(SSLContextRegistry.Role.LEADER, sms);
 	}
 	/**
 	 * Perform a TLS handshake over TCP to verify the new
-	 * agent certificate
+	 * agent certificate.  A connection which fails, is dropped or times out is
+	 * retried with backoff until the deadline, unless the circuit to the leader CAU
+	 * is open.  The handshake is skipped if the leader CAU accepted the same agent
+	 * certificate recently, see {@link LeaderVerificationCache <em>LeaderVerificationCache</em>}.
+	 * <p>
+	 * The agent certificate of the key entry is presented, whatever other credentials
+	 * the key store holds.  With TLS 1.2 the leader CAU checks it in the handshake.  With
+	 * TLS 1.3 it checks it after the client has completed the handshake, a rejection
+	 * arriving as an alert, so the client waits up to
+	 * <code>-Dmf2c.leader.confirmTimeout</code> milliseconds (250) for an alert after
+	 * sending its message.  The verification is cached once the handshake completed and
+	 * no alert was received, whether or not the leader closes the connection.
 	 * @throws LeadAgentCauClientException on error
 	 */
 	//@Override
 	public void run() throws LeadAgentCauClientException {
-		OutputStream out = null;
-		//
+		String endpoint = this.leaderCauIP.getHostAddress() + ":" + this.leaderCauPort;
+		LeaderVerificationCache cache = LeaderVerificationCache.getInstance();
+		this.agentCert = agentCertificate();
+		if(cache.isVerified(endpoint, this.agentCert)) {
+			LOGGER.debug("agent certificate " + this.idKey + " already verified by leader CAU " + endpoint);
+			return;
+		}
+		long start = System.nanoTime();
 		try {
 			// create the socket now
 			this.sslContext = createSSLContext();
-			this.sslFactory = this.sslContext.getSocketFactory();
-			// we block for comm with cau, so no time out
-			this.socket = (SSLSocket) this.sslFactory.createSocket(this.leaderCauIP, this.leaderCauPort);			
-			LOGGER.debug("Created leader  client socket for Leader CAU(" + this.leaderCauIP + ":" + this.leaderCauPort + ")");
-			// add listener to capture server certificate
-			this.socket.addHandshakeCompletedListener(new SimpleHandShakeCompletedListener1("leaderCau"));
-			this.socket.startHandshake();
-			// should be OK to quit now, the handshake should be complete
+			SSLSession session = RetryPolicy.forCau().execute("leader CAU handshake", this.deadline,
+					CircuitBreaker.forEndpoint(endpoint), this::handshake);
+			//handshake() checked the session presented the agent certificate and the leader accepted it
+			cache.recordVerified(endpoint, (X509Certificate) session.getPeerCertificates()[0], this.agentCert,
+					System.nanoTime() - start);
+		} catch (Exception e) {
+			cache.invalidate(endpoint);
+			String msg = "leadAgentCau socket client excepton: " + e.getMessage();
+			throw new LeadAgentCauClientException(msg, e);
+		}
+	}
+
+	/**
+	 * Get the agent certificate of the key entry.
+	 * @return the certificate, or null if there is no key entry
+	 */
+	private X509Certificate agentCertificate() {
+		try {
+			return (X509Certificate) this.sms.getKeyEntry(this.idKey, null).getCertificate();
+		} catch (Exception e) {
+			LOGGER.debug("no key entry for " + this.idKey + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Make one TLS handshake with the leader CAU presenting the agent certificate, then
+	 * wait for the leader to accept or reject it.  A resumed session established with
+	 * another certificate is invalidated and the handshake made again in full.
+	 * @return the session
+	 * @throws IOException on connection, timeout or handshake errors, or if the leader
+	 * 			CAU rejects the agent certificate
+	 */
+	private SSLSession handshake() throws IOException {
+		OutputStream out = null;
+		//
+		try {
+			SSLSession session = null;
+			for(int attempt = 0; session == null; attempt++) {
+				// the connect, handshake and read timeouts are cut down to the deadline
+				// the listener captures the server certificate, a cached session is resumed if possible
+				this.socket = SSLContextRegistry.getInstance().connect(SSLContextRegistry.Role.LEADER, this.sslContext,
+						this.leaderCauIP, this.leaderCauPort, new SimpleHandShakeCompletedListener1("leaderCau"), this.deadline, this.idKey);
+				LOGGER.debug("Created leader  client socket for Leader CAU(" + this.leaderCauIP + ":" + this.leaderCauPort + ")");
+				session = this.socket.getSession();
+				Certificate[] local = session.getLocalCertificates();
+				if(this.agentCert == null || local == null || local.length == 0 || !this.agentCert.equals(local[0])) {
+					session.invalidate();
+					this.socket.close();
+					if(attempt > 0) {
+						throw new SSLHandshakeException("the agent certificate of " + this.idKey + " was not presented to the leader CAU");
+					}
+					LOGGER.debug("resumed a session with another certificate than that of " + this.idKey + ", handshaking again");
+					session = null;
+				}
+			}
 			out = this.socket.getOutputStream();
 			//
 			out.write("bye".getBytes());
-			this.socket.close();
-		} catch (Exception e) {
-			String msg = "leadAgentCau socket client excepton: " + e.getMessage();
-			//LOGGER.error(msg);
-			throw new LeadAgentCauClientException(msg);
-			//Thread thread = Thread.currentThread();
-			//thread.getUncaughtExceptionHandler().uncaughtException(thread, new CauClientException(msg)); //could have own exception class
+			out.flush();
+			confirm(session);
+			return session;
 		} finally {
 			try {
 				if(out != null) {
 					out.close();					
 				}
+				if(this.socket != null) {
+					this.socket.close();
+				}
 			} catch (IOException e) {
 				// Too bad
 				LOGGER.error("failed to release resources : " + e.getMessage());
@@ -175,6 +249,30 @@ public class LeadAgentCauClient /*extends Thread*/ {
 		 *************************************************************/
 	}
 
+	/**
+	 * Wait for the leader CAU to reject the agent certificate of a TLS 1.3 session, which
+	 * it checks after the client completed the handshake.  The alert arrives before
+	 * anything else the leader sends, so a reply, the leader closing the connection or no
+	 * alert within the confirmation timeout all mean the certificate was accepted.  A
+	 * TLS 1.2 certificate was checked in the handshake and nothing is read.
+	 * @param session	the session
+	 * @throws IOException if the leader rejected the agent certificate, or on read errors
+	 */
+	private void confirm(SSLSession session) throws IOException {
+		if(!"TLSv1.3".equals(session.getProtocol())) {
+			return;
+		}
+		this.socket.setSoTimeout(this.deadline.timeout(Utils.getIntProperty("mf2c.leader.confirmTimeout", DEFAULT_CONFIRM_TIMEOUT)));
+		InputStream in = this.socket.getInputStream();
+		try {
+			//a reply or the end of the stream, which is not waited for
+			in.read(new byte[256]);
+		} catch (SocketTimeoutException e) {
+			LOGGER.debug("no alert from leader CAU " + this.leaderCauIP.getHostAddress() + ":" + this.leaderCauPort
+					+ ", the agent certificate was accepted");
+		}
+	}
+
 	/**
 	 * Listener to capture the server certificate and load this into the trust store
 	 * managed by the {@link StoreManagerSingleton <em>StoreManagerSingleton</em>}.
@@ -207,6 +305,11 @@ public class LeadAgentCauClient /*extends Thread*/ {
 				X509Certificate cert = (X509Certificate) event.getPeerCertificates()[0];
 				String peer = cert.getSubjectDN().getName();
 				LOGGER.debug("\n DN from " + server + " : " + peer);
+				if(RevocationIndex.getInstance().isRevoked(cert)) {
+					//the handshake is failed by the trust manager, just do not keep it
+					LOGGER.error(server + " certificate " + peer + " is revoked, not stored");
+					return;
+				}
 				sms.storeCertificate(server, cert);
 			} catch (SSLPeerUnverifiedException pue) {
 				LOGGER.error(server + " certificate unverified: " + pue.getMessage());
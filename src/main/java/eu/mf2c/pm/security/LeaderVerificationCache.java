@@ -0,0 +1,343 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Remembers the agent certificates the leader CAU has accepted in a mutual TLS
+ * handshake, so that a registration presenting the same agent certificate to the same
+ * leader does not repeat the handshake.  An entry is keyed by the leader endpoint, the
+ * SHA&#45;256 fingerprint of the leader certificate and that of the agent certificate.
+ * <p>
+ * An entry expires after the time to live, or earlier when either certificate expires.
+ * A rotated agent certificate has another fingerprint and misses.  The leader
+ * certificate of an endpoint is the one presented in the last handshake: a handshake
+ * presenting another one, or a failed one, drops the entries of the endpoint.  The time
+ * to live is set with <code>-Dmf2c.leader.verificationTtlMillis</code> (300000), 0
+ * turning the cache off, and the number of entries with
+ * <code>-Dmf2c.leader.verificationMaxEntries</code> (4096).
+ * <p>
+ * The hits, misses and the handshake time saved, estimated from the mean time of the
+ * verifications which missed, are published by {@link Metrics <em>Metrics</em>}.
+ */
+public class LeaderVerificationCache {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(LeaderVerificationCache.class);
+	/** the shared instance */
+	private static volatile LeaderVerificationCache instance;
+	/** a SHA-256 digest per thread */
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+	/** the time to live in nanoseconds, 0 if off */
+	private final long ttlNanos;
+	/** the maximum number of entries */
+	private final int maxEntries;
+	/** the expiry of the entries, on the {@link System#nanoTime()} scale */
+	private final ConcurrentHashMap<Key, Long> entries = new ConcurrentHashMap<Key, Long>();
+	/** the fingerprint of the certificate last presented by each leader endpoint */
+	private final ConcurrentHashMap<String, byte[]> leaders = new ConcurrentHashMap<String, byte[]>();
+	/** the time taken by the verifications which missed */
+	private final LatencyHistogram verifications = new LatencyHistogram();
+	/** number of verifications answered from the cache */
+	private final LongAdder hits = new LongAdder();
+	/** number of verifications which needed a handshake */
+	private final LongAdder misses = new LongAdder();
+	/** number of entries dropped on a leader change or a failed handshake */
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * A cache key.
+	 */
+	private static final class Key {
+		/** the leader endpoint, host&#58;port */
+		final String endpoint;
+		/** the leader certificate fingerprint */
+		final byte[] leader;
+		/** the agent certificate fingerprint */
+		final byte[] agent;
+		/** hash code */
+		final int hash;
+
+		/**
+		 * Constructor
+		 * @param endpoint	the leader endpoint
+		 * @param leader	the leader certificate fingerprint
+		 * @param agent		the agent certificate fingerprint
+		 */
+		Key(String endpoint, byte[] leader, byte[] agent) {
+			this.endpoint = endpoint;
+			this.leader = leader;
+			this.agent = agent;
+			//the digests are already uniformly distributed
+			this.hash = 31 * endpoint.hashCode() + ((agent[0] & 0xff) << 24 | (agent[1] & 0xff) << 16 | (leader[0] & 0xff) << 8 | (leader[1] & 0xff));
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return this.endpoint.equals(k.endpoint) && Arrays.equals(this.agent, k.agent) && Arrays.equals(this.leader, k.leader);
+		}
+	}
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param ttlMillis		the time to live in milliseconds, 0 to turn the cache off
+	 * @param maxEntries	the maximum number of entries
+	 */
+	public LeaderVerificationCache(long ttlMillis, int maxEntries) {
+		this.ttlNanos = Math.max(0L, ttlMillis) * 1000000L;
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * Get the shared instance, creating it with the configured time to live and size.
+	 * <p>
+	 * @return	the instance
+	 */
+	public static LeaderVerificationCache getInstance() {
+		LeaderVerificationCache cache = instance;
+		if(cache == null) {
+			synchronized(LeaderVerificationCache.class) {
+				cache = instance;
+				if(cache == null) {
+					cache = new LeaderVerificationCache(Utils.getIntProperty("mf2c.leader.verificationTtlMillis", 300000),
+							Utils.getIntProperty("mf2c.leader.verificationMaxEntries", 4096));
+					instance = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Check if the leader CAU at an endpoint has accepted an agent certificate, counting
+	 * a hit or a miss.
+	 * <p>
+	 * @param endpoint	the leader endpoint, host&#58;port
+	 * @param agentCert	the agent certificate
+	 * @return	true if a handshake with the certificate succeeded within the time to live
+	 */
+	public boolean isVerified(String endpoint, X509Certificate agentCert) {
+		byte[] leader = this.leaders.get(endpoint);
+		Long expiry = null;
+		if(leader != null && this.ttlNanos > 0) {
+			byte[] agent = fingerprint(agentCert);
+			if(agent != null) {
+				Key key = new Key(endpoint, leader, agent);
+				expiry = this.entries.get(key);
+				if(expiry != null && expiry.longValue() - System.nanoTime() <= 0) {
+					this.entries.remove(key, expiry);
+					expiry = null;
+				}
+			}
+		}
+		if(expiry == null) {
+			this.misses.increment();
+			return false;
+		}
+		this.hits.increment();
+		return true;
+	}
+
+	/**
+	 * Record a successful handshake.  If the leader presented another certificate than
+	 * in the previous handshake, the entries of the endpoint are dropped first.
+	 * <p>
+	 * @param endpoint		the leader endpoint, host&#58;port
+	 * @param leaderCert	the certificate the leader presented
+	 * @param agentCert		the certificate the agent presented
+	 * @param nanos			the time the verification took, in nanoseconds
+	 */
+	public void recordVerified(String endpoint, X509Certificate leaderCert, X509Certificate agentCert, long nanos) {
+		this.verifications.record(nanos);
+		byte[] leader = fingerprint(leaderCert);
+		byte[] agent = fingerprint(agentCert);
+		if(leader == null || agent == null || this.ttlNanos == 0) {
+			return;
+		}
+		byte[] previous = this.leaders.put(endpoint, leader);
+		if(previous != null && !Arrays.equals(previous, leader)) {
+			LOGGER.info("leader CAU " + endpoint + " presented a new certificate, dropping its verifications");
+			drop(endpoint);
+		}
+		long now = System.nanoTime();
+		long notAfter = Math.min(leaderCert.getNotAfter().getTime(), agentCert.getNotAfter().getTime());
+		long expiry = now + Math.min(this.ttlNanos, Math.max(0L, notAfter - System.currentTimeMillis()) * 1000000L);
+		if(this.entries.size() >= this.maxEntries) {
+			purge();
+		}
+		if(this.entries.size() < this.maxEntries) {
+			this.entries.put(new Key(endpoint, leader, agent), Long.valueOf(expiry));
+		}
+	}
+
+	/**
+	 * Drop the entries of a leader endpoint, e.g. after a failed handshake.
+	 * <p>
+	 * @param endpoint	the leader endpoint, host&#58;port
+	 */
+	public void invalidate(String endpoint) {
+		if(this.leaders.remove(endpoint) != null) {
+			drop(endpoint);
+		}
+	}
+
+	/**
+	 * Drop all entries.
+	 */
+	public void clear() {
+		this.leaders.clear();
+		this.entries.clear();
+	}
+
+	/**
+	 * Drop the expired entries.
+	 * <p>
+	 * @return	the number of entries dropped
+	 */
+	public int purge() {
+		long now = System.nanoTime();
+		int before = this.entries.size();
+		this.entries.values().removeIf(expiry -> expiry.longValue() - now <= 0);
+		return before - this.entries.size();
+	}
+
+	/**
+	 * Get the number of entries.
+	 * <p>
+	 * @return	the size
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Get the number of verifications answered from the cache.
+	 * <p>
+	 * @return	the hit count
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Get the number of verifications which needed a handshake.
+	 * <p>
+	 * @return	the miss count
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Get the number of entries dropped on a leader certificate change or a failed
+	 * handshake.
+	 * <p>
+	 * @return	the invalidation count
+	 */
+	public long getInvalidations() {
+		return this.invalidations.sum();
+	}
+
+	/**
+	 * Get the share of the verifications answered from the cache.
+	 * <p>
+	 * @return	the hit ratio between 0 and 1, 0 if there were no verifications
+	 */
+	public double getHitRatio() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Get the histogram of the verifications which needed a handshake.
+	 * <p>
+	 * @return	the histogram
+	 */
+	public LatencyHistogram getVerificationHistogram() {
+		return this.verifications;
+	}
+
+	/**
+	 * Get the handshake time saved by the hits, estimated from the mean time of the
+	 * verifications which needed a handshake.
+	 * <p>
+	 * @return	the time saved in seconds
+	 */
+	public double getSavedSeconds() {
+		return getHits() * this.verifications.getMeanMillis() / 1000.0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LeaderVerificationCache [entries=%d, hits=%d, misses=%d, hit ratio=%.3f, invalidations=%d, saved=%.3fs, handshake %s]",
+				size(), getHits(), getMisses(), getHitRatio(), getInvalidations(), getSavedSeconds(), this.verifications);
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Drop the entries of an endpoint.
+	 * @param endpoint	the endpoint
+	 */
+	private void drop(String endpoint) {
+		int before = this.entries.size();
+		this.entries.keySet().removeIf(k -> k.endpoint.equals(endpoint));
+		this.invalidations.add(Math.max(0, before - this.entries.size()));
+	}
+
+	/**
+	 * Get the SHA&#45;256 fingerprint of a certificate.
+	 * @param cert	the certificate
+	 * @return	the fingerprint, or null if the certificate is null or cannot be encoded
+	 */
+	private static byte[] fingerprint(X509Certificate cert) {
+		if(cert == null) {
+			return null;
+		}
+		try {
+			return SHA256.get().digest(cert.getEncoded());
+		} catch (CertificateEncodingException e) {
+			LOGGER.warn("cannot fingerprint " + cert.getSubjectX500Principal() + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
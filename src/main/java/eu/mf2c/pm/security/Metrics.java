@@ -0,0 +1,614 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+
+/**
+ * Latency histograms and counters for the registration work: key generation, CSR
+ * signing, the CAU and leader CAU connections, the categorisation call and the key
+ * store writes, each registration stage and the whole registration, the registrations
+ * answered with a certificate already held, the leader verifications answered from the
+ * {@link LeaderVerificationCache <em>LeaderVerificationCache</em>}, the
+ * {@link KeyPairPool <em>KeyPairPool</em>} hits, misses and refills, and the errors by
+ * exception class.
+ * <p>
+ * Recording is lock&#45;free and allocates nothing per sample, see
+ * {@link LatencyHistogram <em>LatencyHistogram</em>}.  The metrics are published as the
+ * JMX MBean <code>eu.mf2c.pm.security:type=Metrics</code> and, once
+ * {@link #startHttpServer(InetSocketAddress)} is called, in the Prometheus text format
+ * at <code>/metrics</code>.
+ */
+public class Metrics {
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(Metrics.class);
+	/** the JMX object name */
+	public static final String OBJECT_NAME = "eu.mf2c.pm.security:type=Metrics";
+	/** the instance */
+	private static final Metrics INSTANCE = new Metrics();
+	/** the operation latencies by ordinal */
+	private final LatencyHistogram[] operations = new LatencyHistogram[Operation.values().length];
+	/** the stage latencies by ordinal */
+	private final LatencyHistogram[] stages = new LatencyHistogram[RegistrationStage.values().length];
+	/** the registration latency */
+	private final LatencyHistogram registrations = new LatencyHistogram();
+	/** the latency of the registrations answered with a certificate already held */
+	private final LatencyHistogram heldRegistrations = new LatencyHistogram();
+	/** number of registrations which failed */
+	private final LongAdder failedRegistrations = new LongAdder();
+	/** the error counts by exception class */
+	private final ConcurrentHashMap<Class<?>, LongAdder> errors = new ConcurrentHashMap<Class<?>, LongAdder>();
+	/** the start time, for the rates */
+	private final long startNanos = System.nanoTime();
+	/** the HTTP endpoint, null until started */
+	private HttpServer httpServer;
+
+	/**
+	 * The timed operations.
+	 */
+	public enum Operation {
+		/** agent keypair generation */
+		KEY_GENERATION,
+		/** CSR creation and signing */
+		CSR_SIGNING,
+		/** TCP connection to the regional CAU */
+		CAU_CONNECT,
+		/** TLS handshake with the regional CAU */
+		CAU_HANDSHAKE,
+		/** CSR sent to certificate received from the regional CAU */
+		CAU_ROUND_TRIP,
+		/** TCP connection to the leader CAU */
+		LEADER_CONNECT,
+		/** TLS handshake with the leader CAU */
+		LEADER_HANDSHAKE,
+		/** the categorisation service call */
+		CATEGORISATION,
+		/** a key or trust store write */
+		KEYSTORE_PERSIST
+	}
+
+	/**
+	 * Constructor, registers the MBean.
+	 */
+	private Metrics() {
+		for(int i = 0; i < this.operations.length; i++) {
+			this.operations[i] = new LatencyHistogram();
+		}
+		for(int i = 0; i < this.stages.length; i++) {
+			this.stages[i] = new LatencyHistogram();
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch (JMException | RuntimeException e) {
+			LOGGER.warn("Metrics not published through JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the instance.
+	 * <p>
+	 * @return the instance
+	 */
+	public static Metrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Record the time an operation took since its start.
+	 * <p>
+	 * @param op			the operation
+	 * @param startNanos	the start, from {@link System#nanoTime()}
+	 */
+	public void record(Operation op, long startNanos) {
+		this.operations[op.ordinal()].recordSince(startNanos);
+	}
+
+	/**
+	 * Record the duration of a registration stage.
+	 * <p>
+	 * @param stage	the stage
+	 * @param nanos	the duration in nanoseconds
+	 */
+	public void recordStage(RegistrationStage stage, long nanos) {
+		this.stages[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Record a completed registration.
+	 * <p>
+	 * @param nanos		the duration in nanoseconds
+	 * @param success	false if a stage failed or timed out
+	 */
+	public void recordRegistration(long nanos, boolean success) {
+		this.registrations.record(nanos);
+		if(!success) {
+			this.failedRegistrations.increment();
+		}
+	}
+
+	/**
+	 * Record a registration answered with a certificate already held, without
+	 * enrolling with the CAU.  It is not counted in the registration histogram, which
+	 * keeps the latency of the full registrations.
+	 * <p>
+	 * @param nanos		the duration in nanoseconds
+	 */
+	public void recordHeldRegistration(long nanos) {
+		this.heldRegistrations.record(nanos);
+	}
+
+	/**
+	 * Count an error under the class of the exception and of each of its causes, so a
+	 * {@link eu.mf2c.pm.security.Exception.CauClientException} caused by a
+	 * {@link eu.mf2c.pm.security.Exception.LeadAgentCauClientException} counts for both.
+	 * <p>
+	 * @param error	the exception
+	 */
+	public void recordError(Throwable error) {
+		Set<Class<?>> seen = null;
+		for(Throwable t = error; t != null; t = t.getCause()) {
+			Class<?> c = t.getClass();
+			if(t != error) {
+				//count each class once per error
+				if(seen == null) {
+					seen = new HashSet<Class<?>>();
+					seen.add(error.getClass());
+				}
+				if(!seen.add(c)) {
+					continue;
+				}
+			}
+			LongAdder count = this.errors.get(c);
+			if(count == null) {
+				count = this.errors.computeIfAbsent(c, k -> new LongAdder());
+			}
+			count.increment();
+			if(t.getCause() == t) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the histogram of an operation.
+	 * <p>
+	 * @param op	the operation
+	 * @return	the histogram
+	 */
+	public LatencyHistogram getHistogram(Operation op) {
+		return this.operations[op.ordinal()];
+	}
+
+	/**
+	 * Get the histogram of a registration stage.
+	 * <p>
+	 * @param stage	the stage
+	 * @return	the histogram
+	 */
+	public LatencyHistogram getHistogram(RegistrationStage stage) {
+		return this.stages[stage.ordinal()];
+	}
+
+	/**
+	 * Get the histogram of the whole registration.
+	 * <p>
+	 * @return	the histogram
+	 */
+	public LatencyHistogram getRegistrationHistogram() {
+		return this.registrations;
+	}
+
+	/**
+	 * Get the histogram of the registrations answered with a certificate already held.
+	 * <p>
+	 * @return	the histogram
+	 */
+	public LatencyHistogram getHeldRegistrationHistogram() {
+		return this.heldRegistrations;
+	}
+
+	/**
+	 * Get the share of the registrations answered with a certificate already held.
+	 * <p>
+	 * @return	the hit rate between 0 and 1, 0 if there were no registrations
+	 */
+	public double getHeldCertificateHitRate() {
+		long hits = this.heldRegistrations.getCount();
+		long total = hits + this.registrations.getCount();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Get the time saved by answering registrations with a certificate already held,
+	 * estimated from the mean latency of the full registrations.
+	 * <p>
+	 * @return	the time saved in seconds, 0 until a full registration has completed
+	 */
+	public double getHeldCertificateSavedSeconds() {
+		if(this.registrations.getCount() == 0) {
+			return 0;
+		}
+		double saved = this.heldRegistrations.getCount() * (this.registrations.getMeanMillis() - this.heldRegistrations.getMeanMillis()) / 1000.0;
+		return Math.max(0, saved);
+	}
+
+	/**
+	 * Get the number of registrations which failed.
+	 * <p>
+	 * @return	the failure count
+	 */
+	public long getFailedRegistrations() {
+		return this.failedRegistrations.sum();
+	}
+
+	/**
+	 * Get the registrations completed per second since the process started.
+	 * <p>
+	 * @return	the throughput
+	 */
+	public double getRegistrationsPerSecond() {
+		double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+		return seconds <= 0 ? 0 : this.registrations.getCount() / seconds;
+	}
+
+	/**
+	 * Get the error counts.
+	 * <p>
+	 * @return	the counts by simple exception class name, sorted by name
+	 */
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<Class<?>, LongAdder> e : this.errors.entrySet()) {
+			counts.merge(e.getKey().getSimpleName(), e.getValue().sum(), Long::sum);
+		}
+		return counts;
+	}
+
+	/**
+	 * Start the HTTP endpoint serving the metrics at <code>/metrics</code>.
+	 * <p>
+	 * @param address	the address, normally the loopback address
+	 * @return	the bound address
+	 * @throws IOException on error binding the address
+	 */
+	public synchronized InetSocketAddress startHttpServer(InetSocketAddress address) throws IOException {
+		if(this.httpServer != null) {
+			return this.httpServer.getAddress();
+		}
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/metrics", exchange -> {
+			try {
+				byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		this.httpServer = server;
+		LOGGER.info("Metrics served at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+		return server.getAddress();
+	}
+
+	/**
+	 * Stop the HTTP endpoint, if started.
+	 */
+	public synchronized void stopHttpServer() {
+		if(this.httpServer != null) {
+			this.httpServer.stop(0);
+			this.httpServer = null;
+		}
+	}
+
+	/**
+	 * Get the metrics in the Prometheus text exposition format.
+	 * <p>
+	 * @return	the metrics
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("# TYPE mf2c_operation_seconds summary\n");
+		for(Operation op : Operation.values()) {
+			summary(sb, "mf2c_operation_seconds", "operation", op.name().toLowerCase(Locale.ROOT), this.operations[op.ordinal()]);
+		}
+		sb.append("# TYPE mf2c_stage_seconds summary\n");
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			summary(sb, "mf2c_stage_seconds", "stage", stage.name().toLowerCase(Locale.ROOT), this.stages[stage.ordinal()]);
+		}
+		sb.append("# TYPE mf2c_registration_seconds summary\n");
+		summary(sb, "mf2c_registration_seconds", null, null, this.registrations);
+		sb.append("# TYPE mf2c_held_registration_seconds summary\n");
+		summary(sb, "mf2c_held_registration_seconds", null, null, this.heldRegistrations);
+		sb.append("# TYPE mf2c_held_certificate_hit_ratio gauge\n");
+		sb.append("mf2c_held_certificate_hit_ratio ").append(getHeldCertificateHitRate()).append('\n');
+		sb.append("# TYPE mf2c_held_certificate_saved_seconds gauge\n");
+		sb.append("mf2c_held_certificate_saved_seconds ").append(getHeldCertificateSavedSeconds()).append('\n');
+		LeaderVerificationCache leader = LeaderVerificationCache.getInstance();
+		sb.append("# TYPE mf2c_leader_verification_hits_total counter\n");
+		sb.append("mf2c_leader_verification_hits_total ").append(leader.getHits()).append('\n');
+		sb.append("# TYPE mf2c_leader_verification_misses_total counter\n");
+		sb.append("mf2c_leader_verification_misses_total ").append(leader.getMisses()).append('\n');
+		sb.append("# TYPE mf2c_leader_verification_invalidations_total counter\n");
+		sb.append("mf2c_leader_verification_invalidations_total ").append(leader.getInvalidations()).append('\n');
+		sb.append("# TYPE mf2c_leader_verification_hit_ratio gauge\n");
+		sb.append("mf2c_leader_verification_hit_ratio ").append(leader.getHitRatio()).append('\n');
+		sb.append("# TYPE mf2c_leader_verification_saved_seconds gauge\n");
+		sb.append("mf2c_leader_verification_saved_seconds ").append(leader.getSavedSeconds()).append('\n');
+		KeyPairPool pool = keyPairPool();
+		if(pool != null) {
+			sb.append("# TYPE mf2c_keypair_pool_size gauge\n");
+			sb.append("mf2c_keypair_pool_size ").append(pool.getSize()).append('\n');
+			sb.append("# TYPE mf2c_keypair_pool_hits_total counter\n");
+			sb.append("mf2c_keypair_pool_hits_total ").append(pool.getHits()).append('\n');
+			sb.append("# TYPE mf2c_keypair_pool_misses_total counter\n");
+			sb.append("mf2c_keypair_pool_misses_total ").append(pool.getMisses()).append('\n');
+			sb.append("# TYPE mf2c_keypair_pool_refills_total counter\n");
+			sb.append("mf2c_keypair_pool_refills_total ").append(pool.getRefills()).append('\n');
+			sb.append("# TYPE mf2c_keypair_pool_refill_seconds gauge\n");
+			sb.append("mf2c_keypair_pool_refill_seconds ").append(pool.getAverageRefillMillis() / 1000.0).append('\n');
+		}
+		sb.append("# TYPE mf2c_registration_failures_total counter\n");
+		sb.append("mf2c_registration_failures_total ").append(getFailedRegistrations()).append('\n');
+		sb.append("# TYPE mf2c_errors_total counter\n");
+		for(Map.Entry<String, Long> e : getErrorCounts().entrySet()) {
+			sb.append("mf2c_errors_total{exception=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Operation op : Operation.values()) {
+			sb.append(op).append(": ").append(this.operations[op.ordinal()]).append('\n');
+		}
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			sb.append(stage).append(": ").append(this.stages[stage.ordinal()]).append('\n');
+		}
+		sb.append("REGISTRATION: ").append(this.registrations).append(", failed=").append(getFailedRegistrations()).append('\n');
+		sb.append("HELD_REGISTRATION: ").append(this.heldRegistrations).append(String.format(", hit rate=%.3f, saved=%.1fs",
+				getHeldCertificateHitRate(), getHeldCertificateSavedSeconds())).append('\n');
+		sb.append(LeaderVerificationCache.getInstance()).append('\n');
+		KeyPairPool pool = keyPairPool();
+		if(pool != null) {
+			sb.append(pool).append('\n');
+		}
+		sb.append("errors: ").append(getErrorCounts());
+		return sb.toString();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the keypair pool of the store manager, without creating the store manager.
+	 * @return	the pool, or null if there is no store manager yet
+	 */
+	private static KeyPairPool keyPairPool() {
+		if(!StoreManagerSingleton.isInstantiated()) {
+			return null;
+		}
+		try {
+			return StoreManagerSingleton.getInstance().getKeyPairPool();
+		} catch (StoreManagerSingletonException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Append a histogram as a Prometheus summary.
+	 * <p>
+	 * @param sb		the output
+	 * @param metric	the metric name
+	 * @param label		the label name, or null for none
+	 * @param value		the label value
+	 * @param h			the histogram
+	 */
+	private static void summary(StringBuilder sb, String metric, String label, String value, LatencyHistogram h) {
+		String labels = label == null ? "" : label + "=\"" + value + "\",";
+		for(double q : new double[] {0.5, 0.9, 0.99}) {
+			sb.append(metric).append("{").append(labels).append("quantile=\"").append(q).append("\"} ")
+				.append(h.getPercentileMillis(q * 100) / 1000.0).append('\n');
+		}
+		String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+		sb.append(metric).append("_sum").append(plain).append(' ').append(h.getSumSeconds()).append('\n');
+		sb.append(metric).append("_count").append(plain).append(' ').append(h.getCount()).append('\n');
+	}
+
+	/**
+	 * Publishes the metrics as read only JMX attributes: count, mean, p50, p99 and max
+	 * of each histogram, the registration throughput, the held certificate and leader
+	 * verification hit rates and time saved, the keypair pool statistics and the error
+	 * counts.
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			int dot = attribute.lastIndexOf('.');
+			if(dot > 0) {
+				String prefix = attribute.substring(0, dot);
+				String field = attribute.substring(dot + 1);
+				if(prefix.equals("Errors")) {
+					Long n = getErrorCounts().get(field);
+					return n == null ? Long.valueOf(0L) : n;
+				}
+				LatencyHistogram h = histogram(prefix);
+				if(h != null) {
+					switch(field) {
+						case "Count": return Long.valueOf(h.getCount());
+						case "MeanMillis": return Double.valueOf(h.getMeanMillis());
+						case "P50Millis": return Double.valueOf(h.getPercentileMillis(50));
+						case "P99Millis": return Double.valueOf(h.getPercentileMillis(99));
+						case "MaxMillis": return Double.valueOf(h.getMaxMillis());
+						default: break;
+					}
+				}
+			} else if(attribute.equals("RegistrationsPerSecond")) {
+				return Double.valueOf(getRegistrationsPerSecond());
+			} else if(attribute.equals("FailedRegistrations")) {
+				return Long.valueOf(getFailedRegistrations());
+			} else if(attribute.equals("HeldCertificateHitRate")) {
+				return Double.valueOf(getHeldCertificateHitRate());
+			} else if(attribute.equals("HeldCertificateSavedSeconds")) {
+				return Double.valueOf(getHeldCertificateSavedSeconds());
+			} else if(attribute.equals("LeaderVerificationHits")) {
+				return Long.valueOf(LeaderVerificationCache.getInstance().getHits());
+			} else if(attribute.equals("LeaderVerificationMisses")) {
+				return Long.valueOf(LeaderVerificationCache.getInstance().getMisses());
+			} else if(attribute.equals("LeaderVerificationHitRate")) {
+				return Double.valueOf(LeaderVerificationCache.getInstance().getHitRatio());
+			} else if(attribute.equals("LeaderVerificationSavedSeconds")) {
+				return Double.valueOf(LeaderVerificationCache.getInstance().getSavedSeconds());
+			} else if(attribute.startsWith("KeyPairPool")) {
+				KeyPairPool pool = keyPairPool();
+				switch(attribute) {
+					case "KeyPairPoolSize": return Integer.valueOf(pool == null ? 0 : pool.getSize());
+					case "KeyPairPoolHits": return Long.valueOf(pool == null ? 0L : pool.getHits());
+					case "KeyPairPoolMisses": return Long.valueOf(pool == null ? 0L : pool.getMisses());
+					case "KeyPairPoolRefills": return Long.valueOf(pool == null ? 0L : pool.getRefills());
+					case "KeyPairPoolAverageRefillMillis": return Double.valueOf(pool == null ? 0 : pool.getAverageRefillMillis());
+					default: break;
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for(String a : attributes) {
+				try {
+					list.add(new Attribute(a, getAttribute(a)));
+				} catch (AttributeNotFoundException e) {
+					//left out, as the contract allows
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("read only: " + attribute.getName());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+			List<String> names = new ArrayList<String>();
+			for(Operation op : Operation.values()) {
+				names.add(op.name());
+			}
+			for(RegistrationStage stage : RegistrationStage.values()) {
+				names.add("Stage_" + stage.name());
+			}
+			names.add("Registration");
+			names.add("HeldRegistration");
+			for(String n : names) {
+				attrs.add(new MBeanAttributeInfo(n + ".Count", "long", n + " sample count", true, false, false));
+				for(String f : new String[] {"MeanMillis", "P50Millis", "P99Millis", "MaxMillis"}) {
+					attrs.add(new MBeanAttributeInfo(n + "." + f, "double", n + " latency", true, false, false));
+				}
+			}
+			attrs.add(new MBeanAttributeInfo("RegistrationsPerSecond", "double", "registrations per second since start", true, false, false));
+			attrs.add(new MBeanAttributeInfo("FailedRegistrations", "long", "registrations with a failed stage", true, false, false));
+			attrs.add(new MBeanAttributeInfo("HeldCertificateHitRate", "double", "share of registrations answered with a held certificate", true, false, false));
+			attrs.add(new MBeanAttributeInfo("HeldCertificateSavedSeconds", "double", "time saved by the held certificates", true, false, false));
+			attrs.add(new MBeanAttributeInfo("LeaderVerificationHits", "long", "leader verifications answered from the cache", true, false, false));
+			attrs.add(new MBeanAttributeInfo("LeaderVerificationMisses", "long", "leader verifications which needed a handshake", true, false, false));
+			attrs.add(new MBeanAttributeInfo("LeaderVerificationHitRate", "double", "share of leader verifications answered from the cache", true, false, false));
+			attrs.add(new MBeanAttributeInfo("LeaderVerificationSavedSeconds", "double", "handshake time saved by the leader verification cache", true, false, false));
+			attrs.add(new MBeanAttributeInfo("KeyPairPoolSize", "int", "keypairs ready in the pool", true, false, false));
+			attrs.add(new MBeanAttributeInfo("KeyPairPoolHits", "long", "keypairs taken from the pool", true, false, false));
+			attrs.add(new MBeanAttributeInfo("KeyPairPoolMisses", "long", "keypairs generated inline as the pool was empty", true, false, false));
+			attrs.add(new MBeanAttributeInfo("KeyPairPoolRefills", "long", "keypairs generated in the background", true, false, false));
+			attrs.add(new MBeanAttributeInfo("KeyPairPoolAverageRefillMillis", "double", "mean time of a background generation", true, false, false));
+			//the exception classes seen so far
+			for(String e : getErrorCounts().keySet()) {
+				attrs.add(new MBeanAttributeInfo("Errors." + e, "long", e + " count", true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "mF2C CAU client registration metrics",
+					attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, null, null);
+		}
+
+		/**
+		 * Get a histogram by attribute prefix.
+		 * @param prefix	the operation name, Stage_ and the stage name, Registration or HeldRegistration
+		 * @return	the histogram, or null
+		 */
+		private LatencyHistogram histogram(String prefix) {
+			if(prefix.equals("Registration")) {
+				return Metrics.this.registrations;
+			}
+			if(prefix.equals("HeldRegistration")) {
+				return Metrics.this.heldRegistrations;
+			}
+			try {
+				if(prefix.startsWith("Stage_")) {
+					return Metrics.this.stages[RegistrationStage.valueOf(prefix.substring(6)).ordinal()];
+				}
+				return Metrics.this.operations[Operation.valueOf(prefix).ordinal()];
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+	}
+}
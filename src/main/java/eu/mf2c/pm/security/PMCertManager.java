@@ -15,11 +15,21 @@
  */
 package eu.mf2c.pm.security;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+import eu.mf2c.pm.security.util.Utils;
 
 /**
  * Entry point to the application.  This application supports the Agent
@@ -86,29 +96,78 @@ public class PMCertManager {
 	public void setupStoreManager() throws StoreManagerSingletonException {
 		//this creates the keystore, and loads the fog-sub, 01subca and 00root certificate PEMs.
 		StoreManagerSingleton sms = StoreManagerSingleton.getInstance(); 
-		//	
-		sms.generateKeyPair();	
+		//a registration received before this point has already taken the agent keypair, keep it
+		sms.getKeyPair();	
 		//	18Feb19 save private key as /pki-data/server.key
 		sms.writeKeyFile();
 	}
 	
+	/**
+	 * Prepare the stores, the agent key and the certificate renewals in the background.
+	 * The stores are loaded first, the key store and trust store in parallel, then the
+	 * agent key and the renewals of the registered identities are prepared in parallel.
+	 * A registration received meanwhile waits in {@link StoreManagerSingleton#getInstance()}
+	 * for the stores only, and takes the agent keypair itself if it is not ready yet.
+	 * <p>
+	 * @param addressesHM	the CAU and leader CAU addresses
+	 * @param executor		runs the phases
+	 * @return	a future completed once all the phases have completed
+	 */
+	public CompletableFuture<Void> bootstrap(HashMap<String, String> addressesHM, Executor executor) {
+		CompletableFuture<StoreManagerSingleton> stores = CompletableFuture.supplyAsync(
+				() -> timed("stores", StoreManagerSingleton::getInstance), executor);
+		CompletableFuture<Void> key = stores.thenAcceptAsync(sms -> timed("agent key", () -> {
+			setupStoreManager();
+			return null;
+		}), executor);
+		CompletableFuture<Void> renewals = stores.thenAcceptAsync(sms -> timed("renewals", () -> {
+			scheduleRenewals(addressesHM);
+			return null;
+		}), executor);
+		return CompletableFuture.allOf(key, renewals);
+	}
+	
+	/**
+	 * Hold the certificates of the identities already registered for renewal, so they
+	 * are re&#45;enrolled with the regional CAU before they expire.
+	 * <p>
+	 * @param addressesHM	the CAU and leader CAU addresses
+	 * @throws Exception	on error loading the identities
+	 */
+	public void scheduleRenewals(HashMap<String, String> addressesHM) throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		RenewalScheduler scheduler = RenewalScheduler.getInstance();
+		for(AgentIdentity identity : sms.getIdentityRegistry().getIdentities()) {
+			HashMap<String, String> cache = new HashMap<String, String>(addressesHM);
+			cache.put("IDkey", identity.getIdKey());
+			cache.put("deviceID", identity.getDeviceID());
+			cache.put("detectedLeaderID", identity.getFogID());
+			CauClient client = new CauClient(cache);
+			scheduler.track(identity.getIdKey(), identity.getCertificate(), client::renew);
+		}
+		LOGGER.info(scheduler);
+	}
+	
 	public void initialise() {
 		
 	}
 	
 	/**
 	 * Entry point to the application.  
-	 * Usage: PMCertManager &#60;CauIP&#91;#58;port number&#93;&#62; &#60;LeaderCauIP&#91;#58;port number&#93;&#62;
+	 * Usage: PMCertManager &#60;CauIP&#91;#58;port number&#93;&#91;,CauIP&#91;#58;port number&#93;...&#93;&#62; &#60;LeaderCauIP&#91;#58;port number&#93;&#62;
+	 * <p>
+	 * Several regional CAU replicas may be given, comma separated, see
+	 * {@link CauEndpointSelector <em>CauEndpointSelector</em>}.
 	 * <p>
 	 * @param args	Application arguments.
 	 * @throws Exception 	on error
 	 */
 	public static void main(String[] args) throws Exception {
 		if (args.length < 2) {
-			throw new RuntimeException("Usage: PMCertManager <CauIP:port number> <LeaderCauIP:port number>");
+			throw new RuntimeException("Usage: PMCertManager <CauIP:port number[,CauIP:port number...]> <LeaderCauIP:port number>");
 		}
 		if(args[0].isEmpty() || args[1].isEmpty()) {
-			throw new RuntimeException("Usage: PMCertManager <CauIP:port number> <LeaderCauIP:port number>");
+			throw new RuntimeException("Usage: PMCertManager <CauIP:port number[,CauIP:port number...]> <LeaderCauIP:port number>");
 		}
 		PMCertManager pmCM = new PMCertManager(); //instantiate class
 		//cache the values now
@@ -116,15 +175,90 @@ public class PMCertManager {
 		addressesHM.put("cauIP", args[0]);
 		addressesHM.put("leaderCauIP", args[1]);
 		LOGGER.debug("Incoming arguments: " + addressesHM.toString());
-		//bootstrap the storeManager now
-		pmCM.setupStoreManager();
+		//serve the metrics on the loopback interface if a port is configured
+		int metricsPort = Utils.getIntProperty("mf2c.metrics.port", 0);
+		if(metricsPort > 0) {
+			Metrics.getInstance().startHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort));
+		}
 		//start the server to listen to discovery. 
 		BasicSocketServer bss = new BasicSocketServer(addressesHM);
-		//runs the server which is not threaded.  The control passes to the server.
+		//stop the server when the JVM terminates, the server persists the stores on closing down
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			LOGGER.info("The socket server is shutting down!");
+			try {
+				RenewalScheduler.getInstance().shutdown();
+			} catch (StoreManagerSingletonException e) {
+				LOGGER.error("Error stopping the certificate renewal: " + e.getMessage());
+			}
+			bss.stop();
+			try {
+				bss.awaitTermination(60, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		//listen straight away, the stores and keys are prepared in the background
+		StartupTimings timings = StartupTimings.getInstance();
+		long start = System.nanoTime();
+		ExecutorService boot = Executors.newFixedThreadPool(2, r -> {
+			Thread t = new Thread(r, "bootstrap");
+			t.setDaemon(true);
+			return t;
+		});
+		CompletableFuture<Void> ready = pmCM.bootstrap(addressesHM, boot);
+		ready.whenComplete((v, e) -> {
+			boot.shutdown();
+			if(e != null) {
+				LOGGER.error("Start-up failed, stopping the socket server: " + (e.getCause() != null ? e.getCause() : e));
+				bss.stop();
+			} else {
+				timings.record("ready", start);
+				LOGGER.info(timings);
+			}
+		});
+		Thread listening = new Thread(() -> {
+			try {
+				if(bss.awaitStartup(60, TimeUnit.SECONDS)) {
+					timings.record("listening", start);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "bootstrap-listening");
+		listening.setDaemon(true);
+		listening.start();
+		//the control passes to the server which runs until the JVM is terminated.
 		bss.runSocket();		
+		if(ready.isCompletedExceptionally()) {
+			try {
+				ready.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
 		//
 		/*System.exit(0); //9May18 use flag to exit in the BasicSocketServer class and this method returns when 
 		bss.runSocket() returns*/
 	}
+	
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Run a start&#45;up phase and record its timing.
+	 * <p>
+	 * @param phase	the phase name
+	 * @param task	the phase
+	 * @return	the result of the phase
+	 * @throws CompletionException wrapping an error raised by the phase
+	 */
+	private static <T> T timed(String phase, Callable<T> task) {
+		long start = System.nanoTime();
+		try {
+			T result = task.call();
+			StartupTimings.getInstance().record(phase, start);
+			return result;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
 
 }
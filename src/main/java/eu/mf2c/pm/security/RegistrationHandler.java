@@ -0,0 +1,46 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.util.HashMap;
+
+/**
+ * Processes a single registration request received by the
+ * {@link BasicSocketServer <em>BasicSocketServer</em>}.  Implementations
+ * are invoked concurrently from the server worker threads, each with its
+ * own copy of the request values.
+ */
+public interface RegistrationHandler {
+
+	/**
+	 * Handle one registration request.  Returning normally means an OK
+	 * message is sent back to the Policy block.
+	 * <p>
+	 * @param request	A {@link java.util.HashMap <em>HashMap</em>} containing the CAU
+	 * 					and leader CAU connection properties and the values sent by the
+	 * 					Policy block.
+	 * @throws Exception	on processing errors, the message is returned to the Policy block
+	 */
+	public void register(HashMap<String, String> request) throws Exception;
+
+	/**
+	 * Release any resources held by the handler.  Called once the server has
+	 * stopped and its workers have finished.
+	 */
+	public default void shutdown() {
+	}
+
+}
@@ -0,0 +1,371 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.RegistrationPipelineException;
+import eu.mf2c.pm.security.RegistrationResult.Outcome;
+import eu.mf2c.pm.security.RegistrationResult.Status;
+
+/**
+ * Runs an agent registration as a chain of asynchronous {@link RegistrationStage stages}:
+ * <pre>
+ *   KEYGEN_CSR &#45;&gt; CAU_ENROLMENT &#45;+&#45;&gt; PERSISTENCE         &#45;+&#45;&gt; CATEGORISATION
+ *                               +&#45;&gt; LEADER_VERIFICATION &#45;+
+ * </pre>
+ * Writing the credentials and the leader CAU handshake are independent, so they run in
+ * parallel once the agent certificate is in the key store.  Each stage runs on its own
+ * executor and fails with a timeout if it does not complete in time; a timed out stage
+ * is interrupted.  Stages after a failed one are skipped, and the
+ * {@link RegistrationResult <em>RegistrationResult</em>} records the outcome of every stage.
+ * <p>
+ * A registration for an agent which already holds a usable certificate is answered
+ * straight away without running the stages, see {@link Steps#findHeldCertificate()}.
+ * <p>
+ * Categorisation is switched off by default as the Policy block triggers it; set
+ * <code>mf2c.categorisation.enabled=true</code> to run it here.
+ */
+public class RegistrationPipeline implements RegistrationHandler {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(RegistrationPipeline.class);
+	/** fires the stage timeouts */
+	private final ScheduledExecutorService timer;
+	/** the executors indexed by stage ordinal, guarded by this */
+	private final Executor[] executors = new Executor[RegistrationStage.values().length];
+	/** the timeouts in milliseconds indexed by stage ordinal, guarded by this */
+	private final long[] timeouts = new long[RegistrationStage.values().length];
+	/** the executors created by this pipeline, shut down with it */
+	private final ExecutorService[] owned;
+	/** creates the stage implementations for a request */
+	private final StepsFactory factory;
+	/** true if the categorisation stage runs */
+	private final boolean categorisation;
+
+	/**
+	 * The work done by each stage for one registration.
+	 */
+	public interface Steps {
+		/**
+		 * Find a valid certificate already held for the agent, which makes the stages
+		 * unnecessary.  This is called on the thread submitting the registration, so it
+		 * must not block on the network.
+		 * @return	the certificate, or null to run the stages
+		 * @throws Exception on error, the stages are then run
+		 */
+		default X509Certificate findHeldCertificate() throws Exception {
+			return null;
+		}
+
+		/**
+		 * Generate the keypair and create the request message.
+		 * @return	the request message
+		 * @throws Exception on error
+		 */
+		byte[] createRequest() throws Exception;
+
+		/**
+		 * Obtain the agent certificate from the CAU and add it to the key store.
+		 * @param request	the request message
+		 * @return	the agent certificate
+		 * @throws Exception on error
+		 */
+		X509Certificate enrol(byte[] request) throws Exception;
+
+		/**
+		 * Write the credentials to the pkidata directory.
+		 * @param cert	the agent certificate
+		 * @throws Exception on error
+		 */
+		void persist(X509Certificate cert) throws Exception;
+
+		/**
+		 * Verify the agent certificate with the leader CAU.
+		 * @throws Exception on error
+		 */
+		void verifyWithLeader() throws Exception;
+
+		/**
+		 * Trigger the categorisation of the agent.
+		 * @throws Exception on error
+		 */
+		void categorise() throws Exception;
+	}
+
+	/**
+	 * Creates the {@link Steps <em>Steps</em>} for a request.
+	 */
+	public interface StepsFactory {
+		/**
+		 * Create the steps.
+		 * @param request	the request values
+		 * @return	the steps
+		 * @throws Exception if the request is invalid
+		 */
+		Steps create(HashMap<String, String> request) throws Exception;
+	}
+
+	/**
+	 * Construct an instance running the {@link CauClient <em>CauClient</em>} stages.
+	 */
+	public RegistrationPipeline() {
+		this(CauClient::new, Boolean.getBoolean("mf2c.categorisation.enabled"));
+	}
+
+	/**
+	 * Construct an instance with the default executors and timeouts.  Key generation
+	 * runs on a pool sized to the processors, the network stages on a shared cached
+	 * pool and persistence on a single thread so that the pkidata files are written
+	 * one registration at a time.
+	 * <p>
+	 * @param factory			creates the stage implementations for a request
+	 * @param categorisation	true to run the categorisation stage
+	 */
+	public RegistrationPipeline(StepsFactory factory, boolean categorisation) {
+		this.factory = factory;
+		this.categorisation = categorisation;
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, daemonFactory("registration-timer"));
+		stpe.setRemoveOnCancelPolicy(true);
+		this.timer = stpe;
+		ExecutorService cpu = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonFactory("registration-keygen"));
+		ExecutorService io = Executors.newCachedThreadPool(daemonFactory("registration-io"));
+		ExecutorService files = Executors.newSingleThreadExecutor(daemonFactory("registration-persist"));
+		this.owned = new ExecutorService[] {cpu, io, files};
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			this.timeouts[stage.ordinal()] = stage.getTimeout();
+			this.executors[stage.ordinal()] = io;
+		}
+		this.executors[RegistrationStage.KEYGEN_CSR.ordinal()] = cpu;
+		this.executors[RegistrationStage.PERSISTENCE.ordinal()] = files;
+	}
+
+	/**
+	 * Set the executor and timeout of a stage.  An executor passed in is not shut down
+	 * by this pipeline.
+	 * <p>
+	 * @param stage			the stage
+	 * @param executor		the executor, or null to keep the current one
+	 * @param timeoutMillis	the timeout in milliseconds
+	 */
+	public synchronized void configure(RegistrationStage stage, Executor executor, long timeoutMillis) {
+		if(executor != null) {
+			this.executors[stage.ordinal()] = executor;
+		}
+		this.timeouts[stage.ordinal()] = timeoutMillis;
+	}
+
+	/**
+	 * Start a registration.
+	 * <p>
+	 * @param request	the request values
+	 * @return	a future completed with the outcome of every stage; it does not
+	 * 			complete exceptionally
+	 */
+	public CompletableFuture<RegistrationResult> submit(HashMap<String, String> request) {
+		long start = System.nanoTime();
+		String idKey = request.get("IDkey");
+		Outcome[] outcomes = new Outcome[RegistrationStage.values().length];
+		Steps steps;
+		try {
+			steps = this.factory.create(request);
+		} catch (Exception e) {
+			outcomes[RegistrationStage.KEYGEN_CSR.ordinal()] = new Outcome(RegistrationStage.KEYGEN_CSR, Status.FAILED, 0L,
+					"invalid request: " + e.getMessage());
+			return CompletableFuture.completedFuture(new RegistrationResult(idKey, outcomes, 0L));
+		}
+		X509Certificate held = null;
+		try {
+			held = steps.findHeldCertificate();
+		} catch (Exception e) {
+			LOGGER.warn("Error looking up the certificate held for " + idKey + ", enrolling: " + e.getMessage());
+		}
+		if(held != null) {
+			for(RegistrationStage stage : RegistrationStage.values()) {
+				outcomes[stage.ordinal()] = new Outcome(stage, Status.HELD, 0L, null);
+			}
+			long nanos = System.nanoTime() - start;
+			RegistrationResult result = new RegistrationResult(idKey, outcomes, nanos / 1000000L);
+			Metrics.getInstance().recordHeldRegistration(nanos);
+			LOGGER.info(result + ", certificate valid until " + held.getNotAfter());
+			return CompletableFuture.completedFuture(result);
+		}
+		CompletableFuture<byte[]> csr = stage(RegistrationStage.KEYGEN_CSR, steps::createRequest, outcomes);
+		CompletableFuture<X509Certificate> cert = csr.thenCompose(
+				m -> stage(RegistrationStage.CAU_ENROLMENT, () -> steps.enrol(m), outcomes));
+		CompletableFuture<Void> persisted = cert.thenCompose(c -> stage(RegistrationStage.PERSISTENCE, () -> {
+			steps.persist(c);
+			return null;
+		}, outcomes));
+		CompletableFuture<Void> verified = cert.thenCompose(c -> stage(RegistrationStage.LEADER_VERIFICATION, () -> {
+			steps.verifyWithLeader();
+			return null;
+		}, outcomes));
+		//allOf waits for both branches even if one fails, so both outcomes are recorded
+		CompletableFuture<Void> done = CompletableFuture.allOf(persisted, verified).thenCompose(v -> {
+			if(!this.categorisation) {
+				record(outcomes, new Outcome(RegistrationStage.CATEGORISATION, Status.DISABLED, 0L, null));
+				return CompletableFuture.completedFuture(null);
+			}
+			return stage(RegistrationStage.CATEGORISATION, () -> {
+				steps.categorise();
+				return null;
+			}, outcomes);
+		});
+		return done.handle((v, e) -> {
+			RegistrationResult result;
+			synchronized(outcomes) {
+				result = new RegistrationResult(idKey, outcomes, (System.nanoTime() - start) / 1000000L);
+			}
+			Metrics.getInstance().recordRegistration(System.nanoTime() - start, result.isSuccess());
+			LOGGER.info(result);
+			return result;
+		});
+	}
+
+	/**
+	 * Run a registration and wait for it to complete.
+	 * <p>
+	 * @param request	the request values
+	 * @throws RegistrationPipelineException naming the stage which failed or timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	@Override
+	public void register(HashMap<String, String> request) throws RegistrationPipelineException, InterruptedException {
+		RegistrationResult result;
+		try {
+			result = submit(request).get();
+		} catch (ExecutionException e) {
+			//not expected, the result future does not complete exceptionally
+			throw new RegistrationPipelineException("registration failed: " + e.getCause().getMessage(), e.getCause());
+		}
+		if(!result.isSuccess()) {
+			Outcome failure = result.getFailure();
+			throw new RegistrationPipelineException(failure.getStage() + " " + failure.getStatus() + ": " + failure.getError());
+		}
+	}
+
+	/**
+	 * Shut down the executors created by this pipeline.
+	 */
+	@Override
+	public void shutdown() {
+		for(ExecutorService es : this.owned) {
+			es.shutdown();
+		}
+		this.timer.shutdownNow();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Run a stage on its executor with its timeout, recording the outcome.
+	 * <p>
+	 * @param stage		the stage
+	 * @param task		the work
+	 * @param outcomes	the outcomes of the registration
+	 * @return	a future completed with the result of the work
+	 */
+	private <T> CompletableFuture<T> stage(RegistrationStage stage, Callable<T> task, Outcome[] outcomes) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		long start = System.nanoTime();
+		long timeout;
+		Executor executor;
+		synchronized(this) {
+			timeout = this.timeouts[stage.ordinal()];
+			executor = this.executors[stage.ordinal()];
+		}
+		FutureTask<Void> work = new FutureTask<Void>(() -> {
+			try {
+				future.complete(task.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+			return null;
+		});
+		ScheduledFuture<?> timeoutTask = this.timer.schedule(() -> {
+			if(future.completeExceptionally(new TimeoutException(stage + " timed out after " + timeout + "ms"))) {
+				work.cancel(true);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		//downstream stages depend on the returned future, so the outcome is recorded before they run
+		CompletableFuture<T> recorded = future.whenComplete((v, e) -> {
+			timeoutTask.cancel(false);
+			long nanos = System.nanoTime() - start;
+			long millis = nanos / 1000000L;
+			Metrics.getInstance().recordStage(stage, nanos);
+			if(e == null) {
+				record(outcomes, new Outcome(stage, Status.SUCCEEDED, millis, null));
+			} else {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				Status status = cause instanceof TimeoutException ? Status.TIMED_OUT : Status.FAILED;
+				record(outcomes, new Outcome(stage, status, millis, cause.getMessage()));
+				Metrics.getInstance().recordError(cause);
+				LOGGER.error("registration stage " + stage + " " + status + ": " + cause.getMessage());
+			}
+		});
+		try {
+			executor.execute(work);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new RejectedExecutionException(stage + " rejected: executor busy or shut down"));
+		}
+		return recorded;
+	}
+
+	/**
+	 * Record the outcome of a stage.
+	 * <p>
+	 * @param outcomes	the outcomes of the registration
+	 * @param outcome	the outcome
+	 */
+	private static void record(Outcome[] outcomes, Outcome outcome) {
+		synchronized(outcomes) {
+			outcomes[outcome.getStage().ordinal()] = outcome;
+		}
+	}
+
+	/**
+	 * Create a factory for named daemon threads.
+	 * <p>
+	 * @param name	the thread name prefix
+	 * @return	the factory
+	 */
+	private static ThreadFactory daemonFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+/**
+ * The outcome of each stage of a registration run by the
+ * {@link RegistrationPipeline <em>RegistrationPipeline</em>}.
+ */
+public class RegistrationResult {
+	/** agent id key attribute */
+	private final String idKey;
+	/** the stage outcomes indexed by stage ordinal */
+	private final Outcome[] outcomes;
+	/** total duration in milliseconds */
+	private final long millis;
+
+	/**
+	 * The status of a stage.
+	 */
+	public enum Status {
+		/** the stage completed */
+		SUCCEEDED,
+		/** the stage threw an exception */
+		FAILED,
+		/** the stage did not complete within its timeout */
+		TIMED_OUT,
+		/** the stage did not run because an earlier stage did not succeed */
+		SKIPPED,
+		/** the stage is switched off */
+		DISABLED,
+		/** the stage was not needed, a valid certificate is already held for the agent */
+		HELD
+	}
+
+	/**
+	 * The outcome of one stage.
+	 */
+	public static class Outcome {
+		/** the stage */
+		private final RegistrationStage stage;
+		/** the status */
+		private final Status status;
+		/** duration in milliseconds */
+		private final long millis;
+		/** error message, null on success */
+		private final String error;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param stage		the stage
+		 * @param status	the status
+		 * @param millis	the duration in milliseconds
+		 * @param error		the error message, null on success
+		 */
+		public Outcome(RegistrationStage stage, Status status, long millis, String error) {
+			this.stage = stage;
+			this.status = status;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		/**
+		 * Get the stage.
+		 * <p>
+		 * @return the stage
+		 */
+		public RegistrationStage getStage() {
+			return this.stage;
+		}
+
+		/**
+		 * Get the status.
+		 * <p>
+		 * @return the status
+		 */
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * Get the duration.
+		 * <p>
+		 * @return the duration in milliseconds
+		 */
+		public long getMillis() {
+			return this.millis;
+		}
+
+		/**
+		 * Get the error message.
+		 * <p>
+		 * @return the message, null on success
+		 */
+		public String getError() {
+			return this.error;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return this.stage + "=" + this.status + (this.status == Status.SKIPPED || this.status == Status.DISABLED || this.status == Status.HELD ? "" : "(" + this.millis + "ms)");
+		}
+	}
+
+	/**
+	 * Construct an instance.  Stages without an outcome are taken as skipped.
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param outcomes	the outcomes indexed by stage ordinal, may contain nulls
+	 * @param millis	the total duration in milliseconds
+	 */
+	public RegistrationResult(String idKey, Outcome[] outcomes, long millis) {
+		this.idKey = idKey;
+		this.millis = millis;
+		this.outcomes = new Outcome[RegistrationStage.values().length];
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			Outcome o = outcomes[stage.ordinal()];
+			this.outcomes[stage.ordinal()] = o != null ? o : new Outcome(stage, Status.SKIPPED, 0L, null);
+		}
+	}
+
+	/**
+	 * Get the agent id key.
+	 * <p>
+	 * @return the id key
+	 */
+	public String getIdKey() {
+		return this.idKey;
+	}
+
+	/**
+	 * Get the outcome of a stage.
+	 * <p>
+	 * @param stage	the stage
+	 * @return	the outcome
+	 */
+	public Outcome getOutcome(RegistrationStage stage) {
+		return this.outcomes[stage.ordinal()];
+	}
+
+	/**
+	 * Get the total duration.
+	 * <p>
+	 * @return the duration in milliseconds
+	 */
+	public long getMillis() {
+		return this.millis;
+	}
+
+	/**
+	 * Check if every enabled stage succeeded.
+	 * <p>
+	 * @return true on success
+	 */
+	public boolean isSuccess() {
+		return getFailure() == null;
+	}
+
+	/**
+	 * Check if the registration was answered with a certificate already held, without
+	 * running the stages.
+	 * <p>
+	 * @return true if it was
+	 */
+	public boolean isHeld() {
+		return this.outcomes[RegistrationStage.CAU_ENROLMENT.ordinal()].status == Status.HELD;
+	}
+
+	/**
+	 * Get the first stage which failed or timed out.
+	 * <p>
+	 * @return	the outcome, or null if none did
+	 */
+	public Outcome getFailure() {
+		for(Outcome o : this.outcomes) {
+			if(o.status == Status.FAILED || o.status == Status.TIMED_OUT) {
+				return o;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the message returned to the Policy block: OK, or the failed stage,
+	 * its status and error.
+	 * <p>
+	 * @return the reply message
+	 */
+	public String toReply() {
+		Outcome failure = getFailure();
+		if(failure == null) {
+			return "OK";
+		}
+		return "ERROR:" + failure.stage + " " + failure.status + ": " + failure.error;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("registration ").append(this.idKey).append(" took ").append(this.millis).append("ms:");
+		for(Outcome o : this.outcomes) {
+			sb.append(' ').append(o);
+		}
+		return sb.toString();
+	}
+}
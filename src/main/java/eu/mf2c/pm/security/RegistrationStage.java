@@ -0,0 +1,59 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * The stages of an agent registration run by the
+ * {@link RegistrationPipeline <em>RegistrationPipeline</em>}.  The default timeout
+ * of a stage can be overridden with the system property
+ * <code>mf2c.pipeline.timeout.&lt;STAGE&gt;</code> in milliseconds, e.g.
+ * <code>mf2c.pipeline.timeout.CAU_ENROLMENT=20000</code>.
+ */
+public enum RegistrationStage {
+	/** generate the agent keypair and CSR */
+	KEYGEN_CSR(30000),
+	/** obtain the agent certificate from the regional CAU */
+	CAU_ENROLMENT(60000),
+	/** write server.crt and the device ID to the pkidata directory */
+	PERSISTENCE(10000),
+	/** verify the agent certificate with a handshake with the leader CAU */
+	LEADER_VERIFICATION(30000),
+	/** trigger the local Categorisation block */
+	CATEGORISATION(10000);
+
+	/** default timeout in milliseconds */
+	private final long defaultTimeout;
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param defaultTimeout	the default timeout in milliseconds
+	 */
+	private RegistrationStage(long defaultTimeout) {
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	/**
+	 * Get the configured timeout.
+	 * <p>
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return Utils.getIntProperty("mf2c.pipeline.timeout." + name(), (int) this.defaultTimeout);
+	}
+}
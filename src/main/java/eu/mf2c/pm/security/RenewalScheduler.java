@@ -0,0 +1,408 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Re&#45;enrols the agent certificates held by the process before they expire.
+ * <p>
+ * The certificates are kept in a time&#45;ordered index of their renewal times, a
+ * configurable percentage of the certificate lifetime plus a random jitter of up to
+ * a further percentage, so that a fleet enrolled together does not renew against the
+ * regional CAU at the same moment.  A single daemon thread waits for the earliest
+ * renewal, takes a new keypair from the keypair pool and calls the
+ * {@link Renewer <em>Renewer</em>} registered with the certificate, normally
+ * {@link CauClient#renew(X509Certificate, KeyPair)}.  A failed renewal is retried with
+ * an exponential backoff of at least the retry delay, brought forward to half the
+ * remaining validity while that is longer, plus a random jitter of up to half the
+ * backoff so that a fleet does not retry against a recovering CAU in step.  Once the
+ * certificate has expired, it is retried at the longest backoff.
+ * <p>
+ * The new credential replaces the old one as a whole&#58; the key entry is swapped in
+ * a new key store snapshot, so the {@link SSLContextRegistry <em>SSLContextRegistry</em>}
+ * builds a new context for later connections while handshakes in progress complete
+ * with the context they started with.
+ */
+public class RenewalScheduler {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(RenewalScheduler.class);
+	/** default renewal point as a percentage of the certificate lifetime */
+	public static final int DEFAULT_RENEW_PERCENT = 67;
+	/** default maximum jitter added to the renewal point, as a percentage of the lifetime */
+	public static final int DEFAULT_JITTER_PERCENT = 10;
+	/** default delay before the first retry of a failed renewal, in milliseconds */
+	public static final int DEFAULT_RETRY_MILLIS = 60000;
+	/** longest backoff between retries of a failed renewal, in milliseconds */
+	public static final long MAX_RETRY_MILLIS = 3600000L;
+	/** the latest renewal point as a percentage of the lifetime */
+	private static final int MAX_PERCENT = 95;
+	/** the shared instance, created on first use */
+	private static volatile RenewalScheduler instance;
+	/** the StoreManagerSingleton providing the keypairs */
+	private final StoreManagerSingleton sms;
+	/** renewal point as a percentage of the lifetime */
+	private final int renewPercent;
+	/** maximum jitter as a percentage of the lifetime */
+	private final int jitterPercent;
+	/** delay before the first retry, in milliseconds */
+	private final long retryMillis;
+	/** the certificates by renewal time, guarded by this */
+	private final TreeSet<Held> byRenewal = new TreeSet<Held>();
+	/** the certificates by id key, guarded by this */
+	private final Map<String, Held> byIdKey = new HashMap<String, Held>();
+	/** the renewal thread, null until a certificate is held */
+	private Thread worker;
+	/** set on shut down, guarded by this */
+	private boolean stopped = false;
+	/** orders certificates with the same renewal time, guarded by this */
+	private long sequence = 0;
+	/** number of certificates renewed */
+	private final LongAdder renewals = new LongAdder();
+	/** number of failed renewal attempts */
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Obtains a new certificate for a new keypair.
+	 */
+	@FunctionalInterface
+	public interface Renewer {
+		/**
+		 * Enrol a new keypair, replacing the current certificate in the key store.
+		 * <p>
+		 * @param current	the certificate being replaced
+		 * @param keypair	the new keypair
+		 * @return	the new certificate
+		 * @throws Exception on error
+		 */
+		X509Certificate renew(X509Certificate current, KeyPair keypair) throws Exception;
+	}
+
+	/**
+	 * A held certificate and when to renew it.
+	 */
+	private static final class Held implements Comparable<Held> {
+		/** the agent id key */
+		final String idKey;
+		/** the certificate */
+		final X509Certificate cert;
+		/** renews the certificate */
+		final Renewer renewer;
+		/** the next renewal attempt, in milliseconds since the epoch */
+		final long renewAt;
+		/** failed attempts since the certificate was issued */
+		final int attempts;
+		/** orders entries with the same renewal time */
+		final long seq;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param idKey		the agent id key
+		 * @param cert		the certificate
+		 * @param renewer	renews the certificate
+		 * @param renewAt	the next attempt
+		 * @param attempts	failed attempts so far
+		 * @param seq		the sequence number
+		 */
+		Held(String idKey, X509Certificate cert, Renewer renewer, long renewAt, int attempts, long seq) {
+			this.idKey = idKey;
+			this.cert = cert;
+			this.renewer = renewer;
+			this.renewAt = renewAt;
+			this.attempts = attempts;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Held o) {
+			int c = Long.compare(this.renewAt, o.renewAt);
+			return c != 0 ? c : Long.compare(this.seq, o.seq);
+		}
+	}
+
+	/**
+	 * Construct a scheduler.
+	 * <p>
+	 * @param sms			the StoreManagerSingleton providing the keypairs
+	 * @param renewPercent	the renewal point as a percentage of the certificate lifetime
+	 * @param jitterPercent	the maximum jitter as a percentage of the lifetime
+	 * @param retryMillis	the delay before the first retry of a failed renewal
+	 */
+	public RenewalScheduler(StoreManagerSingleton sms, int renewPercent, int jitterPercent, long retryMillis) {
+		this.sms = sms;
+		this.renewPercent = Math.max(1, Math.min(renewPercent, MAX_PERCENT));
+		this.jitterPercent = Math.max(0, Math.min(jitterPercent, MAX_PERCENT - this.renewPercent));
+		this.retryMillis = Math.max(1L, retryMillis);
+	}
+
+	/**
+	 * Get the shared scheduler, configured by the <code>mf2c.renewal.percent</code>,
+	 * <code>mf2c.renewal.jitterPercent</code> and <code>mf2c.renewal.retryMillis</code>
+	 * system properties.
+	 * <p>
+	 * @return	the scheduler
+	 * @throws StoreManagerSingletonException on error creating the StoreManagerSingleton
+	 */
+	public static RenewalScheduler getInstance() throws StoreManagerSingletonException {
+		RenewalScheduler rs = instance;
+		if(rs == null) {
+			StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+			synchronized(RenewalScheduler.class) {
+				rs = instance;
+				if(rs == null) {
+					rs = new RenewalScheduler(sms, Utils.getIntProperty("mf2c.renewal.percent", DEFAULT_RENEW_PERCENT),
+							Utils.getIntProperty("mf2c.renewal.jitterPercent", DEFAULT_JITTER_PERCENT),
+							Utils.getIntProperty("mf2c.renewal.retryMillis", DEFAULT_RETRY_MILLIS));
+					instance = rs;
+				}
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Hold a certificate for renewal, replacing any certificate held for the id key.
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param cert		the certificate
+	 * @param renewer	renews the certificate
+	 * @return	the renewal time, in milliseconds since the epoch
+	 */
+	public synchronized long track(String idKey, X509Certificate cert, Renewer renewer) {
+		Held previous = this.byIdKey.get(idKey);
+		if(previous != null && previous.cert.equals(cert)) {
+			return previous.renewAt;
+		}
+		long notBefore = cert.getNotBefore().getTime();
+		long lifetime = Math.max(0L, cert.getNotAfter().getTime() - notBefore);
+		long jitter = this.jitterPercent == 0 ? 0L : ThreadLocalRandom.current().nextLong(lifetime * this.jitterPercent / 100L + 1L);
+		long renewAt = notBefore + lifetime * this.renewPercent / 100L + jitter;
+		replace(previous, new Held(idKey, cert, renewer, renewAt, 0, this.sequence++));
+		LOGGER.debug("Renewal of " + idKey + " certificate expiring " + cert.getNotAfter() + " due in "
+				+ (renewAt - System.currentTimeMillis()) / 1000L + "s");
+		return renewAt;
+	}
+
+	/**
+	 * Stop renewing the certificate held for an id key.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	true if a certificate was held
+	 */
+	public synchronized boolean untrack(String idKey) {
+		Held held = this.byIdKey.remove(idKey);
+		if(held == null) {
+			return false;
+		}
+		this.byRenewal.remove(held);
+		return true;
+	}
+
+	/**
+	 * Get the certificate held for an id key.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	the certificate, or null if none is held
+	 */
+	public synchronized X509Certificate getCertificate(String idKey) {
+		Held held = this.byIdKey.get(idKey);
+		return held != null ? held.cert : null;
+	}
+
+	/**
+	 * Get the next renewal time of the certificate held for an id key.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @return	the time in milliseconds since the epoch, or -1 if none is held
+	 */
+	public synchronized long getRenewalTime(String idKey) {
+		Held held = this.byIdKey.get(idKey);
+		return held != null ? held.renewAt : -1L;
+	}
+
+	/**
+	 * Get the earliest renewal time of the held certificates.
+	 * <p>
+	 * @return	the time in milliseconds since the epoch, or -1 if none is held
+	 */
+	public synchronized long getNextRenewalTime() {
+		return this.byRenewal.isEmpty() ? -1L : this.byRenewal.first().renewAt;
+	}
+
+	/**
+	 * Get the number of certificates held.
+	 * <p>
+	 * @return	the number of certificates
+	 */
+	public synchronized int size() {
+		return this.byIdKey.size();
+	}
+
+	/**
+	 * Get the number of certificates renewed.
+	 * <p>
+	 * @return	the renewal count
+	 */
+	public long getRenewals() {
+		return this.renewals.sum();
+	}
+
+	/**
+	 * Get the number of failed renewal attempts.
+	 * <p>
+	 * @return	the failure count
+	 */
+	public long getFailures() {
+		return this.failures.sum();
+	}
+
+	/**
+	 * Get the delay before retrying a failed renewal.  The backoff doubles with each
+	 * attempt from the retry delay up to {@link #MAX_RETRY_MILLIS}, is brought forward to
+	 * half the remaining validity but never below the retry delay, and is the longest
+	 * backoff once the certificate has expired.  A random jitter of up to half the backoff
+	 * is added.
+	 * <p>
+	 * @param cert		the certificate which failed to renew
+	 * @param attempts	failed attempts before this one
+	 * @param now		the current time, in milliseconds since the epoch
+	 * @return	the delay in milliseconds
+	 */
+	public long getRetryDelay(X509Certificate cert, int attempts, long now) {
+		long longest = Math.max(this.retryMillis, MAX_RETRY_MILLIS);
+		long remaining = cert.getNotAfter().getTime() - now;
+		long backoff;
+		if(remaining <= 0L) {
+			backoff = longest;
+		} else {
+			backoff = Math.min(this.retryMillis << Math.min(attempts, 16), longest);
+			backoff = Math.max(Math.min(backoff, remaining / 2L), this.retryMillis);
+		}
+		return backoff + ThreadLocalRandom.current().nextLong(backoff / 2L + 1L);
+	}
+
+	/**
+	 * Stop the renewal thread.  A renewal in progress completes.
+	 */
+	public synchronized void shutdown() {
+		this.stopped = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RenewalScheduler: held=" + this.byIdKey.size() + ", renewed=" + getRenewals() + ", failed="
+				+ getFailures() + ", next=" + getNextRenewalTime();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Replace the index entry of an id key and wake the renewal thread, starting it if
+	 * necessary.  Called holding the lock.
+	 * <p>
+	 * @param previous	the entry replaced, or null
+	 * @param held		the new entry
+	 */
+	private void replace(Held previous, Held held) {
+		if(previous != null) {
+			this.byRenewal.remove(previous);
+		}
+		this.byIdKey.put(held.idKey, held);
+		this.byRenewal.add(held);
+		if(this.worker == null && !this.stopped) {
+			this.worker = new Thread(this::runRenewals, "certificate-renewal");
+			this.worker.setDaemon(true);
+			this.worker.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Renew the certificates as they fall due until shut down.
+	 */
+	private void runRenewals() {
+		while(true) {
+			Held due;
+			synchronized(this) {
+				due = null;
+				while(due == null) {
+					if(this.stopped) {
+						return;
+					}
+					long wait = this.byRenewal.isEmpty() ? 0L : this.byRenewal.first().renewAt - System.currentTimeMillis();
+					if(!this.byRenewal.isEmpty() && wait <= 0) {
+						due = this.byRenewal.first();
+					} else {
+						try {
+							wait(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+			renew(due);
+		}
+	}
+
+	/**
+	 * Renew a certificate, rescheduling it after a failure.
+	 * <p>
+	 * @param due	the entry due for renewal
+	 */
+	private void renew(Held due) {
+		long start = System.currentTimeMillis();
+		try {
+			KeyPair kp = this.sms.takeKeyPair();
+			X509Certificate cert = due.renewer.renew(due.cert, kp);
+			this.renewals.increment();
+			LOGGER.info("Renewed " + due.idKey + " certificate in " + (System.currentTimeMillis() - start)
+					+ "ms, it now expires " + cert.getNotAfter());
+			synchronized(this) {
+				//keep a newer certificate tracked while the renewal ran
+				if(this.byIdKey.get(due.idKey) == due) {
+					this.byIdKey.remove(due.idKey);
+					this.byRenewal.remove(due);
+				}
+			}
+			track(due.idKey, cert, due.renewer);
+		} catch (Exception e) {
+			this.failures.increment();
+			Metrics.getInstance().recordError(e);
+			long now = System.currentTimeMillis();
+			long delay = getRetryDelay(due.cert, due.attempts, now);
+			LOGGER.error("Error renewing " + due.idKey + " certificate (attempt " + (due.attempts + 1) + "), retrying in "
+					+ delay + "ms: " + e.getMessage());
+			synchronized(this) {
+				if(this.byIdKey.get(due.idKey) == due) {
+					replace(due, new Held(due.idKey, due.cert, due.renewer, now + delay, due.attempts + 1, this.sequence++));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.Exception.CircuitOpenException;
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * Retries an outbound call which fails with a transient I/O error: a refused, reset
+ * or dropped connection or a timeout.  The wait before each retry is drawn at random
+ * up to an exponentially growing cap (full jitter), so agents which lost the same CAU
+ * do not come back in step.  No retry starts after the {@link Deadline <em>Deadline</em>},
+ * and calls to an endpoint whose {@link CircuitBreaker <em>CircuitBreaker</em>} is open
+ * fail at once.  TLS errors other than a dropped connection, e.g. an untrusted
+ * certificate, are not retried.
+ * <p>
+ * The policy for the CAU calls is configured with <code>-Dmf2c.cau.retries</code> (2),
+ * <code>-Dmf2c.cau.backoffMillis</code> (500) and <code>-Dmf2c.cau.maxBackoffMillis</code>
+ * (10000).
+ */
+public class RetryPolicy {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(RetryPolicy.class);
+	/** maximum number of retries */
+	private final int retries;
+	/** the wait cap of the first retry in milliseconds */
+	private final long backoffMillis;
+	/** the largest wait cap in milliseconds */
+	private final long maxBackoffMillis;
+
+	/**
+	 * An outbound call.
+	 * @param <T> the result type
+	 */
+	public interface Call<T> {
+		/**
+		 * Make the call.
+		 * @return	the result
+		 * @throws Exception on error, only an {@link IOException} may be retried
+		 */
+		T call() throws Exception;
+	}
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param retries			the maximum number of retries
+	 * @param backoffMillis		the wait cap of the first retry in milliseconds, doubled for each retry
+	 * @param maxBackoffMillis	the largest wait cap in milliseconds
+	 */
+	public RetryPolicy(int retries, long backoffMillis, long maxBackoffMillis) {
+		this.retries = Math.max(0, retries);
+		this.backoffMillis = Math.max(1L, backoffMillis);
+		this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+	}
+
+	/**
+	 * Get the policy for the regional and leader CAU calls, configured with the system
+	 * properties.
+	 * <p>
+	 * @return the policy
+	 */
+	public static RetryPolicy forCau() {
+		return new RetryPolicy(Utils.getIntProperty("mf2c.cau.retries", 2), Utils.getIntProperty("mf2c.cau.backoffMillis", 500),
+				Utils.getIntProperty("mf2c.cau.maxBackoffMillis", 10000));
+	}
+
+	/**
+	 * Make a call whose endpoints have circuit breakers of their own, e.g. through a
+	 * {@link CauEndpointSelector <em>CauEndpointSelector</em>}, retrying transient failures.
+	 * <p>
+	 * @param what		a description of the call, for the log
+	 * @param deadline	the deadline
+	 * @param call		the call
+	 * @return	the result
+	 * @throws Exception	the error of the last attempt, or an {@link InterruptedIOException
+	 * 			<em>InterruptedIOException</em>} if interrupted while waiting to retry
+	 */
+	public <T> T execute(String what, Deadline deadline, Call<T> call) throws Exception {
+		return execute(what, deadline, null, call);
+	}
+
+	/**
+	 * Make a call, retrying transient failures.
+	 * <p>
+	 * @param what		a description of the call, for the log
+	 * @param deadline	the deadline
+	 * @param breaker	the circuit breaker of the endpoint, or null if there is none
+	 * @param call		the call
+	 * @return	the result
+	 * @throws Exception	the error of the last attempt, a {@link CircuitOpenException
+	 * 			<em>CircuitOpenException</em>} if the circuit is open, or an
+	 * 			{@link InterruptedIOException <em>InterruptedIOException</em>} if
+	 * 			interrupted while waiting to retry
+	 */
+	public <T> T execute(String what, Deadline deadline, CircuitBreaker breaker, Call<T> call) throws Exception {
+		for(int attempt = 0; ; attempt++) {
+			if(breaker != null && !breaker.allowRequest()) {
+				throw new CircuitOpenException(what + " not attempted, " + breaker);
+			}
+			IOException error;
+			try {
+				T result = call.call();
+				if(breaker != null) {
+					breaker.recordSuccess();
+				}
+				return result;
+			} catch (IOException e) {
+				if(breaker != null) {
+					breaker.recordFailure();
+				}
+				error = e;
+			} catch (Exception e) {
+				if(breaker != null) {
+					breaker.recordFailure();
+				}
+				throw e;
+			}
+			if(attempt >= this.retries || !isRetryable(error)) {
+				throw error;
+			}
+			long wait = backoff(attempt);
+			if(wait >= deadline.remainingMillis()) {
+				LOGGER.warn(what + " failed and the deadline does not allow a retry: " + error.getMessage());
+				throw error;
+			}
+			LOGGER.warn(what + " failed, retrying in " + wait + "ms: " + error.getMessage());
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				InterruptedIOException iioe = new InterruptedIOException(what + " interrupted waiting to retry");
+				iioe.initCause(error);
+				throw iioe;
+			}
+		}
+	}
+
+	/**
+	 * Get the wait before a retry.
+	 * <p>
+	 * @param retry	the number of retries already made
+	 * @return	a random wait between 1 and the cap for the retry, in milliseconds
+	 */
+	public long backoff(int retry) {
+		long cap = retry >= 30 ? this.maxBackoffMillis : Math.min(this.maxBackoffMillis, this.backoffMillis << retry);
+		return 1L + ThreadLocalRandom.current().nextLong(cap);
+	}
+
+	/**
+	 * Check if a failure is transient.
+	 * <p>
+	 * @param e	the error
+	 * @return	true if it is worth retrying
+	 */
+	public static boolean isRetryable(IOException e) {
+		if(e instanceof CircuitOpenException || (e instanceof InterruptedIOException && Thread.currentThread().isInterrupted())) {
+			return false;
+		}
+		if(e instanceof SSLException) {
+			//a handshake cut short by the peer, not a rejected certificate
+			for(Throwable t = e.getCause(); t != null && t != t.getCause(); t = t.getCause()) {
+				if(t instanceof EOFException || t instanceof SocketException || t instanceof InterruptedIOException) {
+					return true;
+				}
+			}
+			return e.getMessage() != null && e.getMessage().contains("closed");
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy: retries=" + this.retries + ", backoff=" + this.backoffMillis + "ms, max=" + this.maxBackoffMillis + "ms";
+	}
+}
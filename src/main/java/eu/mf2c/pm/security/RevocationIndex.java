@@ -0,0 +1,648 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.Extension;
+
+import eu.mf2c.pm.security.util.Utils;
+
+/**
+ * An in&#45;memory index of the certificate serials revoked by each issuer, loaded from
+ * the CRL files, DER or PEM with the <code>.crl</code> suffix, dropped into the pkidata
+ * volume or the directory set with <code>-Dmf2c.crl.dir</code>.  A CRL is only used if
+ * it is signed by a CA certificate in the trust store.  For each issuer the newest
+ * complete CRL is used, with the newest delta CRL based on it, whose
+ * <code>removeFromCRL</code> entries take serials off the list.
+ * <p>
+ * The revoked serials of an issuer are kept in a sorted array behind a Bloom filter.
+ * A check of a certificate which is not revoked, the usual case, is a hash map lookup
+ * and a few bit tests without allocation; only a Bloom filter hit is confirmed by a
+ * binary search.  The index is replaced as a whole when it changes, so the checks take
+ * no lock.
+ * <p>
+ * The directory is scanned every <code>-Dmf2c.crl.refreshSeconds</code> (60).  The
+ * refresh is incremental: only new or changed files are parsed, and only the issuers
+ * whose CRLs were added, changed or removed, or whose CA has since been added to the
+ * trust store, are rebuilt.
+ * <p>
+ * The {@link SSLContextRegistry <em>SSLContextRegistry</em>} checks the CAU and leader CAU
+ * certificate chains in the trust manager on a full handshake, and on a resumed
+ * handshake when the socket is opened.  Indirect CRLs are not supported.
+ */
+public class RevocationIndex {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(RevocationIndex.class);
+	/** the suffix of the CRL files */
+	public static final String CRL_SUFFIX = ".crl";
+	/** default refresh interval in seconds */
+	public static final int DEFAULT_REFRESH_SECONDS = 60;
+	/** Bloom filter bits per revoked serial */
+	private static final int BITS_PER_SERIAL = 16;
+	/** Bloom filter probes per serial, about 0.25% false positives at 16 bits per serial */
+	private static final int PROBES = 4;
+	/** the shared instance */
+	private static volatile RevocationIndex instance;
+	/** supplies the CRL directory */
+	private final Supplier<Path> directory;
+	/** supplies the trusted CA certificates which sign the CRLs */
+	private final Supplier<TrustAnchorIndex> anchors;
+	/** the revoked serials by issuer, replaced as a whole on a change */
+	private volatile Map<X500Principal, Issuer> issuers = Collections.emptyMap();
+	/** the CRL files loaded, guarded by this */
+	private final Map<Path, CrlFile> files = new HashMap<Path, CrlFile>();
+	/** the trust store version the CRL signatures were last checked against, guarded by this */
+	private long trustVersion = -1;
+	/** runs the refreshes, null if not scheduled */
+	private ScheduledExecutorService timer;
+	/** number of certificates checked */
+	private final LongAdder checks = new LongAdder();
+	/** number of revoked certificates found */
+	private final LongAdder revoked = new LongAdder();
+	/** number of Bloom filter hits which were not revoked */
+	private final LongAdder falsePositives = new LongAdder();
+	/** number of refreshes */
+	private final LongAdder refreshes = new LongAdder();
+	/** number of CRL files parsed */
+	private final LongAdder parses = new LongAdder();
+
+	/**
+	 * The revoked serials of one issuer.
+	 */
+	private static final class Issuer {
+		/** the revoked serials, sorted */
+		final BigInteger[] serials;
+		/** the revocation dates, in serial order */
+		final Date[] dates;
+		/** the revocation reasons, in serial order */
+		final CRLReason[] reasons;
+		/** the Bloom filter */
+		final long[] bloom;
+		/** the Bloom filter bit index mask */
+		final int mask;
+		/** the CRL files used */
+		final String source;
+
+		/**
+		 * Constructor
+		 * @param entries	the revoked entries by serial
+		 * @param source	the CRL files used
+		 */
+		Issuer(TreeMap<BigInteger, X509CRLEntry> entries, String source) {
+			int n = entries.size();
+			this.serials = new BigInteger[n];
+			this.dates = new Date[n];
+			this.reasons = new CRLReason[n];
+			int bits = Integer.highestOneBit(Math.max(64, n * BITS_PER_SERIAL - 1) << 1);
+			this.bloom = new long[bits >>> 6];
+			this.mask = bits - 1;
+			this.source = source;
+			int i = 0;
+			for(Map.Entry<BigInteger, X509CRLEntry> e : entries.entrySet()) {
+				this.serials[i] = e.getKey();
+				this.dates[i] = e.getValue().getRevocationDate();
+				this.reasons[i] = e.getValue().getRevocationReason();
+				long h = hash(e.getKey());
+				int h1 = (int) h;
+				int h2 = (int) (h >>> 32) | 1;
+				for(int p = 0; p < PROBES; p++) {
+					int bit = (h1 + p * h2) & this.mask;
+					this.bloom[bit >>> 6] |= 1L << bit;
+				}
+				i++;
+			}
+		}
+
+		/**
+		 * Check the Bloom filter.
+		 * @param h	the serial hash
+		 * @return	false if the serial is certainly not revoked
+		 */
+		boolean mightContain(long h) {
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+			for(int p = 0; p < PROBES; p++) {
+				int bit = (h1 + p * h2) & this.mask;
+				if((this.bloom[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A CRL file.
+	 */
+	private static final class CrlFile {
+		/** the file */
+		final Path path;
+		/** the modification time when read */
+		final long modified;
+		/** the size when read */
+		final long size;
+		/** the CRL, null if it could not be read */
+		final X509CRL crl;
+		/** the CRL number, or null */
+		final BigInteger number;
+		/** the base CRL number of a delta CRL, or null for a complete CRL */
+		final BigInteger base;
+		/** true once the signature is verified */
+		boolean verified;
+
+		/**
+		 * Constructor
+		 * @param path		the file
+		 * @param modified	the modification time
+		 * @param size		the size
+		 * @param crl		the CRL, or null
+		 */
+		CrlFile(Path path, long modified, long size, X509CRL crl) {
+			this.path = path;
+			this.modified = modified;
+			this.size = size;
+			this.crl = crl;
+			this.number = crl == null ? null : extensionInteger(crl, Extension.cRLNumber.getId());
+			this.base = crl == null ? null : extensionInteger(crl, Extension.deltaCRLIndicator.getId());
+		}
+
+		/**
+		 * Check if this CRL is newer than another of the same kind.
+		 * @param other	the other CRL, or null
+		 * @return	true if newer
+		 */
+		boolean isNewerThan(CrlFile other) {
+			if(other == null) {
+				return true;
+			}
+			if(this.number != null && other.number != null) {
+				return this.number.compareTo(other.number) > 0;
+			}
+			return this.crl.getThisUpdate().after(other.crl.getThisUpdate());
+		}
+	}
+
+	/**
+	 * Construct an instance.  Nothing is loaded until {@link #refresh()} is called.
+	 * <p>
+	 * @param directory	supplies the directory holding the CRL files
+	 * @param anchors	supplies the trusted CA certificates, or null if there are none yet
+	 */
+	public RevocationIndex(Supplier<Path> directory, Supplier<TrustAnchorIndex> anchors) {
+		this.directory = directory;
+		this.anchors = anchors;
+	}
+
+	/**
+	 * Get the shared instance, loading the CRLs of the pkidata volume, or of the
+	 * directory set with <code>-Dmf2c.crl.dir</code>, on first use and scheduling the
+	 * refreshes.  The CRL signatures are checked against the trust store of the
+	 * {@link StoreManagerSingleton <em>StoreManagerSingleton</em>} once it is created.
+	 * <p>
+	 * @return	the instance
+	 */
+	public static RevocationIndex getInstance() {
+		RevocationIndex index = instance;
+		if(index == null) {
+			synchronized(RevocationIndex.class) {
+				index = instance;
+				if(index == null) {
+					index = new RevocationIndex(() -> Paths.get(System.getProperty("mf2c.crl.dir", StoreManagerSingleton.getDataPath())), () -> {
+						try {
+							return StoreManagerSingleton.isInstantiated() ? StoreManagerSingleton.getInstance().getTrustAnchorIndex() : null;
+						} catch (Exception e) {
+							LOGGER.warn("no trust store to check the CRLs against: " + e.getMessage());
+							return null;
+						}
+					});
+					index.refresh();
+					index.schedule(Utils.getIntProperty("mf2c.crl.refreshSeconds", DEFAULT_REFRESH_SECONDS));
+					instance = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Check if a certificate is revoked.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	true if a CRL of its issuer lists its serial
+	 */
+	public boolean isRevoked(X509Certificate cert) {
+		this.checks.increment();
+		Map<X500Principal, Issuer> current = this.issuers;
+		return !current.isEmpty() && find(current.get(cert.getIssuerX500Principal()), cert) >= 0;
+	}
+
+	/**
+	 * Check that no certificate of a chain is revoked.
+	 * <p>
+	 * @param chain	the chain, the end entity first
+	 * @throws CertificateRevokedException if one is revoked
+	 */
+	public void checkChain(X509Certificate[] chain) throws CertificateRevokedException {
+		Map<X500Principal, Issuer> current = this.issuers;
+		if(chain == null) {
+			return;
+		}
+		for(X509Certificate cert : chain) {
+			this.checks.increment();
+			if(current.isEmpty()) {
+				continue;
+			}
+			Issuer issuer = current.get(cert.getIssuerX500Principal());
+			int i = find(issuer, cert);
+			if(i >= 0) {
+				LOGGER.error("certificate " + cert.getSubjectX500Principal() + " serial " + cert.getSerialNumber().toString(16)
+						+ " is revoked by " + cert.getIssuerX500Principal() + " in " + issuer.source);
+				throw new CertificateRevokedException(issuer.dates[i],
+						issuer.reasons[i] == null ? CRLReason.UNSPECIFIED : issuer.reasons[i],
+						cert.getIssuerX500Principal(), Collections.emptyMap());
+			}
+		}
+	}
+
+	/**
+	 * Scan the directory, parse the new and changed CRL files and rebuild the issuers
+	 * whose CRLs changed.
+	 * <p>
+	 * @return	the number of issuers rebuilt
+	 */
+	public synchronized int refresh() {
+		long start = System.nanoTime();
+		this.refreshes.increment();
+		Set<X500Principal> changed = new HashSet<X500Principal>();
+		Set<Path> seen = new HashSet<Path>();
+		Path dir = this.directory.get();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + CRL_SUFFIX)) {
+			for(Path p : stream) {
+				seen.add(p);
+				long modified = Files.getLastModifiedTime(p).toMillis();
+				long size = Files.size(p);
+				CrlFile previous = this.files.get(p);
+				if(previous != null && previous.modified == modified && previous.size == size) {
+					continue;
+				}
+				CrlFile f = new CrlFile(p, modified, size, read(p));
+				this.files.put(p, f);
+				this.parses.increment();
+				if(previous != null && previous.crl != null) {
+					changed.add(previous.crl.getIssuerX500Principal());
+				}
+				if(f.crl != null) {
+					changed.add(f.crl.getIssuerX500Principal());
+				}
+			}
+		} catch (NoSuchFileException e) {
+			LOGGER.debug("no CRL directory " + dir);
+		} catch (IOException e) {
+			//keep the CRLs already loaded
+			LOGGER.error("error scanning the CRL directory " + dir + ": " + e.getMessage());
+			return 0;
+		}
+		for(Iterator<CrlFile> it = this.files.values().iterator(); it.hasNext(); ) {
+			CrlFile f = it.next();
+			if(!seen.contains(f.path)) {
+				it.remove();
+				if(f.crl != null) {
+					changed.add(f.crl.getIssuerX500Principal());
+				}
+			}
+		}
+		verify(changed);
+		if(changed.isEmpty()) {
+			return 0;
+		}
+		Map<X500Principal, Issuer> next = new HashMap<X500Principal, Issuer>(this.issuers);
+		int rebuilt = 0;
+		for(X500Principal name : changed) {
+			Issuer issuer = build(name);
+			Issuer previous = issuer == null ? next.remove(name) : next.put(name, issuer);
+			if(issuer != null || previous != null) {
+				rebuilt++;
+			}
+		}
+		if(rebuilt > 0) {
+			this.issuers = next;
+			LOGGER.info(String.format("rebuilt the revoked serials of %d issuers in %.2fms; %s", rebuilt, (System.nanoTime() - start) / 1e6, this));
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * Refresh at a fixed interval on a daemon thread.
+	 * <p>
+	 * @param seconds	the interval, 0 or less for none
+	 */
+	public synchronized void schedule(int seconds) {
+		if(this.timer != null || seconds <= 0) {
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "crl-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		this.timer.scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (RuntimeException e) {
+				LOGGER.error("error refreshing the CRLs: " + e.getMessage(), e);
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the scheduled refreshes.
+	 */
+	public synchronized void shutdown() {
+		if(this.timer != null) {
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Get the number of issuers with revoked serials.
+	 * <p>
+	 * @return	the issuer count
+	 */
+	public int getIssuerCount() {
+		return this.issuers.size();
+	}
+
+	/**
+	 * Get the number of revoked serials held.
+	 * <p>
+	 * @return	the serial count
+	 */
+	public int getSerialCount() {
+		int n = 0;
+		for(Issuer issuer : this.issuers.values()) {
+			n += issuer.serials.length;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the number of certificates checked.
+	 * <p>
+	 * @return	the check count
+	 */
+	public long getChecks() {
+		return this.checks.sum();
+	}
+
+	/**
+	 * Get the number of revoked certificates found.
+	 * <p>
+	 * @return	the revoked count
+	 */
+	public long getRevokedCount() {
+		return this.revoked.sum();
+	}
+
+	/**
+	 * Get the number of Bloom filter hits which the sorted array showed were not revoked.
+	 * <p>
+	 * @return	the false positive count
+	 */
+	public long getFalsePositives() {
+		return this.falsePositives.sum();
+	}
+
+	/**
+	 * Get the number of CRL files parsed.
+	 * <p>
+	 * @return	the parse count
+	 */
+	public long getParseCount() {
+		return this.parses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "issuers=" + getIssuerCount() + ", revoked serials=" + getSerialCount() + ", checks=" + this.checks.sum()
+			+ ", revoked=" + this.revoked.sum() + ", false positives=" + this.falsePositives.sum()
+			+ ", refreshes=" + this.refreshes.sum() + ", files parsed=" + this.parses.sum();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Find the revoked entry of a certificate.
+	 * <p>
+	 * @param issuer	the revoked serials of its issuer, or null if there are none
+	 * @param cert		the certificate
+	 * @return	the index of the entry in the issuer, or &#45;1 if not revoked
+	 */
+	private int find(Issuer issuer, X509Certificate cert) {
+		if(issuer == null) {
+			return -1;
+		}
+		BigInteger serial = cert.getSerialNumber();
+		if(!issuer.mightContain(hash(serial))) {
+			return -1;
+		}
+		int i = Arrays.binarySearch(issuer.serials, serial);
+		if(i < 0) {
+			this.falsePositives.increment();
+			return -1;
+		}
+		this.revoked.increment();
+		return i;
+	}
+
+	/**
+	 * Check the signatures of the CRLs not yet verified, of the changed issuers or of
+	 * all issuers if the trust store has changed.  The issuers of the CRLs newly
+	 * verified are added to the changed issuers.
+	 * <p>
+	 * @param changed	the changed issuers
+	 */
+	private void verify(Set<X500Principal> changed) {
+		TrustAnchorIndex trusted = this.anchors.get();
+		long version = trusted == null ? -1 : trusted.getVersion();
+		boolean trustChanged = version != this.trustVersion;
+		this.trustVersion = version;
+		for(CrlFile f : this.files.values()) {
+			if(f.crl == null || f.verified) {
+				continue;
+			}
+			X500Principal name = f.crl.getIssuerX500Principal();
+			if(!trustChanged && !changed.contains(name)) {
+				continue;
+			}
+			if(trusted != null) {
+				for(X509Certificate ca : trusted.getBySubject(name)) {
+					try {
+						f.crl.verify(ca.getPublicKey());
+						f.verified = true;
+						changed.add(name);
+						break;
+					} catch (GeneralSecurityException e) {
+						//try the next CA of that name, e.g. during a key rollover
+					}
+				}
+			}
+			if(!f.verified) {
+				LOGGER.warn("CRL " + f.path + " of " + name + " is not signed by a trusted CA, ignored");
+			}
+		}
+	}
+
+	/**
+	 * Build the revoked serials of an issuer from its newest verified complete CRL and
+	 * the newest verified delta CRL based on it.
+	 * <p>
+	 * @param name	the issuer
+	 * @return	the revoked serials, or null if there is no verified complete CRL
+	 */
+	private Issuer build(X500Principal name) {
+		CrlFile full = null;
+		for(CrlFile f : this.files.values()) {
+			if(f.verified && f.base == null && f.crl.getIssuerX500Principal().equals(name) && f.isNewerThan(full)) {
+				full = f;
+			}
+		}
+		if(full == null) {
+			return null;
+		}
+		CrlFile delta = null;
+		if(full.number != null) {
+			for(CrlFile f : this.files.values()) {
+				if(f.verified && f.base != null && f.number != null && f.crl.getIssuerX500Principal().equals(name)
+						&& f.base.compareTo(full.number) <= 0 && f.number.compareTo(full.number) > 0 && f.isNewerThan(delta)) {
+					delta = f;
+				}
+			}
+		}
+		TreeMap<BigInteger, X509CRLEntry> entries = new TreeMap<BigInteger, X509CRLEntry>();
+		List<CrlFile> used = new ArrayList<CrlFile>(2);
+		used.add(full);
+		if(delta != null) {
+			used.add(delta);
+		}
+		for(CrlFile f : used) {
+			Date nextUpdate = f.crl.getNextUpdate();
+			if(nextUpdate != null && nextUpdate.before(new Date())) {
+				LOGGER.warn("CRL " + f.path + " of " + name + " was due to be replaced on " + nextUpdate + ", still using it");
+			}
+			Set<? extends X509CRLEntry> revokedCerts = f.crl.getRevokedCertificates();
+			if(revokedCerts == null) {
+				continue;
+			}
+			for(X509CRLEntry e : revokedCerts) {
+				if(e.getRevocationReason() == CRLReason.REMOVE_FROM_CRL) {
+					entries.remove(e.getSerialNumber());
+				} else {
+					entries.put(e.getSerialNumber(), e);
+				}
+			}
+		}
+		return new Issuer(entries, delta == null ? full.path.getFileName().toString()
+				: full.path.getFileName() + " and " + delta.path.getFileName());
+	}
+
+	/**
+	 * Read a CRL file.
+	 * <p>
+	 * @param path	the file
+	 * @return	the CRL, or null on error
+	 */
+	private static X509CRL read(Path path) {
+		try (InputStream in = Files.newInputStream(path)) {
+			return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(in);
+		} catch (IOException | GeneralSecurityException e) {
+			LOGGER.error("error reading CRL " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get an integer extension of a CRL.
+	 * <p>
+	 * @param crl	the CRL
+	 * @param oid	the extension OID
+	 * @return	the value, or null if absent or malformed
+	 */
+	private static BigInteger extensionInteger(X509CRL crl, String oid) {
+		byte[] value = crl.getExtensionValue(oid);
+		if(value == null) {
+			return null;
+		}
+		try {
+			return ASN1Integer.getInstance(ASN1OctetString.getInstance(value).getOctets()).getValue();
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("malformed CRL extension " + oid + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Hash a serial for the Bloom filter without allocating.
+	 * <p>
+	 * @param serial	the serial
+	 * @return	the hash
+	 */
+	private static long hash(BigInteger serial) {
+		long h = ((long) serial.hashCode() << 32) ^ serial.longValue();
+		//the MurmurHash3 finaliser
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
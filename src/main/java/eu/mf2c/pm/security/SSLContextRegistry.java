@@ -0,0 +1,744 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import eu.mf2c.pm.security.util.Utils;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A process&#45;wide registry of {@link javax.net.ssl.SSLContext <em>SSLContext</em>} objects,
+ * one per connection role.  A context is built on first use and reused until the
+ * trust store managed by the {@link StoreManagerSingleton <em>StoreManagerSingleton</em>}
+ * changes.  For mutual authentication the context presents the key entries through a
+ * live view of the current key store snapshot, so a registration storing its key entry
+ * does not replace the context.  Reusing the context avoids re&#45;reading the stores
+ * and keeps the JSSE client session cache warm between registrations.
+ * <p>
+ * Sockets opened through {@link #connect(Role, SSLContext, InetAddress, int, HandshakeCompletedListener) connect}
+ * resume a cached session, by session ID for TLS 1.2 or by session ticket for TLS 1.3,
+ * when the peer allows it.  The client session cache size and lifetime are set by the
+ * <code>mf2c.tls.sessionCacheSize</code> and <code>mf2c.tls.sessionTimeout</code> (seconds)
+ * system properties.  Full and resumed handshakes are counted per role and logged
+ * with their latency.
+ * <p>
+ * The connect, handshake and read timeouts of the sockets opened for a registration
+ * are set by <code>mf2c.tls.connectTimeout</code> (5000), <code>mf2c.tls.handshakeTimeout</code>
+ * (10000) and <code>mf2c.tls.readTimeout</code> (30000) in milliseconds, cut down to
+ * the time left before the registration {@link Deadline <em>Deadline</em>}.
+ * <p>
+ * The peer certificate chain is checked against the revoked serials held by the
+ * {@link RevocationIndex <em>RevocationIndex</em>}, by the trust manager on a full
+ * handshake and by {@link #connect(Role, SSLContext, InetAddress, int, HandshakeCompletedListener, Deadline) connect}
+ * on a resumed one, whose chain the trust manager does not see.
+ * <p>
+ * An agent with several credentials presents the one of the key store alias passed to
+ * {@link #connect(Role, SSLContext, InetAddress, int, HandshakeCompletedListener, Deadline, String) connect},
+ * whatever the issuers the server names in its certificate request.
+ */
+public class SSLContextRegistry {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(SSLContextRegistry.class);
+	/** default number of client sessions cached per context */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 64;
+	/** default client session lifetime in seconds */
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+	/** default connect timeout in milliseconds */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	/** default handshake timeout in milliseconds */
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+	/** default read timeout in milliseconds */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	/** protocols enabled on client sockets, in order of preference */
+	private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+	/** set when the peer certificate chain is checked, i.e. on a full handshake */
+	private static final ThreadLocal<boolean[]> PEER_CHECKED = ThreadLocal.withInitial(() -> new boolean[1]);
+	/** the key store alias to present in the handshake made by the thread, if any */
+	private static final ThreadLocal<String> CLIENT_ALIAS = new ThreadLocal<String>();
+	/** The single instance */
+	private static final SSLContextRegistry instance = new SSLContextRegistry();
+	/** The cached contexts indexed by role ordinal */
+	private final AtomicReferenceArray<Entry> contexts = new AtomicReferenceArray<Entry>(Role.values().length);
+	/** number of requests served by a cached context */
+	private final AtomicLong hits = new AtomicLong();
+	/** number of contexts built */
+	private final AtomicLong builds = new AtomicLong();
+	/** handshake statistics indexed by role ordinal */
+	private final HandshakeStats[] stats = new HandshakeStats[Role.values().length];
+
+	static {
+		//JDK 13+ issues TLS 1.3 session tickets, make sure the extension is not switched off
+		if(System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+		}
+	}
+
+	/**
+	 * The roles a context is used for.
+	 */
+	public enum Role {
+		/** one way authentication with the regional CAU */
+		CAU(false),
+		/** mutual authentication with the leader CAU */
+		LEADER(true);
+
+		/** true if the agent credential is presented */
+		private final boolean mutual;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param mutual true if the agent credential is presented
+		 */
+		private Role(boolean mutual) {
+			this.mutual = mutual;
+		}
+
+		/**
+		 * Check if the agent authenticates itself in this role.
+		 * <p>
+		 * @return true for mutual authentication
+		 */
+		public boolean isMutual() {
+			return this.mutual;
+		}
+	}
+
+	/**
+	 * A context and the trust store version it was built from.
+	 */
+	private static class Entry {
+		/** the context */
+		final SSLContext context;
+		/** trust store version used */
+		final long trustVersion;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param context		the context
+		 * @param trustVersion	the trust store version used
+		 */
+		Entry(SSLContext context, long trustVersion) {
+			this.context = context;
+			this.trustVersion = trustVersion;
+		}
+	}
+
+	/**
+	 * private constructor
+	 */
+	private SSLContextRegistry() {
+		for(int i = 0; i < this.stats.length; i++) {
+			this.stats[i] = new HandshakeStats();
+		}
+	}
+
+	/**
+	 * Get the instance.
+	 * <p>
+	 * @return the registry
+	 */
+	public static SSLContextRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the context for a role, building it if the trust store has changed since
+	 * it was last built.  Key store changes are seen by the live view of the context
+	 * for mutual authentication.
+	 * <p>
+	 * @param role	the connection role
+	 * @param sms	the StoreManagerSingleton holding the stores
+	 * @return	the context
+	 * @throws GeneralSecurityException on error building the context
+	 */
+	public SSLContext getContext(Role role, StoreManagerSingleton sms) throws GeneralSecurityException {
+		//the snapshot does not change, so the context is built from exactly the version checked
+		StoreSnapshot trust = sms.getTrustSnapshot();
+		long trustVersion = trust.getVersion();
+		Entry entry = this.contexts.get(role.ordinal());
+		if(entry != null && entry.trustVersion >= trustVersion) {
+			this.hits.incrementAndGet();
+			return entry.context;
+		}
+		synchronized(this) {
+			//another thread may have rebuilt it while we waited
+			entry = this.contexts.get(role.ordinal());
+			if(entry != null && entry.trustVersion >= trustVersion) {
+				this.hits.incrementAndGet();
+				return entry.context;
+			}
+			LOGGER.debug("About to create an SSL context for role " + role + "....");
+			KeyManager[] keyManagers = role.isMutual() ? new KeyManager[] {new AliasKeyManager(new SnapshotKeyManager(sms))} : null;
+			entry = new Entry(createContext(trust.getKeyStore(), keyManagers), trustVersion);
+			this.contexts.set(role.ordinal(), entry);
+			this.builds.incrementAndGet();
+			return entry.context;
+		}
+	}
+
+	/**
+	 * Open a client socket and complete the TLS handshake, resuming a cached
+	 * session with the same peer if possible.  The socket is created with the
+	 * peer&#39;s host address so that the session cache lookup by host and port
+	 * matches on repeated connections.
+	 * <p>
+	 * @param role		the connection role, used for the statistics
+	 * @param context	the context, normally from {@link #getContext(Role, StoreManagerSingleton) getContext}
+	 * @param ip		the peer address
+	 * @param port		the peer port
+	 * @param listener	an optional listener added before the handshake
+	 * @return	the connected socket with the handshake complete and no read timeout
+	 * @throws IOException on connection or handshake error
+	 */
+	public SSLSocket connect(Role role, SSLContext context, InetAddress ip, int port,
+			HandshakeCompletedListener listener) throws IOException {
+		SSLSocket socket = connect(role, context, ip, port, listener, Deadline.NONE);
+		//a long lived connection, e.g. a batch enrolment, waits for the peer as long as it takes
+		socket.setSoTimeout(0);
+		return socket;
+	}
+
+	/**
+	 * Open a client socket for a registration and complete the TLS handshake within
+	 * the connect and handshake timeouts, resuming a cached session with the same peer
+	 * if possible.  The read timeout is set on the socket returned.
+	 * <p>
+	 * @param role		the connection role, used for the statistics
+	 * @param context	the context, normally from {@link #getContext(Role, StoreManagerSingleton) getContext}
+	 * @param ip		the peer address
+	 * @param port		the peer port
+	 * @param listener	an optional listener added before the handshake
+	 * @param deadline	the registration deadline, which cuts the timeouts down
+	 * @return	the connected socket with the handshake complete
+	 * @throws IOException on connection or handshake error, a
+	 * 			{@link java.net.SocketTimeoutException <em>SocketTimeoutException</em>} on timeout
+	 */
+	public SSLSocket connect(Role role, SSLContext context, InetAddress ip, int port,
+			HandshakeCompletedListener listener, Deadline deadline) throws IOException {
+		return connect(role, context, ip, port, listener, deadline, null);
+	}
+
+	/**
+	 * Open a client socket for a registration as {@link #connect(Role, SSLContext, InetAddress, int, HandshakeCompletedListener, Deadline) connect}
+	 * does, presenting the credential of a key store alias if the server requests a
+	 * client certificate.  No certificate is presented if the alias has no credential of
+	 * a type the server accepts.  A resumed session keeps the credential presented when
+	 * it was established, which the caller checks against the alias.
+	 * <p>
+	 * @param role		the connection role, used for the statistics
+	 * @param context	the context, normally from {@link #getContext(Role, StoreManagerSingleton) getContext}
+	 * @param ip		the peer address
+	 * @param port		the peer port
+	 * @param listener	an optional listener added before the handshake
+	 * @param deadline	the registration deadline, which cuts the timeouts down
+	 * @param alias		the key store alias to present, or null for any credential
+	 * @return	the connected socket with the handshake complete
+	 * @throws IOException on connection or handshake error, a
+	 * 			{@link java.net.SocketTimeoutException <em>SocketTimeoutException</em>} on timeout
+	 */
+	public SSLSocket connect(Role role, SSLContext context, InetAddress ip, int port,
+			HandshakeCompletedListener listener, Deadline deadline, String alias) throws IOException {
+		Metrics metrics = Metrics.getInstance();
+		long connectStart = System.nanoTime();
+		Socket raw = new Socket();
+		SSLSocket socket;
+		try {
+			raw.connect(new InetSocketAddress(ip, port), deadline.timeout(Utils.getIntProperty("mf2c.tls.connectTimeout", DEFAULT_CONNECT_TIMEOUT)));
+			//layered with the host address so the session cache lookup matches
+			socket = (SSLSocket) context.getSocketFactory().createSocket(raw, ip.getHostAddress(), port, true);
+		} catch (IOException | RuntimeException e) {
+			raw.close();
+			throw e;
+		}
+		metrics.record(role == Role.CAU ? Metrics.Operation.CAU_CONNECT : Metrics.Operation.LEADER_CONNECT, connectStart);
+		try {
+			socket.setSoTimeout(deadline.timeout(Utils.getIntProperty("mf2c.tls.handshakeTimeout", DEFAULT_HANDSHAKE_TIMEOUT)));
+			socket.setEnabledProtocols(supported(socket.getSupportedProtocols()));
+			if(listener != null) {
+				socket.addHandshakeCompletedListener(listener);
+			}
+			boolean[] checked = PEER_CHECKED.get();
+			checked[0] = false;
+			long start = System.nanoTime();
+			CLIENT_ALIAS.set(alias);
+			try {
+				socket.startHandshake();
+			} finally {
+				CLIENT_ALIAS.remove();
+			}
+			long nanos = System.nanoTime() - start;
+			metrics.getHistogram(role == Role.CAU ? Metrics.Operation.CAU_HANDSHAKE : Metrics.Operation.LEADER_HANDSHAKE).record(nanos);
+			boolean resumed = !checked[0];
+			if(resumed) {
+				checkRevoked(socket);
+			}
+			HandshakeStats roleStats = this.stats[role.ordinal()];
+			roleStats.record(resumed, nanos);
+			LOGGER.info(String.format("%s %s handshake with %s:%d (%s) took %.2fms; %s", role,
+					resumed ? "resumed" : "full", ip.getHostAddress(), port, socket.getSession().getProtocol(),
+					nanos / 1e6, roleStats));
+			socket.setSoTimeout(deadline.timeout(Utils.getIntProperty("mf2c.tls.readTimeout", DEFAULT_READ_TIMEOUT)));
+			return socket;
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the handshake statistics for a role.
+	 * <p>
+	 * @param role	the connection role
+	 * @return	the statistics
+	 */
+	public HandshakeStats getHandshakeStats(Role role) {
+		return this.stats[role.ordinal()];
+	}
+
+	/**
+	 * Discard all cached contexts.
+	 */
+	public synchronized void invalidate() {
+		for(int i = 0; i < this.contexts.length(); i++) {
+			this.contexts.set(i, null);
+		}
+	}
+
+	/**
+	 * Get the number of requests served by a cached context.
+	 * <p>
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Get the number of contexts built.
+	 * <p>
+	 * @return the build count
+	 */
+	public long getBuilds() {
+		return this.builds.get();
+	}
+
+	/**
+	 * Create a client SSLContext with the configured session cache settings, a
+	 * trust manager which records full handshakes for the statistics and rejects
+	 * revoked peer certificates and a key manager which presents the alias requested
+	 * for the handshake.
+	 * <p>
+	 * @param trustStore	the trust store
+	 * @param keyStore		the key store with the local credential, or null for
+	 * 						one way authentication
+	 * @param keyPass		the key entry password
+	 * @return	the created SSLContext object
+	 * @throws GeneralSecurityException on error
+	 */
+	public static SSLContext createContext(KeyStore trustStore, KeyStore keyStore, char[] keyPass) throws GeneralSecurityException {
+		KeyManager[] keyManagers = null;
+		if(keyStore != null) {
+			// set up a key manager for our local credentials
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, keyPass);
+			keyManagers = keyManagerFactory.getKeyManagers();
+			for(int i = 0; i < keyManagers.length; i++) {
+				if(keyManagers[i] instanceof X509ExtendedKeyManager) {
+					keyManagers[i] = new AliasKeyManager((X509ExtendedKeyManager) keyManagers[i]);
+				}
+			}
+		}
+		return createContext(trustStore, keyManagers);
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Create a client SSLContext with the configured session cache settings and a
+	 * trust manager which records full handshakes and rejects revoked peer certificates.
+	 * <p>
+	 * @param trustStore	the trust store
+	 * @param keyManagers	the key managers, or null for one way authentication
+	 * @return	the created SSLContext object
+	 * @throws GeneralSecurityException on error
+	 */
+	private static SSLContext createContext(KeyStore trustStore, KeyManager[] keyManagers) throws GeneralSecurityException {
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(trustStore);
+		TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
+		for(int i = 0; i < trustManagers.length; i++) {
+			if(trustManagers[i] instanceof X509ExtendedTrustManager) {
+				trustManagers[i] = new CheckRecordingTrustManager((X509ExtendedTrustManager) trustManagers[i], RevocationIndex.getInstance());
+			}
+		}
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagers, trustManagers, null);
+		SSLSessionContext sessions = sslContext.getClientSessionContext();
+		sessions.setSessionCacheSize(Utils.getIntProperty("mf2c.tls.sessionCacheSize", DEFAULT_SESSION_CACHE_SIZE));
+		sessions.setSessionTimeout(Utils.getIntProperty("mf2c.tls.sessionTimeout", DEFAULT_SESSION_TIMEOUT));
+		return sslContext;
+	}
+
+	/**
+	 * Check the peer chain of a resumed session, which may have been revoked since the
+	 * session was established.  The session is invalidated if it was.
+	 * <p>
+	 * @param socket	the socket
+	 * @throws IOException if the peer is not verified, an {@link SSLHandshakeException} if
+	 * 			a certificate of the chain is revoked
+	 */
+	private static void checkRevoked(SSLSocket socket) throws IOException {
+		Certificate[] peer = socket.getSession().getPeerCertificates();
+		X509Certificate[] chain = new X509Certificate[peer.length];
+		for(int i = 0; i < peer.length; i++) {
+			chain[i] = (X509Certificate) peer[i];
+		}
+		try {
+			RevocationIndex.getInstance().checkChain(chain);
+		} catch (CertificateRevokedException e) {
+			socket.getSession().invalidate();
+			SSLHandshakeException she = new SSLHandshakeException("resumed session peer certificate revoked: " + e.getMessage());
+			she.initCause(e);
+			throw she;
+		}
+	}
+
+	/**
+	 * Select the preferred protocols the socket supports.
+	 * <p>
+	 * @param supported	the protocols supported by the socket
+	 * @return	the protocols to enable
+	 */
+	private static String[] supported(String[] supported) {
+		List<String> available = Arrays.asList(supported);
+		List<String> enabled = new ArrayList<String>();
+		for(String p : PROTOCOLS) {
+			if(available.contains(p)) {
+				enabled.add(p);
+			}
+		}
+		return enabled.isEmpty() ? supported : enabled.toArray(new String[enabled.size()]);
+	}
+
+	/**
+	 * Delegating key manager which chooses the client alias requested for the handshake
+	 * made by the calling thread, rather than the first credential the delegate finds
+	 * for the issuers the server accepts, which may be another agent&#39;s.
+	 */
+	private static class AliasKeyManager extends X509ExtendedKeyManager {
+		/** the key manager holding the credentials */
+		private final X509ExtendedKeyManager delegate;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param delegate	the key manager holding the credentials
+		 */
+		AliasKeyManager(X509ExtendedKeyManager delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			String alias = CLIENT_ALIAS.get();
+			return alias == null ? this.delegate.chooseClientAlias(keyType, issuers, socket) : presentable(alias, keyType);
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			String alias = CLIENT_ALIAS.get();
+			return alias == null ? this.delegate.chooseEngineClientAlias(keyType, issuers, engine) : presentable(alias, keyType);
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return this.delegate.getClientAliases(keyType, issuers);
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return this.delegate.getServerAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return this.delegate.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			return this.delegate.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return this.delegate.getCertificateChain(alias);
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			return this.delegate.getPrivateKey(alias);
+		}
+
+		/**
+		 * Check the alias has a credential of one of the key types the server accepts.
+		 * @param alias		the requested alias
+		 * @param keyType	the key types
+		 * @return	the alias, or null if it cannot be presented
+		 */
+		private String presentable(String alias, String[] keyType) {
+			X509Certificate[] chain = this.delegate.getCertificateChain(alias);
+			if(chain != null && chain.length > 0 && this.delegate.getPrivateKey(alias) != null) {
+				for(String type : keyType) {
+					if(matches(type, null, chain)) {
+						return alias;
+					}
+				}
+			}
+			LOGGER.warn("no " + Arrays.toString(keyType) + " credential to present for " + alias);
+			return null;
+		}
+	}
+
+	/**
+	 * Client key manager over the current key store snapshot of the
+	 * {@link StoreManagerSingleton <em>StoreManagerSingleton</em>}, which sees the
+	 * key entries stored after the context was built.  An entry is looked up by alias
+	 * in the snapshot, without building a key store or decrypting keys.
+	 */
+	private static class SnapshotKeyManager extends X509ExtendedKeyManager {
+		/** the store manager holding the key store */
+		private final StoreManagerSingleton sms;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param sms	the store manager holding the key store
+		 */
+		SnapshotKeyManager(StoreManagerSingleton sms) {
+			this.sms = sms;
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			StoreSnapshot keys = this.sms.getKeySnapshot();
+			List<String> aliases = new ArrayList<String>();
+			for(String alias : keys.aliases()) {
+				X509Certificate[] chain = chain(keys, alias);
+				if(chain != null && matches(keyType, issuers, chain)) {
+					aliases.add(alias);
+				}
+			}
+			return aliases.isEmpty() ? null : aliases.toArray(new String[aliases.size()]);
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			for(String type : keyType) {
+				String[] aliases = getClientAliases(type, issuers);
+				if(aliases != null) {
+					return aliases[0];
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			return chooseClientAlias(keyType, issuers, null);
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			//client contexts only
+			return null;
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return null;
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return chain(this.sms.getKeySnapshot(), alias);
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			KeyStore.Entry entry = this.sms.getKeySnapshot().getEntry(alias);
+			return entry instanceof KeyStore.PrivateKeyEntry ? ((KeyStore.PrivateKeyEntry) entry).getPrivateKey() : null;
+		}
+
+		/**
+		 * Get the certificate chain of a key entry.
+		 * @param keys	the key store snapshot
+		 * @param alias	the alias
+		 * @return	the chain, or null if the alias is not an X.509 key entry
+		 */
+		private static X509Certificate[] chain(StoreSnapshot keys, String alias) {
+			KeyStore.Entry entry = keys.getEntry(alias);
+			if(!(entry instanceof KeyStore.PrivateKeyEntry)) {
+				return null;
+			}
+			Certificate[] certs = ((KeyStore.PrivateKeyEntry) entry).getCertificateChain();
+			if(certs.length == 0 || !(certs[0] instanceof X509Certificate)) {
+				return null;
+			}
+			X509Certificate[] chain = new X509Certificate[certs.length];
+			for(int i = 0; i < certs.length; i++) {
+				chain[i] = (X509Certificate) certs[i];
+			}
+			return chain;
+		}
+	}
+
+	/**
+	 * Check a credential is of a key type the server accepts and, if the server names
+	 * the issuers it accepts, chains to one of them, as the JSSE key managers check.
+	 * <p>
+	 * @param keyType	the key type, the key algorithm optionally followed by an underscore
+	 * 					and the algorithm of the issuer key
+	 * @param issuers	the accepted issuers, or null for any
+	 * @param chain		the certificate chain
+	 * @return	true if the credential matches
+	 */
+	private static boolean matches(String keyType, Principal[] issuers, X509Certificate[] chain) {
+		int sep = keyType.indexOf('_');
+		String keyAlgorithm = sep < 0 ? keyType : keyType.substring(0, sep);
+		if(!keyAlgorithm.equals(chain[0].getPublicKey().getAlgorithm())) {
+			return false;
+		}
+		if(sep >= 0) {
+			String sigType = keyType.substring(sep + 1);
+			if(chain.length > 1 ? !sigType.equals(chain[1].getPublicKey().getAlgorithm())
+					: !chain[0].getSigAlgName().toUpperCase(Locale.ENGLISH).contains("WITH" + sigType.toUpperCase(Locale.ENGLISH))) {
+				return false;
+			}
+		}
+		if(issuers == null || issuers.length == 0) {
+			return true;
+		}
+		List<Principal> accepted = Arrays.asList(issuers);
+		for(X509Certificate cert : chain) {
+			if(accepted.contains(cert.getIssuerX500Principal())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Delegating trust manager which flags that the peer chain was checked.  JSSE only
+	 * checks the server chain on a full handshake, so an unflagged handshake was resumed.
+	 * A chain which the delegate trusts is then checked for revoked certificates.
+	 */
+	private static class CheckRecordingTrustManager extends X509ExtendedTrustManager {
+		/** the trust manager doing the checks */
+		private final X509ExtendedTrustManager delegate;
+		/** the revoked serials */
+		private final RevocationIndex revocations;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param delegate		the trust manager doing the checks
+		 * @param revocations	the revoked serials
+		 */
+		CheckRecordingTrustManager(X509ExtendedTrustManager delegate, RevocationIndex revocations) {
+			this.delegate = delegate;
+			this.revocations = revocations;
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			this.delegate.checkClientTrusted(chain, authType);
+			this.revocations.checkChain(chain);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			PEER_CHECKED.get()[0] = true;
+			this.delegate.checkServerTrusted(chain, authType);
+			this.revocations.checkChain(chain);
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return this.delegate.getAcceptedIssuers();
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			this.delegate.checkClientTrusted(chain, authType, socket);
+			this.revocations.checkChain(chain);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			PEER_CHECKED.get()[0] = true;
+			this.delegate.checkServerTrusted(chain, authType, socket);
+			this.revocations.checkChain(chain);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			this.delegate.checkClientTrusted(chain, authType, engine);
+			this.revocations.checkChain(chain);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			PEER_CHECKED.get()[0] = true;
+			this.delegate.checkServerTrusted(chain, authType, engine);
+			this.revocations.checkChain(chain);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records how long each start&#45;up phase took and when it completed relative to the
+ * JVM start, so the time to listening and the time to ready can be tracked on slow
+ * edge hardware.
+ */
+public class StartupTimings {
+	/** Message logger attribute */
+	protected static Logger LOGGER = Logger.getLogger(StartupTimings.class);
+	/** The single instance */
+	private static final StartupTimings instance = new StartupTimings();
+	/** the JVM start on the {@link System#nanoTime()} scale */
+	private final long originNanos;
+	/** the phases completed, in order of completion */
+	private final ConcurrentLinkedQueue<Phase> phases = new ConcurrentLinkedQueue<Phase>();
+
+	/**
+	 * A completed phase.
+	 */
+	private static final class Phase {
+		/** the phase name */
+		final String name;
+		/** the start */
+		final long startNanos;
+		/** the end */
+		final long endNanos;
+
+		/**
+		 * Constructor
+		 * <p>
+		 * @param name			the phase name
+		 * @param startNanos	the start
+		 * @param endNanos		the end
+		 */
+		Phase(String name, long startNanos, long endNanos) {
+			this.name = name;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+		}
+	}
+
+	/**
+	 * private constructor
+	 */
+	private StartupTimings() {
+		long now = System.nanoTime();
+		long uptimeMillis;
+		try {
+			uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		} catch (RuntimeException e) {
+			uptimeMillis = 0L;
+		}
+		this.originNanos = now - uptimeMillis * 1000000L;
+	}
+
+	/**
+	 * Get the instance.
+	 * <p>
+	 * @return the instance
+	 */
+	public static StartupTimings getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record a phase which has just completed.
+	 * <p>
+	 * @param name			the phase name
+	 * @param startNanos	the start, from {@link System#nanoTime()}
+	 */
+	public void record(String name, long startNanos) {
+		long now = System.nanoTime();
+		this.phases.add(new Phase(name, startNanos, now));
+		LOGGER.info(String.format("start-up phase %s took %.1fms, completed %.1fms after JVM start", name,
+				(now - startNanos) / 1e6, (now - this.originNanos) / 1e6));
+	}
+
+	/**
+	 * Get the duration of a phase.
+	 * <p>
+	 * @param name	the phase name
+	 * @return	the duration in milliseconds of its latest run, -1 if it has not completed
+	 */
+	public double getMillis(String name) {
+		Phase p = latest(name);
+		return p == null ? -1 : (p.endNanos - p.startNanos) / 1e6;
+	}
+
+	/**
+	 * Get the time from the JVM start to the completion of a phase.
+	 * <p>
+	 * @param name	the phase name
+	 * @return	the time in milliseconds of its latest run, -1 if it has not completed
+	 */
+	public double getCompletedMillis(String name) {
+		Phase p = latest(name);
+		return p == null ? -1 : (p.endNanos - this.originNanos) / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Start-up phases (took/completed after JVM start):");
+		for(Phase p : this.phases) {
+			sb.append(String.format(" %s %.1f/%.1fms;", p.name, (p.endNanos - p.startNanos) / 1e6, (p.endNanos - this.originNanos) / 1e6));
+		}
+		return sb.toString();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the latest run of a phase.
+	 * <p>
+	 * @param name	the phase name
+	 * @return	the phase, or null
+	 */
+	private Phase latest(String name) {
+		Phase found = null;
+		for(Phase p : this.phases) {
+			if(p.name.equals(name)) {
+				found = p;
+			}
+		}
+		return found;
+	}
+}
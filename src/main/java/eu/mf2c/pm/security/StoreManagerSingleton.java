@@ -15,48 +15,66 @@
  */
 package eu.mf2c.pm.security;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
-import java.security.KeyStore.ProtectionParameter;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.security.auth.x500.X500Principal;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.bouncycastle.pkcs.PKCS10CertificationRequestBuilder;
 import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
 import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
 import org.bouncycastle.util.io.pem.PemWriter;
 
+import eu.mf2c.pm.security.Exception.IdentityRegistryException;
+import eu.mf2c.pm.security.Exception.KeyStorePersisterException;
 import eu.mf2c.pm.security.Exception.StoreManagerSingletonException;
+import eu.mf2c.pm.security.util.Utils;
 
 /**
  * A singleton class responsible for the trust and key stores.  
- * On application close down, the stores are written to a local file.
+ * Changes to the stores are written behind to local files by a
+ * {@link KeyStorePersister <em>KeyStorePersister</em>}, and any outstanding
+ * changes are written on application close down.
  * <p>
  * @author Shirley Crompton, shirley.crompton@stfc.ac.uk
  * org Data Science and Technology Group,
@@ -67,18 +85,22 @@ public class StoreManagerSingleton {
 	
 	/** Logger attribute */
 	protected static Logger LOGGER = Logger.getLogger(StoreManagerSingleton.class);
-	/** An instance of the class */
-	private static StoreManagerSingleton instance = null;
+	/** An instance of the class, volatile so that getInstance only locks while creating it */
+	private static volatile StoreManagerSingleton instance = null;
 	/** A password String to protected the keystore */
 	private static final String STOREPASS = "stfc-mf2c-jkspass";
 	/** A password String to protected the truststore */
 	private static final String TRUSTPASS = "changeit";
 	/** A password String to protected the key entry 
 	private static final String KEYPASS = "stfc-mf2c-key"; //appended with the fog-id (18May18 apparently must be same as the keystore password!!!*/
-	/** A JKS keystore for private credentials */
-	private static KeyStore keyStore;
-	/** A JKS keystore for cacerts */
-	private static KeyStore trustStore;
+	/** The current content of the keystore for private credentials, replaced on every change */
+	private volatile StoreSnapshot keyStore;
+	/** The current content of the truststore for cacerts, replaced on every change */
+	private volatile StoreSnapshot trustStore;
+	/** serialises the changes to the trustStore */
+	private final Object trustLock = new Object();
+	/** serialises the changes to the keyStore */
+	private final Object keyLock = new Object();
 	/** A runtime cache of X.509 certificates 
 	private static X509Certificate[] certCache;*/
 	//for idKey, deviceId, leaderId, leaderMacAddr (each set of IDs are prefixed by the fog-ID [for post-IT1])
@@ -88,12 +110,36 @@ public class StoreManagerSingleton {
 	private static final String CACERT_PATH = "mF2Ccacert.jks";
 	/** file name of the persisted keyStore */
 	private static final String STORE_PATH = "mF2Cjks.jks";
-	/** RSA keypair attribute for owner agent */
-	private KeyPair keypair = null;
+	/** persister name of the trustStore */
+	private static final String TRUST_STORE = "trustStore";
+	/** persister name of the keyStore */
+	private static final String KEY_STORE = "keyStore";
+	/** keypair attribute for owner agent */
+	private volatile KeyPair keypair = null;
+	/** the certificate of the owner agent keypair, from server.crt */
+	private volatile X509Certificate agentCertificate = null;
+	/** algorithm of newly generated keypairs, set with -Dmf2c.keyAlgorithm, default RSA */
+	private volatile KeyAlgorithm keyAlgorithm = KeyAlgorithm.RSA_2048;
 	/** Secure random number generator attribute */
 	private static SecureRandom random = new SecureRandom();
-	/** Location of mapped file volume */
-	private static String dataPath = File.separator + "pkidata" + File.separator;
+	/** Location of mapped file volume, set with -Dmf2c.pkidata */
+	private static volatile String dataPath = System.getProperty("mf2c.pkidata", File.separator + "pkidata") + File.separator;
+	/** Pool of pre-generated keypairs */
+	private volatile KeyPairPool keyPairPool = null;
+	/** number of keypairs held by the pool */
+	private int poolDepth;
+	/** number of ready keypairs which triggers a refill */
+	private int poolLowWatermark;
+	/** number of pool refill threads */
+	private int poolThreads;
+	/** writes changes to the stores behind to file */
+	private final KeyStorePersister persister;
+	/** compact store of the certificates seen, shares one instance of each certificate */
+	private final CertificateStore certificateStore = new CertificateStore();
+	/** The index of the current trust store content, rebuilt when the trust store changes */
+	private volatile TrustAnchorIndex anchorIndex;
+	/** The identities of the agents hosted by the process, created on first use */
+	private volatile IdentityRegistry identityRegistry;
 	
 	
 	/** 
@@ -101,8 +147,48 @@ public class StoreManagerSingleton {
 	 * @throws StoreManagerSingletonException on error
 	 * */
 	private StoreManagerSingleton() throws StoreManagerSingletonException{		
+			String algName = System.getProperty("mf2c.keyAlgorithm");
+			if(algName != null) {
+				try {
+					this.keyAlgorithm = KeyAlgorithm.fromName(algName);
+				}catch(IllegalArgumentException e) {
+					LOGGER.error(e.getMessage() + ", using " + this.keyAlgorithm);
+				}
+			}
+			//start generating keys in the background while the stores are loaded, e.g. -Dmf2c.keypool.depth=4,
+			//unless the agent key persisted in the pkidata volume is to be reused
+			configureKeyPairPool(Utils.getIntProperty("mf2c.keypool.depth", KeyPairPool.DEFAULT_DEPTH),
+					Utils.getIntProperty("mf2c.keypool.lowWatermark", KeyPairPool.DEFAULT_LOW_WATERMARK),
+					Utils.getIntProperty("mf2c.keypool.threads", KeyPairPool.DEFAULT_THREADS),
+					!new File(dataPath + "server.key").exists());
+			//e.g. -Dmf2c.persist.debounce=200 -Dmf2c.persist.maxStaleness=2000 (milliseconds)
+			this.persister = new KeyStorePersister(Utils.getIntProperty("mf2c.persist.debounce", KeyStorePersister.DEFAULT_DEBOUNCE),
+					Utils.getIntProperty("mf2c.persist.maxStaleness", KeyStorePersister.DEFAULT_MAX_STALENESS));
+			//the key store is loaded on a second thread while the trust store and bundled CA certificates are loaded
+			StartupTimings timings = StartupTimings.getInstance();
+			FutureTask<Void> keys = new FutureTask<Void>(() -> {
+				long start = System.nanoTime();
+				createKeyStore();
+				timings.record("key store", start);
+				return null;
+			});
+			Thread loader = new Thread(keys, "keystore-loader");
+			loader.setDaemon(true);
+			loader.start();
+			long start = System.nanoTime();
 			createTrustStore();
-			createKeyStore();
+			timings.record("trust store", start);
+			try {
+				keys.get();
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof StoreManagerSingletonException) {
+					throw (StoreManagerSingletonException) e.getCause();
+				}
+				throw new StoreManagerSingletonException("Error loading the keystore: " + e.getCause().getMessage(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StoreManagerSingletonException("Interrupted loading the keystore", e);
+			}
 	}
 	/**
 	 * Get an instance.  Create a new one if not yet instantiated.
@@ -112,26 +198,93 @@ public class StoreManagerSingleton {
 	 * @throws StoreManagerSingletonException  on error instantiating the instance.
 	 */
 	public static StoreManagerSingleton getInstance() throws StoreManagerSingletonException {
-		if(instance == null) {
-			instance = new StoreManagerSingleton();
+		StoreManagerSingleton sms = instance;
+		if(sms == null) {
+			synchronized(StoreManagerSingleton.class) {
+				sms = instance;
+				if(sms == null) {
+					sms = new StoreManagerSingleton();
+					instance = sms;
+				}
+			}
 		}
-		return instance;				
+		return sms;				
+	}
+	/**
+	 * Check if the instance has been created.
+	 * <p>
+	 * @return true if the instance exists, else false.
+	 */
+	public static boolean isInstantiated() {
+		return instance != null;
+	}
+	/**
+	 * Get the current {@link StoreManagerSingleton#trustStore <em>trustStore</em>} content as
+	 * a JKS store.  The store is a read&#45;only copy and must not be modified; use
+	 * {@link #storeCertificate(String, X509Certificate)} to make changes.
+	 * <p>
+	 * @return	the trust store
+	 * @throws KeyStoreException on error building the store
+	 */
+	public KeyStore getTrustStore() throws KeyStoreException {
+		return this.trustStore.getKeyStore();
+	}
+	/**
+	 * Get the current {@link StoreManagerSingleton#keyStore <em>keyStore</em>} content as
+	 * a JKS store.  The store is a read&#45;only copy and must not be modified; use
+	 * {@link #storeKeyEntry(String, String, X509Certificate, KeyPair)} to make changes.
+	 * <p>
+	 * @return	the key store
+	 * @throws KeyStoreException on error building the store
+	 */
+	public KeyStore getKeyStore() throws KeyStoreException {
+		return this.keyStore.getKeyStore();
 	}
 	/**
-	 * Getter for the {@link StoreManagerSingleton#trustStore <em>trustStore</em>} attribute
+	 * Get the current {@link StoreManagerSingleton#trustStore <em>trustStore</em>} snapshot.
+	 * The snapshot never changes, so a caller reading several entries sees a consistent view.
 	 * <p>
-	 * @return	the {@link StoreManagerSingleton#trustStore <em>trustStore</em>} attribute
+	 * @return	the snapshot
 	 */
-	public KeyStore getTrustStore() {
-		return trustStore;
+	public StoreSnapshot getTrustSnapshot() {
+		return this.trustStore;
 	}
 	/**
-	 * Getter for the {@link StoreManagerSingleton#keyStore <em>keyStore</em>} attribute
+	 * Get the current {@link StoreManagerSingleton#keyStore <em>keyStore</em>} snapshot.
+	 * The snapshot never changes, so a caller reading several entries sees a consistent view.
 	 * <p>
-	 * @return	the {@link StoreManagerSingleton#keyStore <em>keyStore</em>} attribute
+	 * @return	the snapshot
 	 */
-	public KeyStore getKeyStore() {
-		return keyStore;
+	public StoreSnapshot getKeySnapshot() {
+		return this.keyStore;
+	}
+	/**
+	 * Get a trusted certificate without locking.
+	 * <p>
+	 * @param alias	the certificate alias
+	 * @return	the certificate, or null if there is none
+	 */
+	public X509Certificate getTrustedCertificate(String alias) {
+		return this.trustStore.getCertificate(alias);
+	}
+	
+	/**
+	 * Get the version of the {@link StoreManagerSingleton#trustStore <em>trustStore</em>} content.  
+	 * The version changes whenever a certificate is added or replaced.
+	 * <p>
+	 * @return	the current version
+	 */
+	public long getTrustStoreVersion() {
+		return this.trustStore.getVersion();
+	}
+	/**
+	 * Get the version of the {@link StoreManagerSingleton#keyStore <em>keyStore</em>} content.  
+	 * The version changes whenever a key entry is added or replaced.
+	 * <p>
+	 * @return	the current version
+	 */
+	public long getKeyStoreVersion() {
+		return this.keyStore.getVersion();
 	}
 	
 	/**
@@ -153,12 +306,16 @@ public class StoreManagerSingleton {
 		X509Certificate ca = null;
 		//
 		try {
-	        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			//
-			ca = (X509Certificate) cf.generateCertificate(inStream);
-		} catch (CertificateException e) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+			byte[] buffer = new byte[2048];
+			int n;
+			while((n = inStream.read(buffer)) != -1) {
+				baos.write(buffer, 0, n);
+			}
+			ca = generateCertFromBytes(baos.toByteArray());
+		} catch (IOException e) {
 			// 
-			LOGGER.error("CertificateException generating certificate from file: " + e.getMessage());
+			LOGGER.error("IOException generating certificate from file: " + e.getMessage());
 		} finally{
 			try {
 				inStream.close();
@@ -180,9 +337,9 @@ public class StoreManagerSingleton {
 		X509Certificate cert = null;
 		//"resource\\X509.pem"
 		try {
-	        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			//
-			cert = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(bytes));
+			//a certificate already held is not parsed again
+			CertificateStore.Handle held = this.certificateStore.find(bytes);
+			cert = held != null ? held.getCertificate() : CertificateStore.parse(bytes, 0, bytes.length);
 		} catch (CertificateException e) {
 			// 
 			LOGGER.error("CertificateException generating certificate from byte[] : " + e.getMessage());
@@ -190,39 +347,38 @@ public class StoreManagerSingleton {
         return cert;
 	}
 	/**
-	 * Write the keystore and truststore to files.
+	 * Write any unwritten changes to the keystore and truststore to file now
+	 * rather than waiting for the write&#45;behind.
 	 * <p>
 	 * @throws StoreManagerSingletonException on processing errors
 	 */
 	public void persistKeyStores() throws StoreManagerSingletonException {
-		File file = null;
 	    LOGGER.debug("About to persist key and truststores....");
 		try {
-			//trustStore
-			if(trustStore.size() < 1) {
-				LOGGER.info("No entries in the trustStore, aborting writing to file.");
-			}
-			file = new File(CACERT_PATH);
-			if(!file.exists()) {
-				file.createNewFile();
-			}
-			//file is appended to if exist
-		    trustStore.store(new FileOutputStream(file), TRUSTPASS.toCharArray());
-		    //keyStore
-		    if(keyStore.size() < 1) {
-				LOGGER.info("No entries in the keyStore, aborting writing to file.");
-			}
-			file = new File(STORE_PATH);
-			if(!file.exists()) {
-				file.createNewFile();
-			}
-			//file is appended to if exist
-		    keyStore.store(new FileOutputStream(file), STOREPASS.toCharArray());
-		    LOGGER.debug("Completed persisting key and truststores....");
-		} catch (KeyStoreException| NoSuchAlgorithmException | CertificateException |IOException e ) {
-			LOGGER.error("Error writing store to file(" + file.getPath() + ": " + e.getMessage());
-			throw new StoreManagerSingletonException("Error writing store to file" + file.getPath() + ": " + e.getMessage());
-		} 
+			this.persister.flush();
+		    LOGGER.debug("Completed persisting key and truststores: " + this.persister);
+		} catch (KeyStorePersisterException e) {
+			throw new StoreManagerSingletonException(e.getMessage(), e);
+		}
+	}
+	/**
+	 * Getter for the {@link StoreManagerSingleton#persister <em>persister</em>} attribute,
+	 * e.g. for its write statistics.
+	 * <p>
+	 * @return	the {@link StoreManagerSingleton#persister <em>persister</em>} attribute
+	 */
+	public KeyStorePersister getPersister() {
+		return this.persister;
+	}
+	/**
+	 * Getter for the {@link StoreManagerSingleton#certificateStore <em>certificateStore</em>} attribute.
+	 * The trust and key store certificates are held there once each, and certificates
+	 * tracked by the leader, e.g. those of its followers, can be added to it.
+	 * <p>
+	 * @return	the {@link StoreManagerSingleton#certificateStore <em>certificateStore</em>} attribute
+	 */
+	public CertificateStore getCertificateStore() {
+		return this.certificateStore;
 	}
 	
 	/**
@@ -237,48 +393,190 @@ public class StoreManagerSingleton {
 			throw new StoreManagerSingletonException("Cannot load null certificate with alias " + alias + "!");
 		}else {
 			try {
-				trustStore.setCertificateEntry(alias, cert);
-			}catch(KeyStoreException ke) {				
-				throw new StoreManagerSingletonException("KeystoreException loading certificate with alias " + alias + "! " + ke.getMessage());
+				//share one instance of a certificate held under several aliases or presented again
+				cert = this.certificateStore.intern(cert);
+			} catch (CertificateException e) {
+				throw new StoreManagerSingletonException("Invalid certificate with alias " + alias + "! " + e.getMessage(), e);
+			}
+			//copy-on-write: readers keep using the previous snapshot until the new one is published
+			synchronized(this.trustLock) {
+				StoreSnapshot current = this.trustStore;
+				if(cert.equals(current.getCertificate(alias))) {
+					return; //unchanged, e.g. the same CAU certificate presented again
+				}
+				this.trustStore = current.with(alias, new KeyStore.TrustedCertificateEntry(cert));
 			}
+			this.persister.markDirty(TRUST_STORE);
 		}
 				
 	}
 	/**
-	 * Store a X.509 certificate, along with its alias, the private key and the certificate chain.
+	 * Store a X.509 certificate, along with its alias, the agent private key and the certificate chain.
 	 * <p>
 	 * @param alias		A {@link java.lang.String <em>String</em>} representation of the certificate alias
 	 * @param fogID		A {@link java.lang.String <em>String</em>} representation of the ID of the target fog
 	 * @param cert		The certificate associated with the private key for the entry.
-	 * @throws KeyStoreException	On error storing the key entry.
+	 * @throws KeyStoreException	On error storing the key entry or if the certificate does not
+	 * 					certify the agent&#39;s public key.
 	 */
 	public void storeKeyEntry(String alias, String fogID, X509Certificate cert) throws KeyStoreException {
+		KeyPair kp = this.keypair;
+		if(kp == null) {
+			throw new KeyStoreException("No agent keypair to store with the certificate for " + alias + "!");
+		}
+		storeKeyEntry(alias, fogID, cert, kp);
+	}
+	/**
+	 * Store a X.509 certificate, along with its alias, the private key of the keypair
+	 * used for its CSR and the certificate chain.  Each registration passes the keypair
+	 * it used, so concurrent registrations cannot pick up each other&#39;s key.
+	 * <p>
+	 * @param alias		A {@link java.lang.String <em>String</em>} representation of the certificate alias
+	 * @param fogID		A {@link java.lang.String <em>String</em>} representation of the ID of the target fog
+	 * @param cert		The certificate associated with the private key for the entry.
+	 * @param kp		The keypair the certificate was requested for.
+	 * @throws KeyStoreException	On error storing the key entry or if the certificate does not
+	 * 					certify the public key of the keypair.
+	 */
+	public void storeKeyEntry(String alias, String fogID, X509Certificate cert, KeyPair kp) throws KeyStoreException {
 		LOGGER.debug("about to store key entry with alias: " + alias + ", fogID: " + fogID );		
-		//hard coding the certificate chain for IT1 demo
-		List<X509Certificate> mylist = new ArrayList<X509Certificate>();
-		mylist.add(cert); //the certificate associated with the private key last (entity cert)
-		mylist.add((X509Certificate) trustStore.getCertificate("ut-sub")); //5July18 - new agent certs issued by untrust
-		//mylist.add((X509Certificate) trustStore.getCertificate("fog-sub"));
-		//mylist.add((X509Certificate) trustStore.getCertificate("00root"));
-		X509Certificate[] chain = (X509Certificate[]) mylist.toArray(new X509Certificate[mylist.size()]);
-		LOGGER.debug("About to store the end-entity cert with the fog ca cert as chain....");
-		//keypass is the passphrase to the cert
-		keyStore.setKeyEntry(alias, this.keypair.getPrivate(), (STOREPASS).toCharArray(), chain);
+		if(!cert.getPublicKey().equals(kp.getPublic())) {
+			throw new KeyStoreException("The " + cert.getPublicKey().getAlgorithm() + " certificate for " + alias 
+					+ " does not match the agent " + kp.getPublic().getAlgorithm() + " keypair!");
+		}
+		try {
+			cert = this.certificateStore.intern(cert);
+		} catch (CertificateException e) {
+			throw new KeyStoreException("Invalid certificate for " + alias + ": " + e.getMessage(), e);
+		}
+		//the chain follows whichever CA in the trust store issued the certificate, fog or untrust
+		X509Certificate[] chain = buildCertificatePath(cert);
+		if(chain.length == 1) {
+			LOGGER.warn("The issuer of the certificate for " + alias + " is not in the trust store, storing it without a chain.");
+		}
+		LOGGER.debug("About to store the end-entity cert with a chain of " + chain.length + " certificates....");
+		//copy-on-write: handshakes in progress keep using the previous snapshot
+		synchronized(this.keyLock) {
+			StoreSnapshot current = this.keyStore;
+			KeyStore.Entry existing = current.getEntry(alias);
+			if(existing instanceof PrivateKeyEntry && Arrays.equals(chain, ((PrivateKeyEntry) existing).getCertificateChain())
+					&& kp.getPrivate().equals(((PrivateKeyEntry) existing).getPrivateKey())) {
+				LOGGER.debug("Key entry " + alias + " unchanged.");
+				return;
+			}
+			try {
+				this.keyStore = current.with(alias, new PrivateKeyEntry(kp.getPrivate(), chain));
+			} catch (IllegalArgumentException | NullPointerException e) {
+				throw new KeyStoreException("Invalid key entry for " + alias + ": " + e.getMessage(), e);
+			}
+		}
+		this.persister.markDirty(KEY_STORE);
 		
 	}
 	/**
-	 * Retrieve a keystore entry by the provided alias.
+	 * Store an agent identity in the identity registry: its id key, device ID and fog ID,
+	 * the private key of the keypair used for its CSR and the certificate chain.
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param deviceID	the agent device ID
+	 * @param fogID		the fog ID
+	 * @param cert		the agent certificate
+	 * @param kp		the keypair the certificate was requested for
+	 * @return	the identity
+	 * @throws KeyStoreException	On error storing the identity or if the certificate does
+	 * 					not certify the public key of the keypair.
+	 */
+	public AgentIdentity storeIdentity(String idKey, String deviceID, String fogID, X509Certificate cert, KeyPair kp) throws KeyStoreException {
+		if(!cert.getPublicKey().equals(kp.getPublic())) {
+			throw new KeyStoreException("The certificate for " + idKey + " does not match the keypair!");
+		}
+		try {
+			cert = this.certificateStore.intern(cert);
+			return getIdentityRegistry().register(idKey, deviceID, fogID, kp.getPrivate(), buildCertificatePath(cert));
+		} catch (CertificateException | IdentityRegistryException | StoreManagerSingletonException e) {
+			throw new KeyStoreException("Error storing the identity " + idKey + ": " + e.getMessage(), e);
+		}
+	}
+	/**
+	 * Get the registry of the identities of the agents hosted by the process, loading
+	 * it on first use.  The shard files are in the <code>identities</code> directory,
+	 * which can be changed with e.g. <code>-Dmf2c.identities.dir=/pkidata/identities</code>,
+	 * in 16 shards by default (<code>-Dmf2c.identities.shards</code>).  The shards are
+	 * written behind with the key and trust stores.
+	 * <p>
+	 * @return	the registry
+	 * @throws StoreManagerSingletonException on error loading the registry
+	 */
+	public IdentityRegistry getIdentityRegistry() throws StoreManagerSingletonException {
+		IdentityRegistry registry = this.identityRegistry;
+		if(registry == null) {
+			synchronized(this) {
+				registry = this.identityRegistry;
+				if(registry == null) {
+					try {
+						registry = new IdentityRegistry(Paths.get(System.getProperty("mf2c.identities.dir", "identities")),
+								Utils.getIntProperty("mf2c.identities.shards", IdentityRegistry.DEFAULT_SHARDS), STOREPASS.toCharArray(), this.persister);
+					} catch (IdentityRegistryException e) {
+						throw new StoreManagerSingletonException(e.getMessage(), e);
+					}
+					this.identityRegistry = registry;
+				}
+			}
+		}
+		return registry;
+	}
+	/**
+	 * Build the certificate path of a certificate from the trust store content.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the path, the certificate first, or just the certificate if its issuer
+	 * 			is not in the trust store
+	 */
+	public X509Certificate[] buildCertificatePath(X509Certificate cert) {
+		return getTrustAnchorIndex().buildPath(cert);
+	}
+	/**
+	 * Get the index of the current trust store content, building it if the trust
+	 * store has changed since it was last built.
 	 * <p>
-	 * @param alias		the entry alias
-	 * @param fogID		the fog identity which forms part of the entry passphrase
+	 * @return	the index
+	 */
+	public TrustAnchorIndex getTrustAnchorIndex() {
+		StoreSnapshot current = this.trustStore;
+		TrustAnchorIndex index = this.anchorIndex;
+		if(index == null || index.getVersion() != current.getVersion()) {
+			//concurrent callers may both build it, either result is correct for the version
+			index = TrustAnchorIndex.of(current);
+			this.anchorIndex = index;
+		}
+		return index;
+	}
+	/**
+	 * Retrieve a keystore entry by the provided alias.  An identity in the identity
+	 * registry is returned in preference to the key store entry, if it was registered
+	 * with the fog.
+	 * <p>
+	 * @param alias		the entry alias, the agent id key
+	 * @param fogID		the fog identity, or null for any fog
 	 * @return			the retrieved 
-	 * @throws Exception if the specified entry is not a PrivateKeyEntry or an incorrect passphrase is provided
+	 * @throws Exception if the specified entry is not a PrivateKeyEntry or the identity is
+	 * 					registered with another fog
 	 */
 	public PrivateKeyEntry getKeyEntry(String alias, String fogID) throws Exception{
-		if(keyStore.entryInstanceOf(alias,KeyStore.PrivateKeyEntry.class)){
+		//the registry is only consulted once it is in use
+		IdentityRegistry registry = this.identityRegistry;
+		AgentIdentity identity = registry == null ? null : registry.getByIdKey(alias);
+		if(identity != null) {
+			if(fogID != null && identity.getFogID() != null && !fogID.equals(identity.getFogID())) {
+				throw new StoreManagerSingletonException("Entry(" + alias + ") is registered with fog " + identity.getFogID() + ", not " + fogID + "!");
+			}
+			return identity.getKeyEntry();
+		}
+		//a lookup in the current snapshot, no lock and no key decryption
+		KeyStore.Entry entry = this.keyStore.getEntry(alias);
+		if(entry instanceof PrivateKeyEntry){
 			LOGGER.debug("About to retrieve the keystore entry with alias = " + alias);
-			ProtectionParameter protParam = new KeyStore.PasswordProtection((STOREPASS).toCharArray());
-			return (PrivateKeyEntry) keyStore.getEntry(alias, protParam);
+			return (PrivateKeyEntry) entry;
 			
 		}else {
 			throw new StoreManagerSingletonException("Entry(" + alias + ") is not a PrivateKeyEntry!");
@@ -286,6 +584,90 @@ public class StoreManagerSingleton {
 		 
 	}
 	
+	/**
+	 * Find a certificate already held for an agent, which answers a registration
+	 * without enrolling with the CAU again.  The certificate is taken from the identity
+	 * registered for the id key, provided it was registered with the same device and
+	 * fog, else from the key store entry, else from server.crt if it is issued to the id
+	 * key.  It is only returned if it is held with its own private key, the one of the
+	 * identity or key entry or, for server.crt, the agent keypair, chains to a certificate
+	 * in the trust store with valid signatures and stays valid for at least the minimum
+	 * set with <code>-Dmf2c.heldcert.minValiditySeconds</code>, 300 by default.
+	 * <p>
+	 * @param idKey		the agent id key
+	 * @param deviceID	the agent device ID
+	 * @param fogID		the fog ID
+	 * @return	the certificate, or null if none can be used
+	 */
+	public X509Certificate findHeldCertificate(String idKey, String deviceID, String fogID) {
+		if(idKey == null) {
+			return null;
+		}
+		X509Certificate cert = null;
+		try {
+			AgentIdentity identity = getIdentityRegistry().getByIdKey(idKey);
+			if(identity != null) {
+				if(!Objects.equals(deviceID, identity.getDeviceID()) || !Objects.equals(fogID, identity.getFogID())) {
+					LOGGER.debug(idKey + " is registered with device " + identity.getDeviceID() + " and fog " + identity.getFogID());
+					return null;
+				}
+				cert = identity.getCertificate();
+			}
+		} catch (StoreManagerSingletonException e) {
+			LOGGER.warn("Identity registry unavailable: " + e.getMessage());
+		}
+		if(cert == null) {
+			KeyStore.Entry entry = this.keyStore.getEntry(idKey);
+			if(entry instanceof PrivateKeyEntry) {
+				cert = (X509Certificate) ((PrivateKeyEntry) entry).getCertificate();
+			} else if(this.agentCertificate != null && idKey.equals(commonName(this.agentCertificate))) {
+				cert = this.agentCertificate;
+			} else {
+				return null;
+			}
+		}
+		try {
+			if(heldPrivateKey(idKey, cert) == null) {
+				LOGGER.debug("The certificate held for " + idKey + " is not held with its private key");
+				return null;
+			}
+			cert.checkValidity(new Date(System.currentTimeMillis() + Utils.getIntProperty("mf2c.heldcert.minValiditySeconds", 300) * 1000L));
+			X509Certificate[] path = buildCertificatePath(cert);
+			if(path.length == 1) {
+				LOGGER.debug("The issuer of the certificate held for " + idKey + " is not trusted");
+				return null;
+			}
+			//the last certificate is the root CA or the highest CA held, which verifies itself or is trusted as held
+			for(int i = 0; i < path.length - 1; i++) {
+				path[i].checkValidity();
+				path[i].verify(path[i + 1].getPublicKey());
+			}
+			path[path.length - 1].checkValidity();
+			return cert;
+		} catch (GeneralSecurityException e) {
+			LOGGER.debug("The certificate held for " + idKey + " cannot be used: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the keypair of a certificate found with {@link #findHeldCertificate(String, String, String)}&#58;
+	 * each identity and key entry has its own keypair, which is not affected when the
+	 * agent keypair is replaced.
+	 * <p>
+	 * @param idKey	the agent id key
+	 * @param cert	the held certificate
+	 * @return	the keypair
+	 * @throws StoreManagerSingletonException if the private key of the certificate is not held
+	 */
+	public KeyPair getHeldKeyPair(String idKey, X509Certificate cert) throws StoreManagerSingletonException {
+		PrivateKey key = heldPrivateKey(idKey, cert);
+		if(key == null) {
+			throw new StoreManagerSingletonException("The private key of the certificate held for " + idKey + " is not held!");
+		}
+		return new KeyPair(cert.getPublicKey(), key);
+	}
+	
 	/**
 	 * Create a TrustStore using the predefined file name.  If the file exists, load it.  Else,
 	 * create a new one and write it to file.
@@ -297,24 +679,37 @@ public class StoreManagerSingleton {
 	public void createTrustStore() throws StoreManagerSingletonException {
 		File file = new File(CACERT_PATH);
 		try {
-			trustStore = KeyStore.getInstance("JKS");		
-		    if (file.exists()) {
+			KeyStore ks = KeyStore.getInstance("JKS");		
+			boolean exists = file.exists();
+		    if (exists) {
 		        // if exists, load		        
-				trustStore.load(new FileInputStream(file), TRUSTPASS.toCharArray());
+		    	try (FileInputStream fis = new FileInputStream(file)) {
+		    		ks.load(fis, TRUSTPASS.toCharArray());
+		    	}
 		    } else {
 		        // if not exists, create it
 		    	LOGGER.debug("Creating the new truststore(" + CACERT_PATH + ")");
-		        trustStore.load(null, TRUSTPASS.toCharArray()); //initialise
-		        trustStore.store(new FileOutputStream(file), TRUSTPASS.toCharArray());
+		        ks.load(null, TRUSTPASS.toCharArray()); //initialise
+		    }
+		    synchronized(this.trustLock) {
+		    	//the version carries on from any previous store so that cached SSLContexts are rebuilt
+		    	this.trustStore = StoreSnapshot.of(this.trustStore == null ? 1L : this.trustStore.getVersion() + 1, ks, TRUSTPASS.toCharArray());
+		    }
+		    this.persister.register(TRUST_STORE, () -> this.trustStore.getKeyStore(), file.toPath(), TRUSTPASS.toCharArray());
+		    if(!exists) {
+		        this.persister.markDirty(TRUST_STORE);
+		        this.persister.flush();
 		    }
 		    //9May18 updated to use the new CA cert 14May loaded untrust and fog ca public keys
+		    long pemStart = System.nanoTime();
 		    storeCertificate("fog-sub",generateCertfromPEM(this.getClass().getResourceAsStream("/ca_fog.pem")));
 		    storeCertificate("ut-sub",generateCertfromPEM(this.getClass().getResourceAsStream("/ca_untrust.pem")));
+		    StartupTimings.getInstance().record("CA certificates", pemStart);
 		    //storeCertificate("fog-sub",generateCertfromPEM(this.getClass().getResourceAsStream("/fog-sub.pem")));
 		    //storeCertificate("01subca",generateCertfromPEM(this.getClass().getResourceAsStream("/01subca.pem")));
 		    //storeCertificate("00root",generateCertfromPEM(this.getClass().getResourceAsStream("/00root.pem")));
 		    
-		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
+		} catch (GeneralSecurityException | IOException | KeyStorePersisterException e) {
 			LOGGER.error("Error writing keystore file : " + e.getMessage());
 			throw new StoreManagerSingletonException("Error writing keystore file : " + e.getMessage());
 		}
@@ -329,43 +724,68 @@ public class StoreManagerSingleton {
 	public void createKeyStore() throws StoreManagerSingletonException {
 		File file = new File(STORE_PATH);
 		try {
-			keyStore = KeyStore.getInstance("JKS");		
-		    if (file.exists()) {
+			KeyStore ks = KeyStore.getInstance("JKS");		
+			boolean exists = file.exists();
+		    if (exists) {
 		        // if exists, load
 		    	LOGGER.debug("keystore exists: loading file from " + STORE_PATH);
 		    	//LOGGER.debug("storepass: " + STOREPASS);
-				keyStore.load(new FileInputStream(file), STOREPASS.toCharArray());
+		    	try (FileInputStream fis = new FileInputStream(file)) {
+		    		ks.load(fis, STOREPASS.toCharArray());
+		    	}
 		    } else {
 		        // if not exists, create it
 		    	LOGGER.debug("Creating the new Keystore(" + STORE_PATH + ")");
-		        keyStore.load(null, STOREPASS.toCharArray()); //initialise
-		        keyStore.store(new FileOutputStream(file), STOREPASS.toCharArray());
+		        ks.load(null, STOREPASS.toCharArray()); //initialise
+		    }
+		    synchronized(this.keyLock) {
+		    	this.keyStore = StoreSnapshot.of(this.keyStore == null ? 1L : this.keyStore.getVersion() + 1, ks, STOREPASS.toCharArray());
+		    }
+		    this.persister.register(KEY_STORE, () -> this.keyStore.getKeyStore(), file.toPath(), STOREPASS.toCharArray());
+		    if(!exists) {
+		        this.persister.markDirty(KEY_STORE);
+		        this.persister.flush();
 		    }
-		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
+		} catch (GeneralSecurityException | IOException | KeyStorePersisterException e) {
 			LOGGER.error("Error writing keystore file : " + e.getMessage());
 			throw new StoreManagerSingletonException("Error writing keystore file : " + e.getMessage());
 		}
 	}
 	/**
-	 * Generate a PKCS10 Certification Request.
+	 * Generate a PKCS10 Certification Request.  If no keypair has been
+	 * generated yet, one is taken from the keypair pool.
 	 * <p>
 	 * @param  cn  The certificate common name
 	 * @return the generated request object.
 	 * @throws StoreManagerSingletonException on processing errors
 	 */
 	public PKCS10CertificationRequest createCSR(String cn) throws StoreManagerSingletonException{
+		return createCSR(cn, getKeyPair());
+	}
+	/**
+	 * Generate a PKCS10 Certification Request for a keypair.  The caller keeps the 
+	 * keypair to store with the signed certificate, see 
+	 * {@link #storeKeyEntry(String, String, X509Certificate, KeyPair)}.
+	 * <p>
+	 * @param  cn  		The certificate common name
+	 * @param  keypair	The keypair to certify
+	 * @return the generated request object.
+	 * @throws StoreManagerSingletonException on processing errors
+	 */
+	public PKCS10CertificationRequest createCSR(String cn, KeyPair keypair) throws StoreManagerSingletonException{
 		PKCS10CertificationRequest csr = null;
-		//keypair generated by the PMCertManager
 		PKCS10CertificationRequestBuilder p10Builder = new JcaPKCS10CertificationRequestBuilder(
 		    new X500Principal("CN=" + cn + ", OU=Fog IT2, O=mF2C, C=EU "), keypair.getPublic());
-		JcaContentSignerBuilder csBuilder = new JcaContentSignerBuilder("SHA256withRSA");
 		ContentSigner signer;
 		try {
-			signer = csBuilder.build(keypair.getPrivate());
+			//sign with the algorithm matching the key, e.g. SHA256withRSA
+			long start = System.nanoTime();
+			signer = KeyAlgorithm.forKey(keypair.getPrivate()).createSigner(keypair.getPrivate());
 			csr = p10Builder.build(signer);
+			Metrics.getInstance().record(Metrics.Operation.CSR_SIGNING, start);
 			//X500Name name = csr.getSubject();
 			LOGGER.debug("The DN: " + csr.getSubject().toString());
-		} catch (OperatorCreationException e) {
+		} catch (OperatorCreationException | NoSuchAlgorithmException e) {
 			LOGGER.error("Error generating CSR: " + e.getMessage());
 			throw new StoreManagerSingletonException("Error generating CSR: " + e.getMessage());
 		}
@@ -380,10 +800,21 @@ public class StoreManagerSingleton {
 	 * @throws StoreManagerSingletonException on processing error.
 	 */
 	public String createCSRString(String cn) throws StoreManagerSingletonException{
+		return createCSRString(cn, getKeyPair());
+	}
+	/**
+	 * Generate a CSR for a keypair, get a {@link java.lang.String <em>String</em>} representation of it.
+	 * <p>
+	 * @param  cn  		The certificate common name
+	 * @param  keypair	The keypair to certify
+	 * @return	a {@link java.lang.String <em>String</em>} representation of the CSR.
+	 * @throws StoreManagerSingletonException on processing error.
+	 */
+	public String createCSRString(String cn, KeyPair keypair) throws StoreManagerSingletonException{
 		JcaPEMWriter pw = null;
 		String s = null;
 		try {
-			PKCS10CertificationRequest csr = createCSR(cn);
+			PKCS10CertificationRequest csr = createCSR(cn, keypair);
 			StringWriter sw = new StringWriter();
 			pw = new JcaPEMWriter(sw);	        
 			pw.writeObject(csr);
@@ -396,7 +827,9 @@ public class StoreManagerSingleton {
 			throw new StoreManagerSingletonException("Error converting CSR to String: " + e.getMessage());
 		} finally {
 			try {
-				pw.close();
+				if(pw != null) {
+					pw.close();
+				}
 			} catch (IOException e) {
 				// swallow it
 				LOGGER.info("Error closing jcaPEMWriter buffer stream....");
@@ -405,27 +838,202 @@ public class StoreManagerSingleton {
         return s;
 	}
 	/**
-	 * Generate RSA keypair for the agent.
+	 * Get a keypair for the agent using the configured {@link KeyAlgorithm <em>KeyAlgorithm</em>}.  
+	 * The keypair is taken from the keypair pool and only generated on the calling thread if 
+	 * the pool is empty.
 	 * <p>
 	 * @throws StoreManagerSingletonException if no such algorithm encountered.
 	 */
 	public void generateKeyPair() throws StoreManagerSingletonException {
 		//you sign your CSR with the private key and once you get the certificate back from the CA
 		//your private key is stored together with the certificate as a keyEntry
-		KeyPairGenerator keyGen;
+		this.keypair = takeKeyPair();
+	}
+	/**
+	 * Get the agent keypair.  The first call reuses the key persisted as server.key
+	 * in the pkidata volume, see {@link #loadAgentCredential()}, and only takes a new
+	 * keypair from the keypair pool if there is no usable key.  A registration keeps
+	 * the returned keypair for its CSR and key entry, so a later {@link #generateKeyPair()}
+	 * does not affect it.
+	 * <p>
+	 * @return	the agent keypair
+	 * @throws StoreManagerSingletonException on error generating a keypair
+	 */
+	public KeyPair getKeyPair() throws StoreManagerSingletonException {
+		KeyPair kp = this.keypair;
+		if(kp == null) {
+			//keypair normally prepared by the PMCertManager, only one caller prepares it here
+			synchronized(this) {
+				kp = this.keypair;
+				if(kp == null) {
+					if(!loadAgentCredential()) {
+						this.keypair = takeKeyPair();
+					}
+					kp = this.keypair;
+				}
+			}
+		}
+		return kp;
+	}
+	/**
+	 * Load the agent keypair from server.key in the pkidata volume, and the agent
+	 * certificate from server.crt if it matches the key and is within its validity
+	 * period.  RSA PRIVATE KEY, EC PRIVATE KEY and PKCS&#35;8 PRIVATE KEY files are
+	 * accepted.  The key is not usable if it cannot be decoded, is not of the configured
+	 * algorithm or its public and private parts do not match; the files are then renamed
+	 * with an <code>.invalid</code> suffix so that a new key and certificate are written.
+	 * <p>
+	 * @return	true if the key was loaded and is now the agent keypair
+	 */
+	public synchronized boolean loadAgentCredential() {
+		long start = System.nanoTime();
+		File keyFile = new File(dataPath + "server.key");
+		File certFile = new File(dataPath + "server.crt");
+		if(!keyFile.exists()) {
+			return false;
+		}
+		X509Certificate cert = null;
 		try {
-			keyGen = KeyPairGenerator.getInstance("RSA");
-			keyGen.initialize(2048, random);
-			//keyGen.initialize(2048);
-			this.keypair = keyGen.generateKeyPair();
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.error("Error generating RSA keypair: " + e.getMessage());
-			throw new StoreManagerSingletonException("NoSuchAlgorithm Error generating RSA keypair: " + e.getMessage());
+			if(certFile.exists()) {
+				try (FileInputStream fis = new FileInputStream(certFile)) {
+					cert = generateCertfromPEM(fis);
+				}
+				if(cert == null) {
+					LOGGER.warn("Agent certificate in " + certFile + " could not be read");
+				}
+			}
+			PemObject pem;
+			try (PemReader reader = new PemReader(new InputStreamReader(new FileInputStream(keyFile), StandardCharsets.US_ASCII))) {
+				pem = reader.readPemObject();
+			}
+			if(pem == null) {
+				throw new InvalidKeyException("no PEM object");
+			}
+			KeyPair kp = KeyAlgorithm.fromPem(pem, cert != null ? cert.getPublicKey() : null);
+			KeyAlgorithm algorithm = KeyAlgorithm.forKey(kp.getPrivate());
+			if(algorithm != this.keyAlgorithm) {
+				throw new InvalidKeyException(algorithm + " key, " + this.keyAlgorithm + " configured");
+			}
+			if(!algorithm.matches(kp)) {
+				throw new InvalidKeyException("the public key does not match the private key");
+			}
+			this.keypair = kp;
+		} catch (IOException | GeneralSecurityException e) {
+			LOGGER.warn("Agent key in " + keyFile + " is not usable, generating a new one: " + e.getMessage());
+			setAside(keyFile);
+			setAside(certFile);
+			return false;
 		}
+		this.agentCertificate = null;
+		if(cert != null) {
+			try {
+				cert.checkValidity();
+				if(!cert.getPublicKey().equals(this.keypair.getPublic())) {
+					throw new CertificateException("it does not match the agent key");
+				}
+				this.agentCertificate = cert;
+			} catch (CertificateException e) {
+				LOGGER.warn("Agent certificate in " + certFile + " not used: " + e.getMessage());
+			}
+		}
+		LOGGER.info(String.format("Loaded the agent key%s from %s in %.1fms", this.agentCertificate != null ? " and certificate" : "",
+				dataPath, (System.nanoTime() - start) / 1e6));
+		return true;
+	}
+	/**
+	 * Get the agent certificate, the certificate for the agent keypair held in server.crt.
+	 * <p>
+	 * @return	the certificate, or null if there is none or it was not valid when loaded
+	 */
+	public X509Certificate getAgentCertificate() {
+		return this.agentCertificate;
+	}
+	/**
+	 * Take a new keypair from the keypair pool without changing the agent keypair,
+	 * e.g. for a registration which needs key material of its own.
+	 * <p>
+	 * @return	the keypair
+	 * @throws StoreManagerSingletonException on error generating a keypair
+	 */
+	public KeyPair takeKeyPair() throws StoreManagerSingletonException {
+		try {
+			KeyPair kp = this.keyPairPool.take();
+			LOGGER.debug(this.keyPairPool.toString());
+			return kp;
+		} catch (GeneralSecurityException e) {
+			LOGGER.error("Error generating " + this.keyAlgorithm + " keypair: " + e.getMessage());
+			throw new StoreManagerSingletonException("NoSuchAlgorithm Error generating " + this.keyAlgorithm + " keypair: " + e.getMessage());
+		}
+	}
+	/**
+	 * Getter for the {@link StoreManagerSingleton#keyAlgorithm <em>keyAlgorithm</em>} attribute
+	 * <p>
+	 * @return	the algorithm used for new keypairs
+	 */
+	public KeyAlgorithm getKeyAlgorithm() {
+		return this.keyAlgorithm;
+	}
+	/**
+	 * Set the algorithm used for new keypairs.  The keypair pool is restarted 
+	 * so that it only holds keypairs of the new algorithm.  The current agent 
+	 * keypair is not affected until {@link #generateKeyPair()} is called.
+	 * <p>
+	 * @param algorithm	the key algorithm
+	 */
+	public synchronized void setKeyAlgorithm(KeyAlgorithm algorithm) {
+		if(algorithm != this.keyAlgorithm) {
+			this.keyAlgorithm = algorithm;
+			configureKeyPairPool(this.poolDepth, this.poolLowWatermark, this.poolThreads);
+		}
+	}
+	/**
+	 * Replace the keypair pool with one using the provided settings and start filling it.
+	 * <p>
+	 * @param depth			the maximum number of keypairs held
+	 * @param lowWatermark	the number of ready keypairs which triggers a refill
+	 * @param threads		the number of background generation threads
+	 */
+	public void configureKeyPairPool(int depth, int lowWatermark, int threads) {
+		configureKeyPairPool(depth, lowWatermark, threads, true);
+	}
+	/**
+	 * Replace the keypair pool with one using the provided settings.
+	 * <p>
+	 * @param depth			the maximum number of keypairs held
+	 * @param lowWatermark	the number of ready keypairs which triggers a refill
+	 * @param threads		the number of background generation threads
+	 * @param prefill		true to start filling it now, else it is filled after the first keypair is taken
+	 */
+	private synchronized void configureKeyPairPool(int depth, int lowWatermark, int threads, boolean prefill) {
+		if(this.keyPairPool != null) {
+			this.keyPairPool.shutdown();
+		}
+		this.poolDepth = depth;
+		this.poolLowWatermark = lowWatermark;
+		this.poolThreads = threads;
+		KeyAlgorithm algorithm = this.keyAlgorithm;
+		this.keyPairPool = new KeyPairPool(() -> {
+			long start = System.nanoTime();
+			KeyPair kp = algorithm.generateKeyPair(random);
+			Metrics.getInstance().record(Metrics.Operation.KEY_GENERATION, start);
+			return kp;
+		}, depth, lowWatermark, threads);
+		if(prefill) {
+			this.keyPairPool.start();
+		}
+	}
+	/**
+	 * Getter for the {@link StoreManagerSingleton#keyPairPool <em>keyPairPool</em>} attribute
+	 * <p>
+	 * @return	the keypair pool, providing the hit, miss and refill statistics
+	 */
+	public KeyPairPool getKeyPairPool() {
+		return this.keyPairPool;
 	}
 	
 	/**
-	 * Write the agent&#39;private key to file if it does not exist.
+	 * Write the agent&#39;private key to file if it does not exist.  The PEM type
+	 * matches the key algorithm&#58; RSA PRIVATE KEY, EC PRIVATE KEY or PRIVATE KEY.
 	 * <p>
 	 * @throws StoreManagerSingletonException	on errors
 	 */
@@ -440,7 +1048,8 @@ public class StoreManagerSingleton {
 		}
 		try (PemWriter pw = new PemWriter(new OutputStreamWriter(new FileOutputStream(absPath)))) {
 			// the description is used : BEGIN <description> in the PEM file
-			pw.writeObject(new PemObject("RSA PRIVATE KEY", this.keypair.getPrivate().getEncoded()));
+			KeyPair kp = getKeyPair();
+			pw.writeObject(KeyAlgorithm.forKey(kp.getPrivate()).toPem(kp));
 			pw.close();
 		}catch(Exception e) {
 			System.out.println("Error writing private key to: " + absPath);
@@ -467,6 +1076,10 @@ public class StoreManagerSingleton {
 				// the description is used in the PEM file: BEGIN <description> .....
 				pw.writeObject(new PemObject("CERTIFICATE", agentCert.getEncoded()));
 				pw.close();
+				KeyPair kp = this.keypair;
+				if(kp != null && kp.getPublic().equals(agentCert.getPublicKey())) {
+					this.agentCertificate = agentCert;
+				}
 			} catch (Exception e) {
 				System.out.println("Error writing agent certificate to: " + fileName);
 				throw new StoreManagerSingletonException(e.getMessage());			
@@ -476,6 +1089,65 @@ public class StoreManagerSingleton {
 			LOGGER.error("Cannot write X.509 cert to " + fileName);
 		}
 	}
+	/**
+	 * Replace the agent credential after its certificate has been renewed&#58; the agent
+	 * keypair and the server.key and server.crt files.  Nothing is replaced unless the
+	 * renewed certificate is the agent credential, i.e. the agent keypair matches the
+	 * public key of the certificate replaced.  Each file is written to a temporary file
+	 * and renamed over the old one, the key first, so a reader never sees a partly
+	 * written file.
+	 * <p>
+	 * @param previous	the public key of the certificate replaced
+	 * @param keypair	the new keypair
+	 * @param cert		the new certificate
+	 * @return	true if the agent credential was replaced
+	 * @throws StoreManagerSingletonException on error writing the files
+	 */
+	public synchronized boolean replaceAgentCredential(PublicKey previous, KeyPair keypair, X509Certificate cert) throws StoreManagerSingletonException {
+		KeyPair current = this.keypair;
+		if(current == null || !current.getPublic().equals(previous)) {
+			return false;
+		}
+		writeCredentialFiles(keypair, cert);
+		LOGGER.info("Replaced the agent credential in " + dataPath);
+		return true;
+	}
+	/**
+	 * Write the credential of the first registration as the agent credential&#58; the
+	 * keypair becomes the agent keypair and is written to server.key with the certificate
+	 * in server.crt, so that the two files always match.  Nothing is written if
+	 * server.crt exists already.
+	 * <p>
+	 * @param keypair	the keypair certified by the registration
+	 * @param cert		the certificate
+	 * @return	true if the agent credential was written
+	 * @throws StoreManagerSingletonException on error writing the files
+	 */
+	public synchronized boolean writeAgentCredential(KeyPair keypair, X509Certificate cert) throws StoreManagerSingletonException {
+		if(new File(dataPath + "server.crt").exists()) {
+			LOGGER.info("certificate file exists already, not over-writing it.....");
+			return false;
+		}
+		writeCredentialFiles(keypair, cert);
+		LOGGER.info("Wrote the agent credential to " + dataPath);
+		return true;
+	}
+	/**
+	 * Get the location of the mapped file volume holding server.key and server.crt.
+	 * <p>
+	 * @return	the directory, ending with the file separator
+	 */
+	public static String getDataPath() {
+		return dataPath;
+	}
+	/**
+	 * Set the location of the mapped file volume holding server.key and server.crt.
+	 * <p>
+	 * @param path	the directory
+	 */
+	public static void setDataPath(String path) {
+		dataPath = path.endsWith(File.separator) ? path : path + File.separator;
+	}
 	/** 
 	 * Write the Agent&#39;s deviceID to the shared data volume 
 	 * <p>
@@ -491,13 +1163,132 @@ public class StoreManagerSingleton {
 				LOGGER.info("device id file exists already, not over-writing it.....");
 				return;
 			}		
-			Files.write(Paths.get("c:/output.txt"), did.getBytes());
+			Files.write(Paths.get(didFile), did.getBytes());
 		} catch (IOException e) {
 			// 
 			throw new StoreManagerSingletonException(e);
 		}
 	}
 	
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the private key held with a certificate of an agent&#58; that of the identity
+	 * or key entry holding the certificate, or the agent keypair if it is certified.  The
+	 * entries are only stored with the keypair their certificate certifies.
+	 * @param idKey	the agent id key
+	 * @param cert	the certificate
+	 * @return	the private key, or null if none is held with the certificate
+	 */
+	private PrivateKey heldPrivateKey(String idKey, X509Certificate cert) {
+		IdentityRegistry registry = this.identityRegistry;
+		AgentIdentity identity = registry == null ? null : registry.getByIdKey(idKey);
+		if(identity != null && cert.equals(identity.getCertificate())) {
+			return identity.getKeyEntry().getPrivateKey();
+		}
+		KeyStore.Entry entry = this.keyStore.getEntry(idKey);
+		if(entry instanceof PrivateKeyEntry && cert.equals(((PrivateKeyEntry) entry).getCertificate())) {
+			return ((PrivateKeyEntry) entry).getPrivateKey();
+		}
+		KeyPair agent = this.keypair;
+		if(agent != null && agent.getPublic().equals(cert.getPublicKey())) {
+			return agent.getPrivate();
+		}
+		return null;
+	}
+	/**
+	 * Write the agent keypair to server.key and the certificate to server.crt, each to a
+	 * temporary file renamed over the old one, the key first, so a reader never sees a
+	 * partly written file.
+	 * @param keypair	the keypair
+	 * @param cert		the certificate
+	 * @throws StoreManagerSingletonException on error writing the files
+	 */
+	private void writeCredentialFiles(KeyPair keypair, X509Certificate cert) throws StoreManagerSingletonException {
+		try {
+			Path keyFile = Paths.get(dataPath + "server.key");
+			Path certFile = Paths.get(dataPath + "server.crt");
+			Path keyTemp = writeTempPem(keyFile, KeyAlgorithm.forKey(keypair.getPrivate()).toPem(keypair));
+			try {
+				Path certTemp = writeTempPem(certFile, new PemObject("CERTIFICATE", cert.getEncoded()));
+				try {
+					moveAtomically(keyTemp, keyFile);
+					this.keypair = keypair;
+					moveAtomically(certTemp, certFile);
+					this.agentCertificate = cert;
+				} finally {
+					Files.deleteIfExists(certTemp);
+				}
+			} finally {
+				Files.deleteIfExists(keyTemp);
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			LOGGER.error("Error writing the agent credential files: " + e.getMessage());
+			throw new StoreManagerSingletonException("Error writing the agent credential files: " + e.getMessage(), e);
+		}
+	}
+	/**
+	 * Write a PEM object to a temporary file beside its target and force it to disk.
+	 * <p>
+	 * @param target	the file to be replaced
+	 * @param pem		the PEM object
+	 * @return	the temporary file
+	 * @throws IOException on error writing the file
+	 */
+	private static Path writeTempPem(Path target, PemObject pem) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+				PemWriter pw = new PemWriter(new OutputStreamWriter(fos, StandardCharsets.US_ASCII))) {
+			pw.writeObject(pem);
+			pw.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return temp;
+	}
+	/**
+	 * Get the common name of the subject of a certificate.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the common name, or null if it has none
+	 */
+	private static String commonName(X509Certificate cert) {
+		RDN[] rdns = X500Name.getInstance(cert.getSubjectX500Principal().getEncoded()).getRDNs(BCStyle.CN);
+		return rdns.length == 0 ? null : IETFUtils.valueToString(rdns[0].getFirst().getValue());
+	}
+	/**
+	 * Rename a file over its target, atomically where the file system supports it.
+	 * <p>
+	 * @param source	the file
+	 * @param target	the target
+	 * @throws IOException on error renaming the file
+	 */
+	private static void moveAtomically(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	/**
+	 * Rename an unusable credential file with an <code>.invalid</code> suffix, replacing
+	 * any file set aside before.
+	 * <p>
+	 * @param file	the file, which may not exist
+	 */
+	private static void setAside(File file) {
+		if(!file.exists()) {
+			return;
+		}
+		try {
+			Files.move(file.toPath(), Paths.get(file.getPath() + ".invalid"), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOGGER.error("Error setting aside " + file + ": " + e.getMessage());
+		}
+	}
 
 	/**
 	 * @param args
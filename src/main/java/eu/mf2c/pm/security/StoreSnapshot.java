@@ -0,0 +1,218 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable version of the content of a trust or key store.  The
+ * {@link StoreManagerSingleton <em>StoreManagerSingleton</em>} publishes a new snapshot
+ * on every change (copy&#45;on&#45;write), so readers look up trust anchors and key entries
+ * without locking and a reader holding a snapshot, e.g. while an SSLContext is built
+ * for a handshake, never sees a later change.
+ * <p>
+ * The JKS {@link KeyStore <em>KeyStore</em>} form needed by the JSSE factories and for
+ * persistence is built once per snapshot on first use.  It must not be modified.
+ */
+public class StoreSnapshot {
+	/** the version, incremented on every change */
+	private final long version;
+	/** the entries by alias, not modified after construction */
+	private final Map<String, KeyStore.Entry> entries;
+	/** the store and key entry password */
+	private final char[] password;
+	/** the KeyStore form, built on first use */
+	private volatile KeyStore keyStore;
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param version	the version
+	 * @param entries	the entries, owned by the snapshot
+	 * @param password	the store and key entry password
+	 */
+	private StoreSnapshot(long version, Map<String, KeyStore.Entry> entries, char[] password) {
+		this.version = version;
+		this.entries = entries;
+		this.password = password;
+	}
+
+	/**
+	 * Create a snapshot of the content of a store.
+	 * <p>
+	 * @param version	the version
+	 * @param store		the store
+	 * @param password	the store and key entry password
+	 * @return	the snapshot
+	 * @throws GeneralSecurityException on error reading an entry
+	 */
+	public static StoreSnapshot of(long version, KeyStore store, char[] password) throws GeneralSecurityException {
+		Map<String, KeyStore.Entry> entries = new HashMap<String, KeyStore.Entry>();
+		KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(password);
+		Enumeration<String> aliases = store.aliases();
+		while(aliases.hasMoreElements()) {
+			String alias = aliases.nextElement();
+			entries.put(alias, store.getEntry(alias, store.isKeyEntry(alias) ? protection : null));
+		}
+		StoreSnapshot snapshot = new StoreSnapshot(version, entries, password.clone());
+		snapshot.keyStore = store;
+		return snapshot;
+	}
+
+	/**
+	 * Create a snapshot with an entry added or replaced.  This snapshot is unchanged.
+	 * <p>
+	 * @param alias	the alias
+	 * @param entry	a {@link KeyStore.TrustedCertificateEntry} or {@link KeyStore.PrivateKeyEntry}
+	 * @return	the new snapshot, with the next version
+	 */
+	public StoreSnapshot with(String alias, KeyStore.Entry entry) {
+		Map<String, KeyStore.Entry> copy = new HashMap<String, KeyStore.Entry>(this.entries);
+		copy.put(alias, entry);
+		return new StoreSnapshot(this.version + 1, copy, this.password);
+	}
+
+	/**
+	 * Create a snapshot with an entry removed.  This snapshot is unchanged.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the new snapshot, with the next version, or this snapshot if there is no
+	 * 			such entry
+	 */
+	public StoreSnapshot without(String alias) {
+		if(!this.entries.containsKey(alias)) {
+			return this;
+		}
+		Map<String, KeyStore.Entry> copy = new HashMap<String, KeyStore.Entry>(this.entries);
+		copy.remove(alias);
+		return new StoreSnapshot(this.version + 1, copy, this.password);
+	}
+
+	/**
+	 * Create an empty snapshot.
+	 * <p>
+	 * @param password	the store and key entry password
+	 * @return	the snapshot, version 0
+	 */
+	public static StoreSnapshot empty(char[] password) {
+		return new StoreSnapshot(0L, new HashMap<String, KeyStore.Entry>(), password.clone());
+	}
+
+	/**
+	 * Get the version.
+	 * <p>
+	 * @return the version
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Get the number of entries.
+	 * <p>
+	 * @return the entry count
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Get the aliases.
+	 * <p>
+	 * @return an unmodifiable view of the aliases
+	 */
+	public Set<String> aliases() {
+		return Collections.unmodifiableSet(this.entries.keySet());
+	}
+
+	/**
+	 * Get an entry.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the entry, or null if there is none
+	 */
+	public KeyStore.Entry getEntry(String alias) {
+		return this.entries.get(alias);
+	}
+
+	/**
+	 * Get the certificate of an entry: the trusted certificate, or the end entity
+	 * certificate of a key entry.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the certificate, or null if there is no such entry
+	 */
+	public X509Certificate getCertificate(String alias) {
+		KeyStore.Entry e = this.entries.get(alias);
+		if(e instanceof KeyStore.TrustedCertificateEntry) {
+			return (X509Certificate) ((KeyStore.TrustedCertificateEntry) e).getTrustedCertificate();
+		}
+		if(e instanceof KeyStore.PrivateKeyEntry) {
+			return (X509Certificate) ((KeyStore.PrivateKeyEntry) e).getCertificate();
+		}
+		return null;
+	}
+
+	/**
+	 * Get the certificate chain of a key entry.
+	 * <p>
+	 * @param alias	the alias
+	 * @return	the chain, or null if there is no such key entry
+	 */
+	public Certificate[] getCertificateChain(String alias) {
+		KeyStore.Entry e = this.entries.get(alias);
+		return e instanceof KeyStore.PrivateKeyEntry ? ((KeyStore.PrivateKeyEntry) e).getCertificateChain() : null;
+	}
+
+	/**
+	 * Get the content as a JKS key store, building it on first use.
+	 * <p>
+	 * @return	the store, which must not be modified
+	 * @throws KeyStoreException on error building the store
+	 */
+	public KeyStore getKeyStore() throws KeyStoreException {
+		KeyStore ks = this.keyStore;
+		if(ks == null) {
+			synchronized(this) {
+				ks = this.keyStore;
+				if(ks == null) {
+					ks = KeyStore.getInstance("JKS");
+					try {
+						ks.load(null, this.password);
+					} catch (IOException | GeneralSecurityException e) {
+						throw new KeyStoreException("Error initialising the key store: " + e.getMessage(), e);
+					}
+					KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(this.password);
+					for(Map.Entry<String, KeyStore.Entry> e : this.entries.entrySet()) {
+						ks.setEntry(e.getKey(), e.getValue(), e.getValue() instanceof KeyStore.PrivateKeyEntry ? protection : null);
+					}
+					this.keyStore = ks;
+				}
+			}
+		}
+		return ks;
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * An index over the CA certificates of a trust store snapshot, keyed by subject DN
+ * and by Subject Key Identifier, used to build the certificate path of an issued
+ * certificate.  The issuer of a certificate is found by its Authority Key Identifier,
+ * or by its issuer DN if it has none, in constant time whatever the size of the trust
+ * store, so a path takes one lookup per certificate in the chain.  A signature check
+ * is only needed to choose between CA certificates sharing a DN and key identifier,
+ * e.g. during a CA key rollover.
+ * <p>
+ * The path above each issuer is memoized, so the certificates issued by the same CA
+ * share one lookup.  The index is immutable apart from the memo: the
+ * {@link StoreManagerSingleton <em>StoreManagerSingleton</em>} builds a new one for each
+ * trust store version.
+ */
+public class TrustAnchorIndex {
+	/** the longest path built above an issued certificate, guards against cross&#45;certified loops */
+	private static final int MAX_DEPTH = 8;
+	/** the path of a certificate whose issuer is not held */
+	private static final X509Certificate[] NONE = new X509Certificate[0];
+	/** the version of the trust store indexed */
+	private final long version;
+	/** the number of distinct certificates indexed */
+	private final int size;
+	/** the certificates by subject DN */
+	private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<X500Principal, List<X509Certificate>>();
+	/** the certificates by Subject Key Identifier */
+	private final Map<ByteBuffer, List<X509Certificate>> byKeyId = new HashMap<ByteBuffer, List<X509Certificate>>();
+	/** the memoized paths above each issuer, issuer first */
+	private final ConcurrentHashMap<IssuerKey, X509Certificate[]> paths = new ConcurrentHashMap<IssuerKey, X509Certificate[]>();
+	/** number of issuer lookups answered by the memo */
+	private final LongAdder hits = new LongAdder();
+	/** number of issuer lookups made against the index */
+	private final LongAdder lookups = new LongAdder();
+
+	/**
+	 * The issuer of a certificate: its issuer DN and Authority Key Identifier.
+	 */
+	private static final class IssuerKey {
+		/** the issuer DN */
+		final X500Principal issuer;
+		/** the authority key identifier, or null */
+		final ByteBuffer keyId;
+
+		/**
+		 * Constructor
+		 * @param issuer	the issuer DN
+		 * @param keyId		the authority key identifier, or null
+		 */
+		IssuerKey(X500Principal issuer, ByteBuffer keyId) {
+			this.issuer = issuer;
+			this.keyId = keyId;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.issuer.hashCode() * 31 + Objects.hashCode(this.keyId);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof IssuerKey)) {
+				return false;
+			}
+			IssuerKey k = (IssuerKey) o;
+			return this.issuer.equals(k.issuer) && Objects.equals(this.keyId, k.keyId);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * <p>
+	 * @param version		the version of the trust store indexed
+	 * @param certificates	the trusted certificates
+	 */
+	public TrustAnchorIndex(long version, Collection<X509Certificate> certificates) {
+		this.version = version;
+		//the same CA may be held under several aliases
+		Set<X509Certificate> unique = new LinkedHashSet<X509Certificate>(certificates);
+		for(X509Certificate c : unique) {
+			this.bySubject.computeIfAbsent(c.getSubjectX500Principal(), k -> new ArrayList<X509Certificate>(1)).add(c);
+			ByteBuffer ski = subjectKeyId(c);
+			if(ski != null) {
+				this.byKeyId.computeIfAbsent(ski, k -> new ArrayList<X509Certificate>(1)).add(c);
+			}
+		}
+		this.size = unique.size();
+	}
+
+	/**
+	 * Index the certificates of a trust store snapshot.
+	 * <p>
+	 * @param snapshot	the trust store snapshot
+	 * @return	the index
+	 */
+	public static TrustAnchorIndex of(StoreSnapshot snapshot) {
+		List<X509Certificate> certs = new ArrayList<X509Certificate>(snapshot.size());
+		for(String alias : snapshot.aliases()) {
+			X509Certificate c = snapshot.getCertificate(alias);
+			if(c != null) {
+				certs.add(c);
+			}
+		}
+		return new TrustAnchorIndex(snapshot.getVersion(), certs);
+	}
+
+	/**
+	 * Build the certificate path of a certificate from the trusted certificates.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the path, the certificate first and the root CA, if held, last.  The path
+	 * 			is just the certificate if its issuer is not held.
+	 */
+	public X509Certificate[] buildPath(X509Certificate cert) {
+		if(isSelfIssued(cert)) {
+			return new X509Certificate[] {cert};
+		}
+		X509Certificate[] above = issuerPath(cert, 0);
+		X509Certificate[] path = new X509Certificate[above.length + 1];
+		path[0] = cert;
+		System.arraycopy(above, 0, path, 1, above.length);
+		return path;
+	}
+
+	/**
+	 * Find the issuer of a certificate.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the issuer, or null if it is not held
+	 */
+	public X509Certificate findIssuer(X509Certificate cert) {
+		X509Certificate[] above = issuerPath(cert, 0);
+		return above.length == 0 ? null : above[0];
+	}
+
+	/**
+	 * Get the certificates with a subject DN, e.g. the possible signers of a CRL.
+	 * <p>
+	 * @param subject	the subject DN
+	 * @return	the certificates, empty if none is held
+	 */
+	public List<X509Certificate> getBySubject(X500Principal subject) {
+		List<X509Certificate> certs = this.bySubject.get(subject);
+		return certs == null ? Collections.<X509Certificate>emptyList() : Collections.unmodifiableList(certs);
+	}
+
+	/**
+	 * Get the version of the trust store indexed.
+	 * <p>
+	 * @return the version
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Get the number of distinct certificates indexed.
+	 * <p>
+	 * @return the certificate count
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Get the number of issuer lookups answered by the memoized paths.
+	 * <p>
+	 * @return the hit count
+	 */
+	public long getPathHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Get the number of issuer lookups made against the index.
+	 * <p>
+	 * @return the lookup count
+	 */
+	public long getLookupCount() {
+		return this.lookups.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "version=" + this.version + ", certificates=" + this.size + ", memoized=" + this.paths.size()
+			+ ", hits=" + this.hits.sum() + ", lookups=" + this.lookups.sum();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the path above a certificate, from the memo or by looking up its issuer.
+	 * <p>
+	 * @param cert	the certificate
+	 * @param depth	the number of issuers already found
+	 * @return	the path, issuer first, empty if the issuer is not held
+	 */
+	private X509Certificate[] issuerPath(X509Certificate cert, int depth) {
+		IssuerKey key = new IssuerKey(cert.getIssuerX500Principal(), authorityKeyId(cert));
+		X509Certificate[] path = this.paths.get(key);
+		if(path != null) {
+			this.hits.increment();
+			return path;
+		}
+		this.lookups.increment();
+		List<X509Certificate> candidates = candidates(key);
+		boolean ambiguous = candidates.size() > 1;
+		X509Certificate issuer = ambiguous ? verifyingIssuer(cert, candidates) : candidates.isEmpty() ? null : candidates.get(0);
+		if(issuer == null) {
+			path = NONE;
+		} else if(isSelfIssued(issuer) || depth >= MAX_DEPTH) {
+			path = new X509Certificate[] {issuer};
+		} else {
+			X509Certificate[] above = issuerPath(issuer, depth + 1);
+			path = new X509Certificate[above.length + 1];
+			path[0] = issuer;
+			System.arraycopy(above, 0, path, 1, above.length);
+		}
+		//the issuer chosen by signature only holds for this certificate
+		if(!ambiguous) {
+			this.paths.putIfAbsent(key, path);
+		}
+		return path;
+	}
+
+	/**
+	 * Get the held certificates that may have issued a certificate.
+	 * <p>
+	 * @param key	the issuer of the certificate
+	 * @return	the candidates, matching the key identifier if any match
+	 */
+	private List<X509Certificate> candidates(IssuerKey key) {
+		if(key.keyId != null) {
+			List<X509Certificate> byId = this.byKeyId.get(key.keyId);
+			if(byId != null) {
+				List<X509Certificate> matches = new ArrayList<X509Certificate>(byId.size());
+				for(X509Certificate c : byId) {
+					if(c.getSubjectX500Principal().equals(key.issuer)) {
+						matches.add(c);
+					}
+				}
+				if(!matches.isEmpty()) {
+					return matches;
+				}
+			}
+		}
+		List<X509Certificate> byName = this.bySubject.get(key.issuer);
+		return byName == null ? Collections.<X509Certificate>emptyList() : byName;
+	}
+
+	/**
+	 * Choose the candidate whose key verifies the signature of a certificate.
+	 * <p>
+	 * @param cert			the certificate
+	 * @param candidates	the possible issuers
+	 * @return	the issuer, or null if none verifies
+	 */
+	private static X509Certificate verifyingIssuer(X509Certificate cert, List<X509Certificate> candidates) {
+		for(X509Certificate c : candidates) {
+			try {
+				cert.verify(c.getPublicKey());
+				return c;
+			} catch (GeneralSecurityException e) {
+				//not this one
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a certificate is its own issuer, i.e. a root CA.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	true if the subject and issuer DN are the same
+	 */
+	private static boolean isSelfIssued(X509Certificate cert) {
+		return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
+	}
+
+	/**
+	 * Get the Subject Key Identifier of a certificate.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the identifier, or null if it has none or it is malformed
+	 */
+	private static ByteBuffer subjectKeyId(X509Certificate cert) {
+		byte[] ext = cert.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+		if(ext == null) {
+			return null;
+		}
+		try {
+			return ByteBuffer.wrap(SubjectKeyIdentifier.getInstance(ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the key identifier of the Authority Key Identifier of a certificate.
+	 * <p>
+	 * @param cert	the certificate
+	 * @return	the identifier, or null if it has none or it is malformed
+	 */
+	private static ByteBuffer authorityKeyId(X509Certificate cert) {
+		byte[] ext = cert.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+		if(ext == null) {
+			return null;
+		}
+		try {
+			byte[] id = AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier();
+			return id == null ? null : ByteBuffer.wrap(id);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -91,6 +91,25 @@ public class Utils {
 		return Integer.parseInt(values[1]);
 	}
 	
+	/**
+	 * Get an integer setting from the system properties.
+	 * <p>
+	 * @param name			the property name
+	 * @param defaultValue	the value used if the property is not set or not a number
+	 * @return	the setting
+	 */
+	public static int getIntProperty(String name, int defaultValue) {
+		String value = System.getProperty(name);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
     /**
      * Return length many bytes of the passed in byte array as a hex string.
      * 
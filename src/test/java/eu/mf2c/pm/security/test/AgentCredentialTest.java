@@ -0,0 +1,207 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the agent key persisted as server.key is decoded in each supported format,
+ * including the one written by earlier releases, validated and reused together with a
+ * matching server.crt, and replaced if it is not usable.
+ */
+public class AgentCredentialTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(AgentCredentialTest.class);
+
+	/**
+	 * Test the PEM formats written by {@link KeyAlgorithm#toPem(KeyPair)} and their
+	 * PKCS&#35;8 equivalents decode to the same keypair.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPemRoundTrip() throws Exception {
+		SecureRandom random = new SecureRandom();
+		for(KeyAlgorithm alg : new KeyAlgorithm[] {KeyAlgorithm.RSA_2048, KeyAlgorithm.EC_P256}) {
+			KeyPair kp = alg.generateKeyPair(random);
+			for(PemObject pem : new PemObject[] {alg.toPem(kp), new PemObject("PRIVATE KEY", kp.getPrivate().getEncoded())}) {
+				KeyPair decoded = KeyAlgorithm.fromPem(pem, null);
+				assertEquals(alg + " " + pem.getType(), kp.getPublic(), decoded.getPublic());
+				assertTrue(alg.matches(decoded));
+				assertTrue(alg.matches(new KeyPair(kp.getPublic(), decoded.getPrivate())));
+			}
+			assertFalse(alg.matches(new KeyPair(alg.generateKeyPair(random).getPublic(), kp.getPrivate())));
+		}
+		KeyPair ed;
+		try {
+			ed = KeyAlgorithm.ED25519.generateKeyPair(random);
+		} catch (GeneralSecurityException e) {
+			LOGGER.info("Ed25519 not supported by this runtime");
+			return;
+		}
+		//the PKCS#8 encoding does not carry the public key, it is taken from the certificate
+		try {
+			KeyAlgorithm.fromPem(KeyAlgorithm.ED25519.toPem(ed), null);
+			fail("expected an error");
+		} catch (GeneralSecurityException e) {
+			LOGGER.info("expected error: " + e.getMessage());
+		}
+		assertTrue(KeyAlgorithm.ED25519.matches(KeyAlgorithm.fromPem(KeyAlgorithm.ED25519.toPem(ed), ed.getPublic())));
+	}
+
+	/**
+	 * Test malformed and unsupported PEMs are rejected.
+	 */
+	@Test
+	public void testInvalidPem() {
+		for(PemObject pem : new PemObject[] {new PemObject("RSA PRIVATE KEY", new byte[] {0x30, 0x03, 0x02, 0x01, 0x00}),
+				new PemObject("EC PRIVATE KEY", "not a key".getBytes(StandardCharsets.US_ASCII)),
+				new PemObject("CERTIFICATE", new byte[16])}) {
+			try {
+				KeyAlgorithm.fromPem(pem, null);
+				fail("expected an error for " + pem.getType());
+			} catch (GeneralSecurityException e) {
+				LOGGER.info("expected error: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Test the agent key and matching certificate are reused from the pkidata volume,
+	 * a certificate for another key is ignored and an unusable key is set aside.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testReuseAgentCredential() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		KeyAlgorithm alg = sms.getKeyAlgorithm();
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		try {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			Credential ca = TestPki.createCA("agent-ca", KeyAlgorithm.EC_P256);
+			KeyPair kp = sms.takeKeyPair();
+			X509Certificate cert = TestPki.issue("agent", kp.getPublic(), ca, 365);
+			File keyFile = new File(dir.toFile(), "server.key");
+			File certFile = new File(dir.toFile(), "server.crt");
+			writePem(keyFile, alg.toPem(kp));
+			writePem(certFile, new PemObject("CERTIFICATE", cert.getEncoded()));
+			long start = System.nanoTime();
+			assertTrue(sms.loadAgentCredential());
+			double loadMillis = (System.nanoTime() - start) / 1e6;
+			assertEquals(kp.getPublic(), sms.getKeyPair().getPublic());
+			assertEquals(kp.getPrivate(), sms.getKeyPair().getPrivate());
+			assertEquals(cert, sms.getAgentCertificate());
+			//compare with generating a new key
+			start = System.nanoTime();
+			alg.generateKeyPair(new SecureRandom());
+			LOGGER.info(String.format("%s agent key loaded in %.1fms, generated in %.1fms", alg, loadMillis, (System.nanoTime() - start) / 1e6));
+			//a certificate for another key is not used
+			writePem(certFile, new PemObject("CERTIFICATE", TestPki.issue("agent", sms.takeKeyPair().getPublic(), ca, 365).getEncoded()));
+			assertTrue(sms.loadAgentCredential());
+			assertEquals(kp.getPublic(), sms.getKeyPair().getPublic());
+			assertNull(sms.getAgentCertificate());
+			//an unusable key is set aside with its certificate
+			writePem(keyFile, new PemObject(alg.getPemType(), new byte[] {1, 2, 3}));
+			assertFalse(sms.loadAgentCredential());
+			assertFalse(keyFile.exists());
+			assertFalse(certFile.exists());
+			assertTrue(new File(dir.toFile(), "server.key.invalid").exists());
+			assertTrue(new File(dir.toFile(), "server.crt.invalid").exists());
+			//no key
+			assertFalse(sms.loadAgentCredential());
+		} finally {
+			StoreManagerSingleton.setDataPath(dataPath);
+			for(File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+	/**
+	 * Test a server.key written by earlier releases, a PKCS&#35;8 key under the RSA
+	 * PRIVATE KEY label, is reused with its certificate after an upgrade.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testEarlierReleaseKeyFile() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		try {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			Credential ca = TestPki.createCA("agent-ca", KeyAlgorithm.EC_P256);
+			KeyPair kp = sms.takeKeyPair();
+			X509Certificate cert = TestPki.issue("agent", kp.getPublic(), ca, 365);
+			File keyFile = new File(dir.toFile(), "server.key");
+			File certFile = new File(dir.toFile(), "server.crt");
+			//as the earlier writeKeyFile did
+			writePem(keyFile, new PemObject("RSA PRIVATE KEY", kp.getPrivate().getEncoded()));
+			writePem(certFile, new PemObject("CERTIFICATE", cert.getEncoded()));
+			assertTrue(sms.loadAgentCredential());
+			assertEquals(kp.getPublic(), sms.getKeyPair().getPublic());
+			assertEquals(kp.getPrivate(), sms.getKeyPair().getPrivate());
+			assertEquals(cert, sms.getAgentCertificate());
+			assertTrue(keyFile.exists());
+			assertTrue(certFile.exists());
+			assertFalse(new File(dir.toFile(), "server.key.invalid").exists());
+		} finally {
+			StoreManagerSingleton.setDataPath(dataPath);
+			for(File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Write a PEM file.
+	 * @param file	the file
+	 * @param pem	the PEM object
+	 * @throws Exception on errors
+	 */
+	private static void writePem(File file, PemObject pem) throws Exception {
+		try (PemWriter pw = new PemWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+			pw.writeObject(pem);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.BasicSocketServer;
+import eu.mf2c.pm.security.RegistrationHandler;
+
+/**
+ * Tests the {@link BasicSocketServer <em>BasicSocketServer</em>} keeps serving
+ * registrations and measures the registrations per second achieved with one
+ * worker and with a worker per processor.  The registration itself is replaced
+ * by a fixed amount of hashing work.  A Policy block which does not take its reply
+ * is dropped without holding up the others.
+ */
+public class BasicSocketServerThroughputTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(BasicSocketServerThroughputTest.class);
+	/** A valid Policy block message */
+	private static final String MESSAGE = "detectedLeaderID=56789,deviceID=123456789,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45\n";
+	/** number of registrations sent per run */
+	private static final int REGISTRATIONS = 400;
+
+	/**
+	 * Test the server answers many registrations and malformed messages
+	 * without shutting down.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testServerKeepsRunning() throws Exception {
+		BasicSocketServer server = new BasicSocketServer(getAddresses(), 0, 2, 8, request -> { });
+		Thread t = start(server);
+		try {
+			assertEquals("OK", send(server.getLocalPort(), MESSAGE));
+			assertTrue(send(server.getLocalPort(), "garbage\n").startsWith("ERROR:"));
+			assertTrue(send(server.getLocalPort(), "").startsWith("ERROR:"));
+			assertEquals("OK", send(server.getLocalPort(), MESSAGE));
+		} finally {
+			server.stop();
+			t.join(10000);
+		}
+	}
+
+	/**
+	 * Test each request carries its own values.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPerConnectionState() throws Exception {
+		RegistrationHandler handler = request -> {
+			Thread.sleep(20);
+			if(!request.get("IDkey").equals("key-" + request.get("deviceID"))) {
+				throw new Exception("mixed up request values");
+			}
+		};
+		BasicSocketServer server = new BasicSocketServer(getAddresses(), 0, 4, 64, handler);
+		Thread t = start(server);
+		ExecutorService clients = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> replies = new ArrayList<Future<String>>();
+			for(int i = 0; i < 64; i++) {
+				String msg = "detectedLeaderID=1,deviceID=" + i + ",IDkey=key-" + i + ",MACaddr=ab\n";
+				replies.add(clients.submit(() -> send(server.getLocalPort(), msg)));
+			}
+			for(Future<String> reply : replies) {
+				assertEquals("OK", reply.get(30, TimeUnit.SECONDS));
+			}
+		} finally {
+			clients.shutdownNow();
+			server.stop();
+			t.join(10000);
+		}
+	}
+
+	/**
+	 * Test a reply larger than the socket buffers is written in full to a Policy block
+	 * reading it, and a Policy block which does not read its reply is disconnected
+	 * after the write timeout while the others are served.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testStalledReplyDropped() throws Exception {
+		char[] big = new char[16 * 1024 * 1024];
+		Arrays.fill(big, 'x');
+		String error = new String(big);
+		RegistrationHandler handler = request -> {
+			if(request.get("IDkey").startsWith("big")) {
+				throw new Exception(error);
+			}
+		};
+		System.setProperty("mf2c.server.writeTimeout", "500");
+		BasicSocketServer server;
+		try {
+			server = new BasicSocketServer(getAddresses(), 0, 2, 8, handler);
+		} finally {
+			System.clearProperty("mf2c.server.writeTimeout");
+		}
+		Thread t = start(server);
+		try (Socket stalled = new Socket()) {
+			stalled.setReceiveBufferSize(4096);
+			stalled.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			stalled.getOutputStream().write("detectedLeaderID=1,deviceID=1,IDkey=big-stalled,MACaddr=ab\n".getBytes(StandardCharsets.UTF_8));
+			//served while the stalled reply is pending
+			long start = System.nanoTime();
+			assertEquals("OK", send(server.getLocalPort(), MESSAGE));
+			assertEquals(6 + error.length(), send(server.getLocalPort(), "detectedLeaderID=1,deviceID=2,IDkey=big-read,MACaddr=ab\n").length());
+			LOGGER.info(String.format("served in %.1fms with a stalled reply pending", (System.nanoTime() - start) / 1e6));
+			Thread.sleep(2000);
+			//the rest of the reply was dropped with the connection
+			long read = 0;
+			try {
+				InputStream in = stalled.getInputStream();
+				byte[] buffer = new byte[65536];
+				int n;
+				while((n = in.read(buffer)) != -1) {
+					read += n;
+				}
+			} catch (IOException e) {
+				LOGGER.info("stalled connection reset: " + e.getMessage());
+			}
+			assertTrue("expected a partial reply, read " + read, read < 6 + error.length());
+		} finally {
+			server.stop();
+			t.join(10000);
+		}
+	}
+
+	/**
+	 * Measure the registrations per second with a single worker and with a
+	 * worker per processor.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testThroughputScalesWithWorkers() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+		measure(cores); //warm up
+		double single = measure(1);
+		double all = measure(cores);
+		LOGGER.info(String.format("registrations/sec: 1 worker = %.1f, %d workers = %.1f (x%.2f)",
+				single, cores, all, all / single));
+		if(cores > 1) {
+			assertTrue("no scaling with workers", all > single);
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Run a batch of registrations with the given number of workers.
+	 * <p>
+	 * @param workers	the number of server workers
+	 * @return	the registrations per second
+	 * @throws Exception on errors
+	 */
+	private double measure(int workers) throws Exception {
+		BasicSocketServer server = new BasicSocketServer(getAddresses(), 0, workers, REGISTRATIONS, request -> work());
+		Thread t = start(server);
+		ExecutorService clients = Executors.newFixedThreadPool(Math.max(4, workers * 2));
+		try {
+			long start = System.nanoTime();
+			List<Future<String>> replies = new ArrayList<Future<String>>();
+			for(int i = 0; i < REGISTRATIONS; i++) {
+				replies.add(clients.submit(() -> send(server.getLocalPort(), MESSAGE)));
+			}
+			for(Future<String> reply : replies) {
+				assertEquals("OK", reply.get(60, TimeUnit.SECONDS));
+			}
+			return REGISTRATIONS / ((System.nanoTime() - start) / 1e9);
+		} finally {
+			clients.shutdownNow();
+			server.stop();
+			t.join(10000);
+		}
+	}
+
+	/**
+	 * Stand in for the CPU cost of a registration.
+	 * @throws Exception on errors
+	 */
+	private static void work() throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] data = new byte[1024];
+		for(int i = 0; i < 2000; i++) {
+			data = extend(md.digest(data));
+		}
+	}
+
+	/**
+	 * Pad a digest back to 1KB.
+	 * @param digest	the digest
+	 * @return	the padded bytes
+	 */
+	private static byte[] extend(byte[] digest) {
+		byte[] out = new byte[1024];
+		System.arraycopy(digest, 0, out, 0, digest.length);
+		return out;
+	}
+
+	/**
+	 * Start the server on a background thread.
+	 * @param server	the server
+	 * @return	the server thread
+	 * @throws Exception on errors
+	 */
+	private static Thread start(BasicSocketServer server) throws Exception {
+		Thread t = new Thread(() -> {
+			try {
+				server.runSocket();
+			} catch (Exception e) {
+				LOGGER.error("server error: " + e.getMessage());
+			}
+		});
+		t.start();
+		assertTrue("server did not start", server.awaitStartup(10, TimeUnit.SECONDS));
+		return t;
+	}
+
+	/**
+	 * Send a message and read the reply.
+	 * @param port		the server port
+	 * @param message	the message
+	 * @return	the reply
+	 * @throws Exception on errors
+	 */
+	private static String send(int port, String message) throws Exception {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream os = s.getOutputStream();
+			os.write(message.getBytes(StandardCharsets.UTF_8));
+			os.flush();
+			s.shutdownOutput();
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int n;
+			while((n = in.read(buffer)) != -1) {
+				baos.write(buffer, 0, n);
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Get the CAU addresses.
+	 * @return the addresses
+	 */
+	private static HashMap<String, String> getAddresses() {
+		HashMap<String, String> hm = new HashMap<String, String>();
+		hm.put("cauIP", "127.0.0.1:46400");
+		hm.put("leaderCauIP", "127.0.0.1:46410");
+		return hm;
+	}
+}
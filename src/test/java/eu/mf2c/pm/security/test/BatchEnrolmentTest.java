@@ -0,0 +1,272 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.BatchEnrolmentClient;
+import eu.mf2c.pm.security.BatchEnrolmentPool;
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.Exception.BatchEnrolmentClientException;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link BatchEnrolmentClient <em>BatchEnrolmentClient</em>} against the
+ * {@link StandInCau <em>StandInCau</em>}, directly and through the
+ * {@link BatchEnrolmentPool <em>BatchEnrolmentPool</em>} during a burst of registrations.
+ */
+public class BatchEnrolmentTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(BatchEnrolmentTest.class);
+	/** number of agents in a batch */
+	private static final int AGENTS = 25;
+	/** the stand-in CAU */
+	private StandInCau cau;
+	/** the client context trusting the stand-in */
+	private SSLContext context;
+
+	/**
+	 * Start a stand&#45;in CAU.
+	 * @throws Exception on errors
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Credential ca = TestPki.createCA("batch-ca", KeyAlgorithm.EC_P256);
+		this.cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca));
+		this.context = SSLContextRegistry.createContext(TestPki.trustStore(ca.cert), null, null);
+	}
+
+	/**
+	 * Stop the stand&#45;in CAU.
+	 */
+	@After
+	public void tearDown() {
+		this.cau.close();
+	}
+
+	/**
+	 * Test a burst of agents is enrolled over a single connection and every
+	 * certificate reaches the right request, whatever order they are signed in.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBatchOverOneConnection() throws Exception {
+		this.cau.setMaxDelayMillis(20);
+		List<KeyPair> keys = new ArrayList<KeyPair>();
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for(int i = 0; i < AGENTS; i++) {
+			KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+			keys.add(kp);
+			messages.add(message("agent-" + i, kp));
+		}
+		List<CompletableFuture<X509Certificate>> futures = new ArrayList<CompletableFuture<X509Certificate>>();
+		List<Integer> order = new ArrayList<Integer>();
+		long start = System.nanoTime();
+		try (BatchEnrolmentClient client = new BatchEnrolmentClient(this.context, InetAddress.getLoopbackAddress(), this.cau.getPort())) {
+			client.open();
+			for(int i = 0; i < AGENTS; i++) {
+				final int n = i;
+				futures.add(client.enrol(messages.get(i)).whenComplete((c, e) -> {
+					synchronized(order) {
+						order.add(n);
+					}
+				}));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+			assertEquals(0, client.getPending());
+		}
+		double batch = (System.nanoTime() - start) / 1e6;
+		for(int i = 0; i < AGENTS; i++) {
+			X509Certificate cert = futures.get(i).get();
+			assertEquals(keys.get(i).getPublic(), cert.getPublicKey());
+			assertTrue(cert.getSubjectX500Principal().getName().contains("CN=agent-" + i));
+		}
+		assertEquals("expected one connection", 1, this.cau.getConnections());
+		LOGGER.info("certificates returned in order " + order);
+		//
+		start = System.nanoTime();
+		for(int i = 0; i < AGENTS; i++) {
+			single(messages.get(i));
+		}
+		double single = (System.nanoTime() - start) / 1e6;
+		assertEquals(1 + AGENTS, this.cau.getConnections());
+		LOGGER.info(String.format("%d agents: batch %.1f ms over 1 connection, one connection each %.1f ms",
+				AGENTS, batch, single));
+	}
+
+	/**
+	 * Test a rejected request fails its own future only.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRejectedRequest() throws Exception {
+		try (BatchEnrolmentClient client = new BatchEnrolmentClient(this.context, InetAddress.getLoopbackAddress(), this.cau.getPort())) {
+			client.open();
+			CompletableFuture<X509Certificate> bad = client.enrol("IDkey=nocsr".getBytes(StandardCharsets.UTF_8));
+			CompletableFuture<X509Certificate> good = client.enrol(message("agent-ok", KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM)));
+			assertTrue(good.get(10, TimeUnit.SECONDS) != null);
+			try {
+				bad.get(10, TimeUnit.SECONDS);
+				fail("expected the request to be rejected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof BatchEnrolmentClientException);
+			}
+		}
+	}
+
+	/**
+	 * Test requests outstanding when the connection drops are failed.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testConnectionLost() throws Exception {
+		this.cau.setMaxDelayMillis(2000);
+		try (BatchEnrolmentClient client = new BatchEnrolmentClient(this.context, InetAddress.getLoopbackAddress(), this.cau.getPort())) {
+			client.open();
+			CompletableFuture<X509Certificate> f = client.enrol(message("agent-lost", KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM)));
+			this.cau.close();
+			client.close(100, TimeUnit.MILLISECONDS);
+			try {
+				f.get(10, TimeUnit.SECONDS);
+				fail("expected the request to fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof BatchEnrolmentClientException);
+			}
+			assertTrue(client.enrol(new byte[0]).isCompletedExceptionally());
+		}
+	}
+
+	/**
+	 * Test the registrations of a burst enrol over a shared connection once the
+	 * threshold is reached, and the shared connection is closed after the burst.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBurstSharesConnection() throws Exception {
+		Credential ca = TestPki.createCA("burst-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton.getInstance().storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		BatchEnrolmentPool pool = BatchEnrolmentPool.getInstance();
+		long batched = pool.getBatched();
+		int burst = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(burst);
+		try (StandInCau burstCau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			//the first registrations are still waiting on their own connection when the others start
+			burstCau.setResponseDelay(300, 0, 0);
+			pool.setThreshold(2);
+			CountDownLatch ready = new CountDownLatch(burst);
+			List<Future<X509Certificate>> certs = new ArrayList<Future<X509Certificate>>();
+			for(int i = 0; i < burst; i++) {
+				HashMap<String, String> request = new HashMap<String, String>();
+				request.put("cauIP", "127.0.0.1:" + burstCau.getPort());
+				request.put("leaderCauIP", "127.0.0.1:1");
+				request.put("IDkey", "burst-agent-" + System.nanoTime() + "-" + i);
+				request.put("deviceID", "burst-device-" + i);
+				request.put("detectedLeaderID", "burst-fog");
+				request.put("MACaddr", "ab:cd:ef:01:23:45");
+				certs.add(executor.submit(() -> {
+					CauClient client = new CauClient(request);
+					byte[] message = client.createRequest();
+					ready.countDown();
+					ready.await();
+					return client.enrol(message);
+				}));
+			}
+			for(Future<X509Certificate> cert : certs) {
+				assertTrue(cert.get(60, TimeUnit.SECONDS).getSubjectX500Principal().getName().contains("burst-agent-"));
+			}
+			LOGGER.info(pool + ", " + burstCau.getConnections() + " connections for " + burst + " registrations");
+			assertEquals(burst, burstCau.getSigned());
+			assertTrue("expected batched enrolments", pool.getBatched() > batched);
+			assertTrue("expected a shared connection", burstCau.getConnections() < burst);
+			assertEquals(0, pool.getInFlight());
+		} finally {
+			pool.setThreshold(0);
+			executor.shutdown();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Create a request message the way the CauClient does.
+	 * @param cn	the agent common name
+	 * @param kp	the agent keypair
+	 * @return	the message
+	 * @throws Exception on errors
+	 */
+	private static byte[] message(String cn, KeyPair kp) throws Exception {
+		StringWriter sw = new StringWriter();
+		try (JcaPEMWriter pw = new JcaPEMWriter(sw)) {
+			pw.writeObject(new JcaPKCS10CertificationRequestBuilder(new X500Principal("CN=" + cn + ", OU=Fog IT2, O=mF2C, C=EU"),
+					kp.getPublic()).build(KeyAlgorithm.EC_P256.createSigner(kp.getPrivate())));
+		}
+		return CauClient.getMsgBytes(sw.toString(), "leader-1", "ab:cd:ef:01:23:45", cn, "device-" + cn);
+	}
+
+	/**
+	 * Enrol over a connection of its own, as the CauClient does.
+	 * @param message	the request message
+	 * @throws Exception on errors
+	 */
+	private void single(byte[] message) throws Exception {
+		try (SSLSocket s = SSLContextRegistry.getInstance().connect(SSLContextRegistry.Role.CAU, this.context,
+				InetAddress.getLoopbackAddress(), this.cau.getPort(), null)) {
+			s.getOutputStream().write(message);
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int r;
+			while((r = in.read(buffer)) != -1) {
+				baos.write(buffer, 0, r);
+			}
+			assertTrue(baos.toString("UTF-8").startsWith("-----BEGIN CERTIFICATE-----"));
+		}
+	}
+}
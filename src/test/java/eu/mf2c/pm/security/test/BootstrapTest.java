@@ -0,0 +1,84 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.PMCertManager;
+import eu.mf2c.pm.security.StartupTimings;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+
+/**
+ * Tests the {@link PMCertManager <em>PMCertManager</em>} background bootstrap prepares
+ * the stores, the agent key and the renewals and records the phase timings.
+ */
+public class BootstrapTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(BootstrapTest.class);
+
+	/**
+	 * Test the bootstrap phases complete, keep a keypair already taken by a registration
+	 * and write it to server.key.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBootstrap() throws Exception {
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			HashMap<String, String> addresses = new HashMap<String, String>();
+			addresses.put("cauIP", "127.0.0.1:46400");
+			addresses.put("leaderCauIP", "127.0.0.1:46401");
+			long start = System.nanoTime();
+			new PMCertManager().bootstrap(addresses, executor).get(60, TimeUnit.SECONDS);
+			LOGGER.info(String.format("bootstrap took %.1fms; %s", (System.nanoTime() - start) / 1e6, StartupTimings.getInstance()));
+			StartupTimings timings = StartupTimings.getInstance();
+			for(String phase : new String[] {"stores", "agent key", "renewals", "trust store", "key store"}) {
+				assertTrue(phase, timings.getMillis(phase) >= 0);
+				assertTrue(phase, timings.getCompletedMillis(phase) >= timings.getMillis(phase));
+			}
+			assertEquals(-1.0, timings.getMillis("unknown"), 0.0);
+			//the agent keypair is not replaced by the bootstrap
+			KeyPair kp = StoreManagerSingleton.getInstance().getKeyPair();
+			new PMCertManager().bootstrap(addresses, executor).get(60, TimeUnit.SECONDS);
+			assertTrue(kp == StoreManagerSingleton.getInstance().getKeyPair());
+			assertTrue(new File(dir.toFile(), "server.key").exists());
+		} finally {
+			executor.shutdown();
+			StoreManagerSingleton.setDataPath(dataPath);
+			for(File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.mf2c.pm.security.CategorisationClient;
+import eu.mf2c.pm.security.Exception.CategorisationClientException;
+
+/**
+ * Tests the {@link CategorisationClient <em>CategorisationClient</em>} against a local
+ * stub of the Categorisation block: a burst of triggers reuses a few keep&#45;alive
+ * connections and coalesces repeated device IDs, and failed requests are retried or
+ * reported through the future.
+ */
+public class CategorisationClientTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(CategorisationClientTest.class);
+	/** the requests received by device ID */
+	private final Map<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+	/** the client ports seen, one per connection */
+	private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Test a burst of triggers from many registrations completes over a few reused
+	 * connections, with repeated device IDs coalesced.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBurst() throws Exception {
+		HttpServer server = startServer();
+		CategorisationClient client = new CategorisationClient(url(server), 4, 3, 50, 20);
+		ExecutorService registrations = Executors.newFixedThreadPool(8);
+		try {
+			List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+			long start = System.nanoTime();
+			List<CompletableFuture<CompletableFuture<Integer>>> submitted = new ArrayList<CompletableFuture<CompletableFuture<Integer>>>();
+			for(int i = 0; i < 500; i++) {
+				String deviceID = "device-" + (i % 100);
+				submitted.add(CompletableFuture.supplyAsync(() -> client.trigger(deviceID, "agent"), registrations));
+			}
+			for(CompletableFuture<CompletableFuture<Integer>> s : submitted) {
+				futures.add(s.get(10, TimeUnit.SECONDS));
+			}
+			for(CompletableFuture<Integer> f : futures) {
+				assertEquals(Integer.valueOf(200), f.get(30, TimeUnit.SECONDS));
+			}
+			LOGGER.info(String.format("%s; %d connections, %d devices, took %.1fms", client, this.connections.size(),
+					this.received.size(), (System.nanoTime() - start) / 1e6));
+			assertEquals(100, this.received.size());
+			assertEquals(500, client.getRequests() + client.getCoalesced());
+			assertTrue("coalesced " + client.getCoalesced(), client.getCoalesced() > 0);
+			assertTrue(this.connections.size() + " connections for " + client.getRequests() + " requests",
+					this.connections.size() * 4 <= client.getRequests());
+		} finally {
+			registrations.shutdown();
+			client.shutdown();
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Test server errors are retried, client errors are not, and a failure is
+	 * reported through the future once the retries are used up.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRetries() throws Exception {
+		HttpServer server = startServer();
+		CategorisationClient client = new CategorisationClient(url(server), 2, 2, 20, 0);
+		try {
+			//fails twice, then succeeds
+			assertEquals(Integer.valueOf(200), client.trigger("flaky", "agent").get(10, TimeUnit.SECONDS));
+			assertEquals(3, this.received.get("flaky").get());
+			assertEquals(2, client.getRetries());
+			//not retried
+			expectFailure(client.trigger("unknown", "agent"), "404");
+			assertEquals(1, this.received.get("unknown").get());
+			//retried until the attempts are used up
+			expectFailure(client.trigger("broken", "agent"), "503");
+			assertEquals(3, this.received.get("broken").get());
+		} finally {
+			client.shutdown();
+			server.stop(0);
+		}
+		//unavailable
+		CategorisationClient closed = new CategorisationClient(url(server), 1, 1, 20, 0);
+		try {
+			expectFailure(closed.trigger("device", "agent"), "unavailable");
+			assertEquals(2, closed.getRequests());
+		} finally {
+			closed.shutdown();
+		}
+		expectFailure(closed.trigger("device", "agent"), "shut down");
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Start a stub categorisation service.  The device ID <code>unknown</code> gets a
+	 * 404, <code>broken</code> a 503 and <code>flaky</code> a 503 on the first two
+	 * requests; the others get a 200 after a short delay.
+	 * @return the server
+	 * @throws IOException on errors
+	 */
+	private HttpServer startServer() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/api/categorisation", exchange -> {
+			try {
+				this.connections.add(exchange.getRemoteAddress().getPort());
+				String query = exchange.getRequestURI().getQuery();
+				String deviceID = query.substring(query.indexOf('=') + 1);
+				int count = this.received.computeIfAbsent(deviceID, k -> new AtomicInteger()).incrementAndGet();
+				int status = 200;
+				if(deviceID.equals("unknown")) {
+					status = 404;
+				} else if(deviceID.equals("broken") || (deviceID.equals("flaky") && count <= 2)) {
+					status = 503;
+				} else {
+					Thread.sleep(2);
+				}
+				byte[] body = "{}".getBytes("UTF-8");
+				exchange.sendResponseHeaders(status, body.length);
+				exchange.getResponseBody().write(body);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(8));
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Get the endpoint of a stub service.
+	 * @param server	the server
+	 * @return the endpoint
+	 */
+	private static String url(HttpServer server) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/categorisation";
+	}
+
+	/**
+	 * Check a trigger fails with a message.
+	 * @param future	the trigger
+	 * @param message	part of the expected message
+	 * @throws Exception on errors
+	 */
+	private static void expectFailure(CompletableFuture<Integer> future, String message) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("expected a failure with " + message);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CategorisationClientException);
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(message));
+		}
+	}
+}
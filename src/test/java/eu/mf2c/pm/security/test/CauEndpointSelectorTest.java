@@ -0,0 +1,315 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.CauEndpointSelector;
+import eu.mf2c.pm.security.CauEndpointSelector.Endpoint;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.LatencyHistogram;
+import eu.mf2c.pm.security.RenewalScheduler;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.Exception.CircuitOpenException;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link CauEndpointSelector <em>CauEndpointSelector</em>}: requests go to the
+ * fastest replica, failed replicas are failed over and ejected, and slow requests are
+ * hedged.  {@link #testLatencySkew()} benchmarks enrolments against three
+ * {@link StandInCau <em>StandInCau</em>} replicas of different latency, spread round
+ * robin and by the selector.
+ */
+public class CauEndpointSelectorTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(CauEndpointSelectorTest.class);
+	/** replicas which are never connected to */
+	private static final String REPLICAS = "127.0.0.1:1,127.0.0.1:2,127.0.0.1:3";
+
+	/**
+	 * Stop tracking the benchmark agent.
+	 * @throws Exception on errors
+	 */
+	@After
+	public void tearDown() throws Exception {
+		RenewalScheduler.getInstance().untrack("selector-agent");
+	}
+
+	/**
+	 * Test each replica is tried, then the requests go to the fastest.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testFastestReplica() throws Exception {
+		CauEndpointSelector selector = new CauEndpointSelector(REPLICAS, 46400, 3, 30000, false, 10);
+		assertEquals(REPLICAS, selector.getName());
+		Map<Integer, AtomicInteger> calls = new ConcurrentHashMap<Integer, AtomicInteger>();
+		int[] delays = {0, 30, 5, 15};
+		for(int i = 0; i < 30; i++) {
+			selector.execute(e -> {
+				calls.computeIfAbsent(e.getPort(), k -> new AtomicInteger()).incrementAndGet();
+				Thread.sleep(delays[e.getPort()]);
+				return null;
+			});
+		}
+		LOGGER.info(selector + "; calls " + calls);
+		assertEquals(3, calls.size());
+		assertEquals(28, calls.get(2).get());
+		assertEquals(2, selector.select(null).getPort());
+		assertEquals(3, selector.select(selector.select(null)).getPort());
+		//the default port
+		assertEquals(46400, new CauEndpointSelector("127.0.0.1", 46400, 3, 30000, false, 10).getEndpoints().get(0).getPort());
+	}
+
+	/**
+	 * Test a failed replica is failed over, ejected after consecutive failures and
+	 * used again after the ejection period.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testFailoverAndEjection() throws Exception {
+		CauEndpointSelector selector = new CauEndpointSelector("127.0.0.1:1,127.0.0.1:2", 46400, 2, 200, false, 10);
+		Endpoint first = selector.getEndpoints().get(0);
+		Endpoint second = selector.getEndpoints().get(1);
+		AtomicInteger down = new AtomicInteger(1);
+		CauEndpointSelector.Call<Integer> call = e -> {
+			if(e.getPort() == down.get()) {
+				throw new ConnectException("Connection refused");
+			}
+			return e.getPort();
+		};
+		expectFailure(selector, call);
+		//the retry fails over
+		assertEquals(Integer.valueOf(2), selector.execute(call));
+		assertEquals(Integer.valueOf(2), selector.execute(call));
+		assertFalse(first.isEjected());
+		//back after the period, ejected on the next failure
+		Thread.sleep(250);
+		assertSame(first, selector.select(null));
+		expectFailure(selector, call);
+		assertTrue(first.isEjected());
+		assertEquals(1, selector.getEjections());
+		//both down, the one due back first is used
+		down.set(2);
+		expectFailure(selector, call);
+		expectFailure(selector, call);
+		assertTrue(second.isEjected());
+		assertSame(first, selector.select(null));
+		assertSame(second, selector.select(first));
+		CauEndpointSelector single = new CauEndpointSelector("127.0.0.1:1", 46400, 2, 200, false, 10);
+		assertNull(single.select(single.getEndpoints().get(0)));
+		//recovered
+		Thread.sleep(250);
+		assertEquals(Integer.valueOf(1), selector.execute(call));
+		assertFalse(first.isEjected());
+		LOGGER.info(selector);
+	}
+
+	/**
+	 * Test the circuit of a failing replica opens without opening the circuit of the
+	 * others, and calls fail at once only when every circuit is open.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testCircuitPerReplica() throws Exception {
+		System.setProperty("mf2c.breaker.failures", "2");
+		System.setProperty("mf2c.breaker.openMillis", "300");
+		try {
+			//no ejection, so the circuits alone keep the calls off a failing replica
+			CauEndpointSelector selector = new CauEndpointSelector("127.0.0.1:11,127.0.0.1:12", 46400, 100, 0, false, 10);
+			Endpoint first = selector.getEndpoints().get(0);
+			Endpoint second = selector.getEndpoints().get(1);
+			Map<Integer, AtomicInteger> calls = new ConcurrentHashMap<Integer, AtomicInteger>();
+			AtomicInteger down = new AtomicInteger(11);
+			CauEndpointSelector.Call<Integer> call = e -> {
+				calls.computeIfAbsent(e.getPort(), k -> new AtomicInteger()).incrementAndGet();
+				if(e.getPort() == down.get() || down.get() == 0) {
+					throw new ConnectException("Connection refused");
+				}
+				return e.getPort();
+			};
+			expectFailure(selector, call);
+			expectFailure(selector, call);
+			assertTrue(first.getCircuitBreaker().isOpen());
+			for(int i = 0; i < 10; i++) {
+				assertEquals(Integer.valueOf(12), selector.execute(call));
+			}
+			assertFalse(second.getCircuitBreaker().isOpen());
+			assertEquals(2, calls.get(11).get());
+			//every circuit open
+			down.set(0);
+			expectFailure(selector, call);
+			expectFailure(selector, call);
+			assertTrue(second.getCircuitBreaker().isOpen());
+			try {
+				selector.execute(call);
+				fail("expected the circuits to be open");
+			} catch (CircuitOpenException e) {
+				LOGGER.info(e.getMessage());
+			}
+			assertEquals(14, calls.get(11).get() + calls.get(12).get());
+			//the trial call closes the circuit
+			down.set(-1);
+			Thread.sleep(350);
+			assertEquals(Integer.valueOf(11), selector.execute(call));
+			assertFalse(first.getCircuitBreaker().isOpen());
+		} finally {
+			System.clearProperty("mf2c.breaker.failures");
+			System.clearProperty("mf2c.breaker.openMillis");
+		}
+	}
+
+	/**
+	 * Test a request slower than the 95th percentile is hedged to another replica,
+	 * cutting the tail latency.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testHedging() throws Exception {
+		LatencyHistogram unhedged = tail(new CauEndpointSelector("127.0.0.1:1,127.0.0.1:2", 46400, 3, 30000, false, 1));
+		CauEndpointSelector selector = new CauEndpointSelector("127.0.0.1:1,127.0.0.1:2", 46400, 3, 30000, true, 1);
+		LatencyHistogram hedged = tail(selector);
+		LOGGER.info(String.format("%s; hedge delay %dms; unhedged %s; hedged %s", selector, selector.getHedgeDelayMillis(), unhedged, hedged));
+		assertTrue(selector.getHedges() >= 4);
+		assertTrue(selector.getHedgeWins() >= 4);
+		assertTrue(unhedged.getMaxMillis() >= 300);
+		assertTrue(hedged.getMaxMillis() < 200);
+		assertEquals(-1, new CauEndpointSelector(REPLICAS, 46400, 3, 30000, false, 1).getHedgeDelayMillis());
+	}
+
+	/**
+	 * Benchmark enrolments against three replicas, answering after 0, 150 and 300ms,
+	 * spread round robin and by the selector.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testLatencySkew() throws Exception {
+		Credential ca = TestPki.createCA("selector-ca", KeyAlgorithm.EC_P256);
+		StoreManagerSingleton.getInstance().storeCertificate("selector-ca", ca.cert);
+		List<StandInCau> caus = new ArrayList<StandInCau>();
+		try {
+			StringBuilder replicas = new StringBuilder();
+			for(int delay : new int[] {300, 150, 0}) {
+				StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca));
+				cau.setResponseDelay(delay, 0, 0);
+				caus.add(cau);
+				replicas.append(replicas.length() == 0 ? "" : ",").append("127.0.0.1:").append(cau.getPort());
+			}
+			//warm up the TLS sessions
+			for(StandInCau cau : caus) {
+				enrol("127.0.0.1:" + cau.getPort());
+			}
+			LatencyHistogram roundRobin = new LatencyHistogram();
+			LatencyHistogram selected = new LatencyHistogram();
+			for(int i = 0; i < 15; i++) {
+				roundRobin.record(enrol("127.0.0.1:" + caus.get(i % caus.size()).getPort()));
+				selected.record(enrol(replicas.toString()));
+			}
+			LOGGER.info(String.format("%s%nround robin: %s%nselector:    %s", CauEndpointSelector.forEndpoints(replicas.toString(), 46400),
+					roundRobin, selected));
+			assertTrue(selected.getMeanMillis() + 100 < roundRobin.getMeanMillis());
+			assertTrue(selected.getPercentileMillis(50) < 150);
+		} finally {
+			for(StandInCau cau : caus) {
+				cau.close();
+			}
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Make 120 calls to a replica answering in 2ms but in 300ms every 25th call and
+	 * another answering in 20ms.
+	 * @param selector	the selector
+	 * @return the latencies after the first 20 calls
+	 * @throws Exception on errors
+	 */
+	private static LatencyHistogram tail(CauEndpointSelector selector) throws Exception {
+		AtomicInteger fastCalls = new AtomicInteger();
+		LatencyHistogram latencies = new LatencyHistogram();
+		for(int i = 0; i < 120; i++) {
+			long start = System.nanoTime();
+			selector.execute(e -> {
+				if(e.getPort() == 1) {
+					Thread.sleep(fastCalls.incrementAndGet() % 25 == 0 ? 300 : 2);
+				} else {
+					Thread.sleep(20);
+				}
+				return null;
+			});
+			if(i >= CauEndpointSelector.MIN_HEDGE_SAMPLES) {
+				latencies.recordSince(start);
+			}
+		}
+		return latencies;
+	}
+
+	/**
+	 * Check a call fails.
+	 * @param selector	the selector
+	 * @param call		the call
+	 * @throws Exception on errors
+	 */
+	private static void expectFailure(CauEndpointSelector selector, CauEndpointSelector.Call<Integer> call) throws Exception {
+		try {
+			selector.execute(call);
+			fail("expected the call to fail");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Enrol with the CAU replicas.
+	 * @param replicas	the replicas, comma separated
+	 * @return the time taken in nanoseconds
+	 * @throws Exception on errors
+	 */
+	private static long enrol(String replicas) throws Exception {
+		HashMap<String, String> request = new HashMap<String, String>();
+		request.put("cauIP", replicas);
+		request.put("leaderCauIP", "127.0.0.1:1");
+		request.put("IDkey", "selector-agent");
+		request.put("deviceID", "selector-device");
+		request.put("detectedLeaderID", "selector-fog");
+		request.put("MACaddr", "ab:cd:ef:01:23:45");
+		CauClient client = new CauClient(request);
+		byte[] message = client.createRequest();
+		long start = System.nanoTime();
+		client.enrol(message);
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.CircuitBreaker;
+import eu.mf2c.pm.security.Deadline;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.RenewalScheduler;
+import eu.mf2c.pm.security.RetryPolicy;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.Exception.CauClientException;
+import eu.mf2c.pm.security.Exception.CircuitOpenException;
+import eu.mf2c.pm.security.test.StandInCau.Fault;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the timeouts, deadlines, retries and circuit breakers of the outbound CAU
+ * calls against a {@link StandInCau <em>StandInCau</em>} which stalls or drops
+ * connections.
+ */
+public class CauTimeoutTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(CauTimeoutTest.class);
+	/** the system properties set by the tests */
+	private static final String[] PROPERTIES = {"mf2c.tls.handshakeTimeout", "mf2c.tls.readTimeout", "mf2c.cau.retries",
+			"mf2c.cau.backoffMillis", "mf2c.registration.deadlineMillis"};
+
+	/**
+	 * Clear the system properties.
+	 * @throws Exception on errors
+	 */
+	@After
+	public void tearDown() throws Exception {
+		for(String property : PROPERTIES) {
+			System.clearProperty(property);
+		}
+		RenewalScheduler.getInstance().untrack("timeout-agent");
+	}
+
+	/**
+	 * Test a CAU which never completes the handshake or never answers fails the
+	 * enrolment within the configured timeouts, and the registration deadline cuts
+	 * a longer timeout down.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testStalledCau() throws Exception {
+		Credential ca = trustedCA("timeout-stall-ca");
+		System.setProperty("mf2c.tls.handshakeTimeout", "300");
+		System.setProperty("mf2c.tls.readTimeout", "300");
+		System.setProperty("mf2c.cau.retries", "0");
+		try (StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			cau.setFault(Fault.STALL_HANDSHAKE, 1);
+			long millis = expectTimeout(cau);
+			assertTrue("handshake stalled for " + millis + "ms", millis < 2000);
+			cau.setFault(Fault.STALL_RESPONSE, 1);
+			millis = expectTimeout(cau);
+			assertTrue("response stalled for " + millis + "ms", millis < 2000);
+			//a 30s read timeout is cut down to the deadline
+			System.setProperty("mf2c.tls.readTimeout", "30000");
+			System.setProperty("mf2c.registration.deadlineMillis", "500");
+			cau.setFault(Fault.STALL_RESPONSE, 1);
+			millis = expectTimeout(cau);
+			assertTrue("deadline passed after " + millis + "ms", millis < 2000);
+			assertEquals(0, cau.getSigned());
+		}
+	}
+
+	/**
+	 * Test dropped connections are retried with backoff until the CAU answers.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testDroppedConnectionsRetried() throws Exception {
+		Credential ca = trustedCA("timeout-drop-ca");
+		System.setProperty("mf2c.cau.retries", "3");
+		System.setProperty("mf2c.cau.backoffMillis", "20");
+		try (StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			cau.setFault(Fault.DROP, 2);
+			CauClient client = new CauClient(request(cau));
+			X509Certificate cert = client.enrol(client.createRequest());
+			assertTrue(cert.getSubjectX500Principal().getName().endsWith("CN=timeout-agent"));
+			assertEquals(3, cau.getConnections());
+			assertEquals(1, cau.getSigned());
+			//too many drops for the retries
+			cau.setFault(Fault.DROP, 4);
+			client = new CauClient(request(cau));
+			try {
+				client.enrol(client.createRequest());
+				fail("expected the retries to run out");
+			} catch (CauClientException e) {
+				assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+			}
+			assertEquals(7, cau.getConnections());
+		}
+	}
+
+	/**
+	 * Test a circuit opens after consecutive failures, rejects calls at once while
+	 * open and lets one trial call through once the open period has passed.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test:1", 2, 200);
+		RetryPolicy policy = new RetryPolicy(0, 10, 10);
+		AtomicInteger calls = new AtomicInteger();
+		for(int i = 0; i < 2; i++) {
+			try {
+				policy.execute("failing call", Deadline.NONE, breaker, () -> {
+					calls.incrementAndGet();
+					throw new SocketTimeoutException("stalled");
+				});
+				fail("expected a timeout");
+			} catch (SocketTimeoutException e) {
+				//expected
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		long start = System.nanoTime();
+		try {
+			policy.execute("rejected call", Deadline.NONE, breaker, () -> calls.incrementAndGet());
+			fail("expected the circuit to be open");
+		} catch (CircuitOpenException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("OPEN"));
+		}
+		assertTrue((System.nanoTime() - start) < 100000000L);
+		assertEquals(2, calls.get());
+		assertEquals(1, breaker.getRejected());
+		Thread.sleep(250);
+		//the trial call closes the circuit
+		assertEquals(Integer.valueOf(3), policy.execute("trial call", Deadline.NONE, breaker, () -> calls.incrementAndGet()));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		//a failed trial call opens it again
+		breaker.recordFailure();
+		breaker.recordFailure();
+		Thread.sleep(250);
+		assertTrue(breaker.allowRequest());
+		assertFalse("one trial call at a time", breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	/**
+	 * Test the deadline cuts timeouts down and stops retries which would start after it.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testDeadline() throws Exception {
+		Deadline deadline = Deadline.after(200);
+		assertTrue(deadline.timeout(30000) <= 200);
+		assertTrue(deadline.timeout(0) <= 200);
+		assertEquals(50, deadline.timeout(50));
+		assertEquals(0, Deadline.NONE.timeout(0));
+		assertEquals(30000, Deadline.NONE.timeout(30000));
+		Deadline passed = Deadline.after(0);
+		assertTrue(passed.isExpired());
+		try {
+			passed.timeout(30000);
+			fail("expected a timeout");
+		} catch (SocketTimeoutException e) {
+			//expected
+		}
+		//the backoff is longer than the time left
+		RetryPolicy policy = new RetryPolicy(5, 5000, 5000);
+		CircuitBreaker breaker = new CircuitBreaker("test:2", 100, 1000);
+		long start = System.nanoTime();
+		try {
+			policy.execute("call", Deadline.after(20), breaker, () -> {
+				throw new IOException("refused");
+			});
+			fail("expected the error");
+		} catch (IOException e) {
+			assertEquals("refused", e.getMessage());
+		}
+		assertTrue((System.nanoTime() - start) < 1000000000L);
+		//a rejected certificate is not retried
+		assertFalse(RetryPolicy.isRetryable(new SSLHandshakeException("PKIX path building failed")));
+		assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException("Read timed out")));
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Create a CA trusted by the agent.
+	 * @param alias	the CA alias
+	 * @return the CA
+	 * @throws Exception on errors
+	 */
+	private static Credential trustedCA(String alias) throws Exception {
+		Credential ca = TestPki.createCA(alias, KeyAlgorithm.EC_P256);
+		StoreManagerSingleton.getInstance().storeCertificate(alias, ca.cert);
+		return ca;
+	}
+
+	/**
+	 * Create a registration request for a stand&#45;in CAU.
+	 * @param cau	the CAU
+	 * @return the request
+	 */
+	private static HashMap<String, String> request(StandInCau cau) {
+		HashMap<String, String> request = new HashMap<String, String>();
+		request.put("cauIP", "127.0.0.1:" + cau.getPort());
+		request.put("leaderCauIP", "127.0.0.1:1");
+		request.put("IDkey", "timeout-agent");
+		request.put("deviceID", "timeout-device");
+		request.put("detectedLeaderID", "timeout-fog");
+		request.put("MACaddr", "ab:cd:ef:01:23:45");
+		return request;
+	}
+
+	/**
+	 * Enrol with a stalled CAU and check it times out.
+	 * @param cau	the CAU
+	 * @return the time taken in milliseconds
+	 * @throws Exception on errors
+	 */
+	private static long expectTimeout(StandInCau cau) throws Exception {
+		CauClient client = new CauClient(request(cau));
+		byte[] message = client.createRequest();
+		long start = System.nanoTime();
+		try {
+			client.enrol(message);
+			fail("expected a timeout");
+		} catch (CauClientException e) {
+			boolean timedOut = false;
+			for(Throwable t = e; t != null; t = t.getCause()) {
+				timedOut |= t instanceof SocketTimeoutException;
+			}
+			assertTrue(String.valueOf(e.getCause()), timedOut);
+		}
+		long millis = (System.nanoTime() - start) / 1000000L;
+		LOGGER.info("enrolment timed out after " + millis + "ms");
+		return millis;
+	}
+}
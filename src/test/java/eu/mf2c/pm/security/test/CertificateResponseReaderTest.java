@@ -0,0 +1,233 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.BufferPool;
+import eu.mf2c.pm.security.CertificateResponseReader;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link CertificateResponseReader <em>CertificateResponseReader</em>} framing
+ * and compares the bytes allocated per response with the original read&#45;to&#45;EOF path.
+ */
+public class CertificateResponseReaderTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(CertificateResponseReaderTest.class);
+	/** a certificate */
+	private static X509Certificate cert;
+	/** another certificate */
+	private static X509Certificate cert2;
+	/** the PEM encoding of cert */
+	private static byte[] pem;
+
+	/**
+	 * Issue the test certificates.
+	 * @throws Exception on errors
+	 */
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		Credential ca = TestPki.createCA("reader-ca", KeyAlgorithm.RSA_2048);
+		cert = TestPki.createEntity("agent-1", KeyAlgorithm.EC_P256, ca).cert;
+		cert2 = TestPki.createEntity("agent-2", KeyAlgorithm.EC_P256, ca).cert;
+		pem = pem(cert);
+	}
+
+	/**
+	 * Test each response encoding, delivered a byte at a time.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testEncodings() throws Exception {
+		ByteArrayOutputStream prefixed = new ByteArrayOutputStream();
+		byte[] der = cert.getEncoded();
+		prefixed.write(new byte[] {0, 0, (byte) (der.length >> 8), (byte) der.length});
+		prefixed.write(der);
+		for(byte[] response : new byte[][] {pem, der, prefixed.toByteArray()}) {
+			try (CertificateResponseReader reader = new CertificateResponseReader(
+					new Trickle(new ByteArrayInputStream(response)), new BufferPool(64, 1))) {
+				assertEquals(cert, reader.readCertificate());
+			}
+		}
+	}
+
+	/**
+	 * Test responses are read off a connection that stays open.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testConnectionStaysOpen() throws Exception {
+		PipedOutputStream out = new PipedOutputStream();
+		PipedInputStream in = new PipedInputStream(out, 16 * 1024);
+		out.write(pem);
+		out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		out.write(cert2.getEncoded());
+		out.flush();
+		try (CertificateResponseReader reader = new CertificateResponseReader(in, BufferPool.getShared())) {
+			//the pipe is not closed, so this would block if the reader waited for the end of the stream
+			assertEquals(cert, reader.readCertificate());
+			assertEquals(cert2, reader.readCertificate());
+			out.close();
+			try {
+				reader.readCertificate();
+				fail("expected the end of the stream");
+			} catch (EOFException e) {
+				//expected
+			}
+		}
+	}
+
+	/**
+	 * Test a response the CAU ends by closing the connection is still accepted.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testResponseEndedByClose() throws Exception {
+		byte[] truncated = new String(pem, StandardCharsets.US_ASCII).replace("-----END CERTIFICATE-----", "")
+				.getBytes(StandardCharsets.US_ASCII);
+		try (CertificateResponseReader reader = new CertificateResponseReader(new ByteArrayInputStream(pem), BufferPool.getShared())) {
+			assertEquals(cert, reader.readCertificate());
+		}
+		try (CertificateResponseReader reader = new CertificateResponseReader(new ByteArrayInputStream(truncated), BufferPool.getShared())) {
+			reader.readCertificate();
+			fail("expected an invalid certificate");
+		} catch (java.security.cert.CertificateException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Compare the bytes allocated to receive and parse one response.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testAllocation() throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		int rounds = 2000;
+		BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4);
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		//warm up both paths
+		for(int i = 0; i < rounds; i++) {
+			legacyRead(cf, new ByteArrayInputStream(pem));
+			pooledRead(pool, new ByteArrayInputStream(pem));
+		}
+		long before = mx.getThreadAllocatedBytes(tid);
+		for(int i = 0; i < rounds; i++) {
+			legacyRead(cf, new ByteArrayInputStream(pem));
+		}
+		long legacy = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+		before = mx.getThreadAllocatedBytes(tid);
+		for(int i = 0; i < rounds; i++) {
+			pooledRead(pool, new ByteArrayInputStream(pem));
+		}
+		long pooled = (mx.getThreadAllocatedBytes(tid) - before) / rounds;
+		LOGGER.info(String.format("bytes allocated per %d byte response: read to EOF %d, pooled reader %d",
+				pem.length, legacy, pooled));
+		assertTrue("expected the pooled reader to allocate less", pooled < legacy);
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * The receive path the CauClient used before the reader.
+	 * @param cf	the certificate factory
+	 * @param is	the response stream
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	private static X509Certificate legacyRead(CertificateFactory cf, InputStream is) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BufferedInputStream in = new BufferedInputStream(is);
+		byte[] buffer = new byte[1024];
+		int bytesRead = 0;
+		while ((bytesRead = in.read(buffer, 0, 1024)) != -1) {
+			baos.write(buffer, 0, bytesRead);
+			LOGGER.debug("written " + bytesRead + " bytes");
+		}
+		String certStr = new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(certStr.getBytes()));
+	}
+
+	/**
+	 * The receive path using the reader.
+	 * @param pool	the buffer pool
+	 * @param is	the response stream
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	private static X509Certificate pooledRead(BufferPool pool, InputStream is) throws Exception {
+		try (CertificateResponseReader reader = new CertificateResponseReader(is, pool)) {
+			return reader.readCertificate();
+		}
+	}
+
+	/**
+	 * PEM encode a certificate.
+	 * @param c	the certificate
+	 * @return	the encoding
+	 * @throws Exception on errors
+	 */
+	private static byte[] pem(X509Certificate c) throws Exception {
+		StringWriter sw = new StringWriter();
+		try (JcaPEMWriter pw = new JcaPEMWriter(sw)) {
+			pw.writeObject(c);
+		}
+		return sw.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns at most one byte per read, like a slow connection.
+	 */
+	private static class Trickle extends FilterInputStream {
+		/**
+		 * Constructor
+		 * @param in	the stream to wrap
+		 */
+		Trickle(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(1, len));
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CertificateStore;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link CertificateStore <em>CertificateStore</em>} deduplicates
+ * certificates and parses each one once, and measures its heap footprint against
+ * parsed certificates at 1k, 10k and 100k certificates.
+ */
+public class CertificateStoreTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(CertificateStoreTest.class);
+	/** certificate counts measured */
+	private static final int[] COUNTS = {1000, 10000, 100000};
+
+	/**
+	 * Test the DER and PEM encodings of a certificate share one entry which is only
+	 * parsed when asked for.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testDeduplicationAndLazyParsing() throws Exception {
+		Credential ca = TestPki.createCA("store-ca", KeyAlgorithm.EC_P256);
+		byte[] der = ca.cert.getEncoded();
+		CertificateStore store = new CertificateStore();
+		CertificateStore.Handle h = store.add(der);
+		assertSame(h, store.add(pem(ca.cert)));
+		assertSame(h, store.add(("\r\n" + new String(pem(ca.cert), StandardCharsets.US_ASCII)).getBytes(StandardCharsets.US_ASCII)));
+		assertSame(h, store.find(der.clone()));
+		assertEquals(1, store.getUniqueCount());
+		assertEquals(2, store.getDuplicateCount());
+		assertFalse(h.isParsed());
+		assertEquals(0, store.getParseCount());
+		//a change to the caller's buffer does not reach the store
+		der[der.length - 1] ^= 1;
+		assertEquals(ca.cert, h.getCertificate());
+		assertSame(h.getCertificate(), h.getCertificate());
+		assertEquals(1, store.getParseCount());
+		assertArrayEquals(ca.cert.getEncoded(), h.getEncoded());
+		//an already parsed certificate is interned
+		X509Certificate copy = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(ca.cert.getEncoded()));
+		assertSame(h.getCertificate(), store.intern(copy));
+		//aliases
+		store.put("a", h);
+		store.put("b", h);
+		store.put("c", store.add(TestPki.createCA("other-ca", KeyAlgorithm.EC_P256).cert));
+		assertEquals(ca.cert, store.get("b"));
+		assertEquals(2, store.getUniqueCount());
+		store.remove("c");
+		assertNull(store.get("c"));
+		assertEquals(1, store.purge());
+		assertEquals(1, store.getUniqueCount());
+		LOGGER.info(store);
+	}
+
+	/**
+	 * Test concurrent readers of a new entry parse it once and share the result.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testConcurrentParseOnce() throws Exception {
+		Credential ca = TestPki.createCA("store-ca", KeyAlgorithm.EC_P256);
+		CertificateStore store = new CertificateStore();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			for(int round = 0; round < 20; round++) {
+				CertificateStore.Handle h = store.add(variant(ca.cert.getEncoded(), round));
+				List<Future<X509Certificate>> results = new ArrayList<Future<X509Certificate>>();
+				for(int i = 0; i < 8; i++) {
+					results.add(pool.submit(h::getCertificate));
+				}
+				X509Certificate first = results.get(0).get(10, TimeUnit.SECONDS);
+				for(Future<X509Certificate> f : results) {
+					assertSame(first, f.get(10, TimeUnit.SECONDS));
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(20, store.getParseCount());
+	}
+
+	/**
+	 * Measure the heap used by certificates held as parsed objects and in the store,
+	 * where each is added under two aliases and a tenth are parsed.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testHeapFootprint() throws Exception {
+		Credential ca = TestPki.createCA("store-ca", KeyAlgorithm.EC_P256);
+		byte[] template = TestPki.createEntity("follower", KeyAlgorithm.EC_P256, ca).cert.getEncoded();
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		LOGGER.info(String.format("%10s %16s %16s %16s", "certs", "parsed bytes", "store bytes", "store parsed"));
+		for(int count : COUNTS) {
+			byte[][] encodings = new byte[count][];
+			for(int i = 0; i < count; i++) {
+				encodings[i] = variant(template, i);
+			}
+			long base = usedHeap();
+			//each certificate parsed once, so the comparison does not depend on the duplicates
+			List<X509Certificate> parsed = new ArrayList<X509Certificate>(count);
+			for(byte[] der : encodings) {
+				parsed.add((X509Certificate) cf.generateCertificate(new ByteArrayInputStream(der)));
+			}
+			long parsedBytes = usedHeap() - base;
+			assertEquals(count, parsed.size());
+			parsed = null;
+			base = usedHeap();
+			CertificateStore store = new CertificateStore();
+			for(int pass = 0; pass < 2; pass++) {
+				for(int i = 0; i < count; i++) {
+					store.put("follower-" + pass + "-" + i, store.add(encodings[i]));
+				}
+			}
+			long storeBytes = usedHeap() - base;
+			assertEquals(count, store.getUniqueCount());
+			//parse a tenth, as a leader would for the followers it talks to
+			for(int i = 0; i < count; i += 10) {
+				store.getHandle("follower-0-" + i).getCertificate();
+			}
+			long storeParsedBytes = usedHeap() - base;
+			LOGGER.info(String.format("%10d %16d %16d %16d", count, parsedBytes, storeBytes, storeParsedBytes));
+			assertTrue("store not smaller at " + count, storeParsedBytes < parsedBytes);
+			assertEquals(count / 10, store.getParseCount());
+			store = null;
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Make a distinct encoding of a certificate by changing its serial number.  The
+	 * signature no longer verifies, which does not matter for parsing.
+	 * @param der	the certificate encoding
+	 * @param n		the variant number
+	 * @return	the new encoding
+	 * @throws Exception on errors
+	 */
+	private static byte[] variant(byte[] der, int n) throws Exception {
+		X509Certificate c = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+		byte[] serial = c.getSerialNumber().toByteArray();
+		int at = indexOf(der, serial);
+		byte[] copy = der.clone();
+		for(int i = serial.length - 1, v = n; i > 0 && i > serial.length - 5; i--, v >>>= 8) {
+			copy[at + i] = (byte) v;
+		}
+		return copy;
+	}
+
+	/**
+	 * Find the first occurrence of a byte sequence.
+	 * @param data		the data
+	 * @param target	the sequence
+	 * @return	the index
+	 */
+	private static int indexOf(byte[] data, byte[] target) {
+		outer:
+		for(int i = 0; i <= data.length - target.length; i++) {
+			for(int j = 0; j < target.length; j++) {
+				if(data[i + j] != target[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		throw new IllegalArgumentException("sequence not found");
+	}
+
+	/**
+	 * Get the heap in use after garbage collection.
+	 * @return	the bytes used
+	 * @throws InterruptedException if interrupted
+	 */
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for(int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(20);
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * PEM encode a certificate.
+	 * @param c	the certificate
+	 * @return	the encoding
+	 * @throws Exception on errors
+	 */
+	private static byte[] pem(X509Certificate c) throws Exception {
+		StringWriter sw = new StringWriter();
+		try (JcaPEMWriter pw = new JcaPEMWriter(sw)) {
+			pw.writeObject(c);
+		}
+		return sw.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
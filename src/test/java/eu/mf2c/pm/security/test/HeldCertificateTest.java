@@ -0,0 +1,182 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.Metrics;
+import eu.mf2c.pm.security.RegistrationPipeline;
+import eu.mf2c.pm.security.RegistrationResult;
+import eu.mf2c.pm.security.RegistrationStage;
+import eu.mf2c.pm.security.RenewalScheduler;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.RegistrationResult.Status;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests a registration is answered without enrolling with the CAU when a valid
+ * certificate is already held with its own keypair for the device and fog, and that
+ * certificates which are expiring, untrusted or forged are not used.
+ */
+public class HeldCertificateTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(HeldCertificateTest.class);
+
+	/**
+	 * Test the held certificate is found in the identity registry, the key store and
+	 * server.crt only if it can be used.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testFindHeldCertificate() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("held-ca", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("held-ca", ca.cert);
+		KeyPair kp = sms.getKeyPair();
+		X509Certificate cert = TestPki.issue("held-agent", kp.getPublic(), ca, 365);
+		sms.storeIdentity("held-agent", "held-device", "held-fog", cert, kp);
+		assertEquals(cert, sms.findHeldCertificate("held-agent", "held-device", "held-fog"));
+		//registered with another device or fog
+		assertNull(sms.findHeldCertificate("held-agent", "other-device", "held-fog"));
+		assertNull(sms.findHeldCertificate("held-agent", "held-device", "other-fog"));
+		assertNull(sms.findHeldCertificate("held-unknown", "held-device", "held-fog"));
+		//a key store entry
+		X509Certificate entry = TestPki.issue("held-entry", kp.getPublic(), ca, 365);
+		sms.storeKeyEntry("held-entry", "held-fog", entry, kp);
+		assertEquals(entry, sms.findHeldCertificate("held-entry", "held-device", "held-fog"));
+		//expiring within the minimum validity
+		sms.storeKeyEntry("held-expiring", "held-fog", TestPki.issueMillis("held-expiring", kp.getPublic(), ca, 60000), kp);
+		assertNull(sms.findHeldCertificate("held-expiring", "held-device", "held-fog"));
+		//issued by a CA which is not trusted
+		Credential untrusted = TestPki.createCA("held-untrusted-ca", KeyAlgorithm.EC_P256);
+		sms.storeKeyEntry("held-untrusted", "held-fog", TestPki.issue("held-untrusted", kp.getPublic(), untrusted, 365), kp);
+		assertNull(sms.findHeldCertificate("held-untrusted", "held-device", "held-fog"));
+		//issued in the name of the trusted CA with another key
+		Credential forger = TestPki.createCA("held-ca", KeyAlgorithm.EC_P256);
+		sms.storeKeyEntry("held-forged", "held-fog", TestPki.issue("held-forged", kp.getPublic(), forger, 365), kp);
+		assertNull(sms.findHeldCertificate("held-forged", "held-device", "held-fog"));
+	}
+
+	/**
+	 * Test each identity is held with its own keypair, which is found with its
+	 * certificate after the agent credential is replaced.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testIdentityKeys() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("held-keys-ca", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("held-keys-ca", ca.cert);
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		try {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			KeyPair first = sms.takeKeyPair();
+			KeyPair second = sms.takeKeyPair();
+			X509Certificate firstCert = TestPki.issue("held-first", first.getPublic(), ca, 365);
+			X509Certificate secondCert = TestPki.issue("held-second", second.getPublic(), ca, 365);
+			sms.storeIdentity("held-first", "held-device", "held-fog", firstCert, first);
+			sms.storeKeyEntry("held-second", "held-fog", secondCert, second);
+			assertFalse(first.getPrivate().equals(sms.getKeyEntry("held-second", "held-fog").getPrivateKey()));
+			//the agent keypair is replaced
+			KeyPair agent = sms.getKeyPair();
+			KeyPair renewed = sms.takeKeyPair();
+			assertTrue(sms.replaceAgentCredential(agent.getPublic(), renewed, TestPki.issue("held-agent", renewed.getPublic(), ca, 365)));
+			assertEquals(firstCert, sms.findHeldCertificate("held-first", "held-device", "held-fog"));
+			assertEquals(secondCert, sms.findHeldCertificate("held-second", "held-device", "held-fog"));
+			assertEquals(first.getPrivate(), sms.getHeldKeyPair("held-first", firstCert).getPrivate());
+			assertEquals(second.getPrivate(), sms.getHeldKeyPair("held-second", secondCert).getPrivate());
+		} finally {
+			StoreManagerSingleton.setDataPath(dataPath);
+			for(File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+	/**
+	 * Test a second registration is answered with the certificate obtained by the
+	 * first without contacting the CAU, is tracked for renewal and is counted as a hit.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRegistrationWithHeldCertificate() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("held-cau-ca", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("held-cau-ca", ca.cert);
+		RegistrationPipeline pipeline = new RegistrationPipeline();
+		try (StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			HashMap<String, String> request = new HashMap<String, String>();
+			request.put("cauIP", "127.0.0.1:" + cau.getPort());
+			request.put("leaderCauIP", "127.0.0.1:1");
+			request.put("IDkey", "held-cau-agent");
+			request.put("deviceID", "held-cau-device");
+			request.put("detectedLeaderID", "held-cau-fog");
+			request.put("MACaddr", "ab:cd:ef:01:23:45");
+			CauClient client = new CauClient(request);
+			assertNull(client.findHeldCertificate());
+			long start = System.nanoTime();
+			X509Certificate cert = client.enrol(client.createRequest());
+			double enrolMillis = (System.nanoTime() - start) / 1e6;
+			assertEquals(1, cau.getSigned());
+			//a keypair of its own, not the agent keypair
+			assertFalse(cert.getPublicKey().equals(sms.getKeyPair().getPublic()));
+			assertEquals(cert, sms.getKeyEntry("held-cau-agent", "held-cau-fog").getCertificate());
+			Metrics metrics = Metrics.getInstance();
+			long hits = metrics.getHeldRegistrationHistogram().getCount();
+			start = System.nanoTime();
+			RegistrationResult result = pipeline.submit(request).get(10, TimeUnit.SECONDS);
+			double heldMillis = (System.nanoTime() - start) / 1e6;
+			LOGGER.info(String.format("%s; enrolment took %.1fms, held certificate %.2fms", result, enrolMillis, heldMillis));
+			assertTrue(result.isHeld());
+			assertTrue(result.isSuccess());
+			assertEquals("OK", result.toReply());
+			for(RegistrationStage stage : RegistrationStage.values()) {
+				assertEquals(stage.name(), Status.HELD, result.getOutcome(stage).getStatus());
+			}
+			assertEquals("the CAU is not contacted", 1, cau.getSigned());
+			assertEquals(hits + 1, metrics.getHeldRegistrationHistogram().getCount());
+			assertTrue(metrics.getHeldCertificateHitRate() > 0);
+			assertTrue(metrics.toPrometheus().contains("mf2c_held_certificate_hit_ratio "));
+			assertEquals(cert, RenewalScheduler.getInstance().getCertificate("held-cau-agent"));
+			//the fog has changed, so the agent enrols
+			request.put("detectedLeaderID", "held-cau-other-fog");
+			assertNull(new CauClient(request).findHeldCertificate());
+			assertFalse(pipeline.submit(request).get(10, TimeUnit.SECONDS).isHeld());
+		} finally {
+			pipeline.shutdown();
+			RenewalScheduler.getInstance().untrack("held-cau-agent");
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.AgentIdentity;
+import eu.mf2c.pm.security.IdentityRegistry;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.KeyStorePersister;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link IdentityRegistry <em>IdentityRegistry</em>} looks identities up by
+ * id key, device ID and fog ID, writes only the shard that changed and reloads the
+ * identities, including after the number of shards has changed.
+ */
+public class IdentityRegistryTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(IdentityRegistryTest.class);
+
+	/**
+	 * Test the lookups follow an identity being replaced and removed.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testLookups() throws Exception {
+		Path dir = Files.createTempDirectory("identities");
+		KeyStorePersister persister = new KeyStorePersister(60000, 60000);
+		IdentityRegistry registry = new IdentityRegistry(dir, 4, TestPki.PASS, persister);
+		Credential ca = TestPki.createCA("identity-ca", KeyAlgorithm.EC_P256);
+		Credential a = TestPki.createEntity("agent-a", KeyAlgorithm.EC_P256, ca);
+		Credential b = TestPki.createEntity("agent-b", KeyAlgorithm.EC_P256, ca);
+		AgentIdentity ia = registry.register("agent-a", "device-a", "fog-1", a.keypair.getPrivate(), chain(a, ca));
+		registry.register("agent-b", "device-b", "fog-1", b.keypair.getPrivate(), chain(b, ca));
+		assertSame(ia, registry.getByIdKey("agent-a"));
+		assertSame(ia, registry.getByDeviceID("device-a"));
+		assertEquals(2, registry.getByFogID("fog-1").size());
+		assertEquals(a.cert, ia.getCertificate());
+		//agent-a moves to another device and fog
+		AgentIdentity moved = registry.register("agent-a", "device-c", "fog-2", a.keypair.getPrivate(), chain(a, ca));
+		assertNull(registry.getByDeviceID("device-a"));
+		assertSame(moved, registry.getByDeviceID("device-c"));
+		assertEquals(1, registry.getByFogID("fog-1").size());
+		assertSame(moved, registry.getByFogID("fog-2").iterator().next());
+		assertEquals(2, registry.size());
+		assertSame(moved, registry.remove("agent-a"));
+		assertNull(registry.getByIdKey("agent-a"));
+		assertTrue(registry.getByFogID("fog-2").isEmpty());
+		assertEquals(1, registry.size());
+		assertEquals(0, registry.getByFogID("unknown").size());
+		persister.close();
+		deleteDir(dir);
+	}
+
+	/**
+	 * Test a change rewrites one shard and the identities are reloaded with their id
+	 * key, device ID and fog ID, also into a different number of shards.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testShardedPersistence() throws Exception {
+		Path dir = Files.createTempDirectory("identities");
+		KeyStorePersister persister = new KeyStorePersister(60000, 60000);
+		IdentityRegistry registry = new IdentityRegistry(dir, 8, TestPki.PASS, persister);
+		Credential ca = TestPki.createCA("identity-ca", KeyAlgorithm.EC_P256);
+		Credential agent = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca);
+		int count = 200;
+		for(int i = 0; i < count; i++) {
+			registry.register("Agent-" + i, i % 2 == 0 ? "Device-" + i : null, "Fog-" + i % 5, agent.keypair.getPrivate(), chain(agent, ca));
+		}
+		registry.flush();
+		assertEquals(8, persister.getWriteCount());
+		assertEquals(8, dir.toFile().list().length);
+		int total = 0;
+		for(int i = 0; i < registry.getShardCount(); i++) {
+			assertTrue(registry.getShardSize(i) > 0);
+			total += registry.getShardSize(i);
+		}
+		assertEquals(count, total);
+		registry.register("Agent-7", "Device-7", "Fog-2", agent.keypair.getPrivate(), chain(agent, ca));
+		registry.flush();
+		assertEquals("only the changed shard is written", 9, persister.getWriteCount());
+		persister.close();
+		LOGGER.info(registry + ", " + persister);
+		//reload
+		persister = new KeyStorePersister(60000, 60000);
+		IdentityRegistry reloaded = new IdentityRegistry(dir, 8, TestPki.PASS, persister);
+		assertEquals(count, reloaded.size());
+		AgentIdentity seven = reloaded.getByIdKey("Agent-7");
+		assertEquals("Device-7", seven.getDeviceID());
+		assertEquals("Fog-2", seven.getFogID());
+		assertNull(reloaded.getByIdKey("Agent-9").getDeviceID());
+		assertEquals(agent.keypair.getPrivate(), reloaded.getByDeviceID("Device-4").getKeyEntry().getPrivateKey());
+		assertEquals(40, reloaded.getByFogID("Fog-0").size());
+		assertFalse(persister.isDirty());
+		persister.close();
+		//fewer shards: the identities are moved and the extra files removed
+		persister = new KeyStorePersister(60000, 60000);
+		IdentityRegistry resharded = new IdentityRegistry(dir, 3, TestPki.PASS, persister);
+		assertEquals(count, resharded.size());
+		assertEquals(3, dir.toFile().list().length);
+		assertNotNull(resharded.getByDeviceID("Device-198"));
+		persister.close();
+		persister = new KeyStorePersister(60000, 60000);
+		assertEquals(count, new IdentityRegistry(dir, 3, TestPki.PASS, persister).size());
+		persister.close();
+		deleteDir(dir);
+	}
+
+	/**
+	 * Test the store manager returns a registered identity only for its fog.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testKeyEntryByFog() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("identity-ca", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("identity-ca", ca.cert);
+		Credential agent = TestPki.createEntity("hosted-agent", KeyAlgorithm.EC_P256, ca);
+		AgentIdentity identity = sms.storeIdentity("hosted-agent", "hosted-device", "hosted-fog", agent.cert, agent.keypair);
+		assertEquals(2, identity.getKeyEntry().getCertificateChain().length);
+		assertSame(identity.getKeyEntry(), sms.getKeyEntry("hosted-agent", "hosted-fog"));
+		assertSame(identity.getKeyEntry(), sms.getKeyEntry("hosted-agent", null));
+		try {
+			sms.getKeyEntry("hosted-agent", "another-fog");
+			fail("expected an error");
+		} catch (Exception e) {
+			LOGGER.info("expected error: " + e.getMessage());
+		}
+		assertSame(identity, sms.getIdentityRegistry().getByDeviceID("hosted-device"));
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get the chain of an issued credential.
+	 * @param c		the credential
+	 * @param ca	the issuer
+	 * @return	the chain
+	 */
+	private static Certificate[] chain(Credential c, Credential ca) {
+		return new Certificate[] {c.cert, ca.cert};
+	}
+
+	/**
+	 * Delete a test directory.
+	 * @param dir	the directory
+	 */
+	private static void deleteDir(Path dir) {
+		File[] files = dir.toFile().listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		dir.toFile().delete();
+	}
+}
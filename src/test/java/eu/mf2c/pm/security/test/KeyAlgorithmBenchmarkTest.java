@@ -0,0 +1,204 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.pkcs.RSAPrivateKey;
+import org.bouncycastle.asn1.sec.ECPrivateKey;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Checks the PEM encoding and CSR signing of each {@link KeyAlgorithm <em>KeyAlgorithm</em>}
+ * and compares the cost of key generation, CSR signing and a mutually authenticated TLS
+ * handshake between them.  Algorithms not provided by the runtime are skipped.
+ */
+public class KeyAlgorithmBenchmarkTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(KeyAlgorithmBenchmarkTest.class);
+
+	/**
+	 * Test the private key PEM types and encodings.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPemEncoding() throws Exception {
+		KeyPair rsa = KeyAlgorithm.RSA_2048.generateKeyPair(TestPki.RANDOM);
+		PemObject pem = KeyAlgorithm.forKey(rsa.getPrivate()).toPem(rsa);
+		assertEquals("RSA PRIVATE KEY", pem.getType());
+		assertEquals(((java.security.interfaces.RSAPrivateKey) rsa.getPrivate()).getModulus(),
+				RSAPrivateKey.getInstance(pem.getContent()).getModulus());
+		KeyPair ec = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		pem = KeyAlgorithm.forKey(ec.getPrivate()).toPem(ec);
+		assertEquals("EC PRIVATE KEY", pem.getType());
+		ECPrivateKey sec1 = ECPrivateKey.getInstance(pem.getContent());
+		assertNotNull("curve missing", sec1.getParameters());
+		assertNotNull("public key missing", sec1.getPublicKey());
+		KeyPair ed = generate(KeyAlgorithm.ED25519);
+		if(ed != null) {
+			pem = KeyAlgorithm.forKey(ed.getPrivate()).toPem(ed);
+			assertEquals("PRIVATE KEY", pem.getType());
+		}
+	}
+
+	/**
+	 * Test the CSRs are signed with the algorithm matching the key.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testCSRSignature() throws Exception {
+		for(KeyAlgorithm alg : new KeyAlgorithm[] {KeyAlgorithm.RSA_2048, KeyAlgorithm.EC_P256}) {
+			KeyPair kp = alg.generateKeyPair(TestPki.RANDOM);
+			PKCS10CertificationRequest csr = createCSR(alg, kp);
+			assertTrue(alg + " CSR signature invalid",
+					csr.isSignatureValid(new JcaContentVerifierProviderBuilder().build(kp.getPublic())));
+		}
+	}
+
+	/**
+	 * Compare keygen, CSR signing and handshake time for each algorithm.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testCompareAlgorithms() throws Exception {
+		for(KeyAlgorithm alg : KeyAlgorithm.values()) {
+			if(generate(alg) == null) {
+				LOGGER.info(alg + " is not supported by this runtime, skipping");
+				continue;
+			}
+			int keygenRounds = alg == KeyAlgorithm.RSA_2048 ? 10 : 200;
+			long start = System.nanoTime();
+			KeyPair kp = null;
+			for(int i = 0; i < keygenRounds; i++) {
+				kp = alg.generateKeyPair(TestPki.RANDOM);
+			}
+			double keygen = (System.nanoTime() - start) / 1e6 / keygenRounds;
+			//
+			int csrRounds = 200;
+			createCSR(alg, kp);
+			start = System.nanoTime();
+			for(int i = 0; i < csrRounds; i++) {
+				createCSR(alg, kp);
+			}
+			double csr = (System.nanoTime() - start) / 1e6 / csrRounds;
+			//
+			double handshake = handshake(alg, 50);
+			LOGGER.info(String.format("%-9s keygen %8.3f ms, CSR signing %7.3f ms, full mutual TLS handshake %7.3f ms",
+					alg, keygen, csr, handshake));
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Generate a keypair if the algorithm is supported.
+	 * @param alg	the algorithm
+	 * @return	the keypair or null if not supported
+	 */
+	private static KeyPair generate(KeyAlgorithm alg) {
+		try {
+			return alg.generateKeyPair(TestPki.RANDOM);
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Build a CSR the same way as the StoreManagerSingleton.
+	 * @param alg	the algorithm
+	 * @param kp	the keypair
+	 * @return	the CSR
+	 * @throws Exception on errors
+	 */
+	private static PKCS10CertificationRequest createCSR(KeyAlgorithm alg, KeyPair kp) throws Exception {
+		return new JcaPKCS10CertificationRequestBuilder(new X500Principal("CN=bench, OU=Fog IT2, O=mF2C, C=EU"), kp.getPublic())
+				.build(alg.createSigner(kp.getPrivate()));
+	}
+
+	/**
+	 * Time full mutually authenticated handshakes with all credentials using the algorithm.
+	 * @param alg		the algorithm
+	 * @param rounds	the number of handshakes
+	 * @return	the average handshake time in milliseconds
+	 * @throws Exception on errors
+	 */
+	private static double handshake(KeyAlgorithm alg, int rounds) throws Exception {
+		Credential ca = TestPki.createCA("bench-ca", alg);
+		Credential server = TestPki.createEntity("localhost", alg, ca);
+		Credential client = TestPki.createEntity("agent", alg, ca);
+		SSLContext serverCtx = TestPki.context(server, null, ca.cert);
+		SSLContext clientCtx = TestPki.context(client, null, ca.cert);
+		try (SSLServerSocket ss = (SSLServerSocket) serverCtx.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			ss.setNeedClientAuth(true);
+			Thread acceptor = new Thread(() -> {
+				for(int i = 0; i <= rounds; i++) {
+					try (SSLSocket s = (SSLSocket) ss.accept()) {
+						s.startHandshake();
+						s.getOutputStream().write(1);
+						s.getOutputStream().flush();
+					} catch (Exception e) {
+						LOGGER.error("stand-in server error: " + e.getMessage());
+					}
+				}
+			});
+			acceptor.start();
+			connect(clientCtx, ss.getLocalPort()); //warm up
+			long start = System.nanoTime();
+			for(int i = 0; i < rounds; i++) {
+				connect(clientCtx, ss.getLocalPort());
+			}
+			double avg = (System.nanoTime() - start) / 1e6 / rounds;
+			acceptor.join(10000);
+			return avg;
+		}
+	}
+
+	/**
+	 * Perform one full handshake.
+	 * @param ctx	the client context
+	 * @param port	the server port
+	 * @throws Exception on errors
+	 */
+	private static void connect(SSLContext ctx, int port) throws Exception {
+		try (SSLSocket s = (SSLSocket) ctx.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)) {
+			s.startHandshake();
+			InputStream in = s.getInputStream();
+			in.read();
+			//force a full handshake next time
+			s.getSession().invalidate();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.KeyPairPool;
+import eu.mf2c.pm.security.Metrics;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+
+/**
+ * Tests the {@link KeyPairPool <em>KeyPairPool</em>} refills at the low watermark,
+ * generates inline only when it is empty and nothing is being generated, counts its
+ * hits, misses and refills, and that the statistics are published by
+ * {@link Metrics <em>Metrics</em>}.
+ */
+public class KeyPairPoolTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(KeyPairPoolTest.class);
+
+	/**
+	 * Test the pool is filled to its depth on start, is not refilled above the low
+	 * watermark and is refilled to its depth once at or below it.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testLowWatermarkTriggersRefill() throws Exception {
+		KeyPairPool pool = new KeyPairPool(() -> KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM), 4, 1, 1);
+		try {
+			pool.start();
+			await(() -> pool.getRefills() == 4);
+			assertEquals(4, pool.getSize());
+			//above the watermark
+			pool.take();
+			pool.take();
+			Thread.sleep(100);
+			assertEquals(2, pool.getSize());
+			assertEquals(4, pool.getRefills());
+			//down to the watermark
+			pool.take();
+			await(() -> pool.getSize() == 4);
+			assertEquals(7, pool.getRefills());
+			assertEquals(3, pool.getHits());
+			assertEquals(0, pool.getMisses());
+			assertTrue(pool.getAverageRefillMillis() >= 0);
+			LOGGER.info(pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Test an empty pool generates on the calling thread when nothing is being
+	 * generated, but waits for a background generation in progress.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testInlineGenerationWhenEmpty() throws Exception {
+		Set<String> generators = ConcurrentHashMap.newKeySet();
+		CountDownLatch release = new CountDownLatch(1);
+		KeyPairPool pool = new KeyPairPool(() -> {
+			generators.add(Thread.currentThread().getName());
+			if(Thread.currentThread().getName().equals("keypair-refill")) {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		}, 2, 0, 1);
+		ExecutorService taker = Executors.newSingleThreadExecutor(r -> new Thread(r, "keypair-taker"));
+		try {
+			//not started, nothing being generated
+			pool.take();
+			assertEquals(1, pool.getMisses());
+			assertEquals(0, pool.getHits());
+			assertTrue(generators.contains(Thread.currentThread().getName()));
+			//the take started a refill, which is held up
+			await(() -> generators.contains("keypair-refill"));
+			Future<KeyPair> taken = taker.submit(pool::take);
+			Thread.sleep(200);
+			assertFalse("waits for the background generation", taken.isDone());
+			release.countDown();
+			assertTrue(taken.get(10, TimeUnit.SECONDS) != null);
+			assertFalse(generators.contains("keypair-taker"));
+			assertEquals(1, pool.getMisses());
+			assertEquals(1, pool.getHits());
+		} finally {
+			release.countDown();
+			taker.shutdownNow();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Test the statistics of the store manager pool are published in the Prometheus
+	 * output and through JMX.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPublished() throws Exception {
+		KeyPairPool pool = StoreManagerSingleton.getInstance().getKeyPairPool();
+		StoreManagerSingleton.getInstance().takeKeyPair();
+		String prometheus = Metrics.getInstance().toPrometheus();
+		assertTrue(prometheus.contains("mf2c_keypair_pool_hits_total " + pool.getHits()));
+		assertTrue(prometheus.contains("mf2c_keypair_pool_misses_total " + pool.getMisses()));
+		assertTrue(prometheus.contains("# TYPE mf2c_keypair_pool_refills_total counter"));
+		assertTrue(pool.getHits() + pool.getMisses() > 0);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		assertEquals(Long.valueOf(pool.getHits()), server.getAttribute(name, "KeyPairPoolHits"));
+		assertEquals(Long.valueOf(pool.getMisses()), server.getAttribute(name, "KeyPairPoolMisses"));
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Wait up to 10 seconds for a condition.
+	 * @param condition	the condition
+	 * @throws Exception on errors or if the condition is not met
+	 */
+	private static void await(BooleanSupplier condition) throws Exception {
+		for(int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(20);
+		}
+		assertTrue("condition not met", condition.getAsBoolean());
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.KeyStorePersister;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link KeyStorePersister <em>KeyStorePersister</em>} coalesces a burst
+ * of changes into few writes, writes within the maximum staleness while changes
+ * keep arriving and leaves no temporary files behind.
+ */
+public class KeyStorePersisterTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(KeyStorePersisterTest.class);
+
+	/**
+	 * Test a burst of changes is written once after the debounce interval and the
+	 * file holds the latest content.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBurstIsCoalesced() throws Exception {
+		Path dir = Files.createTempDirectory("persister");
+		Path path = dir.resolve("trust.jks");
+		KeyStore ks = emptyStore();
+		KeyStorePersister persister = new KeyStorePersister(200, 5000);
+		persister.register("trust", ks, path, TestPki.PASS);
+		Credential ca = TestPki.createCA("persister-ca", KeyAlgorithm.EC_P256);
+		for(int i = 0; i < 100; i++) {
+			ks.setCertificateEntry("cert-" + i, ca.cert);
+			persister.markDirty("trust");
+		}
+		assertFalse("written before the debounce interval", Files.exists(path));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(persister.isDirty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(50);
+		LOGGER.info(persister);
+		assertEquals(1, persister.getWriteCount());
+		assertEquals(99, persister.getCoalescedCount());
+		assertEquals(Files.size(path), persister.getBytesWritten());
+		assertEquals(100, load(path).size());
+		assertEquals(1, dir.toFile().list().length);
+		persister.close();
+		deleteDir(dir);
+	}
+
+	/**
+	 * Test changes arriving more often than the debounce interval are still written
+	 * within the maximum staleness.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBoundedStaleness() throws Exception {
+		Path dir = Files.createTempDirectory("persister");
+		Path path = dir.resolve("keys.jks");
+		KeyStore ks = emptyStore();
+		KeyStorePersister persister = new KeyStorePersister(200, 500);
+		persister.register("keys", ks, path, TestPki.PASS);
+		Credential ca = TestPki.createCA("persister-ca", KeyAlgorithm.EC_P256);
+		long start = System.currentTimeMillis();
+		long firstWrite = -1;
+		int i = 0;
+		//a change every 50ms never leaves the 200ms quiet period
+		while(System.currentTimeMillis() - start < 2000) {
+			ks.setCertificateEntry("cert-" + i++, ca.cert);
+			persister.markDirty("keys");
+			if(firstWrite < 0 && persister.getWriteCount() > 0) {
+				firstWrite = System.currentTimeMillis() - start;
+			}
+			Thread.sleep(50);
+		}
+		LOGGER.info("first write after " + firstWrite + "ms, " + persister);
+		assertTrue("no write while changes kept arriving", firstWrite > 0);
+		assertTrue("first write after " + firstWrite + "ms", firstWrite < 1500);
+		assertTrue(persister.getWriteCount() >= 2);
+		persister.close();
+		assertFalse(persister.isDirty());
+		assertEquals(i, load(path).size());
+		assertEquals(1, dir.toFile().list().length);
+		deleteDir(dir);
+	}
+
+	/**
+	 * Test a failed write keeps the store dirty and is reported by flush.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testFailedWriteStaysDirty() throws Exception {
+		Path dir = Files.createTempDirectory("persister");
+		Path path = dir.resolve("missing").resolve("trust.jks");
+		KeyStorePersister persister = new KeyStorePersister(60000, 60000);
+		persister.register("trust", emptyStore(), path, TestPki.PASS);
+		persister.markDirty("trust");
+		try {
+			persister.flush();
+			fail("expected an error");
+		} catch (Exception e) {
+			LOGGER.info("expected error: " + e.getMessage());
+		}
+		assertTrue(persister.isDirty());
+		assertEquals(1, persister.getFailureCount());
+		Files.createDirectory(path.getParent());
+		persister.flush();
+		assertFalse(persister.isDirty());
+		assertEquals(0, load(path).size());
+		persister.close();
+		deleteDir(dir);
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Create an empty JKS store.
+	 * @return the store
+	 * @throws Exception on errors
+	 */
+	private static KeyStore emptyStore() throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, TestPki.PASS);
+		return ks;
+	}
+
+	/**
+	 * Load a JKS store file.
+	 * @param path	the file
+	 * @return the store
+	 * @throws Exception on errors
+	 */
+	private static KeyStore load(Path path) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		try (InputStream in = Files.newInputStream(path)) {
+			ks.load(in, TestPki.PASS);
+		}
+		return ks;
+	}
+
+	/**
+	 * Delete a test directory.
+	 * @param dir	the directory
+	 */
+	private static void deleteDir(Path dir) {
+		File[] files = dir.toFile().listFiles();
+		if(files != null) {
+			for(File f : files) {
+				if(f.isDirectory()) {
+					deleteDir(f.toPath());
+				}
+				f.delete();
+			}
+		}
+		dir.toFile().delete();
+	}
+}
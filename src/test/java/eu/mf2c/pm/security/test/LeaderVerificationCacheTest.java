@@ -0,0 +1,243 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.LeadAgentCauClient;
+import eu.mf2c.pm.security.LeaderVerificationCache;
+import eu.mf2c.pm.security.Metrics;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.Exception.LeadAgentCauClientException;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link LeaderVerificationCache <em>LeaderVerificationCache</em>}: entries
+ * expire, miss on a rotated certificate and are dropped when the leader presents
+ * another certificate, and a {@link LeadAgentCauClient <em>LeadAgentCauClient</em>}
+ * skips the handshake with a {@link StandInLeaderCau <em>StandInLeaderCau</em>} which
+ * accepted the agent certificate before, also when the leader keeps the connection
+ * open, but does not cache a certificate the leader rejects after a TLS 1.3 handshake.
+ */
+public class LeaderVerificationCacheTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(LeaderVerificationCacheTest.class);
+
+	/**
+	 * Test hits, expiry, rotation of either certificate and invalidation.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testEntries() throws Exception {
+		Credential ca = TestPki.createCA("verification-ca", KeyAlgorithm.EC_P256);
+		X509Certificate leader = TestPki.createEntity("leader", KeyAlgorithm.EC_P256, ca).cert;
+		X509Certificate agent = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca).cert;
+		X509Certificate rotated = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca).cert;
+		LeaderVerificationCache cache = new LeaderVerificationCache(200, 16);
+		assertFalse(cache.isVerified("10.0.0.1:46065", agent));
+		cache.recordVerified("10.0.0.1:46065", leader, agent, 20000000L);
+		assertTrue(cache.isVerified("10.0.0.1:46065", agent));
+		//another leader endpoint or a rotated agent certificate
+		assertFalse(cache.isVerified("10.0.0.2:46065", agent));
+		assertFalse(cache.isVerified("10.0.0.1:46065", rotated));
+		assertFalse(cache.isVerified("10.0.0.1:46065", null));
+		//expired
+		Thread.sleep(250);
+		assertFalse(cache.isVerified("10.0.0.1:46065", agent));
+		assertEquals(0, cache.size());
+		//the leader certificate rotates
+		cache.recordVerified("10.0.0.1:46065", leader, agent, 20000000L);
+		cache.recordVerified("10.0.0.1:46065", leader, rotated, 20000000L);
+		cache.recordVerified("10.0.0.1:46065", TestPki.createEntity("leader", KeyAlgorithm.EC_P256, ca).cert, rotated, 20000000L);
+		assertEquals(2, cache.getInvalidations());
+		assertFalse(cache.isVerified("10.0.0.1:46065", agent));
+		assertTrue(cache.isVerified("10.0.0.1:46065", rotated));
+		//a failed handshake
+		cache.invalidate("10.0.0.1:46065");
+		assertFalse(cache.isVerified("10.0.0.1:46065", rotated));
+		assertEquals(3, cache.getInvalidations());
+		assertEquals(2, cache.getHits());
+		assertEquals(7, cache.getMisses());
+		assertEquals(2.0 / 9, cache.getHitRatio(), 1e-9);
+		assertEquals(0.04, cache.getSavedSeconds(), 1e-3);
+		//bounded by the certificate validity
+		KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		cache = new LeaderVerificationCache(60000, 16);
+		cache.recordVerified("10.0.0.1:46065", leader, TestPki.issueMillis("agent", kp.getPublic(), ca, 200), 20000000L);
+		Thread.sleep(250);
+		assertEquals(1, cache.purge());
+		//turned off
+		cache = new LeaderVerificationCache(0, 16);
+		cache.recordVerified("10.0.0.1:46065", leader, agent, 20000000L);
+		assertFalse(cache.isVerified("10.0.0.1:46065", agent));
+	}
+
+	/**
+	 * Test the leader CAU handshake is made once for an agent certificate, again after
+	 * the agent certificate rotates and again after an invalidation.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testHandshakeSkipped() throws Exception {
+		Credential ca = TestPki.createCA("verification-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		sms.storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		//another credential from the same CA, which must not be presented
+		KeyPair other = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		sms.storeKeyEntry("verification-other", "verification-fog", TestPki.issue("verification-other", other.getPublic(), ca, 30), other);
+		storeAgent(sms, ca);
+		LeaderVerificationCache cache = LeaderVerificationCache.getInstance();
+		long hits = cache.getHits();
+		try (StandInLeaderCau leader = new StandInLeaderCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			String endpoint = "127.0.0.1:" + leader.getPort();
+			for(int i = 0; i < 5; i++) {
+				verify(sms, leader);
+			}
+			assertHandshakes(1, leader);
+			assertEquals(sms.getKeyEntry("verification-agent", null).getCertificate(), leader.getLastClient());
+			assertEquals(hits + 4, cache.getHits());
+			//a new agent certificate
+			storeAgent(sms, ca);
+			verify(sms, leader);
+			verify(sms, leader);
+			assertHandshakes(2, leader);
+			cache.invalidate(endpoint);
+			verify(sms, leader);
+			assertHandshakes(3, leader);
+			LOGGER.info(cache);
+			assertTrue(cache.getSavedSeconds() > 0);
+			assertTrue(Metrics.getInstance().toPrometheus().contains("mf2c_leader_verification_hits_total " + cache.getHits()));
+		} finally {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Test an agent certificate the leader CAU rejects after the client completed a
+	 * TLS 1.3 handshake fails the verification and is not cached.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRejectionNotCached() throws Exception {
+		long now = System.currentTimeMillis();
+		Credential agentCa = TestPki.createCA("rejected-agent-ca-" + now, KeyAlgorithm.EC_P256);
+		Credential leaderCa = TestPki.createCA("rejecting-leader-ca-" + now, KeyAlgorithm.EC_P256);
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		sms.storeCertificate(agentCa.cert.getSubjectX500Principal().getName(), agentCa.cert);
+		sms.storeCertificate(leaderCa.cert.getSubjectX500Principal().getName(), leaderCa.cert);
+		KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		X509Certificate agent = TestPki.issue("rejected-agent", kp.getPublic(), agentCa, 30);
+		sms.storeKeyEntry("rejected-agent", "verification-fog", agent, kp);
+		LeaderVerificationCache cache = LeaderVerificationCache.getInstance();
+		//the leader only trusts its own CA
+		try (StandInLeaderCau leader = new StandInLeaderCau(leaderCa, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, leaderCa), "TLSv1.3")) {
+			try {
+				new LeadAgentCauClient(sms, "rejected-agent", InetAddress.getLoopbackAddress(), leader.getPort(), "verification-device").run();
+				fail("the leader CAU rejected the agent certificate");
+			} catch (LeadAgentCauClientException e) {
+				LOGGER.info("expected error: " + e.getMessage());
+			}
+			assertEquals(0, leader.getHandshakes());
+			assertFalse(cache.isVerified("127.0.0.1:" + leader.getPort(), agent));
+		} finally {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Test a verification with a leader CAU which keeps the connection open is cached,
+	 * without waiting for an alert after a TLS 1.2 handshake, as on a Java 8 runtime.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testLeaderKeepsConnectionOpen() throws Exception {
+		Credential ca = TestPki.createCA("open-leader-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		sms.storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		LeaderVerificationCache cache = LeaderVerificationCache.getInstance();
+		for(String protocol : new String[] {"TLSv1.2", "TLSv1.3"}) {
+			storeAgent(sms, ca);
+			//the stand-in reads until the client closes the connection
+			try (StandInLeaderCau leader = new StandInLeaderCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca), protocol)) {
+				if(protocol.equals("TLSv1.2")) {
+					System.setProperty("mf2c.leader.confirmTimeout", "5000");
+				}
+				long start = System.nanoTime();
+				verify(sms, leader);
+				double millis = (System.nanoTime() - start) / 1e6;
+				LOGGER.info(String.format("%s verification with a leader keeping the connection open took %.1fms", protocol, millis));
+				if(protocol.equals("TLSv1.2")) {
+					assertTrue("waited for the leader", millis < 5000);
+				}
+				X509Certificate agent = (X509Certificate) sms.getKeyEntry("verification-agent", null).getCertificate();
+				assertTrue(cache.isVerified("127.0.0.1:" + leader.getPort(), agent));
+				verify(sms, leader);
+				assertHandshakes(1, leader);
+			} finally {
+				System.clearProperty("mf2c.leader.confirmTimeout");
+				cache.clear();
+			}
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Store a new agent key entry.
+	 * @param sms	the store manager
+	 * @param ca	the issuing CA
+	 * @throws Exception on errors
+	 */
+	private static void storeAgent(StoreManagerSingleton sms, Credential ca) throws Exception {
+		KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		sms.storeKeyEntry("verification-agent", "verification-fog", TestPki.issue("verification-agent", kp.getPublic(), ca, 30), kp);
+	}
+
+	/**
+	 * Verify the agent certificate with the leader CAU.
+	 * @param sms		the store manager
+	 * @param leader	the leader CAU
+	 * @throws Exception on errors
+	 */
+	private static void verify(StoreManagerSingleton sms, StandInLeaderCau leader) throws Exception {
+		new LeadAgentCauClient(sms, "verification-agent", InetAddress.getLoopbackAddress(), leader.getPort(), "verification-device").run();
+	}
+
+	/**
+	 * Check the handshakes made, waiting for the leader to count the last one.
+	 * @param expected	the expected count
+	 * @param leader	the leader CAU
+	 * @throws Exception on errors
+	 */
+	private static void assertHandshakes(int expected, StandInLeaderCau leader) throws Exception {
+		for(int i = 0; i < 50 && leader.getHandshakes() < expected; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(expected, leader.getHandshakes());
+		assertEquals(0, leader.getFailures());
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.LatencyHistogram;
+import eu.mf2c.pm.security.Metrics;
+import eu.mf2c.pm.security.RegistrationStage;
+import eu.mf2c.pm.security.Exception.CauClientException;
+
+/**
+ * Tests the {@link LatencyHistogram <em>LatencyHistogram</em>} percentiles and
+ * concurrent recording, and the {@link Metrics <em>Metrics</em>} error counts and their
+ * publication through JMX and the HTTP endpoint.
+ */
+public class MetricsTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(MetricsTest.class);
+
+	/**
+	 * Test the percentiles of a uniform distribution are within the bucket precision.
+	 */
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		//1ms to 1000ms
+		for(int i = 1; i <= 1000; i++) {
+			h.record(i * 1000000L);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(500.5, h.getMeanMillis(), 0.001);
+		assertEquals(1000.0, h.getMaxMillis(), 0.001);
+		for(double p : new double[] {50, 90, 99}) {
+			double actual = h.getPercentileMillis(p);
+			assertTrue(p + "th percentile " + actual, actual >= p * 10 && actual <= p * 10 * 1.125 + 0.001);
+		}
+		assertEquals(1000.0, h.getPercentileMillis(100), 0.001);
+		//sub-microsecond and very long samples
+		LatencyHistogram edges = new LatencyHistogram();
+		edges.record(-5);
+		edges.record(500);
+		edges.record(Long.MAX_VALUE / 2);
+		assertEquals(3, edges.getCount());
+		assertEquals(0.0, edges.getPercentileMillis(50), 0.0);
+		assertEquals(0.0, new LatencyHistogram().getPercentileMillis(99), 0.0);
+		LOGGER.info(h);
+	}
+
+	/**
+	 * Test samples recorded by concurrent threads are all counted.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		LatencyHistogram h = new LatencyHistogram();
+		int threads = 8;
+		int samples = 100000;
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			final long base = t;
+			Thread w = new Thread(() -> {
+				for(int i = 0; i < samples; i++) {
+					h.record((base * samples + i) * 100L);
+				}
+			});
+			workers.add(w);
+			w.start();
+		}
+		for(Thread w : workers) {
+			w.join();
+		}
+		assertEquals((long) threads * samples, h.getCount());
+		assertEquals((threads * samples - 1) * 100L / 1e6, h.getMaxMillis(), 0.0001);
+	}
+
+	/**
+	 * Test an error counts under its class and the classes of its causes.
+	 */
+	@Test
+	public void testErrorCounts() {
+		Metrics metrics = Metrics.getInstance();
+		long cau = count(metrics, "CauClientException");
+		long keyStore = count(metrics, "KeyStoreException");
+		metrics.recordError(new CauClientException("enrolment failed", new KeyStoreException("no space")));
+		metrics.recordError(new KeyStoreException("no space"));
+		assertEquals(cau + 1, count(metrics, "CauClientException"));
+		assertEquals(keyStore + 2, count(metrics, "KeyStoreException"));
+	}
+
+	/**
+	 * Test the metrics are read through JMX and the HTTP endpoint.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPublication() throws Exception {
+		Metrics metrics = Metrics.getInstance();
+		metrics.getHistogram(Metrics.Operation.CAU_HANDSHAKE).record(3000000L);
+		metrics.recordStage(RegistrationStage.CAU_ENROLMENT, 20000000L);
+		metrics.recordRegistration(50000000L, false);
+		metrics.recordError(new IllegalStateException("test"));
+		//JMX
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		assertTrue(server.isRegistered(name));
+		assertTrue((Long) server.getAttribute(name, "CAU_HANDSHAKE.Count") >= 1);
+		assertTrue((Double) server.getAttribute(name, "Stage_CAU_ENROLMENT.MaxMillis") >= 20.0);
+		assertTrue((Long) server.getAttribute(name, "FailedRegistrations") >= 1);
+		assertTrue((Long) server.getAttribute(name, "Errors.IllegalStateException") >= 1);
+		assertTrue(server.getMBeanInfo(name).getAttributes().length > 50);
+		//HTTP
+		InetSocketAddress address = metrics.startHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		try {
+			HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:" + address.getPort() + "/metrics").openConnection();
+			assertEquals(200, con.getResponseCode());
+			String body;
+			try (InputStream in = con.getInputStream()) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				int n;
+				while((n = in.read(buf)) > 0) {
+					baos.write(buf, 0, n);
+				}
+				body = new String(baos.toByteArray(), StandardCharsets.UTF_8);
+			}
+			LOGGER.debug(body);
+			assertTrue(body.contains("mf2c_operation_seconds{operation=\"cau_handshake\",quantile=\"0.99\"}"));
+			assertTrue(body.contains("mf2c_stage_seconds_count{stage=\"cau_enrolment\"}"));
+			assertTrue(body.contains("mf2c_registration_failures_total "));
+			assertTrue(body.contains("mf2c_errors_total{exception=\"IllegalStateException\"}"));
+		} finally {
+			metrics.stopHttpServer();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Get an error count.
+	 * @param metrics	the metrics
+	 * @param name		the simple exception class name
+	 * @return	the count
+	 */
+	private static long count(Metrics metrics, String name) {
+		Long n = metrics.getErrorCounts().get(name);
+		return n == null ? 0L : n;
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.mf2c.pm.security.BasicSocketServer;
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.LatencyHistogram;
+import eu.mf2c.pm.security.RegistrationPipeline;
+import eu.mf2c.pm.security.RegistrationPipeline.Steps;
+import eu.mf2c.pm.security.RegistrationStage;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * An end&#45;to&#45;end registration load test which runs offline on one machine.  It
+ * starts a {@link StandInCau <em>StandInCau</em>} signing CSRs with a test CA, a mutual
+ * TLS {@link StandInLeaderCau <em>StandInLeaderCau</em>} and an HTTP categorisation
+ * stub, then drives simulated Policy block clients, each registering a different agent,
+ * against a {@link BasicSocketServer <em>BasicSocketServer</em>} running the real
+ * {@link CauClient <em>CauClient</em>} stages.  It reports the registrations per second
+ * and the p50, p95 and p99 latencies seen by the clients and of each stage.
+ * <p>
+ * The JUnit test makes a short run to catch regressions.  To size a node, run it on
+ * its own, from a scratch directory as the key stores are written to the working
+ * directory:
+ * <pre>
+ *   java -cp ... eu.mf2c.pm.security.test.RegistrationLoadTest [registrations] [clients] [port] [workers]
+ * </pre>
+ * which by default sends 2000 registrations from 64 concurrent clients to port 46065
+ * with 16 workers.  The agent key algorithm is set with <code>-Dmf2c.keyAlgorithm</code>
+ * as usual.
+ */
+public class RegistrationLoadTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(RegistrationLoadTest.class);
+	/** the latencies of the registrations seen by the clients */
+	private final LatencyHistogram registrations = new LatencyHistogram();
+	/** the latencies of each stage, by stage ordinal */
+	private final LatencyHistogram[] stages = new LatencyHistogram[RegistrationStage.values().length];
+	/** the replies other than OK, by reply with the numbers masked */
+	private final Map<String, AtomicInteger> errors = new ConcurrentHashMap<String, AtomicInteger>();
+	/** number of categorisation requests received */
+	private final LongAdder categorised = new LongAdder();
+	/** the id key prefix of the agents, the identities of earlier runs would be held */
+	private final String agentPrefix = "load-agent-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+	/**
+	 * Construct an instance.
+	 */
+	public RegistrationLoadTest() {
+		for(int i = 0; i < this.stages.length; i++) {
+			this.stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Run a load test and print the report.
+	 * @param args	optional registrations, default 2000, concurrent clients, default 64,
+	 * 				server port, default 46065, and server workers, default 16
+	 * @throws Exception on errors
+	 */
+	public static void main(String[] args) throws Exception {
+		int total = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : BasicSocketServer.DEFAULT_PORT;
+		int workers = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		RegistrationLoadTest load = new RegistrationLoadTest();
+		System.out.println(load.run(total, clients, port, workers));
+		System.exit(load.errors.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * Test a short run completes every registration through all the stages.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRegistrationLoad() throws Exception {
+		String report = run(100, 8, 0, 8);
+		LOGGER.info(report);
+		assertTrue("errors " + this.errors, this.errors.isEmpty());
+		assertEquals(100, this.registrations.getCount());
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			assertEquals(stage.name(), 100, this.stages[stage.ordinal()].getCount());
+		}
+		assertEquals(100, this.categorised.sum());
+	}
+
+	/**
+	 * Start the stand&#45;ins and the server, send the registrations and report.
+	 * <p>
+	 * @param total		the number of registrations
+	 * @param clients	the number of concurrent clients
+	 * @param port		the server port, 0 for an ephemeral port
+	 * @param workers	the number of server workers
+	 * @return the report
+	 * @throws Exception on errors
+	 */
+	public String run(int total, int clients, int port, int workers) throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		//a CA name of its own, the key store may hold agent certificates from earlier runs
+		String caName = "load-ca-" + System.currentTimeMillis();
+		Credential ca = TestPki.createCA(caName, KeyAlgorithm.EC_P256);
+		sms.storeCertificate(caName, ca.cert);
+		String dataPath = StoreManagerSingleton.getDataPath();
+		File dir = Files.createTempDirectory("pkidata").toFile();
+		StoreManagerSingleton.setDataPath(dir.getPath());
+		HttpServer categorisation = startCategorisation();
+		System.setProperty("mf2c.categorisation.url", "http://127.0.0.1:" + categorisation.getAddress().getPort() + "/api/categorisation");
+		RegistrationPipeline pipeline = new RegistrationPipeline(request -> new TimedSteps(new CauClient(request)), true);
+		ExecutorService senders = Executors.newFixedThreadPool(clients);
+		try (StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca));
+				StandInLeaderCau leader = new StandInLeaderCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			HashMap<String, String> addresses = new HashMap<String, String>();
+			addresses.put("cauIP", "127.0.0.1:" + cau.getPort());
+			addresses.put("leaderCauIP", "127.0.0.1:" + leader.getPort());
+			BasicSocketServer server = new BasicSocketServer(addresses, port, workers, Math.max(clients, 1), pipeline);
+			Thread serverThread = new Thread(() -> {
+				try {
+					server.runSocket();
+				} catch (Exception e) {
+					LOGGER.error("server error: " + e.getMessage());
+				}
+			}, "load-test-server");
+			serverThread.start();
+			try {
+				if(!server.awaitStartup(10, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("the server did not start");
+				}
+				AtomicInteger next = new AtomicInteger();
+				long start = System.nanoTime();
+				List<Future<?>> running = new ArrayList<Future<?>>();
+				for(int c = 0; c < clients; c++) {
+					running.add(senders.submit(() -> {
+						for(int i = next.getAndIncrement(); i < total; i = next.getAndIncrement()) {
+							register(server.getLocalPort(), i);
+						}
+						return null;
+					}));
+				}
+				for(Future<?> f : running) {
+					f.get();
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				return report(total, clients, workers, seconds) + String.format("%nstand-ins: CAU signed %d, leader CAU handshakes %d (%d failed), categorised %d",
+						cau.getSigned(), leader.getHandshakes(), leader.getFailures(), this.categorised.sum());
+			} finally {
+				server.stop();
+				serverThread.join(10000);
+			}
+		} finally {
+			senders.shutdownNow();
+			pipeline.shutdown();
+			categorisation.stop(0);
+			StoreManagerSingleton.setDataPath(dataPath);
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Times the stages of a registration.
+	 */
+	private final class TimedSteps implements Steps {
+		/** the stages timed */
+		private final Steps steps;
+
+		/**
+		 * Constructor
+		 * @param steps	the stages timed
+		 */
+		private TimedSteps(Steps steps) {
+			this.steps = steps;
+		}
+
+		@Override
+		public X509Certificate findHeldCertificate() throws Exception {
+			return this.steps.findHeldCertificate();
+		}
+
+		@Override
+		public byte[] createRequest() throws Exception {
+			long start = System.nanoTime();
+			try {
+				return this.steps.createRequest();
+			} finally {
+				stages[RegistrationStage.KEYGEN_CSR.ordinal()].recordSince(start);
+			}
+		}
+
+		@Override
+		public X509Certificate enrol(byte[] request) throws Exception {
+			long start = System.nanoTime();
+			try {
+				return this.steps.enrol(request);
+			} finally {
+				stages[RegistrationStage.CAU_ENROLMENT.ordinal()].recordSince(start);
+			}
+		}
+
+		@Override
+		public void persist(X509Certificate cert) throws Exception {
+			long start = System.nanoTime();
+			try {
+				this.steps.persist(cert);
+			} finally {
+				stages[RegistrationStage.PERSISTENCE.ordinal()].recordSince(start);
+			}
+		}
+
+		@Override
+		public void verifyWithLeader() throws Exception {
+			long start = System.nanoTime();
+			try {
+				this.steps.verifyWithLeader();
+			} finally {
+				stages[RegistrationStage.LEADER_VERIFICATION.ordinal()].recordSince(start);
+			}
+		}
+
+		@Override
+		public void categorise() throws Exception {
+			long start = System.nanoTime();
+			try {
+				this.steps.categorise();
+			} finally {
+				stages[RegistrationStage.CATEGORISATION.ordinal()].recordSince(start);
+			}
+		}
+	}
+
+	/**
+	 * Register one simulated agent as the Policy block does and record the outcome.
+	 * @param port	the server port
+	 * @param n		the agent number
+	 */
+	private void register(int port, int n) {
+		String message = "detectedLeaderID=load-fog,deviceID=load-device-" + n + ",IDkey=" + this.agentPrefix + n + ",MACaddr=ab:cd:ef:01:23:45\n";
+		long start = System.nanoTime();
+		String reply;
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream os = s.getOutputStream();
+			os.write(message.getBytes(StandardCharsets.UTF_8));
+			os.flush();
+			s.shutdownOutput();
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int r;
+			while((r = in.read(buffer)) != -1) {
+				baos.write(buffer, 0, r);
+			}
+			reply = new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			reply = "client error: " + e.getMessage();
+		}
+		if(reply.equals("OK")) {
+			this.registrations.recordSince(start);
+		} else {
+			this.errors.computeIfAbsent(reply.replaceAll("[0-9]+", "#"), k -> new AtomicInteger()).incrementAndGet();
+		}
+	}
+
+	/**
+	 * Start a categorisation stub answering every request with a 200.
+	 * @return the server
+	 * @throws Exception on errors
+	 */
+	private HttpServer startCategorisation() throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/api/categorisation", exchange -> {
+			try {
+				this.categorised.increment();
+				byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			} finally {
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+			Thread t = new Thread(r, "load-test-categorisation");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Format the report.
+	 * @param total		the number of registrations
+	 * @param clients	the number of concurrent clients
+	 * @param workers	the number of server workers
+	 * @param seconds	the duration of the run
+	 * @return the report
+	 */
+	private String report(int total, int clients, int workers, double seconds) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d registrations from %d clients, %d workers, %d processors in %.1fs: %.1f registrations/s%n",
+				total, clients, workers, Runtime.getRuntime().availableProcessors(), seconds, this.registrations.getCount() / seconds));
+		sb.append(String.format("%-20s %8s %10s %10s %10s %10s%n", "", "count", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		line(sb, "registration", this.registrations);
+		for(RegistrationStage stage : RegistrationStage.values()) {
+			line(sb, stage.name(), this.stages[stage.ordinal()]);
+		}
+		sb.append("errors: ").append(this.errors.isEmpty() ? "none" : new TreeMap<String, AtomicInteger>(this.errors).toString());
+		return sb.toString();
+	}
+
+	/**
+	 * Format a report line.
+	 * @param sb		the report
+	 * @param name		the line name
+	 * @param latencies	the latencies
+	 */
+	private static void line(StringBuilder sb, String name, LatencyHistogram latencies) {
+		sb.append(String.format("%-20s %8d %10.2f %10.2f %10.2f %10.2f%n", name, latencies.getCount(), latencies.getPercentileMillis(50),
+				latencies.getPercentileMillis(95), latencies.getPercentileMillis(99), latencies.getMaxMillis()));
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.BasicSocketServer;
+import eu.mf2c.pm.security.RegistrationPipeline;
+import eu.mf2c.pm.security.RegistrationResult;
+import eu.mf2c.pm.security.RegistrationResult.Status;
+import eu.mf2c.pm.security.RegistrationStage;
+import eu.mf2c.pm.security.Exception.RegistrationPipelineException;
+
+/**
+ * Tests the {@link RegistrationPipeline <em>RegistrationPipeline</em>} runs the
+ * independent stages in parallel, times out a stalled stage and skips the stages
+ * after a failure.  The stage work is replaced by stubs.
+ */
+public class RegistrationPipelineTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(RegistrationPipelineTest.class);
+	/** A valid Policy block message */
+	private static final String MESSAGE = "detectedLeaderID=56789,deviceID=123456789,IDkey=someIDKey,MACaddr=ab:cd:ef:01:23:45\n";
+
+	/**
+	 * Test persistence and leader verification run at the same time: each waits
+	 * for the other at a barrier, which would time out if they ran one after the other.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testParallelStages() throws Exception {
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		StubSteps steps = new StubSteps();
+		steps.persist = () -> barrier.await(5, TimeUnit.SECONDS);
+		steps.verify = () -> barrier.await(5, TimeUnit.SECONDS);
+		RegistrationPipeline pipeline = new RegistrationPipeline(request -> steps, false);
+		try {
+			RegistrationResult result = pipeline.submit(request()).get(10, TimeUnit.SECONDS);
+			LOGGER.info(result);
+			assertTrue(result.toString(), result.isSuccess());
+			assertEquals("OK", result.toReply());
+			assertEquals("someIDKey", result.getIdKey());
+			assertEquals(Status.SUCCEEDED, result.getOutcome(RegistrationStage.PERSISTENCE).getStatus());
+			assertEquals(Status.SUCCEEDED, result.getOutcome(RegistrationStage.LEADER_VERIFICATION).getStatus());
+			assertEquals(Status.DISABLED, result.getOutcome(RegistrationStage.CATEGORISATION).getStatus());
+			assertEquals(1, steps.categorised.getCount());
+			pipeline.register(request());
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	/**
+	 * Test a stalled stage times out and is interrupted, the parallel stage still
+	 * completes and categorisation is skipped.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testStageTimeout() throws Exception {
+		CountDownLatch interrupted = new CountDownLatch(1);
+		StubSteps steps = new StubSteps();
+		steps.verify = () -> {
+			try {
+				Thread.sleep(30000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+				throw e;
+			}
+		};
+		RegistrationPipeline pipeline = new RegistrationPipeline(request -> steps, true);
+		pipeline.configure(RegistrationStage.LEADER_VERIFICATION, null, 200);
+		try {
+			long start = System.nanoTime();
+			RegistrationResult result = pipeline.submit(request()).get(10, TimeUnit.SECONDS);
+			long millis = (System.nanoTime() - start) / 1000000L;
+			LOGGER.info(result);
+			assertFalse(result.isSuccess());
+			assertTrue("took " + millis + "ms", millis < 5000);
+			assertEquals(Status.TIMED_OUT, result.getOutcome(RegistrationStage.LEADER_VERIFICATION).getStatus());
+			assertEquals(Status.SUCCEEDED, result.getOutcome(RegistrationStage.PERSISTENCE).getStatus());
+			assertEquals(Status.SKIPPED, result.getOutcome(RegistrationStage.CATEGORISATION).getStatus());
+			assertTrue(result.toReply(), result.toReply().startsWith("ERROR:LEADER_VERIFICATION TIMED_OUT"));
+			assertTrue("stage not interrupted", interrupted.await(5, TimeUnit.SECONDS));
+			assertEquals(1, steps.categorised.getCount());
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	/**
+	 * Test an enrolment failure skips the later stages and is reported to the
+	 * Policy block with the stage name.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testEnrolmentFailure() throws Exception {
+		StubSteps steps = new StubSteps();
+		steps.fail = true;
+		RegistrationPipeline pipeline = new RegistrationPipeline(request -> steps, true);
+		try {
+			RegistrationResult result = pipeline.submit(request()).get(10, TimeUnit.SECONDS);
+			assertEquals(Status.SUCCEEDED, result.getOutcome(RegistrationStage.KEYGEN_CSR).getStatus());
+			assertEquals(Status.FAILED, result.getOutcome(RegistrationStage.CAU_ENROLMENT).getStatus());
+			for(RegistrationStage stage : new RegistrationStage[] {RegistrationStage.PERSISTENCE,
+					RegistrationStage.LEADER_VERIFICATION, RegistrationStage.CATEGORISATION}) {
+				assertEquals(stage.name(), Status.SKIPPED, result.getOutcome(stage).getStatus());
+			}
+			try {
+				pipeline.register(request());
+				fail("expected a RegistrationPipelineException");
+			} catch (RegistrationPipelineException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("CAU_ENROLMENT FAILED: CAU refused"));
+			}
+			//through the socket server as the Policy block sees it
+			BasicSocketServer server = new BasicSocketServer(getAddresses(), 0, 2, 8, pipeline);
+			Thread t = new Thread(() -> {
+				try {
+					server.runSocket();
+				} catch (Exception e) {
+					LOGGER.error("server error: " + e.getMessage());
+				}
+			});
+			t.start();
+			assertTrue("server did not start", server.awaitStartup(10, TimeUnit.SECONDS));
+			try {
+				String reply = send(server.getLocalPort(), MESSAGE);
+				assertTrue(reply, reply.startsWith("ERROR:CAU_ENROLMENT FAILED: CAU refused"));
+			} finally {
+				server.stop();
+				t.join(10000);
+			}
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * A stage action.
+	 */
+	private interface Action {
+		/**
+		 * Run the action.
+		 * @throws Exception on error
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Stub stages.
+	 */
+	private static class StubSteps implements RegistrationPipeline.Steps {
+		/** persistence action */
+		volatile Action persist = () -> { };
+		/** leader verification action */
+		volatile Action verify = () -> { };
+		/** true to fail the enrolment */
+		volatile boolean fail;
+		/** counted down on categorisation */
+		final CountDownLatch categorised = new CountDownLatch(1);
+
+		@Override
+		public byte[] createRequest() throws Exception {
+			return MESSAGE.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public X509Certificate enrol(byte[] request) throws Exception {
+			if(this.fail) {
+				throw new IOException("CAU refused the request");
+			}
+			return null;
+		}
+
+		@Override
+		public void persist(X509Certificate cert) throws Exception {
+			this.persist.run();
+		}
+
+		@Override
+		public void verifyWithLeader() throws Exception {
+			this.verify.run();
+		}
+
+		@Override
+		public void categorise() throws Exception {
+			this.categorised.countDown();
+		}
+	}
+
+	/**
+	 * Get the request values of the test message.
+	 * @return the values
+	 * @throws Exception on errors
+	 */
+	private static HashMap<String, String> request() throws Exception {
+		return BasicSocketServer.getValues(MESSAGE.trim(), getAddresses());
+	}
+
+	/**
+	 * Send a message and read the reply.
+	 * @param port		the server port
+	 * @param message	the message
+	 * @return	the reply
+	 * @throws Exception on errors
+	 */
+	private static String send(int port, String message) throws Exception {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream os = s.getOutputStream();
+			os.write(message.getBytes(StandardCharsets.UTF_8));
+			os.flush();
+			s.shutdownOutput();
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int n;
+			while((n = in.read(buffer)) != -1) {
+				baos.write(buffer, 0, n);
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Get the CAU addresses.
+	 * @return the addresses
+	 */
+	private static HashMap<String, String> getAddresses() {
+		HashMap<String, String> hm = new HashMap<String, String>();
+		hm.put("cauIP", "127.0.0.1:46400");
+		hm.put("leaderCauIP", "127.0.0.1:46410");
+		return hm;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.RenewalScheduler;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link RenewalScheduler <em>RenewalScheduler</em>} renews certificates at
+ * the configured point of their lifetime with jitter, retries failed renewals, and
+ * that a renewal with the regional CAU swaps the key entry, the SSL context and the
+ * agent credential files.
+ */
+public class RenewalSchedulerTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(RenewalSchedulerTest.class);
+
+	/**
+	 * Test the renewal times fall between the renewal point and the jitter limit, are
+	 * spread and are ordered by the index.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRenewalTimes() throws Exception {
+		RenewalScheduler scheduler = new RenewalScheduler(StoreManagerSingleton.getInstance(), 50, 20, 1000);
+		Credential ca = TestPki.createCA("renewal-ca", KeyAlgorithm.EC_P256);
+		Credential agent = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca);
+		long notBefore = agent.cert.getNotBefore().getTime();
+		long lifetime = agent.cert.getNotAfter().getTime() - notBefore;
+		Set<Long> times = new HashSet<Long>();
+		long earliest = Long.MAX_VALUE;
+		for(int i = 0; i < 200; i++) {
+			long at = scheduler.track("agent-" + i, agent.cert, (c, kp) -> {
+				throw new IllegalStateException("not due");
+			});
+			assertTrue(at >= notBefore + lifetime / 2 && at <= notBefore + lifetime * 7 / 10);
+			assertEquals(at, scheduler.getRenewalTime("agent-" + i));
+			times.add(at);
+			earliest = Math.min(earliest, at);
+		}
+		assertTrue("renewals are spread", times.size() > 190);
+		assertEquals(earliest, scheduler.getNextRenewalTime());
+		//tracking the same certificate again keeps its renewal time
+		long first = scheduler.getRenewalTime("agent-0");
+		assertEquals(first, scheduler.track("agent-0", agent.cert, (c, kp) -> c));
+		assertTrue(scheduler.untrack("agent-0"));
+		assertFalse(scheduler.untrack("agent-0"));
+		assertEquals(-1L, scheduler.getRenewalTime("agent-0"));
+		assertEquals(199, scheduler.size());
+		assertEquals(0, scheduler.getRenewals());
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Test short lived certificates are renewed with a new keypair before they expire,
+	 * and a failed renewal is retried.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRenewsBeforeExpiry() throws Exception {
+		RenewalScheduler scheduler = new RenewalScheduler(StoreManagerSingleton.getInstance(), 50, 10, 100);
+		Credential ca = TestPki.createCA("renewal-ca", KeyAlgorithm.EC_P256);
+		Credential agent = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca);
+		long lifetime = 5000;
+		List<PublicKey> keys = new ArrayList<PublicKey>();
+		List<Boolean> beforeExpiry = new ArrayList<Boolean>();
+		X509Certificate[] latest = {TestPki.issueMillis("agent", agent.keypair.getPublic(), ca, lifetime)};
+		scheduler.track("short-lived", latest[0], (current, kp) -> {
+			synchronized(keys) {
+				beforeExpiry.add(System.currentTimeMillis() < current.getNotAfter().getTime());
+				keys.add(kp.getPublic());
+				if(keys.size() == 1) {
+					throw new IOException("CAU unavailable");
+				}
+			}
+			latest[0] = TestPki.issueMillis("agent", kp.getPublic(), ca, lifetime);
+			return latest[0];
+		});
+		long deadline = System.currentTimeMillis() + 20000;
+		while(scheduler.getRenewals() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		scheduler.shutdown();
+		LOGGER.info(scheduler);
+		assertTrue(scheduler.getRenewals() >= 2);
+		assertEquals(1, scheduler.getFailures());
+		synchronized(keys) {
+			assertEquals("each attempt has a new keypair", keys.size(), new HashSet<PublicKey>(keys).size());
+			assertFalse(beforeExpiry.contains(Boolean.FALSE));
+		}
+	}
+
+	/**
+	 * Test the retry delay backs off exponentially from the retry delay, is jittered, is
+	 * never below the retry delay close to expiry and is the longest backoff after it.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRetryDelay() throws Exception {
+		RenewalScheduler scheduler = new RenewalScheduler(StoreManagerSingleton.getInstance(), 50, 10, 1000);
+		Credential ca = TestPki.createCA("renewal-ca", KeyAlgorithm.EC_P256);
+		Credential agent = TestPki.createEntity("agent", KeyAlgorithm.EC_P256, ca);
+		long now = System.currentTimeMillis();
+		//long lived
+		for(int attempts = 0; attempts < 4; attempts++) {
+			long backoff = 1000L << attempts;
+			long delay = scheduler.getRetryDelay(agent.cert, attempts, now);
+			assertTrue(delay >= backoff && delay <= backoff * 3 / 2);
+		}
+		long longest = scheduler.getRetryDelay(agent.cert, 30, now);
+		assertTrue(longest >= RenewalScheduler.MAX_RETRY_MILLIS && longest <= RenewalScheduler.MAX_RETRY_MILLIS * 3 / 2);
+		//close to expiry, the retry delay is the floor
+		long expiry = agent.cert.getNotAfter().getTime();
+		Set<Long> delays = new HashSet<Long>();
+		for(int i = 0; i < 100; i++) {
+			long delay = scheduler.getRetryDelay(agent.cert, 5, expiry - 500);
+			assertTrue(delay >= 1000 && delay <= 1500);
+			delays.add(delay);
+		}
+		assertTrue("retries are spread", delays.size() > 50);
+		//half the remaining validity
+		long delay = scheduler.getRetryDelay(agent.cert, 5, expiry - 10000);
+		assertTrue(delay >= 5000 && delay <= 7500);
+		//expired
+		delay = scheduler.getRetryDelay(agent.cert, 0, expiry + 1);
+		assertTrue(delay >= RenewalScheduler.MAX_RETRY_MILLIS);
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Test a renewal with the regional CAU replaces the key entry and, for the agent
+	 * credential only, the agent keypair and PEM files.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRenewWithCau() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("renewal-cau-ca", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("renewal-cau-ca", ca.cert);
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		try (StandInCau cau = new StandInCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			KeyPair original = sms.getKeyPair();
+			X509Certificate current = TestPki.issue("renewing-agent", original.getPublic(), ca, 365);
+			sms.writeKeyFile();
+			sms.writeCertFile(current);
+			HashMap<String, String> cache = new HashMap<String, String>();
+			cache.put("cauIP", "127.0.0.1:" + cau.getPort());
+			cache.put("leaderCauIP", "127.0.0.1:1");
+			cache.put("IDkey", "renewing-agent");
+			cache.put("deviceID", "renewing-device");
+			cache.put("detectedLeaderID", "renewal-fog");
+			cache.put("MACaddr", "ab:cd:ef:01:23:45");
+			CauClient client = new CauClient(cache);
+			KeyPair renewed = sms.takeKeyPair();
+			X509Certificate cert = client.renew(current, renewed);
+			assertEquals(renewed.getPublic(), cert.getPublicKey());
+			assertEquals(cert, sms.getKeyEntry("renewing-agent", "renewal-fog").getCertificate());
+			assertEquals(cert, RenewalScheduler.getInstance().getCertificate("renewing-agent"));
+			//the agent credential and its files are replaced
+			assertSame(renewed, sms.getKeyPair());
+			assertEquals(cert, sms.generateCertFromBytes(readPem(new File(dir.toFile(), "server.crt")).getContent()));
+			assertEquals(KeyAlgorithm.forKey(renewed.getPrivate()).toPem(renewed).getType(),
+					readPem(new File(dir.toFile(), "server.key")).getType());
+			assertTrue(Arrays.equals(KeyAlgorithm.forKey(renewed.getPrivate()).toPem(renewed).getContent(),
+					readPem(new File(dir.toFile(), "server.key")).getContent()));
+			//another agent's certificate only replaces its key entry
+			X509Certificate other = TestPki.issue("renewing-agent", sms.takeKeyPair().getPublic(), ca, 365);
+			X509Certificate otherRenewed = client.renew(other, sms.takeKeyPair());
+			assertEquals(otherRenewed, sms.getKeyEntry("renewing-agent", "renewal-fog").getCertificate());
+			assertSame(renewed, sms.getKeyPair());
+			assertEquals(cert, sms.generateCertFromBytes(readPem(new File(dir.toFile(), "server.crt")).getContent()));
+			assertEquals(2, dir.toFile().list().length);
+		} finally {
+			StoreManagerSingleton.setDataPath(dataPath);
+			RenewalScheduler.getInstance().untrack("renewing-agent");
+			for(File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Read a PEM file.
+	 * @param file	the file
+	 * @return	the PEM object
+	 * @throws IOException on errors
+	 */
+	private static PemObject readPem(File file) throws IOException {
+		try (PemReader reader = new PemReader(new FileReader(file))) {
+			return reader.readPemObject();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.RenewalScheduler;
+import eu.mf2c.pm.security.RevocationIndex;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.TrustAnchorIndex;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link RevocationIndex <em>RevocationIndex</em>} with locally generated
+ * complete and delta CRLs: loading, incremental refresh, signature checks, the check
+ * time, and the rejection of a revoked {@link StandInCau <em>StandInCau</em>}
+ * certificate on full and resumed handshakes.
+ */
+public class RevocationIndexTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(RevocationIndexTest.class);
+
+	/**
+	 * Stop tracking the test agent.
+	 * @throws Exception on errors
+	 */
+	@After
+	public void tearDown() throws Exception {
+		RenewalScheduler.getInstance().untrack("revocation-agent");
+	}
+
+	/**
+	 * Test complete and delta CRLs are loaded, replaced and removed, and that forged
+	 * CRLs are ignored until signed by a trusted CA.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testIncrementalRefresh() throws Exception {
+		Credential ca = TestPki.createCA("revocation-ca", KeyAlgorithm.EC_P256);
+		Credential other = TestPki.createCA("revocation-other-ca", KeyAlgorithm.EC_P256);
+		X509Certificate revoked = TestPki.createEntity("revoked", KeyAlgorithm.EC_P256, ca).cert;
+		X509Certificate good = TestPki.createEntity("good", KeyAlgorithm.EC_P256, ca).cert;
+		Path dir = Files.createTempDirectory("crl");
+		AtomicReference<TrustAnchorIndex> anchors = new AtomicReference<TrustAnchorIndex>(
+				new TrustAnchorIndex(1, Collections.<X509Certificate>emptyList()));
+		RevocationIndex index = new RevocationIndex(() -> dir, anchors::get);
+		try {
+			Map<BigInteger, Integer> serials = new HashMap<BigInteger, Integer>();
+			for(int i = 0; i < 1000; i++) {
+				serials.put(new BigInteger(64, TestPki.RANDOM), Integer.valueOf(CRLReason.SUPERSEDED.ordinal()));
+			}
+			serials.put(revoked.getSerialNumber(), Integer.valueOf(CRLReason.KEY_COMPROMISE.ordinal()));
+			write(dir.resolve("ca.crl"), TestPki.crl(ca, 1, null, serials));
+			//claims to be from the CA, newer, but signed by another key
+			write(dir.resolve("forged.crl"), TestPki.crl(new Credential(other.keypair, ca.cert), 5, null,
+					Collections.singletonMap(good.getSerialNumber(), Integer.valueOf(0))));
+			//the CA is not trusted yet
+			assertEquals(0, index.refresh());
+			assertFalse(index.isRevoked(revoked));
+			anchors.set(new TrustAnchorIndex(2, Arrays.asList(ca.cert, other.cert)));
+			assertEquals(1, index.refresh());
+			assertTrue(index.isRevoked(revoked));
+			assertFalse(index.isRevoked(good));
+			assertEquals(1001, index.getSerialCount());
+			try {
+				index.checkChain(new X509Certificate[] {revoked, ca.cert});
+				fail("expected the chain to be rejected");
+			} catch (CertificateRevokedException e) {
+				assertEquals(CRLReason.KEY_COMPROMISE, e.getRevocationReason());
+			}
+			index.checkChain(new X509Certificate[] {good, ca.cert});
+			//nothing changed, nothing parsed
+			long parses = index.getParseCount();
+			assertEquals(0, index.refresh());
+			assertEquals(parses, index.getParseCount());
+			//a delta CRL puts one certificate on hold and takes the other off
+			Map<BigInteger, Integer> delta = new HashMap<BigInteger, Integer>();
+			delta.put(good.getSerialNumber(), Integer.valueOf(CRLReason.CERTIFICATE_HOLD.ordinal()));
+			delta.put(revoked.getSerialNumber(), Integer.valueOf(CRLReason.REMOVE_FROM_CRL.ordinal()));
+			write(dir.resolve("delta.crl"), TestPki.crl(ca, 2, Long.valueOf(1), delta));
+			assertEquals(1, index.refresh());
+			assertEquals(parses + 1, index.getParseCount());
+			assertTrue(index.isRevoked(good));
+			assertFalse(index.isRevoked(revoked));
+			assertEquals(1001, index.getSerialCount());
+			//a new complete CRL supersedes the delta
+			write(dir.resolve("ca.crl"), TestPki.crl(ca, 3, null, Collections.singletonMap(revoked.getSerialNumber(),
+					Integer.valueOf(CRLReason.KEY_COMPROMISE.ordinal()))));
+			assertEquals(1, index.refresh());
+			assertTrue(index.isRevoked(revoked));
+			assertFalse(index.isRevoked(good));
+			assertEquals(1, index.getSerialCount());
+			//a delta CRL alone is not used
+			Files.delete(dir.resolve("ca.crl"));
+			assertEquals(1, index.refresh());
+			assertEquals(0, index.getIssuerCount());
+			assertFalse(index.isRevoked(revoked));
+			LOGGER.info(index);
+		} finally {
+			for(Path p : Files.newDirectoryStream(dir)) {
+				Files.delete(p);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Measure the check time against 100000 revoked serials.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testCheckTime() throws Exception {
+		Credential ca = TestPki.createCA("revocation-bench-ca", KeyAlgorithm.EC_P256);
+		X509Certificate[] certs = new X509Certificate[200];
+		for(int i = 0; i < certs.length; i++) {
+			certs[i] = TestPki.createEntity("bench-" + i, KeyAlgorithm.EC_P256, ca).cert;
+		}
+		Map<BigInteger, Integer> serials = new HashMap<BigInteger, Integer>();
+		while(serials.size() < 100000) {
+			serials.put(new BigInteger(128, TestPki.RANDOM), Integer.valueOf(CRLReason.UNSPECIFIED.ordinal()));
+		}
+		serials.put(certs[0].getSerialNumber(), Integer.valueOf(CRLReason.KEY_COMPROMISE.ordinal()));
+		Path dir = Files.createTempDirectory("crl");
+		try {
+			write(dir.resolve("bench.crl"), TestPki.crl(ca, 1, null, serials));
+			RevocationIndex index = new RevocationIndex(() -> dir, () -> new TrustAnchorIndex(1, Arrays.asList(ca.cert)));
+			long start = System.nanoTime();
+			index.refresh();
+			LOGGER.info(String.format("loaded %d revoked serials in %.1fms", index.getSerialCount(), (System.nanoTime() - start) / 1e6));
+			int found = 0;
+			//warm up, then measure
+			for(int round = 0; round < 2; round++) {
+				found = 0;
+				start = System.nanoTime();
+				for(int i = 0; i < 1000000; i++) {
+					if(index.isRevoked(certs[i % certs.length])) {
+						found++;
+					}
+				}
+			}
+			double nanos = (System.nanoTime() - start) / 1e6;
+			LOGGER.info(String.format("%.0fns per check; %s", nanos, index));
+			assertEquals(5000, found);
+			assertTrue(nanos < 1000);
+			assertTrue(index.getFalsePositives() < index.getChecks() / 100);
+		} finally {
+			Files.delete(dir.resolve("bench.crl"));
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Test a CAU whose certificate has been revoked is rejected, on a resumed and on a
+	 * full handshake.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testRevokedCau() throws Exception {
+		String dataPath = StoreManagerSingleton.getDataPath();
+		Path dir = Files.createTempDirectory("pkidata");
+		Credential ca = TestPki.createCA("revocation-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton.getInstance().storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		Credential server = TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca);
+		RevocationIndex index = RevocationIndex.getInstance();
+		try (StandInCau cau = new StandInCau(ca, server)) {
+			StoreManagerSingleton.setDataPath(dir.toString());
+			String endpoint = "127.0.0.1:" + cau.getPort();
+			enrol(endpoint);
+			write(dir.resolve("cau.crl"), TestPki.crl(ca, 1, null, Collections.singletonMap(server.cert.getSerialNumber(),
+					Integer.valueOf(CRLReason.KEY_COMPROMISE.ordinal()))));
+			assertEquals(1, index.refresh());
+			//the session established before the revocation is resumed
+			expectRevoked(endpoint);
+			SSLContextRegistry.getInstance().invalidate();
+			expectRevoked(endpoint);
+			LOGGER.info(index);
+		} finally {
+			StoreManagerSingleton.setDataPath(dataPath);
+			Files.deleteIfExists(dir.resolve("cau.crl"));
+			index.refresh();
+			for(Path p : Files.newDirectoryStream(dir)) {
+				Files.delete(p);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Write a CRL file.
+	 * @param file	the file
+	 * @param crl	the CRL
+	 * @throws Exception on errors
+	 */
+	private static void write(Path file, X509CRL crl) throws Exception {
+		long before = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+		Files.write(file, crl.getEncoded());
+		//make a rewrite visible even on a coarse file system clock
+		if(Files.getLastModifiedTime(file).toMillis() <= before) {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(before + 1000));
+		}
+	}
+
+	/**
+	 * Check an enrolment fails on the revoked CAU certificate.
+	 * @param endpoint	the CAU
+	 * @throws Exception on errors
+	 */
+	private static void expectRevoked(String endpoint) throws Exception {
+		try {
+			enrol(endpoint);
+			fail("expected the revoked CAU certificate to be rejected");
+		} catch (Exception e) {
+			Throwable t = e;
+			while(t != null && !(t instanceof CertificateRevokedException)) {
+				t = t.getCause();
+			}
+			if(t == null) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Enrol with a CAU.
+	 * @param endpoint	the CAU
+	 * @throws Exception on errors
+	 */
+	private static void enrol(String endpoint) throws Exception {
+		HashMap<String, String> request = new HashMap<String, String>();
+		request.put("cauIP", endpoint);
+		request.put("leaderCauIP", "127.0.0.1:1");
+		request.put("IDkey", "revocation-agent");
+		request.put("deviceID", "revocation-device");
+		request.put("detectedLeaderID", "revocation-fog");
+		request.put("MACaddr", "ab:cd:ef:01:23:45");
+		CauClient client = new CauClient(request);
+		client.enrol(client.createRequest());
+	}
+}
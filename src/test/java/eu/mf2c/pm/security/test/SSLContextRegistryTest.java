@@ -0,0 +1,103 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.CauClient;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.LeaderVerificationCache;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link SSLContextRegistry <em>SSLContextRegistry</em>} shares its CAU and
+ * leader CAU contexts between registrations: once the CAU and leader CAU certificates
+ * are in the trust store, registrations storing new key entries build no context.
+ */
+public class SSLContextRegistryTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(SSLContextRegistryTest.class);
+	/** number of registrations */
+	private static final int REGISTRATIONS = 10;
+
+	/**
+	 * Test no context is built by a series of registrations with the same CAU and
+	 * leader CAU.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testBuildsAcrossRegistrations() throws Exception {
+		Credential ca = TestPki.createCA("registry-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		sms.storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		SSLContextRegistry registry = SSLContextRegistry.getInstance();
+		Credential cauServer = TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca);
+		Credential leaderServer = TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca);
+		try (StandInCau cau = new StandInCau(ca, cauServer);
+				StandInLeaderCau leader = new StandInLeaderCau(ca, leaderServer)) {
+			//the first registration stores the CAU and leader CAU certificates, from the handshake listener threads
+			register(cau, leader, 0);
+			for(int i = 0; i < 100 && !(cauServer.cert.equals(sms.getTrustedCertificate("cau"))
+					&& leaderServer.cert.equals(sms.getTrustedCertificate("leaderCau"))); i++) {
+				Thread.sleep(20);
+			}
+			registry.getContext(SSLContextRegistry.Role.CAU, sms);
+			registry.getContext(SSLContextRegistry.Role.LEADER, sms);
+			long builds = registry.getBuilds();
+			long hits = registry.getHits();
+			for(int i = 1; i <= REGISTRATIONS; i++) {
+				register(cau, leader, i);
+			}
+			LOGGER.info(String.format("%d registrations: %d contexts built, %d reused", REGISTRATIONS,
+					registry.getBuilds() - builds, registry.getHits() - hits));
+			assertEquals(REGISTRATIONS + 1, cau.getSigned());
+			assertEquals("no context built", builds, registry.getBuilds());
+			assertTrue(registry.getHits() - hits >= 2 * REGISTRATIONS);
+		} finally {
+			LeaderVerificationCache.getInstance().clear();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Enrol an agent with the CAU and verify its certificate with the leader CAU.
+	 * @param cau		the CAU
+	 * @param leader	the leader CAU
+	 * @param n			the agent number
+	 * @throws Exception on errors
+	 */
+	private static void register(StandInCau cau, StandInLeaderCau leader, int n) throws Exception {
+		HashMap<String, String> request = new HashMap<String, String>();
+		request.put("cauIP", "127.0.0.1:" + cau.getPort());
+		request.put("leaderCauIP", "127.0.0.1:" + leader.getPort());
+		request.put("IDkey", "registry-agent-" + System.nanoTime() + "-" + n);
+		request.put("deviceID", "registry-device-" + n);
+		request.put("detectedLeaderID", "registry-fog");
+		request.put("MACaddr", "ab:cd:ef:01:23:45");
+		CauClient client = new CauClient(request);
+		client.enrol(client.createRequest());
+		client.verifyWithLeader();
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.HandshakeStats;
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.LeadAgentCauClient;
+import eu.mf2c.pm.security.LeaderVerificationCache;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.SSLContextRegistry.Role;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Checks that repeated connections through the {@link SSLContextRegistry <em>SSLContextRegistry</em>}
+ * resume the cached session with both TLS 1.2 session IDs and TLS 1.3 session tickets, and
+ * that the handshake statistics tell full and resumed handshakes apart.  A leader CAU
+ * session is resumed by a later registration although a registration in between
+ * stored its key entry.
+ */
+public class SessionResumptionTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(SessionResumptionTest.class);
+	/** number of connections per protocol */
+	private static final int ROUNDS = 20;
+
+	/**
+	 * Test session ID resumption.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testResumeTLS12() throws Exception {
+		resume("TLSv1.2", Role.CAU);
+	}
+
+	/**
+	 * Test session ticket resumption.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testResumeTLS13() throws Exception {
+		resume("TLSv1.3", Role.LEADER);
+	}
+
+	/**
+	 * Test a leader CAU session is resumed across registrations, the key entry stored
+	 * by a registration in between leaving the leader context and its session cache
+	 * in place.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testResumeLeaderAcrossRegistrations() throws Exception {
+		Credential ca = TestPki.createCA("resume-leader-ca-" + System.currentTimeMillis(), KeyAlgorithm.EC_P256);
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		sms.storeCertificate(ca.cert.getSubjectX500Principal().getName(), ca.cert);
+		storeAgent(sms, "resume-agent", ca);
+		SSLContextRegistry registry = SSLContextRegistry.getInstance();
+		HandshakeStats stats = registry.getHandshakeStats(Role.LEADER);
+		LeaderVerificationCache cache = LeaderVerificationCache.getInstance();
+		try (StandInLeaderCau leader = new StandInLeaderCau(ca, TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca))) {
+			//the first handshake stores the leader CAU certificate in the trust store
+			verify(sms, leader);
+			cache.clear();
+			verify(sms, leader);
+			SSLContext context = registry.getContext(Role.LEADER, sms);
+			long builds = registry.getBuilds();
+			long resumed = stats.getResumedCount();
+			//another agent registers
+			storeAgent(sms, "resume-other-agent", ca);
+			cache.clear();
+			verify(sms, leader);
+			LOGGER.info("leader CAU: " + stats);
+			assertSame(context, registry.getContext(Role.LEADER, sms));
+			assertEquals(builds, registry.getBuilds());
+			assertEquals("expected the leader session to resume", resumed + 1, stats.getResumedCount());
+			assertEquals(sms.getKeyEntry("resume-agent", null).getCertificate(), leader.getLastClient());
+		} finally {
+			cache.clear();
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Store a key entry for an agent, as a registration does.
+	 * @param sms	the store manager
+	 * @param alias	the agent id key
+	 * @param ca	the issuing CA
+	 * @throws Exception on errors
+	 */
+	private static void storeAgent(StoreManagerSingleton sms, String alias, Credential ca) throws Exception {
+		KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		sms.storeKeyEntry(alias, "resume-fog", TestPki.issue(alias, kp.getPublic(), ca, 30), kp);
+	}
+
+	/**
+	 * Verify the agent certificate with the leader CAU.
+	 * @param sms		the store manager
+	 * @param leader	the leader CAU
+	 * @throws Exception on errors
+	 */
+	private static void verify(StoreManagerSingleton sms, StandInLeaderCau leader) throws Exception {
+		new LeadAgentCauClient(sms, "resume-agent", InetAddress.getLoopbackAddress(), leader.getPort(), "resume-device").run();
+	}
+
+	/**
+	 * Connect repeatedly to a stand&#45;in server limited to one protocol.
+	 * @param protocol	the protocol the server accepts
+	 * @param role		the role to record the handshakes against
+	 * @throws Exception on errors
+	 */
+	private static void resume(String protocol, Role role) throws Exception {
+		Credential ca = TestPki.createCA("resume-ca", KeyAlgorithm.EC_P256);
+		Credential server = TestPki.createEntity("localhost", KeyAlgorithm.EC_P256, ca);
+		SSLContext serverCtx = TestPki.context(server, null, ca.cert);
+		SSLContext clientCtx = SSLContextRegistry.createContext(TestPki.trustStore(ca.cert), null, null);
+		SSLContextRegistry registry = SSLContextRegistry.getInstance();
+		HandshakeStats stats = registry.getHandshakeStats(role);
+		long full = stats.getFullCount();
+		long resumed = stats.getResumedCount();
+		try (SSLServerSocket ss = (SSLServerSocket) serverCtx.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			ss.setEnabledProtocols(new String[] {protocol});
+			Thread acceptor = new Thread(() -> {
+				for(int i = 0; i < ROUNDS; i++) {
+					try (SSLSocket s = (SSLSocket) ss.accept()) {
+						s.startHandshake();
+						s.getOutputStream().write(1);
+						s.getOutputStream().flush();
+						s.getInputStream().read();
+					} catch (Exception e) {
+						LOGGER.error("stand-in server error: " + e.getMessage());
+					}
+				}
+			});
+			acceptor.start();
+			for(int i = 0; i < ROUNDS; i++) {
+				try (SSLSocket s = registry.connect(role, clientCtx, InetAddress.getLoopbackAddress(), ss.getLocalPort(), null)) {
+					assertEquals(protocol, s.getSession().getProtocol());
+					//reading picks up the TLS 1.3 session ticket sent after the handshake
+					s.getInputStream().read();
+					s.getOutputStream().write(1);
+					s.getOutputStream().flush();
+				}
+			}
+			acceptor.join(10000);
+		}
+		LOGGER.info(protocol + " " + role + ": " + stats);
+		assertEquals("expected a single full handshake", 1, stats.getFullCount() - full);
+		assertEquals("expected the other handshakes to resume", ROUNDS - 1, stats.getResumedCount() - resumed);
+		assertTrue(stats.getResumedAverageMillis() > 0);
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+
+import eu.mf2c.pm.security.EnrolmentFrame;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * A local stand&#45;in for the regional CAU.  It signs CSRs with a throw&#45;away CA and
+ * speaks both the original protocol, one request per connection answered with a
+ * PEM certificate before the socket is closed, and the batch protocol described in
+ * {@link EnrolmentFrame <em>EnrolmentFrame</em>}.  Batch requests are signed on a
+ * small pool after an optional random delay so responses can come back out of order.
+ * A {@link Fault <em>Fault</em>} can be set for the next connections to drop them or
+ * leave the client waiting, and a response delay with a slow tail to skew the latency
+ * of one stand&#45;in against another.
+ */
+public class StandInCau implements Closeable {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(StandInCau.class);
+	/** the CA signing the agent certificates */
+	private final Credential ca;
+	/** the listening socket */
+	private final SSLServerSocket serverSocket;
+	/** connection handlers */
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> daemon(r, "stand-in-cau-connection"));
+	/** signers for batch requests */
+	private final ExecutorService signers = Executors.newFixedThreadPool(4, r -> daemon(r, "stand-in-cau-signer"));
+	/** number of connections accepted */
+	private final AtomicInteger accepted = new AtomicInteger();
+	/** number of requests signed */
+	private final AtomicInteger signed = new AtomicInteger();
+	/** maximum random delay before signing a batch request, in milliseconds */
+	private volatile int maxDelayMillis = 0;
+	/** delay before answering a single request, in milliseconds */
+	private volatile int responseDelayMillis = 0;
+	/** percentage of single requests answered after the tail delay instead */
+	private volatile int tailPercent = 0;
+	/** the tail delay, in milliseconds */
+	private volatile int tailDelayMillis = 0;
+	/** the fault of the next faulty connections */
+	private volatile Fault fault = Fault.NONE;
+	/** number of connections still to get the fault */
+	private final AtomicInteger faulty = new AtomicInteger();
+	/** released when closed */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	/** set when closed */
+	private volatile boolean closed = false;
+
+	/**
+	 * A fault injected into a connection.
+	 */
+	public enum Fault {
+		/** the connection is served */
+		NONE,
+		/** the connection is closed as soon as it is accepted */
+		DROP,
+		/** the TLS handshake is never answered */
+		STALL_HANDSHAKE,
+		/** the request is read but never answered */
+		STALL_RESPONSE
+	}
+
+	/**
+	 * Create and start a stand&#45;in CAU on a free loopback port.
+	 * <p>
+	 * @param ca		the CA signing the agent certificates
+	 * @param server	the CAU TLS credential
+	 * @throws Exception on error
+	 */
+	public StandInCau(Credential ca, Credential server) throws Exception {
+		this.ca = ca;
+		SSLContext ctx = TestPki.context(server, null, ca.cert);
+		this.serverSocket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0, 100, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::accept, "stand-in-cau-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Get the listening port.
+	 * <p>
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Get the number of connections accepted.
+	 * <p>
+	 * @return the connection count
+	 */
+	public int getConnections() {
+		return this.accepted.get();
+	}
+
+	/**
+	 * Get the number of certificates signed.
+	 * <p>
+	 * @return the signed count
+	 */
+	public int getSigned() {
+		return this.signed.get();
+	}
+
+	/**
+	 * Set the maximum random delay before a batch request is signed.
+	 * <p>
+	 * @param millis	the maximum delay, 0 for none
+	 */
+	public void setMaxDelayMillis(int millis) {
+		this.maxDelayMillis = millis;
+	}
+
+	/**
+	 * Set the delay before a single request is answered.
+	 * <p>
+	 * @param millis		the delay, 0 for none
+	 * @param tailPercent	the percentage of requests answered after the tail delay instead
+	 * @param tailMillis	the tail delay
+	 */
+	public void setResponseDelay(int millis, int tailPercent, int tailMillis) {
+		this.responseDelayMillis = millis;
+		this.tailPercent = tailPercent;
+		this.tailDelayMillis = tailMillis;
+	}
+
+	/**
+	 * Inject a fault into the next connections.
+	 * <p>
+	 * @param fault			the fault
+	 * @param connections	the number of connections to get it
+	 */
+	public void setFault(Fault fault, int connections) {
+		this.fault = fault;
+		this.faulty.set(connections);
+	}
+
+	/**
+	 * Stop listening and release the threads.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.stopped.countDown();
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			LOGGER.error("error closing stand-in CAU: " + e.getMessage());
+		}
+		this.connections.shutdownNow();
+		this.signers.shutdownNow();
+	}
+
+	/**
+	 * Sign the CSR in a request message.
+	 * <p>
+	 * @param message	the <code>csr=...,IDkey=...</code> message
+	 * @return	the PEM encoded certificate
+	 * @throws Exception if the request is invalid
+	 */
+	public byte[] sign(String message) throws Exception {
+		Map<String, String> fields = new HashMap<String, String>();
+		for(String pair : message.trim().split(",")) {
+			String[] kv = pair.split("=", 2);
+			if(kv.length == 2) {
+				fields.put(kv[0].trim(), kv[1]);
+			}
+		}
+		String csrPem = fields.get("csr");
+		if(csrPem == null) {
+			throw new IllegalArgumentException("no csr in request");
+		}
+		Object parsed;
+		try (PEMParser parser = new PEMParser(new StringReader(csrPem))) {
+			parsed = parser.readObject();
+		}
+		if(!(parsed instanceof PKCS10CertificationRequest)) {
+			throw new IllegalArgumentException("invalid csr in request");
+		}
+		PKCS10CertificationRequest csr = (PKCS10CertificationRequest) parsed;
+		String cn = IETFUtils.valueToString(csr.getSubject().getRDNs(BCStyle.CN)[0].getFirst().getValue());
+		X509Certificate cert = TestPki.issue(cn, new JcaPEMKeyConverter().getPublicKey(csr.getSubjectPublicKeyInfo()), this.ca, 365);
+		StringWriter sw = new StringWriter();
+		try (JcaPEMWriter pw = new JcaPEMWriter(sw)) {
+			pw.writeObject(cert);
+		}
+		this.signed.incrementAndGet();
+		return sw.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Accept connections until closed.
+	 */
+	private void accept() {
+		while(!this.closed) {
+			try {
+				SSLSocket s = (SSLSocket) this.serverSocket.accept();
+				this.accepted.incrementAndGet();
+				Fault f = this.faulty.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? this.fault : Fault.NONE;
+				if(f == Fault.DROP) {
+					s.close();
+				} else if(f == Fault.STALL_HANDSHAKE) {
+					this.connections.execute(() -> stall(s));
+				} else {
+					this.connections.execute(() -> handle(s, f == Fault.STALL_RESPONSE));
+				}
+			} catch (IOException e) {
+				if(!this.closed) {
+					LOGGER.error("stand-in CAU accept error: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serve one connection in the protocol the client opens with.
+	 * <p>
+	 * @param s		the connection
+	 * @param stall	true to read the request and never answer
+	 */
+	private void handle(SSLSocket s, boolean stall) {
+		try (SSLSocket socket = s) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			byte[] head = new byte[EnrolmentFrame.MAGIC.length];
+			int n = 0;
+			while(n < head.length) {
+				int r = in.read(head, n, head.length - n);
+				if(r < 0) {
+					return;
+				}
+				n += r;
+			}
+			if(stall) {
+				stall(socket);
+			} else if(Arrays.equals(head, EnrolmentFrame.MAGIC)) {
+				handleBatch(socket, new DataInputStream(in));
+			} else {
+				handleSingle(socket, head, in);
+			}
+		} catch (Exception e) {
+			if(!this.closed) {
+				LOGGER.error("stand-in CAU connection error: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Serve the original protocol: read one request, reply with the certificate and close.
+	 * The client does not close its side, so the request is taken to be complete once the
+	 * last field has arrived and nothing more follows.
+	 * <p>
+	 * @param socket	the connection
+	 * @param head		the bytes already read
+	 * @param in		the input
+	 * @throws Exception on error
+	 */
+	private void handleSingle(SSLSocket socket, byte[] head, InputStream in) throws Exception {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		request.write(head);
+		byte[] buffer = new byte[4096];
+		while(true) {
+			if(request.toString("UTF-8").contains("deviceID=")) {
+				socket.setSoTimeout(20);
+			}
+			int r;
+			try {
+				r = in.read(buffer);
+			} catch (SocketTimeoutException e) {
+				break;
+			}
+			if(r < 0) {
+				break;
+			}
+			request.write(buffer, 0, r);
+		}
+		int delay = ThreadLocalRandom.current().nextInt(100) < this.tailPercent ? this.tailDelayMillis : this.responseDelayMillis;
+		if(delay > 0) {
+			Thread.sleep(delay);
+		}
+		socket.getOutputStream().write(sign(request.toString("UTF-8")));
+		socket.getOutputStream().flush();
+	}
+
+	/**
+	 * Serve the batch protocol, answering requests as soon as each is signed.
+	 * <p>
+	 * @param socket	the connection
+	 * @param in		the framed input
+	 * @throws Exception on error
+	 */
+	private void handleBatch(SSLSocket socket, DataInputStream in) throws Exception {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		AtomicInteger outstanding = new AtomicInteger();
+		EnrolmentFrame frame;
+		while((frame = EnrolmentFrame.read(in)) != null && frame.getType() != EnrolmentFrame.END) {
+			final EnrolmentFrame request = frame;
+			outstanding.incrementAndGet();
+			this.signers.execute(() -> {
+				EnrolmentFrame response;
+				try {
+					int delay = this.maxDelayMillis;
+					if(delay > 0) {
+						Thread.sleep(ThreadLocalRandom.current().nextInt(delay));
+					}
+					response = new EnrolmentFrame(request.getCorrelationId(), EnrolmentFrame.CERTIFICATE,
+							sign(new String(request.getPayload(), StandardCharsets.UTF_8)));
+				} catch (Exception e) {
+					response = new EnrolmentFrame(request.getCorrelationId(), EnrolmentFrame.ERROR,
+							String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+				}
+				try {
+					synchronized(out) {
+						response.write(out);
+						out.flush();
+					}
+				} catch (IOException e) {
+					LOGGER.error("stand-in CAU write error: " + e.getMessage());
+				} finally {
+					synchronized(outstanding) {
+						outstanding.decrementAndGet();
+						outstanding.notifyAll();
+					}
+				}
+			});
+		}
+		synchronized(outstanding) {
+			while(outstanding.get() > 0) {
+				outstanding.wait();
+			}
+		}
+		synchronized(out) {
+			new EnrolmentFrame(0L, EnrolmentFrame.END, null).write(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Hold a connection open without answering until closed.
+	 * <p>
+	 * @param socket	the connection
+	 */
+	private void stall(SSLSocket socket) {
+		try {
+			this.stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOGGER.error("error closing stalled connection: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Create a daemon thread.
+	 * <p>
+	 * @param r		the task
+	 * @param name	the thread name
+	 * @return the thread
+	 */
+	private static Thread daemon(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * A local stand&#45;in for the leader CAU.  It requires client authentication with a
+ * certificate issued by the CA it trusts, as the leader CAU verifies a new agent
+ * certificate, and reads the client message until the client closes the connection.
+ * It offers TLS 1.3 and 1.2, or the protocols given.
+ */
+public class StandInLeaderCau implements Closeable {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(StandInLeaderCau.class);
+	/** the listening socket */
+	private final SSLServerSocket serverSocket;
+	/** connection handlers */
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "stand-in-leader-cau-connection");
+		t.setDaemon(true);
+		return t;
+	});
+	/** number of handshakes completed */
+	private final AtomicInteger handshakes = new AtomicInteger();
+	/** number of handshakes failed */
+	private final AtomicInteger failures = new AtomicInteger();
+	/** the certificate of the last authenticated client */
+	private volatile X509Certificate lastClient = null;
+	/** set when closed */
+	private volatile boolean closed = false;
+
+	/**
+	 * Create and start a stand&#45;in leader CAU on a free loopback port.
+	 * <p>
+	 * @param ca		the CA of the agent certificates
+	 * @param server	the leader CAU TLS credential
+	 * @throws Exception on error
+	 */
+	public StandInLeaderCau(Credential ca, Credential server) throws Exception {
+		this(ca, server, "TLSv1.3", "TLSv1.2");
+	}
+
+	/**
+	 * Create and start a stand&#45;in leader CAU offering the given protocols.
+	 * <p>
+	 * @param ca		the CA of the agent certificates
+	 * @param server	the leader CAU TLS credential
+	 * @param protocols	the protocols enabled
+	 * @throws Exception on error
+	 */
+	public StandInLeaderCau(Credential ca, Credential server, String... protocols) throws Exception {
+		SSLContext ctx = TestPki.context(server, null, ca.cert);
+		this.serverSocket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0, 100, InetAddress.getLoopbackAddress());
+		this.serverSocket.setNeedClientAuth(true);
+		this.serverSocket.setEnabledProtocols(protocols);
+		Thread acceptor = new Thread(this::accept, "stand-in-leader-cau-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Get the listening port.
+	 * <p>
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Get the number of handshakes completed with an authenticated client.
+	 * <p>
+	 * @return the handshake count
+	 */
+	public int getHandshakes() {
+		return this.handshakes.get();
+	}
+
+	/**
+	 * Get the certificate of the last authenticated client.
+	 * <p>
+	 * @return the certificate, or null if none
+	 */
+	public X509Certificate getLastClient() {
+		return this.lastClient;
+	}
+
+	/**
+	 * Get the number of connections whose handshake failed.
+	 * <p>
+	 * @return the failure count
+	 */
+	public int getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * Stop listening and release the threads.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			LOGGER.error("error closing stand-in leader CAU: " + e.getMessage());
+		}
+		this.connections.shutdownNow();
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Accept connections until closed.
+	 */
+	private void accept() {
+		while(!this.closed) {
+			try {
+				SSLSocket s = (SSLSocket) this.serverSocket.accept();
+				this.connections.execute(() -> handle(s));
+			} catch (IOException e) {
+				if(!this.closed) {
+					LOGGER.error("stand-in leader CAU accept error: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Complete the handshake and read until the client closes.
+	 * <p>
+	 * @param s	the connection
+	 */
+	private void handle(SSLSocket s) {
+		boolean authenticated = false;
+		try (SSLSocket socket = s) {
+			socket.startHandshake();
+			this.lastClient = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+			this.handshakes.incrementAndGet();
+			authenticated = true;
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[256];
+			while(in.read(buffer) >= 0) {
+				//discard the message
+			}
+		} catch (IOException e) {
+			if(!this.closed && !authenticated) {
+				this.failures.incrementAndGet();
+				LOGGER.error("stand-in leader CAU connection error: " + e.getMessage());
+			}
+		}
+	}
+}
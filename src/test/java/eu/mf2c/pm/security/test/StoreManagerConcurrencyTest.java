@@ -0,0 +1,235 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.SSLContextRegistry;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.StoreSnapshot;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Stress tests the {@link StoreManagerSingleton <em>StoreManagerSingleton</em>} with
+ * concurrent registrations, readers and SSLContext builds, and measures the lookup
+ * throughput with one reader and with a reader per processor while the stores change.
+ */
+public class StoreManagerConcurrencyTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(StoreManagerConcurrencyTest.class);
+	/** number of registering threads */
+	private static final int WRITERS = 8;
+	/** registrations per thread */
+	private static final int REGISTRATIONS = 25;
+
+	/**
+	 * Test concurrent registrations each store the key they requested their certificate
+	 * for, while readers always see consistent entries and handshake contexts keep
+	 * being built.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testConcurrentRegistrations() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		KeyAlgorithm original = sms.getKeyAlgorithm();
+		//EC keys keep the test short, the key material does not matter here
+		sms.setKeyAlgorithm(KeyAlgorithm.EC_P256);
+		Credential ca = TestPki.createCA("stress-ca", KeyAlgorithm.EC_P256);
+		String prefix = "stress-" + System.nanoTime() + "-";
+		long keyVersion = sms.getKeyStoreVersion();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicReference<Throwable> readerError = new AtomicReference<Throwable>();
+		LongAdder reads = new LongAdder();
+		List<Thread> readers = new ArrayList<Thread>();
+		for(int r = 0; r < 3; r++) {
+			boolean contexts = r == 0;
+			Thread t = new Thread(() -> {
+				try {
+					while(running.get()) {
+						if(contexts) {
+							//a writer must never break a context build in progress
+							SSLContextRegistry.getInstance().getContext(SSLContextRegistry.Role.LEADER, sms);
+						}
+						assertNotNull(sms.getTrustedCertificate("ut-sub"));
+						StoreSnapshot snapshot = sms.getKeySnapshot();
+						for(String alias : snapshot.aliases()) {
+							if(alias.startsWith(prefix)) {
+								KeyStore.PrivateKeyEntry e = (KeyStore.PrivateKeyEntry) snapshot.getEntry(alias);
+								assertEquals(alias, e.getCertificate().getPublicKey().getAlgorithm(), e.getPrivateKey().getAlgorithm());
+								assertEquals(alias, snapshot.getCertificate(alias), e.getCertificate());
+								reads.increment();
+							}
+						}
+					}
+				} catch (Throwable e) {
+					readerError.compareAndSet(null, e);
+				}
+			}, "stress-reader-" + r);
+			t.start();
+			readers.add(t);
+		}
+		ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+		try {
+			CountDownLatch go = new CountDownLatch(1);
+			List<Future<List<KeyPair>>> results = new ArrayList<Future<List<KeyPair>>>();
+			for(int w = 0; w < WRITERS; w++) {
+				int writer = w;
+				results.add(writers.submit(() -> {
+					go.await();
+					List<KeyPair> keys = new ArrayList<KeyPair>();
+					for(int i = 0; i < REGISTRATIONS; i++) {
+						String alias = prefix + writer + "-" + i;
+						KeyPair kp = sms.takeKeyPair();
+						PublicKey requested = new JcaPEMKeyConverter().getPublicKey(sms.createCSR(alias, kp).getSubjectPublicKeyInfo());
+						X509Certificate cert = TestPki.issue(alias, requested, ca, 30);
+						sms.storeKeyEntry(alias, "stress-fog", cert, kp);
+						sms.storeCertificate(alias + "-cau", ca.cert);
+						keys.add(kp);
+					}
+					return keys;
+				}));
+			}
+			long start = System.nanoTime();
+			go.countDown();
+			for(int w = 0; w < WRITERS; w++) {
+				List<KeyPair> keys = results.get(w).get(120, TimeUnit.SECONDS);
+				for(int i = 0; i < REGISTRATIONS; i++) {
+					KeyStore.PrivateKeyEntry e = sms.getKeyEntry(prefix + w + "-" + i, "stress-fog");
+					assertEquals(keys.get(i).getPrivate(), e.getPrivateKey());
+					assertEquals(keys.get(i).getPublic(), e.getCertificate().getPublicKey());
+				}
+			}
+			LOGGER.info(String.format("%d registrations in %.0fms, %d consistent entry reads", WRITERS * REGISTRATIONS,
+					(System.nanoTime() - start) / 1e6, reads.sum()));
+		} finally {
+			running.set(false);
+			for(Thread t : readers) {
+				t.join(10000);
+			}
+			writers.shutdownNow();
+			sms.setKeyAlgorithm(original);
+		}
+		assertNull(String.valueOf(readerError.get()), readerError.get());
+		assertEquals(keyVersion + WRITERS * REGISTRATIONS, sms.getKeyStoreVersion());
+		KeyStore ks = sms.getKeyStore();
+		assertTrue(ks.isKeyEntry(prefix + "0-0"));
+		assertEquals(sms.getKeySnapshot().size(), ks.size());
+	}
+
+	/**
+	 * Measure the trust anchor and key entry lookups per second with one reader and
+	 * with a reader per processor while a writer keeps changing the stores.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testReadThroughputScalesWithThreads() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		Credential ca = TestPki.createCA("scaling-ca", KeyAlgorithm.EC_P256);
+		KeyPair kp = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		sms.storeKeyEntry("scaling-agent", "scaling-fog", TestPki.issue("scaling-agent", kp.getPublic(), ca, 30), kp);
+		X509Certificate[] certs = {ca.cert, TestPki.createCA("scaling-ca2", KeyAlgorithm.EC_P256).cert};
+		int cores = Runtime.getRuntime().availableProcessors();
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread writer = new Thread(() -> {
+			int i = 0;
+			try {
+				while(running.get()) {
+					//alternate the certificate so that every call publishes a new snapshot
+					sms.storeCertificate("scaling-" + (i % 50), certs[(i++ / 50) & 1]);
+					Thread.sleep(1);
+				}
+			} catch (Exception e) {
+				LOGGER.error("writer error: " + e.getMessage());
+			}
+		}, "scaling-writer");
+		writer.start();
+		try {
+			measure(sms, cores); //warm up
+			double single = measure(sms, 1);
+			double all = measure(sms, cores);
+			LOGGER.info(String.format("lookups/sec: 1 thread = %.0f, %d threads = %.0f (x%.2f)", single, cores, all, all / single));
+			if(cores > 1) {
+				assertTrue("no scaling with threads", all > single);
+			}
+		} finally {
+			running.set(false);
+			writer.join(10000);
+		}
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Run lookups on a number of threads for a fixed time.
+	 * @param sms		the store manager
+	 * @param threads	the number of reader threads
+	 * @return	the lookups per second
+	 * @throws Exception on errors
+	 */
+	private static double measure(StoreManagerSingleton sms, int threads) throws Exception {
+		LongAdder lookups = new LongAdder();
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			long start = System.nanoTime();
+			for(int t = 0; t < threads; t++) {
+				done.add(pool.submit(() -> {
+					long n = 0;
+					while(System.nanoTime() < end) {
+						for(int i = 0; i < 100; i++) {
+							if(sms.getTrustedCertificate("ut-sub") == null || sms.getKeySnapshot().getEntry("scaling-agent") == null) {
+								throw new IllegalStateException("entry missing");
+							}
+						}
+						n += 200;
+					}
+					lookups.add(n);
+					return null;
+				}));
+			}
+			for(Future<?> f : done) {
+				f.get(30, TimeUnit.SECONDS);
+			}
+			return lookups.sum() / ((System.nanoTime() - start) / 1e9);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
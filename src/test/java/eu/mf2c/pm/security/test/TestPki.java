@@ -0,0 +1,253 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+
+/**
+ * Test helper issuing throw&#45;away certificates and TLS contexts.
+ */
+public class TestPki {
+
+	/** Password of the generated stores */
+	public static final char[] PASS = "changeit".toCharArray();
+	/** Secure random number generator attribute */
+	public static final SecureRandom RANDOM = new SecureRandom();
+	/** certificate serial numbers */
+	private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * A keypair and its certificate.
+	 */
+	public static class Credential {
+		/** the keypair */
+		public final KeyPair keypair;
+		/** the certificate */
+		public final X509Certificate cert;
+
+		/**
+		 * Constructor
+		 * @param keypair	the keypair
+		 * @param cert		the certificate
+		 */
+		public Credential(KeyPair keypair, X509Certificate cert) {
+			this.keypair = keypair;
+			this.cert = cert;
+		}
+	}
+
+	/**
+	 * Create a self&#45;signed CA credential.
+	 * @param cn		the common name
+	 * @param alg		the key algorithm
+	 * @return	the credential
+	 * @throws Exception on errors
+	 */
+	public static Credential createCA(String cn, KeyAlgorithm alg) throws Exception {
+		KeyPair kp = alg.generateKeyPair(RANDOM);
+		X509Certificate cert = issue(new X500Name("CN=" + cn + ", O=mF2C, C=EU"), kp.getPublic(), null, kp, alg, true, 365);
+		return new Credential(kp, cert);
+	}
+
+	/**
+	 * Issue an end&#45;entity credential.
+	 * @param cn		the common name
+	 * @param alg		the key algorithm of the new credential
+	 * @param issuer	the issuing CA, or null for a self&#45;signed certificate
+	 * @return	the credential
+	 * @throws Exception on errors
+	 */
+	public static Credential createEntity(String cn, KeyAlgorithm alg, Credential issuer) throws Exception {
+		KeyPair kp = alg.generateKeyPair(RANDOM);
+		return new Credential(kp, issue(cn, kp.getPublic(), issuer, 365));
+	}
+
+	/**
+	 * Issue an end&#45;entity certificate for a public key.
+	 * @param cn		the common name
+	 * @param key		the subject public key
+	 * @param issuer	the issuing CA
+	 * @param days		the validity in days
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	public static X509Certificate issue(String cn, PublicKey key, Credential issuer, int days) throws Exception {
+		X500Name subject = new X500Name("CN=" + cn + ", O=mF2C, C=EU");
+		if(issuer == null) {
+			throw new IllegalArgumentException("issuer required");
+		}
+		return issue(subject, key, issuer.cert, issuer.keypair, KeyAlgorithm.forKey(issuer.keypair.getPrivate()), false, days);
+	}
+
+	/**
+	 * Issue an end&#45;entity certificate valid for a period from now.
+	 * @param cn		the common name
+	 * @param key		the subject public key
+	 * @param issuer	the issuing CA
+	 * @param millis	the validity in milliseconds
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	public static X509Certificate issueMillis(String cn, PublicKey key, Credential issuer, long millis) throws Exception {
+		long now = System.currentTimeMillis();
+		return issue(new X500Name("CN=" + cn + ", O=mF2C, C=EU"), key, issuer.cert, issuer.keypair,
+				KeyAlgorithm.forKey(issuer.keypair.getPrivate()), false, new Date(now), new Date(now + millis));
+	}
+
+	/**
+	 * Build and sign a certificate.
+	 * @param subject		the subject name
+	 * @param key			the subject public key
+	 * @param issuerCert	the issuer certificate, null if self&#45;signed
+	 * @param issuerKeys	the issuer keypair
+	 * @param alg			the issuer key algorithm
+	 * @param ca			true for a CA certificate
+	 * @param days			the validity in days
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	public static X509Certificate issue(X500Name subject, PublicKey key, X509Certificate issuerCert, KeyPair issuerKeys,
+			KeyAlgorithm alg, boolean ca, int days) throws Exception {
+		long now = System.currentTimeMillis();
+		return issue(subject, key, issuerCert, issuerKeys, alg, ca, new Date(now - 60000L), new Date(now + days * 86400000L));
+	}
+
+	/**
+	 * Build and sign a certificate with a validity period.
+	 * @param subject		the subject name
+	 * @param key			the subject public key
+	 * @param issuerCert	the issuer certificate, null if self&#45;signed
+	 * @param issuerKeys	the issuer keypair
+	 * @param alg			the issuer key algorithm
+	 * @param ca			true for a CA certificate
+	 * @param notBefore		the start of the validity period
+	 * @param notAfter		the end of the validity period
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	public static X509Certificate issue(X500Name subject, PublicKey key, X509Certificate issuerCert, KeyPair issuerKeys,
+			KeyAlgorithm alg, boolean ca, Date notBefore, Date notAfter) throws Exception {
+		X500Name issuerName = issuerCert == null ? subject : X500Name.getInstance(issuerCert.getSubjectX500Principal().getEncoded());
+		X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuerName, BigInteger.valueOf(SERIAL.incrementAndGet()),
+				notBefore, notAfter, subject, key);
+		JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+		builder.addExtension(Extension.subjectKeyIdentifier, false, utils.createSubjectKeyIdentifier(key));
+		builder.addExtension(Extension.authorityKeyIdentifier, false,
+				utils.createAuthorityKeyIdentifier(issuerCert == null ? key : issuerCert.getPublicKey()));
+		if(ca) {
+			builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+			builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+		}
+		return new JcaX509CertificateConverter().getCertificate(builder.build(alg.createSigner(issuerKeys.getPrivate())));
+	}
+
+	/**
+	 * Issue a complete or delta CRL.
+	 * @param issuer	the issuing CA
+	 * @param number	the CRL number
+	 * @param base		the base CRL number of a delta CRL, or null for a complete CRL
+	 * @param revoked	the revoked serials and their reason codes, e.g.
+	 * 					{@link java.security.cert.CRLReason#REMOVE_FROM_CRL} in a delta CRL
+	 * @return	the CRL
+	 * @throws Exception on errors
+	 */
+	public static X509CRL crl(Credential issuer, long number, Long base, Map<BigInteger, Integer> revoked) throws Exception {
+		long now = System.currentTimeMillis();
+		X509v2CRLBuilder builder = new X509v2CRLBuilder(X500Name.getInstance(issuer.cert.getSubjectX500Principal().getEncoded()),
+				new Date(now - 60000L));
+		builder.setNextUpdate(new Date(now + 86400000L));
+		builder.addExtension(Extension.cRLNumber, false, new ASN1Integer(number));
+		if(base != null) {
+			builder.addExtension(Extension.deltaCRLIndicator, true, new ASN1Integer(base.longValue()));
+		}
+		Date revokedAt = new Date(now - 30000L);
+		for(Map.Entry<BigInteger, Integer> e : revoked.entrySet()) {
+			builder.addCRLEntry(e.getKey(), revokedAt, e.getValue().intValue());
+		}
+		return new JcaX509CRLConverter().getCRL(builder.build(KeyAlgorithm.forKey(issuer.keypair.getPrivate()).createSigner(issuer.keypair.getPrivate())));
+	}
+
+	/**
+	 * Create a trust store holding the provided certificates.
+	 * @param certs	the trusted certificates
+	 * @return	the store
+	 * @throws Exception on errors
+	 */
+	public static KeyStore trustStore(X509Certificate... certs) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, PASS);
+		for(int i = 0; i < certs.length; i++) {
+			ks.setCertificateEntry("ca" + i, certs[i]);
+		}
+		return ks;
+	}
+
+	/**
+	 * Create a TLS context.
+	 * @param own		the local credential, or null for none
+	 * @param chain		the local certificate chain after the local certificate
+	 * @param trusted	the trusted certificates
+	 * @return	the context
+	 * @throws Exception on errors
+	 */
+	public static SSLContext context(Credential own, X509Certificate[] chain, X509Certificate... trusted) throws Exception {
+		KeyManagerFactory kmf = null;
+		if(own != null) {
+			KeyStore ks = KeyStore.getInstance("JKS");
+			ks.load(null, PASS);
+			X509Certificate[] full = new X509Certificate[1 + (chain == null ? 0 : chain.length)];
+			full[0] = own.cert;
+			if(chain != null) {
+				System.arraycopy(chain, 0, full, 1, chain.length);
+			}
+			ks.setKeyEntry("own", own.keypair.getPrivate(), PASS, full);
+			kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(ks, PASS);
+		}
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(trustStore(trusted));
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf == null ? null : kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+		return ctx;
+	}
+}
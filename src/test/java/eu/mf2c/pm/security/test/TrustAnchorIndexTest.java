@@ -0,0 +1,207 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.pm.security.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.junit.Test;
+
+import eu.mf2c.pm.security.KeyAlgorithm;
+import eu.mf2c.pm.security.StoreManagerSingleton;
+import eu.mf2c.pm.security.TrustAnchorIndex;
+import eu.mf2c.pm.security.test.TestPki.Credential;
+
+/**
+ * Tests the {@link TrustAnchorIndex <em>TrustAnchorIndex</em>} builds certificate paths
+ * through intermediate CAs, by key identifier or by DN, reuses the path above each
+ * issuer and takes one lookup per certificate whatever the size of the trust store.
+ */
+public class TrustAnchorIndexTest {
+
+	/** Message Logger */
+	protected static Logger LOGGER = Logger.getLogger(TrustAnchorIndexTest.class);
+	/** serial numbers of the certificates built by the test */
+	private static final AtomicLong SERIAL = new AtomicLong(1);
+
+	/**
+	 * Test the path of a certificate issued by an intermediate CA runs to the root, and
+	 * the path above the intermediate is reused for the next certificate it issues.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testPathThroughIntermediate() throws Exception {
+		Credential root = TestPki.createCA("index-root", KeyAlgorithm.EC_P256);
+		KeyPair subKeys = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		Credential sub = new Credential(subKeys, TestPki.issue(new X500Name("CN=index-sub, O=mF2C, C=EU"), subKeys.getPublic(),
+				root.cert, root.keypair, KeyAlgorithm.EC_P256, true, 30));
+		Credential other = TestPki.createCA("index-other", KeyAlgorithm.EC_P256);
+		TrustAnchorIndex index = new TrustAnchorIndex(1, Arrays.asList(other.cert, sub.cert, root.cert, sub.cert));
+		assertEquals(3, index.size());
+		X509Certificate agent = TestPki.createEntity("agent-1", KeyAlgorithm.EC_P256, sub).cert;
+		assertArrayEquals(new X509Certificate[] {agent, sub.cert, root.cert}, index.buildPath(agent));
+		assertEquals(2, index.getLookupCount());
+		X509Certificate agent2 = TestPki.createEntity("agent-2", KeyAlgorithm.EC_P256, sub).cert;
+		assertArrayEquals(new X509Certificate[] {agent2, sub.cert, root.cert}, index.buildPath(agent2));
+		assertEquals(2, index.getLookupCount());
+		assertEquals(1, index.getPathHits());
+		//a root is its own path, an unknown issuer leaves the certificate alone
+		assertArrayEquals(new X509Certificate[] {root.cert}, index.buildPath(root.cert));
+		X509Certificate stranger = TestPki.createEntity("stranger", KeyAlgorithm.EC_P256, TestPki.createCA("unknown", KeyAlgorithm.EC_P256)).cert;
+		assertArrayEquals(new X509Certificate[] {stranger}, index.buildPath(stranger));
+		assertNull(index.findIssuer(stranger));
+		assertSame(other.cert, index.findIssuer(TestPki.createEntity("agent-3", KeyAlgorithm.EC_P256, other).cert));
+		LOGGER.info(index);
+	}
+
+	/**
+	 * Test CA certificates sharing a DN are told apart by key identifier, or by
+	 * signature when the issued certificate has no Authority Key Identifier.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testSameNameCAs() throws Exception {
+		X500Name name = new X500Name("CN=rollover-ca, O=mF2C, C=EU");
+		KeyPair oldKeys = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		KeyPair newKeys = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		X509Certificate oldCA = certificate(name, oldKeys, new byte[] {1}, name, new byte[] {1}, oldKeys);
+		X509Certificate newCA = certificate(name, newKeys, new byte[] {2}, name, new byte[] {2}, newKeys);
+		TrustAnchorIndex index = new TrustAnchorIndex(1, Arrays.asList(oldCA, newCA));
+		KeyPair agentKeys = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		X500Name agent = new X500Name("CN=agent, O=mF2C, C=EU");
+		assertSame(newCA, index.findIssuer(certificate(agent, agentKeys, null, name, new byte[] {2}, newKeys)));
+		assertSame(oldCA, index.findIssuer(certificate(agent, agentKeys, null, name, new byte[] {1}, oldKeys)));
+		//without a key identifier only the signature tells them apart, and it is not memoized
+		assertSame(oldCA, index.findIssuer(certificate(agent, agentKeys, null, name, null, oldKeys)));
+		assertSame(newCA, index.findIssuer(certificate(agent, agentKeys, null, name, null, newKeys)));
+		assertEquals(0, index.getPathHits());
+	}
+
+	/**
+	 * Test the lookups per path stay at the chain length as the trust store grows,
+	 * and log the time to build a path at each size.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testLookupIsIndependentOfSize() throws Exception {
+		KeyPair keys = KeyAlgorithm.EC_P256.generateKeyPair(TestPki.RANDOM);
+		X500Name rootName = new X500Name("CN=scale-root, O=mF2C, C=EU");
+		X500Name subName = new X500Name("CN=scale-sub, O=mF2C, C=EU");
+		X509Certificate root = certificate(rootName, keys, new byte[] {0, 1}, rootName, new byte[] {0, 1}, keys);
+		X509Certificate sub = certificate(subName, keys, new byte[] {0, 2}, rootName, new byte[] {0, 1}, keys);
+		X509Certificate agent = certificate(new X500Name("CN=scale-agent, O=mF2C, C=EU"), keys, null, subName, new byte[] {0, 2}, keys);
+		List<X509Certificate> anchors = new ArrayList<X509Certificate>();
+		anchors.add(root);
+		anchors.add(sub);
+		LOGGER.info(String.format("%10s %14s %14s", "anchors", "uncached ns", "cached ns"));
+		for(int size : new int[] {10, 1000, 5000}) {
+			while(anchors.size() < size) {
+				X500Name n = new X500Name("CN=filler-" + anchors.size() + ", O=mF2C, C=EU");
+				byte[] id = BigInteger.valueOf(anchors.size() + 1000).toByteArray();
+				anchors.add(certificate(n, keys, id, n, id, keys));
+			}
+			int runs = 100;
+			long uncached = 0;
+			TrustAnchorIndex index = null;
+			for(int i = 0; i < runs; i++) {
+				index = new TrustAnchorIndex(size, anchors);
+				long start = System.nanoTime();
+				index.buildPath(agent);
+				uncached += System.nanoTime() - start;
+				assertEquals(2, index.getLookupCount());
+			}
+			long start = System.nanoTime();
+			for(int i = 0; i < runs; i++) {
+				assertEquals(3, index.buildPath(agent).length);
+			}
+			long cached = System.nanoTime() - start;
+			assertEquals(2, index.getLookupCount());
+			LOGGER.info(String.format("%10d %14d %14d", size, uncached / runs, cached / runs));
+		}
+	}
+
+	/**
+	 * Test key entries are stored with the chain of whichever trusted CA issued them.
+	 * @throws Exception on errors
+	 */
+	@Test
+	public void testStoreKeyEntryChain() throws Exception {
+		StoreManagerSingleton sms = StoreManagerSingleton.getInstance();
+		X509Certificate fog = sms.getTrustedCertificate("fog-sub");
+		X509Certificate untrust = sms.getTrustedCertificate("ut-sub");
+		assertArrayEquals(new X509Certificate[] {fog}, sms.buildCertificatePath(fog));
+		assertArrayEquals(new X509Certificate[] {untrust}, sms.buildCertificatePath(untrust));
+		Credential first = TestPki.createCA("chain-ca-1", KeyAlgorithm.EC_P256);
+		Credential second = TestPki.createCA("chain-ca-2", KeyAlgorithm.EC_P256);
+		sms.storeCertificate("chain-ca-1", first.cert);
+		sms.storeCertificate("chain-ca-2", second.cert);
+		for(Credential ca : new Credential[] {first, second}) {
+			String alias = "chain-agent-" + ca.cert.getSubjectX500Principal().getName();
+			Credential agent = TestPki.createEntity(alias, KeyAlgorithm.EC_P256, ca);
+			sms.storeKeyEntry(alias, "chain-fog", agent.cert, agent.keypair);
+			Certificate[] chain = ((KeyStore.PrivateKeyEntry) sms.getKeySnapshot().getEntry(alias)).getCertificateChain();
+			assertArrayEquals(new Certificate[] {agent.cert, ca.cert}, chain);
+		}
+		LOGGER.info(sms.getTrustAnchorIndex());
+	}
+
+	///////////////////////////private methods/////////////////////////////
+	/**
+	 * Build a certificate with chosen key identifiers.
+	 * @param subject	the subject
+	 * @param subjectKeys	the subject keypair
+	 * @param ski		the subject key identifier, or null for none
+	 * @param issuer	the issuer
+	 * @param aki		the authority key identifier, or null for none
+	 * @param issuerKeys	the issuer keypair
+	 * @return	the certificate
+	 * @throws Exception on errors
+	 */
+	private static X509Certificate certificate(X500Name subject, KeyPair subjectKeys, byte[] ski, X500Name issuer, byte[] aki,
+			KeyPair issuerKeys) throws Exception {
+		long now = System.currentTimeMillis();
+		X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(SERIAL.incrementAndGet()),
+				new Date(now - 60000L), new Date(now + 86400000L), subject, subjectKeys.getPublic());
+		if(ski != null) {
+			builder.addExtension(Extension.subjectKeyIdentifier, false, new SubjectKeyIdentifier(ski));
+		}
+		if(aki != null) {
+			builder.addExtension(Extension.authorityKeyIdentifier, false, new AuthorityKeyIdentifier(aki));
+		}
+		return new JcaX509CertificateConverter().getCertificate(builder.build(KeyAlgorithm.EC_P256.createSigner(issuerKeys.getPrivate())));
+	}
+}